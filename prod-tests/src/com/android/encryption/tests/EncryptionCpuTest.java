@@ -21,24 +21,20 @@ import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.device.CollectingOutputReceiver;
-import com.android.tradefed.device.CpuStatsCollector;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.DeviceTelemetrySampler;
 import com.android.tradefed.device.ITestDevice;
-import com.android.tradefed.device.TopHelper;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
-import com.android.tradefed.result.SnapshotInputStreamSource;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
-import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.TimeSeries;
 
 import junit.framework.Assert;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -49,15 +45,21 @@ import java.util.Map;
  * Runs the encryption CPU benchmarks
  * <p>
  * Runs various disk intensive actions on the device while measuring the CPU usage with the top
- * command.  This test can be run with an encrypted device or with an unencrypted device, and it is
- * important to run both so that the difference between encrypted and unecrypted CPU usage can be
- * derived.
+ * or cpustats command.  This test can be run with an encrypted device or with an unencrypted
+ * device, and it is important to run both so that the difference between encrypted and unecrypted
+ * CPU usage can be derived.
  * </p>
  */
 public class EncryptionCpuTest implements IDeviceTest, IRemoteTest {
     /** The amount to trim from either side of the top samples. */
     private final static int TOP_TRIM = 5;
 
+    /** The CPU usage series recorded by both the top and cpustats probes. */
+    private final static String[] CPU_SERIES = {"total", "user", "system", "iow", "irq"};
+
+    /** The CPU frequency series recorded by the cpustats probe. */
+    private final static String[] CPU_FREQ_SERIES = {"estimated_mhz", "used_mhz"};
+
     /** The block size in bytes for the dd command */
     private final static int BLOCK_SIZE = 1024;
 
@@ -74,9 +76,7 @@ public class EncryptionCpuTest implements IDeviceTest, IRemoteTest {
         public String mTestName = null;
         public String mKey = null;
 
-        private TopHelper mTopHelper = null;
-        private CpuStatsCollector mCpuStatsCollector = null;
-        private File mLogFile = null;
+        private DeviceTelemetrySampler mSampler = null;
 
         private Map<String, String> mMetrics = new HashMap<String, String>();
 
@@ -90,59 +90,19 @@ public class EncryptionCpuTest implements IDeviceTest, IRemoteTest {
         }
 
         /**
-         * Helper method for adding all the top statistics to the test metrics.
-         *
-         * @param top The {@link TopHelper} object used to measure the CPU usage via the top
-         * command.
-         */
-        protected void addTopStats(TopHelper top) {
-            String keySuffix = getKeySuffix();
-
-            List<TopHelper.TopStats> stats = top.getTopStats();
-            if (stats.size() > TOP_TRIM * 2) {
-                stats = stats.subList(TOP_TRIM, stats.size() - TOP_TRIM);
-
-                addMetric("total_mean" + keySuffix, TopHelper.getTotalAverage(stats).toString());
-                addMetric("user_mean" + keySuffix, TopHelper.getUserAverage(stats).toString());
-                addMetric("system_mean" + keySuffix, TopHelper.getSystemAverage(stats).toString());
-                addMetric("iow_mean" + keySuffix, TopHelper.getIowAverage(stats).toString());
-                addMetric("irq_mean" + keySuffix, TopHelper.getIrqAverage(stats).toString());
-            }
-        }
-
-        /**
-         * Helper method for adding all the cpustats statistics to the test metrics.
+         * Helper method for adding the mean of the sampled CPU usage to the test metrics.
          *
-         * @param helper The {@link CpuStatsCollector} object used to measure the CPU usage via the
-         * cpustats command.
+         * @param seriesPrefix the prefix of the names of the CPU usage series to report
+         * @param seriesNames the names of the CPU usage series to report
          */
-        protected void addCpuStats(CpuStatsCollector helper) {
+        protected void addCpuStats(String seriesPrefix, String[] seriesNames) {
             String keySuffix = getKeySuffix();
 
-            Map<String, List<CpuStatsCollector.CpuStats>> cpuStats = helper.getCpuStats();
-            if (cpuStats.containsKey("Total") || cpuStats.get("Total").size() > TOP_TRIM * 2) {
-                List<CpuStatsCollector.CpuStats> totalStats = cpuStats.get("Total");
-
-                totalStats = totalStats.subList(TOP_TRIM, totalStats.size() - TOP_TRIM);
-
-                addMetric("total_mean" + keySuffix,
-                        CpuStatsCollector.getTotalPercentageMean(totalStats).toString());
-                addMetric("user_mean" + keySuffix,
-                        CpuStatsCollector.getUserPercentageMean(totalStats).toString());
-                addMetric("system_mean" + keySuffix,
-                        CpuStatsCollector.getSystemPercentageMean(totalStats).toString());
-                addMetric("iow_mean" + keySuffix,
-                        CpuStatsCollector.getIowPercentageMean(totalStats).toString());
-                addMetric("irq_mean" + keySuffix,
-                        CpuStatsCollector.getIrqPercentageMean(totalStats).toString());
-
-                Double estimatedMhz = CpuStatsCollector.getEstimatedMhzMean(totalStats);
-                if (estimatedMhz != null) {
-                    addMetric("estimated_mhz_mean" + keySuffix, estimatedMhz.toString());
-                }
-                Double usedMhz = CpuStatsCollector.getUsedMhzPercentageMean(totalStats);
-                if (usedMhz != null) {
-                    addMetric("used_mhz_mean" + keySuffix, usedMhz.toString());
+            for (String seriesName : seriesNames) {
+                TimeSeries series = mSampler.getSeries(seriesPrefix + seriesName);
+                if (series != null && series.size() > TOP_TRIM * 2) {
+                    series = series.slice(TOP_TRIM, series.size() - TOP_TRIM);
+                    addMetric(seriesName + "_mean" + keySuffix, series.getMean().toString());
                 }
             }
         }
@@ -167,63 +127,41 @@ public class EncryptionCpuTest implements IDeviceTest, IRemoteTest {
         }
 
         /**
-         * Creates the {@link TopHelper} and sets up the logging to file.
+         * Creates the {@link DeviceTelemetrySampler}.
          */
         protected void setupLogging() {
-            try {
-                mLogFile = FileUtil.createTempFile("stats_", ".txt");
-            } catch (IOException e) {
-                CLog.e("Error creating log file: %s", e.getMessage());
-            }
-
+            mSampler = new DeviceTelemetrySampler(mTestDevice);
             if (mUseCpuStats) {
-                mCpuStatsCollector = new CpuStatsCollector(mTestDevice);
-                mCpuStatsCollector.logToFile(mLogFile);
+                mSampler.addProbe(new DeviceTelemetrySampler.CpuStatsProbe());
             } else {
-                mTopHelper = new TopHelper(mTestDevice);
-                mTopHelper.logToFile(mLogFile);
+                mSampler.addProbe(new DeviceTelemetrySampler.TopProbe());
             }
         }
 
         /**
-         * Starts the {@link TopHelper}.
+         * Starts the {@link DeviceTelemetrySampler}.
          */
         protected void startLogging() {
-            if (mUseCpuStats) {
-                mCpuStatsCollector.start();
-            } else {
-                mTopHelper.start();
-            }
+            mSampler.start();
         }
 
         /**
-         * Stops the {@link TopHelper} and adds the log file and metrics to the test results.
+         * Stops the {@link DeviceTelemetrySampler} and adds the samples and metrics to the test
+         * results.
          * @param listener
          * @throws DeviceNotAvailableException
          */
         protected void stopLogging(ITestInvocationListener listener)
                 throws DeviceNotAvailableException {
-            if (mUseCpuStats) {
-                mCpuStatsCollector.cancel();
-            } else {
-                mTopHelper.cancel();
-            }
-            if (mLogFile != null) {
-                try {
-                    listener.testLog(String.format("stats_%s", mKey), LogDataType.TEXT,
-                            new SnapshotInputStreamSource(new FileInputStream(mLogFile)));
-                } catch (FileNotFoundException e) {
-                    CLog.e("Error saving log file: %s", e.getMessage());
-                }
-                mLogFile.delete();
-                mLogFile = null;
-            }
+            mSampler.cancel();
+            mSampler.logSamples(listener, String.format("stats_%s", mKey));
             InputStreamSource bugreport = mTestDevice.getBugreport();
             listener.testLog(String.format("bugreport_%s", mKey), LogDataType.TEXT, bugreport);
             if (mUseCpuStats) {
-                addCpuStats(mCpuStatsCollector);
+                addCpuStats("cpustats.Total.", CPU_SERIES);
+                addCpuStats("cpustats.Total.", CPU_FREQ_SERIES);
             } else {
-                addTopStats(mTopHelper);
+                addCpuStats("top.", CPU_SERIES);
             }
         }
     }
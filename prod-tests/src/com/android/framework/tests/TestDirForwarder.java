@@ -27,7 +27,6 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.targetprep.BuildError;
 import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.targetprep.TargetSetupError;
-import com.android.tradefed.util.FileUtil;
 
 import java.io.File;
 
@@ -53,7 +52,10 @@ public class TestDirForwarder implements ITargetPreparer, IConfigurationReceiver
             throw new IllegalArgumentException("missing config");
         }
         IDeviceBuildInfo deviceBuild = (IDeviceBuildInfo)buildInfo;
-        File testAppDir = FileUtil.getFileForPath(deviceBuild.getTestsDir(), "DATA", "app");
+        File testAppDir = deviceBuild.getTestsDirFile("DATA", "app");
+        if (testAppDir == null) {
+            throw new TargetSetupError("Provided buildInfo does not contain a tests directory");
+        }
         // option with name test-app-path must exist!
         try {
             mConfig.injectOptionValue("test-app-path", testAppDir.getAbsolutePath());
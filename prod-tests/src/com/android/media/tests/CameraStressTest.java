@@ -19,14 +19,19 @@ package com.android.media.tests;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.ScreenRecorder;
 import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.SnapshotInputStreamSource;
+import com.android.tradefed.result.StubTestRunListener;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.RegexTrie;
@@ -43,6 +48,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -66,6 +72,14 @@ public class CameraStressTest implements IDeviceTest, IRemoteTest {
 
     private final String mOutputPath = "mediaStressOut.txt";
 
+    @Option(name = "screen-record-interval", description =
+            "time between screenshots recorded while the tests run, in ms. 0 disables recording.")
+    private long mScreenRecordIntervalMs = 0;
+
+    @Option(name = "screen-record-duration", description =
+            "length of screen recording to report when a test fails, in ms.")
+    private long mScreenRecordDurationMs = 30 * 1000;
+
     /**
      * Stores the test cases that we should consider running.
      * <p/>
@@ -167,7 +181,11 @@ public class CameraStressTest implements IDeviceTest, IRemoteTest {
 
         runner.setClassName(test.mClassName);
         runner.setMaxtimeToOutputResponse(MAX_TEST_TIMEOUT);
-        mTestDevice.runInstrumentationTests(runner, listener, auxListener);
+        if (mScreenRecordIntervalMs > 0) {
+            runRecordingScreen(test, runner, listener, auxListener);
+        } else {
+            mTestDevice.runInstrumentationTests(runner, listener, auxListener);
+        }
 
         // Grab a bugreport if warranted
         if (auxListener.hasFailedTests()) {
@@ -181,6 +199,42 @@ public class CameraStressTest implements IDeviceTest, IRemoteTest {
         }
     }
 
+    /**
+     * Run the tests while recording the screen, and report the recording leading up to each test
+     * failure.
+     */
+    private void runRecordingScreen(final TestInfo test, IRemoteAndroidTestRunner runner,
+            ITestInvocationListener listener, CollectingTestListener auxListener)
+            throws DeviceNotAvailableException {
+        final ScreenRecorder recorder = new ScreenRecorder(mTestDevice, mScreenRecordIntervalMs);
+        final Map<String, InputStreamSource> recordings =
+                new LinkedHashMap<String, InputStreamSource>();
+        // a stress run can take hours, so take the recording as soon as a test fails
+        ITestRunListener failureListener = new StubTestRunListener() {
+            @Override
+            public void testFailed(TestFailure status, TestIdentifier failedTest, String trace) {
+                InputStreamSource recording = recorder.getRecording(mScreenRecordDurationMs);
+                if (recording != null) {
+                    InputStreamSource previous = recordings.put(String.format("screen-%s-%s",
+                            test.mTestName, failedTest.getTestName()), recording);
+                    if (previous != null) {
+                        previous.cancel();
+                    }
+                }
+            }
+        };
+        recorder.start();
+        try {
+            mTestDevice.runInstrumentationTests(runner, listener, auxListener, failureListener);
+        } finally {
+            recorder.stop();
+            for (Map.Entry<String, InputStreamSource> recording : recordings.entrySet()) {
+                listener.testLog(recording.getKey(), LogDataType.ZIP, recording.getValue());
+                recording.getValue().cancel();
+            }
+        }
+    }
+
     /**
      * Clean up temp files from test runs
      * <p />
@@ -19,13 +19,18 @@ package com.android.media.tests;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.ScreenRecorder;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.SnapshotInputStreamSource;
+import com.android.tradefed.result.StubTestRunListener;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.StreamUtil;
@@ -38,6 +43,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -78,6 +84,14 @@ public class MediaStressTest implements IDeviceTest, IRemoteTest {
 
     private final String mOutputPath = "mediaStressOutput.txt";
 
+    @Option(name = "screen-record-interval", description =
+            "time between screenshots recorded while the tests run, in ms. 0 disables recording.")
+    private long mScreenRecordIntervalMs = 0;
+
+    @Option(name = "screen-record-duration", description =
+            "length of screen recording to report when a test fails, in ms.")
+    private long mScreenRecordDurationMs = 30 * 1000;
+
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
         Assert.assertNotNull(mTestDevice);
@@ -88,11 +102,50 @@ public class MediaStressTest implements IDeviceTest, IRemoteTest {
         runner.setMaxtimeToOutputResponse(MAX_TEST_TIMEOUT);
 
         cleanTmpFiles();
-        mTestDevice.runInstrumentationTests(runner, listener);
+        if (mScreenRecordIntervalMs > 0) {
+            runRecordingScreen(runner, listener);
+        } else {
+            mTestDevice.runInstrumentationTests(runner, listener);
+        }
         logOutputFile(listener);
         cleanTmpFiles();
     }
 
+    /**
+     * Run the tests while recording the screen, and report the recording leading up to each test
+     * failure.
+     */
+    private void runRecordingScreen(IRemoteAndroidTestRunner runner,
+            ITestInvocationListener listener) throws DeviceNotAvailableException {
+        final ScreenRecorder recorder = new ScreenRecorder(mTestDevice, mScreenRecordIntervalMs);
+        final Map<String, InputStreamSource> recordings =
+                new LinkedHashMap<String, InputStreamSource>();
+        // the whole run can take hours, so take the recording as soon as a test fails
+        ITestRunListener failureListener = new StubTestRunListener() {
+            @Override
+            public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+                InputStreamSource recording = recorder.getRecording(mScreenRecordDurationMs);
+                if (recording != null) {
+                    InputStreamSource previous = recordings.put(
+                            String.format("screen-%s", test.getTestName()), recording);
+                    if (previous != null) {
+                        previous.cancel();
+                    }
+                }
+            }
+        };
+        recorder.start();
+        try {
+            mTestDevice.runInstrumentationTests(runner, listener, failureListener);
+        } finally {
+            recorder.stop();
+            for (Map.Entry<String, InputStreamSource> recording : recordings.entrySet()) {
+                listener.testLog(recording.getKey(), LogDataType.ZIP, recording.getValue());
+                recording.getValue().cancel();
+            }
+        }
+    }
+
     /**
      * Clean up temp files from test runs
      */
@@ -242,6 +242,14 @@ public class OtaDeviceBuildInfo implements IDeviceBuildInfo {
         mBaselineBuild.setTestsDir(testsZipFile, version);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getTestsDirFile(String... pathSegments) {
+        return mBaselineBuild.getTestsDirFile(pathSegments);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -16,10 +16,7 @@
 
 package com.android.tradefed.build;
 
-import com.android.tradefed.util.FileUtil;
-
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,6 +26,8 @@ import java.util.List;
 public class AppBuildInfo extends BuildInfo implements IAppBuildInfo {
 
     private List<VersionedFile> mAppPackageFiles = new ArrayList<VersionedFile>();
+    /** the reference counted handles to mAppPackageFiles, shared with clones */
+    private List<RefCountedFile> mAppPackageFileRefs = new ArrayList<RefCountedFile>();
 
     /**
      * Creates a {@link AppBuildInfo}.
@@ -57,6 +56,7 @@ public class AppBuildInfo extends BuildInfo implements IAppBuildInfo {
     @Override
     public void addAppPackageFile(File appPackageFile, String version) {
         mAppPackageFiles.add(new VersionedFile(appPackageFile, version));
+        mAppPackageFileRefs.add(new RefCountedFile(appPackageFile));
     }
 
     /**
@@ -64,31 +64,25 @@ public class AppBuildInfo extends BuildInfo implements IAppBuildInfo {
      */
     @Override
     public void cleanUp() {
-        for (VersionedFile appPackageFile : mAppPackageFiles) {
-            appPackageFile.getFile().delete();
+        for (RefCountedFile appPackageFileRef : mAppPackageFileRefs) {
+            appPackageFileRef.release();
         }
+        mAppPackageFileRefs.clear();
         mAppPackageFiles.clear();
     }
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * The app package files are shared with the copy rather than copied.
      */
     @Override
     public IBuildInfo clone() {
         AppBuildInfo copy = new AppBuildInfo(getBuildId(), getTestTag(), getBuildTargetName());
         copy.addAllBuildAttributes(this);
-        try {
-            for (VersionedFile origVerFile : mAppPackageFiles) {
-                // Only using createTempFile to create a unique dest filename
-                File origFile = origVerFile.getFile();
-                File copyFile = FileUtil.createTempFile(FileUtil.getBaseName(origFile.getName()),
-                        FileUtil.getExtension(origFile.getName()));
-                copyFile.delete();
-                FileUtil.hardlinkFile(origFile, copyFile);
-                copy.addAppPackageFile(copyFile, origVerFile.getVersion());
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        for (int i = 0; i < mAppPackageFiles.size(); i++) {
+            copy.mAppPackageFiles.add(mAppPackageFiles.get(i));
+            copy.mAppPackageFileRefs.add(mAppPackageFileRefs.get(i).acquire());
         }
         copy.setBuildBranch(getBuildBranch());
         copy.setBuildFlavor(getBuildFlavor());
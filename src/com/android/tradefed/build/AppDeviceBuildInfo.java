@@ -127,6 +127,14 @@ public class AppDeviceBuildInfo extends BuildInfo implements IDeviceBuildInfo, I
         mDeviceBuild.setTestsDir(testsDir, version);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getTestsDirFile(String... pathSegments) {
+        return mDeviceBuild.getTestsDirFile(pathSegments);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -16,13 +16,13 @@
 package com.android.tradefed.build;
 
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.MultiMap;
 import com.android.tradefed.util.UniqueMultiMap;
 import com.google.common.base.Objects;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
 
@@ -36,6 +36,9 @@ public class BuildInfo implements IBuildInfo {
     private final UniqueMultiMap<String, String> mBuildAttributes =
             new UniqueMultiMap<String, String>();
     private Map<String, VersionedFile> mVersionedFileMap;
+    /** the reference counted handles to the files in mVersionedFileMap, shared with clones */
+    private final Map<String, RefCountedFile> mFileRefMap =
+            new Hashtable<String, RefCountedFile>();
     private String mBuildFlavor = null;
     private String mBuildBranch = null;
     private String mDeviceSerial = null;
@@ -140,27 +143,39 @@ public class BuildInfo implements IBuildInfo {
     /**
      * Helper method to copy all files from the other build.
      * <p>
-     * Creates new hardlinks to the files so that each build will have a unique file path to the
-     * file.
+     * Files are not copied. Instead both builds share a reference counted handle to each file,
+     * so the files must be treated as read-only. A file is deleted once every build sharing it
+     * has been cleaned up.
      * </p>
      *
-     * @throws IOException if an exception is thrown when creating the hardlinks.
+     * @throws IOException if a file from the other build has already been deleted
      */
     protected void addAllFiles(BuildInfo build) throws IOException {
-        for (Map.Entry<String, VersionedFile> fileEntry : build.getVersionedFileMap().entrySet()) {
-            File origFile = fileEntry.getValue().getFile();
-            File copyFile;
-            if (origFile.isDirectory()) {
-                copyFile = FileUtil.createTempDir(fileEntry.getKey());
-                FileUtil.recursiveHardlink(origFile, copyFile);
-            } else {
-                // Only using createTempFile to create a unique dest filename
-                copyFile = FileUtil.createTempFile(fileEntry.getKey(),
-                        FileUtil.getExtension(origFile.getName()));
-                copyFile.delete();
-                FileUtil.hardlinkFile(origFile, copyFile);
+        // copy the other build's files, as it may be cleaned up concurrently
+        Map<String, VersionedFile> otherFileMap = build.getVersionedFileMap();
+        Map<String, VersionedFile> otherFiles;
+        synchronized (otherFileMap) {
+            otherFiles = new HashMap<String, VersionedFile>(otherFileMap);
+        }
+        for (Map.Entry<String, VersionedFile> fileEntry : otherFiles.entrySet()) {
+            String name = fileEntry.getKey();
+            if (mVersionedFileMap.containsKey(name)) {
+                CLog.e("Device build already contains a file for %s in thread %s", name,
+                        Thread.currentThread().getName());
+                continue;
+            }
+            RefCountedFile fileRef = build.mFileRefMap.get(name);
+            if (fileRef == null) {
+                throw new IOException(String.format(
+                        "File %s of build %s has already been cleaned up", name,
+                        build.getBuildId()));
+            }
+            try {
+                mFileRefMap.put(name, fileRef.acquire());
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage(), e);
             }
-            setFile(fileEntry.getKey(), copyFile, fileEntry.getValue().getVersion());
+            mVersionedFileMap.put(name, fileEntry.getValue());
         }
     }
 
@@ -203,16 +218,20 @@ public class BuildInfo implements IBuildInfo {
             return;
         }
         mVersionedFileMap.put(name, new VersionedFile(file, version));
+        mFileRefMap.put(name, new RefCountedFile(file));
     }
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * Files shared with clones of this build are only deleted once all of them are cleaned up.
      */
     @Override
     public void cleanUp() {
-        for (VersionedFile fileRecord : mVersionedFileMap.values()) {
-            FileUtil.recursiveDelete(fileRecord.getFile());
+        for (RefCountedFile fileRef : mFileRefMap.values()) {
+            fileRef.release();
         }
+        mFileRefMap.clear();
         mVersionedFileMap.clear();
     }
 
@@ -16,6 +16,9 @@
 
 package com.android.tradefed.build;
 
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
 import java.io.File;
 import java.io.IOException;
 
@@ -32,6 +35,10 @@ public class DeviceBuildInfo extends BuildInfo implements IDeviceBuildInfo {
     private static final String OTA_IMAGE_NAME = "ota";
     private static final String MKBOOTIMG_IMAGE_NAME = "mkbootimg";
     private static final String RAMDISK_IMAGE_NAME = "ramdisk";
+    private static final String TESTS_ZIP_IMAGE_NAME = "testszip";
+
+    /** the lazily materialized tests zip backing the tests dir, if any */
+    private LazyTestsZip mLazyTestsZip = null;
 
     public DeviceBuildInfo() {
         super();
@@ -131,6 +138,45 @@ public class DeviceBuildInfo extends BuildInfo implements IDeviceBuildInfo {
         setFile(TESTDIR_IMAGE_NAME, testsDir, version);
     }
 
+    /**
+     * Set the tests.zip to use as a lazily materialized tests dir.
+     * <p/>
+     * Rather than extracting the whole zip up front, {@link #getTestsDir()} will initially be an
+     * empty folder, and content requested via {@link #getTestsDirFile(String...)} will be
+     * extracted on demand.
+     *
+     * @param testsZip the tests.zip {@link File}
+     * @param version the tests.zip version
+     * @param cacheDir the folder used to cache extracted content across invocations
+     * @throws IOException if tests dir could not be created
+     */
+    public void setTestsZip(File testsZip, String version, File cacheDir) throws IOException {
+        File testsDir = FileUtil.createTempDir(TESTDIR_IMAGE_NAME);
+        setFile(TESTS_ZIP_IMAGE_NAME, testsZip, version);
+        setTestsDir(testsDir, version);
+        mLazyTestsZip = new LazyTestsZip(testsZip, testsDir, cacheDir);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getTestsDirFile(String... pathSegments) {
+        File testsDir = getTestsDir();
+        if (testsDir == null) {
+            return null;
+        }
+        if (mLazyTestsZip != null) {
+            try {
+                return mLazyTestsZip.getFile(FileUtil.getPath(pathSegments));
+            } catch (IOException e) {
+                CLog.e("Failed to extract %s from tests zip", FileUtil.getPath(pathSegments));
+                CLog.e(e);
+            }
+        }
+        return FileUtil.getFileForPath(testsDir, pathSegments);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -266,7 +312,21 @@ public class DeviceBuildInfo extends BuildInfo implements IDeviceBuildInfo {
         }
         copy.setBuildBranch(getBuildBranch());
         copy.setBuildFlavor(getBuildFlavor());
+        // the tests dir is shared with the copy, so share the view that materializes it too
+        copy.mLazyTestsZip = mLazyTestsZip;
 
         return copy;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cleanUp() {
+        if (mLazyTestsZip != null) {
+            mLazyTestsZip.close();
+            mLazyTestsZip = null;
+        }
+        super.cleanUp();
+    }
 }
@@ -119,6 +119,14 @@ public class DeviceFolderBuildInfo extends BuildInfo implements IDeviceBuildInfo
         mDeviceBuild.setTestsDir(testsDir, version);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getTestsDirFile(String... pathSegments) {
+        return mDeviceBuild.getTestsDirFile(pathSegments);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -18,6 +18,9 @@ package com.android.tradefed.build;
 import com.android.ddmlib.Log;
 import com.android.tradefed.command.FatalHostError;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.metrics.Counter;
+import com.android.tradefed.util.metrics.Histogram;
+import com.android.tradefed.util.metrics.MetricsRegistry;
 
 import java.io.File;
 import java.io.IOException;
@@ -39,6 +42,17 @@ public class FileDownloadCache {
 
     private static final String LOG_TAG = "FileDownloadCache";
 
+    private static final String REQUESTS_METRIC = "tf_download_cache_requests_total";
+    private static final String REQUESTS_HELP = "Number of files requested from download caches";
+    private static final Counter sCacheHits = MetricsRegistry.getRegistry().getCounter(
+            REQUESTS_METRIC, REQUESTS_HELP, "result", "hit");
+    private static final Counter sCacheMisses = MetricsRegistry.getRegistry().getCounter(
+            REQUESTS_METRIC, REQUESTS_HELP, "result", "miss");
+    private static final Histogram sDownloadTime = MetricsRegistry.getRegistry().getHistogram(
+            "tf_download_cache_download_seconds", "Time spent downloading files into caches");
+    private static final Counter sDownloadedBytes = MetricsRegistry.getRegistry().getCounter(
+            "tf_download_cache_downloaded_bytes_total", "Number of bytes downloaded into caches");
+
     private static final char REL_PATH_SEPARATOR = '/';
 
     /** fixed location of download cache. */
@@ -201,8 +215,10 @@ public class FileDownloadCache {
                 mCacheMap.put(remotePath, cachedFile);
                 mCacheMapLock.unlock();
                 if (download) {
+                    sCacheMisses.increment();
                     downloadFile(downloader, remotePath, cachedFile);
                 } else {
+                    sCacheHits.increment();
                     Log.d(LOG_TAG, String.format("Retrieved remote file %s from cached file %s",
                             remotePath, cachedFile.getAbsolutePath()));
                 }
@@ -226,7 +242,10 @@ public class FileDownloadCache {
             throws BuildRetrievalError {
         try {
             Log.d(LOG_TAG, String.format("Downloading %s to cache", remotePath));
+            long startTime = System.currentTimeMillis();
             downloader.downloadFile(remotePath, cachedFile);
+            sDownloadTime.recordSince(startTime);
+            sDownloadedBytes.increment(cachedFile.length());
         } catch (BuildRetrievalError e) {
             // cached file is likely incomplete, delete it
             cachedFile.delete();
@@ -141,6 +141,10 @@ public interface IBuildInfo {
 
     /**
      * Clones the {@link IBuildInfo} object.
+     * <p/>
+     * Implementations may share build files with the clone rather than copying them, in which
+     * case the files should be treated as read-only, and are only deleted once every build
+     * sharing them has been cleaned up.
      */
     public IBuildInfo clone();
 
@@ -80,6 +80,18 @@ public interface IDeviceBuildInfo extends IBuildInfo {
      */
     public void setTestsDir(File testsZipFile, String version);
 
+    /**
+     * Get a local file or folder from the tests.zip contents.
+     * <p/>
+     * Preferred over resolving paths against {@link #getTestsDir()} directly, since the tests
+     * dir may be lazily materialized, in which case the requested content is extracted on demand.
+     *
+     * @param pathSegments the path segments relative to the tests dir root
+     * @return the local {@link File}, which will not exist if tests.zip does not contain given
+     *         path, or <code>null</code> if this build has no tests dir
+     */
+    public File getTestsDirFile(String... pathSegments);
+
     /**
      * Get the local baseband image file.
      */
@@ -123,6 +123,14 @@ public class KernelDeviceBuildInfo extends BuildInfo implements IDeviceBuildInfo
         mDeviceBuild.setTestsDir(testsDir, version);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getTestsDirFile(String... pathSegments) {
+        return mDeviceBuild.getTestsDirFile(pathSegments);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A lazily materialized view of a tests zip.
+ * <p/>
+ * Only the zip's central directory is read up front. Entries are extracted on demand into a
+ * cache, keyed by the entry's name and central directory record, which is shared across
+ * invocations of the same build. Extracted entries are then copied into a per-build view
+ * directory, so setup time scales with the tests zip content actually requested, and a test that
+ * modifies its view cannot corrupt the cache.
+ * <p/>
+ * The cache is bounded: when a tests zip is first opened, cached entries not used for
+ * {@link #DEFAULT_MAX_CACHE_AGE_MS} are deleted, then the least recently used entries are deleted
+ * until the cache is smaller than {@link #DEFAULT_MAX_CACHE_SIZE}.
+ */
+public class LazyTestsZip {
+
+    /** the default max total size of the cache in bytes */
+    public static final long DEFAULT_MAX_CACHE_SIZE = 8L * 1024 * 1024 * 1024;
+    /** the default max time in ms since a cached entry was last used */
+    public static final long DEFAULT_MAX_CACHE_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final char ZIP_SEPARATOR = '/';
+    private static final String EXTRACT_PREFIX = "extract";
+
+    private final File mZipFile;
+    private final File mViewDir;
+    private final File mCacheDir;
+    private long mMaxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+    private long mMaxCacheAgeMs = DEFAULT_MAX_CACHE_AGE_MS;
+
+    /** the opened zip, or <code>null</code> if not yet accessed */
+    private ZipFile mZip = null;
+    /** the zip entries, sorted by name so all entries under a given folder are contiguous */
+    private SortedMap<String, ZipEntry> mEntries = null;
+
+    /**
+     * Creates a {@link LazyTestsZip}.
+     *
+     * @param zipFile the tests zip {@link File}
+     * @param viewDir the directory to materialize requested entries into
+     * @param cacheDir the directory used to cache extracted entries across builds
+     */
+    public LazyTestsZip(File zipFile, File viewDir, File cacheDir) {
+        mZipFile = zipFile;
+        mViewDir = viewDir;
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Set the max total size of the cache in bytes.
+     */
+    public void setMaxCacheSize(long maxCacheSize) {
+        mMaxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * Set the max time in ms since a cached entry was last used, before it is deleted.
+     */
+    public void setMaxCacheAge(long maxCacheAgeMs) {
+        mMaxCacheAgeMs = maxCacheAgeMs;
+    }
+
+    /**
+     * @return the tests zip {@link File} backing this view
+     */
+    public File getZipFile() {
+        return mZipFile;
+    }
+
+    /**
+     * @return the directory requested entries are materialized into
+     */
+    public File getViewDir() {
+        return mViewDir;
+    }
+
+    /**
+     * @return the directory used to cache extracted entries
+     */
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    /**
+     * Get the local file for given path in the tests zip, extracting it if necessary.
+     * <p/>
+     * If <var>relPath</var> refers to a folder in the zip, all entries under that folder are
+     * extracted.
+     *
+     * @param relPath the path relative to the tests zip root, using either '/' or the host
+     *            separator
+     * @return the local {@link File}. It will not exist if the tests zip has no such entry.
+     * @throws IOException if entry could not be extracted, or <var>relPath</var> is outside the
+     *             tests zip root
+     */
+    public synchronized File getFile(String relPath) throws IOException {
+        loadEntries();
+        String entryName = normalizePath(relPath);
+        File viewFile = getViewFile(entryName);
+        ZipEntry entry = mEntries.get(entryName);
+        if (entry != null && !entry.isDirectory()) {
+            materializeEntry(entry);
+        } else if (entryName.length() == 0) {
+            materializeEntries(mEntries.values());
+        } else {
+            String prefix = entryName + ZIP_SEPARATOR;
+            // all entries with the prefix sort before prefix + one past the separator
+            String prefixEnd = entryName + (char)(ZIP_SEPARATOR + 1);
+            materializeEntries(mEntries.subMap(prefix, prefixEnd).values());
+        }
+        return viewFile;
+    }
+
+    /**
+     * Returns the names of all files in the tests zip under given folder, without extracting
+     * them.
+     *
+     * @param relFolderPath the folder path relative to the tests zip root
+     * @return the {@link List} of '/' separated entry names
+     * @throws IOException if tests zip could not be read
+     */
+    public synchronized List<String> listFiles(String relFolderPath) throws IOException {
+        loadEntries();
+        String entryName = normalizePath(relFolderPath);
+        Map<String, ZipEntry> entries = mEntries;
+        if (entryName.length() > 0) {
+            entries = mEntries.subMap(entryName + ZIP_SEPARATOR,
+                    entryName + (char)(ZIP_SEPARATOR + 1));
+        }
+        List<String> names = new ArrayList<String>(entries.size());
+        for (ZipEntry entry : entries.values()) {
+            if (!entry.isDirectory()) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Close the tests zip. Materialized files are left in place.
+     */
+    public synchronized void close() {
+        if (mZip != null) {
+            FileUtil.closeZip(mZip);
+            mZip = null;
+        }
+    }
+
+    /**
+     * Opens the zip and reads its central directory, if not done already.
+     */
+    private void loadEntries() throws IOException {
+        if (mZip != null) {
+            return;
+        }
+        mZip = new ZipFile(mZipFile);
+        if (mEntries == null) {
+            trimCache();
+            mEntries = new TreeMap<String, ZipEntry>();
+            Enumeration<? extends ZipEntry> entries = mZip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                mEntries.put(normalizePath(entry.getName()), entry);
+            }
+            CLog.d("Loaded %d entries from tests zip %s", mEntries.size(),
+                    mZipFile.getAbsolutePath());
+        }
+    }
+
+    private void materializeEntries(Iterable<ZipEntry> entries) throws IOException {
+        for (ZipEntry entry : entries) {
+            materializeEntry(entry);
+        }
+    }
+
+    /**
+     * Makes given entry available in the view directory, extracting it into the cache if
+     * necessary.
+     */
+    private void materializeEntry(ZipEntry entry) throws IOException {
+        File viewFile = getViewFile(normalizePath(entry.getName()));
+        if (entry.isDirectory()) {
+            viewFile.mkdirs();
+            return;
+        }
+        if (viewFile.exists()) {
+            return;
+        }
+        File cachedFile = getCachedFile(entry);
+        viewFile.getParentFile().mkdirs();
+        try {
+            FileUtil.copyFile(cachedFile, viewFile);
+        } catch (IOException e) {
+            // entry may have been evicted from the cache by another invocation
+            CLog.d("Failed to copy %s from tests zip cache, extracting directly: %s",
+                    entry.getName(), e.getMessage());
+            FileUtil.writeToFile(mZip.getInputStream(entry), viewFile);
+        }
+    }
+
+    /**
+     * Get the view file for given entry name.
+     *
+     * @throws IOException if the entry name refers to a location outside the view directory
+     */
+    private File getViewFile(String entryName) throws IOException {
+        File viewFile = new File(mViewDir, convertPath(entryName));
+        String viewDirPath = mViewDir.getCanonicalPath();
+        String viewFilePath = viewFile.getCanonicalPath();
+        if (!viewFilePath.equals(viewDirPath) &&
+                !viewFilePath.startsWith(viewDirPath + File.separator)) {
+            throw new IOException(String.format(
+                    "Tests zip %s entry %s is outside the tests zip root",
+                    mZipFile.getAbsolutePath(), entryName));
+        }
+        return viewFile;
+    }
+
+    /**
+     * Returns the cached copy of given entry, extracting it if it is not yet in the cache.
+     * <p/>
+     * Entries are extracted to a temp file then renamed, so a partially extracted entry is never
+     * visible to other invocations sharing the cache.
+     */
+    private File getCachedFile(ZipEntry entry) throws IOException {
+        File cachedFile = new File(mCacheDir, getCacheKey(entry));
+        if (cachedFile.exists()) {
+            CLog.d("Retrieved tests zip entry %s from cache", entry.getName());
+            // record the use, for least recently used eviction
+            cachedFile.setLastModified(System.currentTimeMillis());
+            return cachedFile;
+        }
+        mCacheDir.mkdirs();
+        File tmpFile = FileUtil.createTempFile(EXTRACT_PREFIX, null, mCacheDir);
+        try {
+            FileUtil.writeToFile(mZip.getInputStream(entry), tmpFile);
+            if (!tmpFile.renameTo(cachedFile) && !cachedFile.exists()) {
+                throw new IOException(String.format("Failed to add %s to tests zip cache %s",
+                        entry.getName(), mCacheDir.getAbsolutePath()));
+            }
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+        return cachedFile;
+    }
+
+    /**
+     * Delete cached entries that have not been used recently, then the least recently used
+     * entries until the cache is within its max size.
+     * <p/>
+     * Entries being extracted by another invocation are left alone unless they are too old.
+     */
+    private void trimCache() {
+        File[] cachedFiles = mCacheDir.listFiles();
+        if (cachedFiles == null) {
+            return;
+        }
+        // sort most recently used first
+        Arrays.sort(cachedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long time1 = f1.lastModified();
+                long time2 = f2.lastModified();
+                return time1 == time2 ? 0 : (time1 > time2 ? -1 : 1);
+            }
+        });
+        long minTime = System.currentTimeMillis() - mMaxCacheAgeMs;
+        long totalSize = 0;
+        int deletedCount = 0;
+        for (File cachedFile : cachedFiles) {
+            boolean expired = cachedFile.lastModified() < minTime;
+            if (!expired && cachedFile.getName().startsWith(EXTRACT_PREFIX)) {
+                continue;
+            }
+            totalSize += cachedFile.length();
+            if (expired || totalSize > mMaxCacheSize) {
+                totalSize -= cachedFile.length();
+                FileUtil.deleteFile(cachedFile);
+                deletedCount++;
+            }
+        }
+        if (deletedCount > 0) {
+            CLog.d("Evicted %d entries from tests zip cache %s, %d bytes remain", deletedCount,
+                    mCacheDir.getAbsolutePath(), totalSize);
+        }
+    }
+
+    /**
+     * Build a cache key for given entry, from a hash of its name and central directory record.
+     * <p/>
+     * The name is included so that only the same file of different builds shares a cache entry,
+     * and the size, CRC, compressed size and time so that it is only shared if unchanged.
+     */
+    static String getCacheKey(ZipEntry entry) throws IOException {
+        String record = String.format("%s\n%d\n%08x\n%d\n%d", entry.getName(),
+                entry.getSize(), entry.getCrc(), entry.getCompressedSize(), entry.getTime());
+        return StreamUtil.calculateMd5(new ByteArrayInputStream(record.getBytes("UTF-8")));
+    }
+
+    /**
+     * Convert given path to a '/' separated path with no leading or trailing separator.
+     */
+    static String normalizePath(String path) {
+        String normalized = path.replace(File.separatorChar, ZIP_SEPARATOR);
+        int start = 0;
+        int end = normalized.length();
+        while (start < end && normalized.charAt(start) == ZIP_SEPARATOR) {
+            start++;
+        }
+        while (end > start && normalized.charAt(end - 1) == ZIP_SEPARATOR) {
+            end--;
+        }
+        return normalized.substring(start, end);
+    }
+
+    private static String convertPath(String entryName) {
+        return entryName.replace(ZIP_SEPARATOR, File.separatorChar);
+    }
+}
@@ -21,6 +21,7 @@ import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.log.LogUtil.CLog;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * A {@link IBuildProvider} that constructs a {@link IDeviceBuildInfo} based on a provided
@@ -32,6 +33,7 @@ public class LocalBuildProvider extends StubBuildProvider {
     private static final String IMAGE_FILE_OPTION_NAME = "device-image-file";
     private static final String TEST_DIR_OPTION_NAME = "test-dir";
     private static final String DATA_FILE_OPTION_NAME = "user-data-file";
+    private static final String TESTS_ZIP_OPTION_NAME = "tests-zip";
 
     @Option(name = IMAGE_FILE_OPTION_NAME, description = "the device image file to use.",
             importance = Importance.IF_UNSET)
@@ -43,6 +45,15 @@ public class LocalBuildProvider extends StubBuildProvider {
     @Option(name = DATA_FILE_OPTION_NAME, description = "the user data file to use.")
     private File mUserDataFile = null;
 
+    @Option(name = TESTS_ZIP_OPTION_NAME, description =
+            "the tests zip to extract test files from on demand. Ignored if test-dir is set.")
+    private File mTestsZip = null;
+
+    @Option(name = "tests-zip-cache-dir", description =
+            "the dir used to cache content extracted from tests-zip across invocations.")
+    private File mTestsZipCacheDir = new File(System.getProperty("java.io.tmpdir"),
+            "tf-tests-zip-cache");
+
     /**
      * {@inheritDoc}
      */
@@ -66,9 +77,11 @@ public class LocalBuildProvider extends StubBuildProvider {
             buildInfo.setDeviceImageFile(mDeviceImageFile, stubBuild.getBuildId());
             if (mTestsDir != null) {
                 buildInfo.setTestsDir(mTestsDir, stubBuild.getBuildId());
+            } else if (mTestsZip != null) {
+                buildInfo.setTestsZip(mTestsZip, stubBuild.getBuildId(), mTestsZipCacheDir);
             } else {
-                CLog.d("Null Test Dir, if you want to pass a test dir, use --%s",
-                        TEST_DIR_OPTION_NAME);
+                CLog.d("Null Test Dir, if you want to pass a test dir, use --%s or --%s",
+                        TEST_DIR_OPTION_NAME, TESTS_ZIP_OPTION_NAME);
             }
             if (mUserDataFile != null) {
                 buildInfo.setUserDataImageFile(mUserDataFile, stubBuild.getBuildId());
@@ -77,6 +90,9 @@ public class LocalBuildProvider extends StubBuildProvider {
                         DATA_FILE_OPTION_NAME);
             }
             return buildInfo;
+        } catch (IOException e) {
+            buildInfo.cleanUp();
+            throw new BuildRetrievalError("Failed to create tests dir", e);
         } catch (RuntimeException e) {
             buildInfo.cleanUp();
             throw e;
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+
+/**
+ * A reference counted handle to a local build file or directory, shared between a build and its
+ * clones.
+ * <p/>
+ * The file is considered immutable while shared. It is deleted when the last reference is
+ * released.
+ */
+class RefCountedFile {
+
+    private final File mFile;
+    private int mRefCount = 1;
+
+    /**
+     * Creates a {@link RefCountedFile} holding a single reference to given file.
+     */
+    RefCountedFile(File file) {
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Acquire an additional reference to the file.
+     *
+     * @return this {@link RefCountedFile}
+     * @throws IllegalStateException if file has already been deleted
+     */
+    synchronized RefCountedFile acquire() {
+        if (mRefCount <= 0) {
+            throw new IllegalStateException(String.format("%s has already been deleted",
+                    mFile.getAbsolutePath()));
+        }
+        mRefCount++;
+        return this;
+    }
+
+    /**
+     * Release a reference to the file, deleting it if this was the last reference.
+     *
+     * @return <code>true</code> if the file was deleted
+     */
+    synchronized boolean release() {
+        if (mRefCount <= 0) {
+            return false;
+        }
+        mRefCount--;
+        if (mRefCount == 0) {
+            FileUtil.recursiveDelete(mFile);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the current number of references. Exposed for unit testing.
+     */
+    synchronized int getRefCount() {
+        return mRefCount;
+    }
+}
@@ -48,6 +48,22 @@ public class CommandOptions implements ICommandOptions {
             importance = Importance.ALWAYS)
     private boolean mLoopMode = false;
 
+    @Option(name = "priority", description =
+            "the priority class of the command. Commands waiting for a device run in order of " +
+            "priority class.")
+    private CommandPriorityClass mPriority = CommandPriorityClass.NORMAL;
+
+    @Option(name = "deadline", description =
+            "the time in ms after the command is ready to run by which it should start. " +
+            "Commands with earlier deadlines run first within a priority class. 0 for none.")
+    private long mDeadline = 0;
+
+    @Option(name = "priority-aging-interval", description =
+            "the time in ms a command below NORMAL priority waits for a device before its " +
+            "priority rises by one class, up to NORMAL, so it is not starved by other " +
+            "commands. 0 to disable.")
+    private long mPriorityAgingInterval = 30 * 60 * 1000;
+
     /**
      * Set the help mode for the config.
      * <p/>
@@ -123,6 +139,57 @@ public class CommandOptions implements ICommandOptions {
         return mMinLoopTime;
     }
 
+    /**
+     * Set the priority class for the config.
+     * <p/>
+     * Exposed for testing.
+     */
+    void setPriority(CommandPriorityClass priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CommandPriorityClass getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Set the deadline for the config.
+     * <p/>
+     * Exposed for testing.
+     */
+    void setDeadline(long deadline) {
+        mDeadline = deadline;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Set the priority aging interval for the config.
+     * <p/>
+     * Exposed for testing.
+     */
+    void setPriorityAgingInterval(long agingInterval) {
+        mPriorityAgingInterval = agingInterval;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getPriorityAgingInterval() {
+        return mPriorityAgingInterval;
+    }
+
     @Override
     public ICommandOptions clone() {
         CommandOptions clone = new CommandOptions();
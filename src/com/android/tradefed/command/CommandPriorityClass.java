@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+/**
+ * The priority classes of commands. Commands waiting for a device are run in order of priority
+ * class, highest first.
+ */
+public enum CommandPriorityClass {
+    /** commands that must run as soon as possible, e.g. presubmit checks */
+    URGENT,
+    HIGH,
+    NORMAL,
+    /** background commands, which run when no other command is waiting */
+    LOW;
+}
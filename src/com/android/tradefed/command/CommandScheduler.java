@@ -37,11 +37,16 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue;
 import com.android.tradefed.util.TableFormatter;
+import com.android.tradefed.util.metrics.Counter;
+import com.android.tradefed.util.metrics.Histogram;
+import com.android.tradefed.util.metrics.IGauge;
+import com.android.tradefed.util.metrics.MetricsRegistry;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -57,8 +62,9 @@ import java.util.concurrent.TimeUnit;
 /**
  * A scheduler for running TradeFederation commands across all available devices.
  * <p/>
- * Will attempt to prioritize commands to run based on a total running count of their execution
- * time. e.g. infrequent or fast running commands will get prioritized over long running commands.
+ * Will attempt to prioritize commands to run based on their priority class and deadline, and then
+ * on a total running count of their execution time. e.g. infrequent or fast running commands will
+ * get prioritized over long running commands. See {@link CommandSchedulingPolicy}.
  * <p/>
  * Runs forever in background until shutdown.
  */
@@ -75,6 +81,9 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     /** list of active invocation threads */
     private Set<InvocationThread> mInvocationThreads;
 
+    /** the policy used to order the command queue */
+    private final CommandSchedulingPolicy mSchedulingPolicy;
+
     /** timer for scheduling commands to be re-queued for execution */
     private ScheduledThreadPoolExecutor mCommandTimer;
 
@@ -89,6 +98,20 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
      */
     private static final int NO_DEVICE_DELAY_TIME = 20;
 
+    private static final String ALLOCATION_ATTEMPTS_METRIC = "tf_command_allocation_attempts_total";
+    private static final String ALLOCATION_ATTEMPTS_HELP =
+            "Number of attempts to allocate a device for a queued command";
+    private static final Counter sAllocatedCount = MetricsRegistry.getRegistry().getCounter(
+            ALLOCATION_ATTEMPTS_METRIC, ALLOCATION_ATTEMPTS_HELP, "result", "allocated");
+    private static final Counter sNoDeviceCount = MetricsRegistry.getRegistry().getCounter(
+            ALLOCATION_ATTEMPTS_METRIC, ALLOCATION_ATTEMPTS_HELP, "result", "no_device");
+    private static final Histogram sQueueWaitTime = MetricsRegistry.getRegistry().getHistogram(
+            "tf_command_queue_wait_seconds",
+            "Time from a command being ready to run until its invocation starts");
+    private static final Counter sDeadlineMissedCount = MetricsRegistry.getRegistry().getCounter(
+            "tf_command_deadline_missed_total",
+            "Number of command invocations started after their deadline");
+
     /** used to assign unique ids to each CommandTracker created */
     private int mCurrentCommandId = 0;
 
@@ -116,14 +139,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         private final int mId;
         private final String[] mArgs;
         private final ICommandListener mListener;
+        /**
+         * pristine configuration to copy for each loop of the command, or <code>null</code>. Never
+         * used in an invocation itself.
+         */
+        private final IConfiguration mConfigTemplate;
 
         /** the total amount of time this command was executing. Used to prioritize */
         private long mTotalExecTime = 0;
 
-        CommandTracker(int id, String[] args, ICommandListener listener) {
+        CommandTracker(int id, String[] args, ICommandListener listener,
+                IConfiguration configTemplate) {
             mId = id;
             mArgs = args;
             mListener = listener;
+            mConfigTemplate = configTemplate;
         }
 
         synchronized void incrementExecTime(long execTime) {
@@ -144,6 +174,16 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
             return mArgs;
         }
 
+        /**
+         * Get the configuration template to create new instances of this command from.
+         *
+         * @return the {@link IConfiguration} template, or <code>null</code> if instances must be
+         *         created from the command's args
+         */
+        IConfiguration getConfigTemplate() {
+            return mConfigTemplate;
+        }
+
         /**
          * Callback to inform listener that command has started execution.
          */
@@ -161,13 +201,15 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     /**
      * Represents one instance of a command to be executed.
      */
-    private class ExecutableCommand {
+    private class ExecutableCommand implements CommandSchedulingPolicy.ISchedulableCommand {
         private final CommandTracker mCmdTracker;
         private final IConfiguration mConfig;
         private final boolean mRescheduled;
         private final long mCreationTime;
         private CommandState mState;
         private Long mSleepTime;
+        /** the time the command was first ready to run, or 0 if not yet ready */
+        private long mReadyTime = 0;
 
         private ExecutableCommand(CommandTracker tracker, IConfiguration config,
                 boolean rescheduled) {
@@ -192,6 +234,22 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
             return mCmdTracker;
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public ICommandOptions getCommandOptions() {
+            return mConfig.getCommandOptions();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getTotalExecTime() {
+            return mCmdTracker.getTotalExecTime();
+        }
+
         /**
          * Callback to inform listener that command has started execution.
          */
@@ -235,6 +293,23 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         public Long getSleepTime() {
             return mSleepTime;
         }
+
+        /**
+         * Record that the command is ready to run, if it has not been before.
+         */
+        void markReady() {
+            if (mReadyTime == 0) {
+                mReadyTime = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getReadyTime() {
+            return mReadyTime;
+        }
     }
 
     /**
@@ -264,36 +339,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     /**
      * Comparator for {@link ExecutableCommand}.
      * <p/>
-     * Delegates to {@link CommandTrackerComparator).
+     * Delegates to {@link CommandSchedulingPolicy}.
      */
     private static class ExecutableCommandComparator implements Comparator<ExecutableCommand> {
-        CommandTrackerTimeComparator mTrackerComparator = new CommandTrackerTimeComparator();
+        private final CommandSchedulingPolicy mPolicy;
+
+        ExecutableCommandComparator(CommandSchedulingPolicy policy) {
+            mPolicy = policy;
+        }
 
         /**
          * {@inheritDoc}
          */
         @Override
         public int compare(ExecutableCommand c1, ExecutableCommand c2) {
-            return mTrackerComparator.compare(c1.getCommandTracker(), c2.getCommandTracker());
-        }
-    }
-
-    /**
-     * Comparator for {@link CommandTracker}.
-     * <p/>
-     * Compares by mTotalExecTime, prioritizing configs with lower execution time
-     */
-    private static class CommandTrackerTimeComparator implements Comparator<CommandTracker> {
-
-        @Override
-        public int compare(CommandTracker c1, CommandTracker c2) {
-            if (c1.getTotalExecTime() == c2.getTotalExecTime()) {
-                return 0;
-            } else if (c1.getTotalExecTime() < c2.getTotalExecTime()) {
-                return -1;
-            } else {
-                return 1;
-            }
+            return mPolicy.compare(c1, c2);
         }
     }
 
@@ -388,7 +448,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     }
 
     /**
-     * Creates a {@link CommandScheduler}.
+     * Creates a {@link CommandScheduler} with the default {@link CommandSchedulingPolicy}.
      * <p />
      * Note: logging is initialized here. We assume that {@link CommandScheduler#start} will be
      * called, so that we can clean logs up at the end of the {@link CommandScheduler#run} method.
@@ -396,18 +456,52 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
      * instantiated but not started.
      */
     public CommandScheduler() {
+        this(new CommandSchedulingPolicy());
+    }
+
+    /**
+     * Creates a {@link CommandScheduler} that orders the commands waiting for a device with the
+     * given {@link CommandSchedulingPolicy}.
+     *
+     * @see #CommandScheduler()
+     */
+    public CommandScheduler(CommandSchedulingPolicy schedulingPolicy) {
+        mSchedulingPolicy = schedulingPolicy;
         initLogging();
 
         initDeviceManager();
 
         mCommandQueue = new ConditionPriorityBlockingQueue<ExecutableCommand>(
-                new ExecutableCommandComparator());
+                new ExecutableCommandComparator(mSchedulingPolicy));
         mAllCommands = Collections.synchronizedList(new LinkedList<ExecutableCommand>());
         mInvocationThreads = new HashSet<InvocationThread>();
         // use a ScheduledThreadPoolExecutorTimer as a single-threaded timer. This class
         // is used instead of a java.util.Timer because it offers advanced shutdown options
         mCommandTimer = new ScheduledThreadPoolExecutor(1);
         mRunLatch = new CountDownLatch(1);
+        registerGauges();
+    }
+
+    /**
+     * Register gauges for the number of queued commands and running invocations.
+     */
+    private void registerGauges() {
+        MetricsRegistry.getRegistry().registerGauge("tf_command_queue_depth",
+                "Number of commands ready to run, waiting for a device", new IGauge() {
+                    @Override
+                    public long getValue() {
+                        return mCommandQueue.size();
+                    }
+                });
+        MetricsRegistry.getRegistry().registerGauge("tf_invocations_running",
+                "Number of invocations in progress", new IGauge() {
+                    @Override
+                    public long getValue() {
+                        synchronized (CommandScheduler.this) {
+                            return mInvocationThreads.size();
+                        }
+                    }
+                });
     }
 
     /**
@@ -479,6 +573,15 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
                     ITestDevice device = manager.allocateDevice(0, cmd.getConfiguration()
                             .getDeviceRequirements());
                     if (device != null) {
+                        sAllocatedCount.increment();
+                        sQueueWaitTime.recordSince(cmd.getReadyTime());
+                        if (mSchedulingPolicy.isDeadlineMissed(cmd)) {
+                            sDeadlineMissedCount.increment();
+                            CLog.w("Command '%s' started %d ms after its deadline",
+                                    getArgString(cmd.getCommandTracker().getArgs()),
+                                    System.currentTimeMillis() -
+                                    mSchedulingPolicy.getDeadlineTime(cmd));
+                        }
                         // Spawn off a thread to perform the invocation
                         InvocationThread invThread = startInvocation(manager, device, cmd);
                         addInvocationThread(invThread);
@@ -486,6 +589,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
                             addNewExecCommandToQueue(cmd.getCommandTracker());
                         }
                     } else {
+                        sNoDeviceCount.increment();
                         // no device available for command, put back in queue
                         // increment exec time to ensure fair scheduling among commands when devices
                         // are scarce
@@ -584,7 +688,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
             } else if (config.getCommandOptions().isDryRunMode()) {
                 CLog.v("Dry run mode; not adding command: %s", Arrays.toString(args));
             } else {
-                CommandTracker cmdTracker = createCommandTracker(args, listener);
+                CommandTracker cmdTracker = createCommandTracker(args, listener,
+                        createConfigTemplate(config));
                 ExecutableCommand cmdInstance = createExecutableCommand(cmdTracker, config, false);
                 cmdTracker.incrementExecTime(totalExecTime);
                 addExecCommandToQueue(cmdInstance, 0);
@@ -605,9 +710,32 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
      * Creates a new {@link CommandTracker} with a unique id.
      */
     private synchronized CommandTracker createCommandTracker(String[] args,
-            ICommandListener listener) {
+            ICommandListener listener, IConfiguration configTemplate) {
         mCurrentCommandId++;
-        return new CommandTracker(mCurrentCommandId, args, listener);
+        return new CommandTracker(mCurrentCommandId, args, listener, configTemplate);
+    }
+
+    /**
+     * Creates the template used to create the configuration for each loop of a command, so the
+     * command's args don't need to be parsed again.
+     * <p/>
+     * Must be called before <var>config</var> is used in an invocation.
+     *
+     * @param config the {@link IConfiguration} created from the command's args
+     * @return the template, or <code>null</code> if the command is not looped or the config
+     *         could not be copied
+     */
+    private IConfiguration createConfigTemplate(IConfiguration config) {
+        if (!config.getCommandOptions().isLoopMode()) {
+            return null;
+        }
+        try {
+            return config.createCopy();
+        } catch (ConfigurationException e) {
+            CLog.w("Failed to create config template, config will be reloaded for each loop: %s",
+                    e.getMessage());
+            return null;
+        }
     }
 
     /**
@@ -653,8 +781,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
      */
     private void addNewExecCommandToQueue(CommandTracker commandTracker) {
         try {
-            IConfiguration config = getConfigFactory().createConfigurationFromArgs(
-                    commandTracker.getArgs());
+            IConfiguration config = createConfigFromTemplate(commandTracker);
             ExecutableCommand execCmd = createExecutableCommand(commandTracker, config, false);
             addExecCommandToQueue(execCmd, config.getCommandOptions().getMinLoopTime());
         } catch (ConfigurationException e) {
@@ -662,6 +789,24 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         }
     }
 
+    /**
+     * Creates a new configuration instance for given command, by copying its template if
+     * available, or else by parsing its args.
+     */
+    private IConfiguration createConfigFromTemplate(CommandTracker commandTracker)
+            throws ConfigurationException {
+        IConfiguration template = commandTracker.getConfigTemplate();
+        if (template != null) {
+            try {
+                return template.createCopy();
+            } catch (ConfigurationException e) {
+                CLog.w("Failed to copy config template for command %d, reloading from args: %s",
+                        commandTracker.getId(), e.getMessage());
+            }
+        }
+        return getConfigFactory().createConfigurationFromArgs(commandTracker.getArgs());
+    }
+
     /**
      * Adds executable command instance to queue, with optional delay.
      *
@@ -682,12 +827,14 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
                 public void run() {
                     synchronized (CommandScheduler.this) {
                         cmd.setWaitState();
+                        cmd.markReady();
                         mCommandQueue.add(cmd);
                     }
                 }
             };
             mCommandTimer.schedule(delayCommand, delayTime, TimeUnit.MILLISECONDS);
         } else {
+            cmd.markReady();
             mCommandQueue.add(cmd);
         }
         return true;
@@ -793,19 +940,24 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
             mRemoteClient = RemoteClient.connect(handoverPort);
             CLog.d("connected to remote manager at %d", handoverPort);
             // inform remote manager of the devices we are still using
-            for (String deviceInUse : getDeviceManager().getAllocatedDevices()) {
-                if (!mRemoteClient.sendFilterDevice(deviceInUse)) {
-                    CLog.e("Failed to send command to remote manager");
-                    return false;
-                }
-                CLog.d("Sent filter device %s command", deviceInUse);
+            Collection<String> devicesInUse = getDeviceManager().getAllocatedDevices();
+            for (String deviceInUse : devicesInUse) {
+                mRemoteClient.queueFilterDevice(deviceInUse);
             }
+            if (!mRemoteClient.flush()) {
+                CLog.e("Failed to send command to remote manager");
+                return false;
+            }
+            CLog.d("Sent filter device commands for %d devices", devicesInUse.size());
             // now send command info
-            List<CommandTracker> cmdCopy = getCommandTrackers();
             // sort so high priority commands are sent first
-            Collections.sort(cmdCopy, new CommandTrackerTimeComparator());
+            List<CommandTracker> cmdCopy = getCommandTrackers(mSchedulingPolicy);
             for (CommandTracker cmd : cmdCopy) {
-                mRemoteClient.sendAddCommand(cmd.getTotalExecTime(), cmd.mArgs);
+                mRemoteClient.queueAddCommand(cmd.getTotalExecTime(), cmd.mArgs);
+            }
+            // the remote manager already has the other commands, so shut down regardless
+            if (!mRemoteClient.flush()) {
+                CLog.e("Remote manager failed to add some commands, shutting down anyway");
             }
             shutdown();
             return true;
@@ -821,7 +973,22 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
      * to the scheduler that are either executing, waiting for a device to execute on, or looping.
      */
     private List<CommandTracker> getCommandTrackers() {
+        return getCommandTrackers(null);
+    }
+
+    /**
+     * Gets the list of active {@link CommandTracker}, ordered by their first command instance in
+     * given order.
+     *
+     * @param cmdComparator the {@link Comparator} to order command instances by, or
+     *            <code>null</code> to keep the order they were created in
+     */
+    private List<CommandTracker> getCommandTrackers(
+            Comparator<? super ExecutableCommand> cmdComparator) {
         List<ExecutableCommand> cmdCopy = new ArrayList<ExecutableCommand>(mAllCommands);
+        if (cmdComparator != null) {
+            Collections.sort(cmdCopy, cmdComparator);
+        }
         Set<CommandTracker> cmdTrackers = new LinkedHashSet<CommandTracker>();
         for (ExecutableCommand cmd : cmdCopy) {
             cmdTrackers.add(cmd.getCommandTracker());
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import java.util.Comparator;
+
+/**
+ * The policy used to order the commands waiting for a device.
+ * <p/>
+ * Commands are ordered by:
+ * <ol>
+ * <li>priority class, highest first. The priority of a command below
+ * {@link CommandPriorityClass#NORMAL} rises by one class for every
+ * {@link ICommandOptions#getPriorityAgingInterval()} it waits, up to NORMAL, so low priority
+ * commands are not starved by a steady stream of other commands. Commands of NORMAL or higher
+ * priority never age, so they keep the execution time ordering among themselves.</li>
+ * <li>deadline, earliest first. Commands with a deadline run before commands without one.</li>
+ * <li>total execution time of all instances of the command, lowest first, so infrequent or fast
+ * running commands are prioritized over long running commands.</li>
+ * </ol>
+ * The order depends on the current time, so it must be evaluated when a command is dequeued,
+ * as {@link com.android.tradefed.util.ConditionPriorityBlockingQueue} does.
+ * <p/>
+ * A loop mode command is queued again for each invocation and does not keep its device, so at
+ * the end of each of its invocations it competes for the device under this order, and a waiting
+ * higher priority command takes the device first.
+ * <p/>
+ * The policy can be customized by subclassing, and given to
+ * {@link CommandScheduler#CommandScheduler(CommandSchedulingPolicy)}.
+ */
+public class CommandSchedulingPolicy implements
+        Comparator<CommandSchedulingPolicy.ISchedulableCommand> {
+
+    /**
+     * A command waiting to be scheduled.
+     */
+    public static interface ISchedulableCommand {
+        /**
+         * Gets the {@link ICommandOptions} of the command.
+         */
+        public ICommandOptions getCommandOptions();
+
+        /**
+         * Gets the time the command was first ready to run, or 0 if it has never been ready.
+         */
+        public long getReadyTime();
+
+        /**
+         * Gets the total execution time of all instances of the command.
+         */
+        public long getTotalExecTime();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compare(ISchedulableCommand c1, ISchedulableCommand c2) {
+        long currentTime = getCurrentTime();
+        int result = compareLongs(getEffectivePriority(c1, currentTime),
+                getEffectivePriority(c2, currentTime));
+        if (result == 0) {
+            result = compareLongs(getDeadlineTime(c1), getDeadlineTime(c2));
+        }
+        if (result == 0) {
+            result = compareLongs(c1.getTotalExecTime(), c2.getTotalExecTime());
+        }
+        return result;
+    }
+
+    /**
+     * Determine if a command started after its deadline.
+     *
+     * @param cmd the command being started
+     * @return <code>true</code> if <var>cmd</var> has a deadline that has passed
+     */
+    public boolean isDeadlineMissed(ISchedulableCommand cmd) {
+        return getDeadlineTime(cmd) < getCurrentTime();
+    }
+
+    /**
+     * Gets the priority class of a command at the given time, after aging. Lower values are
+     * higher priority.
+     */
+    protected int getEffectivePriority(ISchedulableCommand cmd, long currentTime) {
+        ICommandOptions options = cmd.getCommandOptions();
+        int priority = options.getPriority().ordinal();
+        int maxAgedPriority = CommandPriorityClass.NORMAL.ordinal();
+        long agingInterval = options.getPriorityAgingInterval();
+        if (agingInterval > 0 && cmd.getReadyTime() > 0 && priority > maxAgedPriority) {
+            long waitTime = Math.max(0, currentTime - cmd.getReadyTime());
+            priority -= (int)Math.min(priority - maxAgedPriority, waitTime / agingInterval);
+        }
+        return priority;
+    }
+
+    /**
+     * Gets the time by which a command should start, or {@link Long#MAX_VALUE} if it has no
+     * deadline.
+     */
+    protected long getDeadlineTime(ISchedulableCommand cmd) {
+        long deadline = cmd.getCommandOptions().getDeadline();
+        if (deadline <= 0 || cmd.getReadyTime() <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return cmd.getReadyTime() + deadline;
+    }
+
+    /**
+     * Gets the current time in ms.
+     * <p/>
+     * Can be overridden so simulations and unit tests can control the time.
+     */
+    protected long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    private static int compareLongs(long l1, long l2) {
+        if (l1 == l2) {
+            return 0;
+        } else if (l1 < l2) {
+            return -1;
+        } else {
+            return 1;
+        }
+    }
+}
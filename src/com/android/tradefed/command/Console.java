@@ -30,6 +30,7 @@ import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.QuotationAwareTokenizer;
 import com.android.tradefed.util.RegexTrie;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.metrics.MetricsRegistry;
 
 import jline.ConsoleReader;
 
@@ -76,6 +77,9 @@ public class Console extends Thread {
 
     protected static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
+    /** time between metrics snapshots written by 'set metrics-file' */
+    private static final long METRICS_SNAPSHOT_PERIOD_MS = 10 * 1000;
+
     private static ConsoleReaderOutputStream sConsoleStream = null;
 
     protected ICommandScheduler mScheduler;
@@ -386,6 +390,8 @@ public class Console extends Thread {
                 "\tl[ogs]             Dump the logs of all invocations to files" + LINE_SEPARATOR +
                 "\tc[onfig] <config>  Dump the content of the specified config" + LINE_SEPARATOR +
                 "\tcommandQueue       Dump the contents of the commmand execution queue" +
+                LINE_SEPARATOR +
+                "\tm[etrics]          Dump the scheduler, device and invocation metrics" +
                 LINE_SEPARATOR,
                 DUMP_PATTERN));
 
@@ -407,7 +413,9 @@ public class Console extends Thread {
                 "from another TF process running on same machine." +
                 LINE_SEPARATOR +
                 "\tdisable-handover-server    Force shutdown of the handover server." +
-                LINE_SEPARATOR,
+                LINE_SEPARATOR +
+                "\tmetrics-file <file>        Periodically write metrics to <file>, in the " +
+                "Prometheus text format" + LINE_SEPARATOR,
                 SET_PATTERN));
 
         commandHelp.put(REMOVE_PATTERN, String.format(
@@ -483,6 +491,12 @@ public class Console extends Thread {
                 mScheduler.displayCommandQueue(new PrintWriter(System.out, true));
             }
         }, DUMP_PATTERN, "commandQueue");
+        trie.put(new Runnable() {
+            @Override
+            public void run() {
+                MetricsRegistry.getRegistry().writeMetrics(new PrintWriter(System.out, true));
+            }
+        }, DUMP_PATTERN, "m(?:etrics)?");
 
 
         // Run commands
@@ -590,6 +604,19 @@ public class Console extends Thread {
         };
         trie.put(runSetLog, SET_PATTERN, "log-level-display", "(.*)");
 
+        ArgRunnable<CaptureList> runSetMetricsFile = new ArgRunnable<CaptureList>() {
+            @Override
+            public void run(CaptureList args) {
+                // Skip 2 tokens to get past setPattern and "metrics-file"
+                File metricsFile = new File(args.get(2).get(0));
+                MetricsRegistry.getRegistry().startSnapshots(metricsFile,
+                        METRICS_SNAPSHOT_PERIOD_MS);
+                printLine(String.format("Writing metrics to %s every %d s.",
+                        metricsFile.getAbsolutePath(), METRICS_SNAPSHOT_PERIOD_MS / 1000));
+            }
+        };
+        trie.put(runSetMetricsFile, SET_PATTERN, "metrics-file", "(.*)");
+
         trie.put(new Runnable() {
                     @Override
                     public void run() {
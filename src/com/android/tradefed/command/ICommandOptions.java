@@ -46,6 +46,23 @@ public interface ICommandOptions {
      */
     public long getMinLoopTime();
 
+    /**
+     * Get the priority class of the command.
+     */
+    public CommandPriorityClass getPriority();
+
+    /**
+     * Get the time in ms after the command is ready to run by which it should start, or 0 if the
+     * command has no deadline.
+     */
+    public long getDeadline();
+
+    /**
+     * Get the time in ms a command below {@link CommandPriorityClass#NORMAL} waits for a device
+     * before its priority rises by one class, or 0 if its priority never rises.
+     */
+    public long getPriorityAgingInterval();
+
     /**
      * Sets the loop mode for the command
      *
@@ -15,24 +15,42 @@
  */
 package com.android.tradefed.command;
 
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class for sending remote commands to another TF process via sockets.
+ * <p/>
+ * Commands can either be sent one at a time, waiting for each response, or queued with the
+ * <code>queue*</code> methods and sent together with {@link #flush()}, which pipelines them over
+ * the connection and waits for all responses at once. Only pipelined commands carry request
+ * ids, so commands sent one at a time also work with a {@link RemoteManager} that predates them.
+ * If such a {@link RemoteManager} answers a pipelined command without a request id, the queued
+ * commands and all later flushed commands are sent one at a time instead.
  */
 public class RemoteClient {
 
+    private static final String CHARSET = "UTF-8";
+
     private final Socket mSocket;
     private final PrintWriter mWriter;
     private final BufferedReader mReader;
+    private long mNextRequestId = 0;
+    /** commands queued to be sent by the next {@link #flush()} */
+    private final List<String> mQueuedCommands = new ArrayList<String>();
+    /** <code>true</code> if the {@link RemoteManager} does not understand request ids */
+    private boolean mLegacyManager = false;
 
     /**
      * @param port
@@ -42,17 +60,122 @@ public class RemoteClient {
     RemoteClient(int port) throws UnknownHostException, IOException {
         String hostName = InetAddress.getLocalHost().getHostName();
         mSocket = new Socket(hostName, port);
-        mWriter = new PrintWriter(mSocket.getOutputStream(), true);
-        mReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+        mWriter = new PrintWriter(new OutputStreamWriter(mSocket.getOutputStream(), CHARSET));
+        mReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream(), CHARSET));
     }
 
+    /**
+     * Send a single command and wait for its response.
+     * <p/>
+     * Uses the original request format without a request id, so it is understood by any
+     * {@link RemoteManager}. Commands queued for the next {@link #flush()} are not sent.
+     */
     private synchronized boolean sendCommand(String... cmd) throws IOException {
         // TODO: use a more standard data protocol - such as Json
-        mWriter.println(ArrayUtil.join(RemoteManager.DELIM, (Object[])cmd));
+        return sendCommandLine(ArrayUtil.join(RemoteManager.DELIM, (Object[])cmd));
+    }
+
+    private synchronized boolean sendCommandLine(String command) throws IOException {
+        mWriter.print(command);
+        mWriter.print('\n');
+        mWriter.flush();
+        if (mWriter.checkError()) {
+            throw new IOException("Failed to send command to remote manager");
+        }
         String response = mReader.readLine();
         return response != null && Boolean.parseBoolean(response);
     }
 
+    private synchronized void queueCommand(String... cmd) {
+        mQueuedCommands.add(ArrayUtil.join(RemoteManager.DELIM, (Object[])cmd));
+    }
+
+    /**
+     * Send all queued commands in a single write, then wait for all their responses.
+     * <p/>
+     * Each command is prefixed with a request id, which the {@link RemoteManager} echoes in its
+     * response, so responses can be matched to pipelined requests.
+     *
+     * @return <code>true</code> if all commands succeeded
+     * @throws IOException
+     */
+    public synchronized boolean flush() throws IOException {
+        if (mQueuedCommands.isEmpty()) {
+            return true;
+        }
+        List<String> commands = new ArrayList<String>(mQueuedCommands);
+        mQueuedCommands.clear();
+        if (mLegacyManager) {
+            return sendEachCommand(commands);
+        }
+        long firstRequestId = mNextRequestId;
+        for (String command : commands) {
+            mWriter.print(mNextRequestId++);
+            mWriter.print(RemoteManager.DELIM);
+            mWriter.print(command);
+            mWriter.print('\n');
+        }
+        mWriter.flush();
+        if (mWriter.checkError()) {
+            throw new IOException("Failed to send commands to remote manager");
+        }
+        boolean result = true;
+        for (int i = 0; i < commands.size(); i++) {
+            String response = mReader.readLine();
+            if (response == null) {
+                return false;
+            }
+            String[] responseSegments = response.split(RemoteManager.DELIM);
+            if (i == 0 && isLegacyResponse(response)) {
+                // the remote manager treated each request as an unknown command and ran none
+                CLog.i("Remote manager does not support request ids, sending %d commands one " +
+                        "at a time", commands.size());
+                mLegacyManager = true;
+                for (int j = 1; j < commands.size(); j++) {
+                    if (mReader.readLine() == null) {
+                        return false;
+                    }
+                }
+                return sendEachCommand(commands);
+            }
+            if (responseSegments.length != 2 ||
+                    !Long.toString(firstRequestId + i).equals(responseSegments[0])) {
+                throw new IOException(String.format(
+                        "Unexpected response '%s' from remote manager", response));
+            }
+            if (!Boolean.parseBoolean(responseSegments[1])) {
+                CLog.w("Remote command '%s' failed", commands.get(i));
+                result = false;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Send each command without a request id, waiting for each response.
+     *
+     * @return <code>true</code> if all commands succeeded
+     */
+    private boolean sendEachCommand(List<String> commands) throws IOException {
+        boolean result = true;
+        for (String command : commands) {
+            if (!sendCommandLine(command)) {
+                CLog.w("Remote command '%s' failed", command);
+                result = false;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determine if a response is a bare result, sent by a {@link RemoteManager} that predates
+     * request ids.
+     */
+    private static boolean isLegacyResponse(String response) {
+        return Boolean.TRUE.toString().equals(response) ||
+                Boolean.FALSE.toString().equals(response);
+    }
+
     public static RemoteClient connect(int port) throws UnknownHostException, IOException {
         return new RemoteClient(port);
     }
@@ -66,6 +189,14 @@ public class RemoteClient {
         return sendCommand(RemoteManager.FILTER, serial);
     }
 
+    /**
+     * Queue a 'add this device to global ignore filter' command, to be sent by {@link #flush()}.
+     * @param serial
+     */
+    public void queueFilterDevice(String serial) {
+        queueCommand(RemoteManager.FILTER, serial);
+    }
+
     /**
      * Send a 'remove this device from global ignore filter' command
      * @param serial
@@ -95,6 +226,16 @@ public class RemoteClient {
         return sendCommand(fullList);
     }
 
+    /**
+     * Queue a 'add command' command, to be sent by {@link #flush()}.
+     *
+     * @param commandArgs
+     */
+    public void queueAddCommand(long totalTime, String... commandArgs) {
+        queueCommand(ArrayUtil.buildArray(new String[] {RemoteManager.ADD_COMMAND,
+                Long.toString(totalTime)}, commandArgs));
+    }
+
     /**
      * Send a 'close connection' command
      * @throws IOException
@@ -23,21 +23,32 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
 
 /**
  * Class that receives remote commands to add and remove devices from use via a socket.
  * <p/>
- * Currently accepts only one remote connection at one time, and processes incoming commands
- * serially.
+ * Serves any number of concurrent remote connections from a single thread, using non-blocking
+ * IO. Clients may pipeline requests: each connection's requests are processed in the order they
+ * are received, and the responses to all requests received in one read are sent back in a single
+ * write.
+ * <p/>
+ * Each request is a line of {@link #DELIM} separated segments, optionally prefixed by a numeric
+ * request id. The response to a request is its result, prefixed with the request id if one was
+ * given.
  * <p/>
  * Usage:
  * <pre>
@@ -57,12 +68,106 @@ public class RemoteManager extends Thread {
     static final String CLOSE = "close";
     static final String ADD_COMMAND = "add_command";
 
-    private ServerSocket mServerSocket = null;
-    private boolean mCancel = false;
+    private static final String CHARSET = "UTF-8";
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    /** the maximum length of a request line. Longer requests close the connection */
+    private static final int MAX_REQUEST_LENGTH = 1024 * 1024;
+
+    private ServerSocketChannel mServerChannel = null;
+    private Selector mSelector = null;
+    private volatile boolean mCancel = false;
     private final IDeviceManager mDeviceManager;
     private final ICommandScheduler mScheduler;
     private Map<String, ITestDevice> mFilteredDeviceMap = new Hashtable<String, ITestDevice>();
 
+    /**
+     * A connection to a remote client. Only accessed from the remote manager thread.
+     */
+    private class ClientConnection {
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteArrayOutputStream mPartialLine = new ByteArrayOutputStream();
+        private final LinkedList<ByteBuffer> mPendingOutput = new LinkedList<ByteBuffer>();
+
+        ClientConnection(SocketChannel channel, Selector selector) throws IOException {
+            mChannel = channel;
+            mChannel.configureBlocking(false);
+            mKey = mChannel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * Read the available data, and process and respond to all complete requests.
+         */
+        void read() throws IOException {
+            mReadBuffer.clear();
+            int numRead = mChannel.read(mReadBuffer);
+            if (numRead < 0) {
+                close();
+                return;
+            }
+            mReadBuffer.flip();
+            StringBuilder responses = new StringBuilder();
+            while (mReadBuffer.hasRemaining()) {
+                byte b = mReadBuffer.get();
+                if (b != '\n') {
+                    mPartialLine.write(b);
+                    if (mPartialLine.size() > MAX_REQUEST_LENGTH) {
+                        throw new IOException(String.format(
+                                "Request exceeded maximum length of %d", MAX_REQUEST_LENGTH));
+                    }
+                    continue;
+                }
+                String line = mPartialLine.toString(CHARSET);
+                mPartialLine.reset();
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                if (!mCancel) {
+                    responses.append(processRequest(line));
+                    responses.append('\n');
+                }
+            }
+            if (responses.length() > 0) {
+                mPendingOutput.add(ByteBuffer.wrap(responses.toString().getBytes(CHARSET)));
+                write();
+            }
+        }
+
+        /**
+         * Write as much pending output as possible without blocking, and wait for the channel to
+         * become writable again if any remains.
+         */
+        void write() throws IOException {
+            while (!mPendingOutput.isEmpty()) {
+                ByteBuffer output = mPendingOutput.getFirst();
+                mChannel.write(output);
+                if (output.hasRemaining()) {
+                    setInterestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                mPendingOutput.removeFirst();
+            }
+            setInterestOps(SelectionKey.OP_READ);
+        }
+
+        private void setInterestOps(int ops) {
+            // avoid updating the selector when nothing changed, which is the common case
+            if (mKey.interestOps() != ops) {
+                mKey.interestOps(ops);
+            }
+        }
+
+        void close() {
+            mKey.cancel();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
     /**
      * Creates a {@link RemoteManager}.
      *
@@ -77,15 +182,20 @@ public class RemoteManager extends Thread {
     /**
      * The main thread body of the remote manager.
      * <p/>
-     * Creates a server socket, and waits for client connections.
+     * Creates a server socket, and serves client connections.
      */
     @Override
     public void run() {
         synchronized (this) {
             try {
-                mServerSocket = new ServerSocket(0);
+                mSelector = Selector.open();
+                mServerChannel = ServerSocketChannel.open();
+                mServerChannel.socket().bind(new InetSocketAddress(0));
+                mServerChannel.configureBlocking(false);
+                mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
             } catch (IOException e) {
                 CLog.e("Failed to open server socket: %s", e);
+                closeSelector();
                 return;
             } finally {
                 // notify any listeners that the socket has been created
@@ -93,10 +203,10 @@ public class RemoteManager extends Thread {
             }
         }
         try {
-            processClientConnections(mServerSocket);
+            processClientConnections();
         } finally {
             freeAllDevices();
-            closeSocket(mServerSocket);
+            closeSelector();
         }
     }
 
@@ -108,57 +218,113 @@ public class RemoteManager extends Thread {
      * @return
      */
     public synchronized int getPort() {
-        if (mServerSocket == null) {
+        if (mServerChannel == null) {
             try {
                 wait(10*1000);
             } catch (InterruptedException e) {
                 // ignore
             }
         }
-        if (mServerSocket == null) {
+        if (mServerChannel == null) {
             return -1;
         }
-        return mServerSocket.getLocalPort();
+        return mServerChannel.socket().getLocalPort();
     }
 
-    private void processClientConnections(ServerSocket serverSocket) {
+    private void processClientConnections() {
         while (!mCancel) {
-            Socket clientSocket = null;
-            BufferedReader in = null;
-            PrintWriter out = null;
             try {
-                clientSocket = serverSocket.accept();
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                processClientCommands(in, out);
+                mSelector.select();
             } catch (IOException e) {
-                CLog.e("Failed to accept connection: %s", e);
-            } finally {
-                closeReader(in);
-                closeWriter(out);
-                closeSocket(clientSocket);
+                CLog.e("Failed to wait for remote connections: %s", e);
+                return;
+            }
+            Iterator<SelectionKey> keyIter = mSelector.selectedKeys().iterator();
+            while (keyIter.hasNext()) {
+                SelectionKey key = keyIter.next();
+                keyIter.remove();
+                if (key.isValid() && key.isAcceptable()) {
+                    acceptConnection();
+                } else if (key.isValid()) {
+                    ClientConnection client = (ClientConnection)key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            client.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.write();
+                        }
+                    } catch (IOException e) {
+                        CLog.e("Closing remote connection: %s", e);
+                        client.close();
+                    }
+                }
             }
         }
     }
 
-    private void processClientCommands(BufferedReader in, PrintWriter out) throws IOException {
-        String line = null;
-        while ((line = in.readLine()) != null && !mCancel) {
-            boolean result = false;
-            String[] commandSegments = line.split(DELIM);
-            String cmdType = commandSegments[0];
-            if (FILTER.equals(cmdType)) {
-                result = processFilterCommand(commandSegments);
-            } else if (UNFILTER.equals(cmdType)) {
-                result = processUnfilterCommand(commandSegments);
-            } else if (CLOSE.equals(cmdType)) {
-                cancel();
-                result = true;
-            } else if (ADD_COMMAND.equals(cmdType)) {
-                result = processAddCommand(commandSegments);
+    private void acceptConnection() {
+        SocketChannel channel = null;
+        try {
+            channel = mServerChannel.accept();
+            if (channel != null) {
+                new ClientConnection(channel, mSelector);
             }
-            sendAck(result, out);
+        } catch (IOException e) {
+            CLog.e("Failed to accept connection: %s", e);
+            closeChannel(channel);
+        }
+    }
+
+    /**
+     * Process a single request.
+     *
+     * @param line the request
+     * @return the response to send
+     */
+    private String processRequest(String line) {
+        String[] commandSegments = line.split(DELIM);
+        String requestId = null;
+        if (commandSegments.length > 1 && isRequestId(commandSegments[0])) {
+            requestId = commandSegments[0];
+            commandSegments = Arrays.copyOfRange(commandSegments, 1, commandSegments.length);
+        }
+        boolean result = false;
+        try {
+            result = processCommand(commandSegments);
+        } catch (RuntimeException e) {
+            // don't let one bad request stop the remote manager for all clients
+            CLog.e("Failed to process command '%s'", line);
+            CLog.e(e);
+        }
+        if (requestId == null) {
+            return Boolean.toString(result);
+        }
+        return requestId + DELIM + result;
+    }
+
+    private boolean isRequestId(String segment) {
+        try {
+            Long.parseLong(segment);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private boolean processCommand(String[] commandSegments) {
+        String cmdType = commandSegments[0];
+        if (FILTER.equals(cmdType)) {
+            return processFilterCommand(commandSegments);
+        } else if (UNFILTER.equals(cmdType)) {
+            return processUnfilterCommand(commandSegments);
+        } else if (CLOSE.equals(cmdType)) {
+            cancel();
+            return true;
+        } else if (ADD_COMMAND.equals(cmdType)) {
+            return processAddCommand(commandSegments);
         }
+        return false;
     }
 
     private boolean processFilterCommand(final String[] commandSegments) {
@@ -228,10 +394,6 @@ public class RemoteManager extends Thread {
         mFilteredDeviceMap.clear();
     }
 
-    private void sendAck(boolean result, PrintWriter out) {
-        out.println(result);
-    }
-
     /**
      * Cancel the remote manager.
      */
@@ -239,46 +401,48 @@ public class RemoteManager extends Thread {
         if (!mCancel) {
             mCancel  = true;
             Log.logAndDisplay(LogLevel.INFO, "RemoteManager", "Closing remote manager");
-        }
-    }
-
-    private void closeSocket(ServerSocket serverSocket) {
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                // ignore
+            if (mSelector != null) {
+                mSelector.wakeup();
             }
         }
     }
 
-    private void closeSocket(Socket clientSocket) {
-        if (clientSocket != null) {
+    /**
+     * Close the server socket and all client connections, sending any pending responses that
+     * can be sent without blocking first.
+     */
+    private synchronized void closeSelector() {
+        if (mSelector != null) {
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.isValid() && key.attachment() instanceof ClientConnection) {
+                    ClientConnection client = (ClientConnection)key.attachment();
+                    try {
+                        client.write();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                    client.close();
+                }
+            }
             try {
-                clientSocket.close();
+                mSelector.close();
             } catch (IOException e) {
                 // ignore
-                e.printStackTrace();
             }
         }
+        closeChannel(mServerChannel);
     }
 
-    private void closeReader(BufferedReader in) {
-        if (in != null) {
+    private void closeChannel(Channel channel) {
+        if (channel != null) {
             try {
-                in.close();
+                channel.close();
             } catch (IOException e) {
                 // ignore
             }
         }
     }
 
-    private void closeWriter(PrintWriter out) {
-        if (out != null) {
-            out.close();
-        }
-    }
-
     /**
      * @return <code>true</code> if a cancel has been requested
      */
@@ -19,6 +19,7 @@ import com.android.tradefed.build.IBuildProvider;
 import com.android.tradefed.build.StubBuildProvider;
 import com.android.tradefed.command.CommandOptions;
 import com.android.tradefed.command.ICommandOptions;
+import com.android.tradefed.config.ConfigurationDef.OptionDef;
 import com.android.tradefed.device.DeviceSelectionOptions;
 import com.android.tradefed.device.IDeviceRecovery;
 import com.android.tradefed.device.IDeviceSelection;
@@ -34,9 +35,11 @@ import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.StubTest;
 
 import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -277,6 +280,28 @@ public class Configuration implements IConfiguration {
         optionSetter.setOptionMapValue(optionName, optionKey, optionValue);
     }
 
+    /**
+     * Inject multiple option values into this configuration, all with the same
+     * {@link OptionSetter}.
+     *
+     * @param optionDefs the {@link OptionDef}s to inject
+     * @throws ConfigurationException if any option could not be set
+     */
+    void injectOptionValues(List<OptionDef> optionDefs) throws ConfigurationException {
+        if (optionDefs.isEmpty()) {
+            return;
+        }
+        OptionSetter optionSetter = new OptionSetter(getAllConfigurationObjects());
+        for (OptionDef optionEntry : optionDefs) {
+            if (optionEntry.key == null) {
+                optionSetter.setOptionValue(optionEntry.name, optionEntry.value);
+            } else {
+                optionSetter.setOptionMapValue(optionEntry.name, optionEntry.key,
+                        optionEntry.value);
+            }
+        }
+    }
+
     /**
      * Creates a shallow copy of this object.
      */
@@ -289,6 +314,58 @@ public class Configuration implements IConfiguration {
         return clone;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IConfiguration createCopy() throws ConfigurationException {
+        Configuration copy = new Configuration(getName(), getDescription());
+        // preserve any sharing of objects between types
+        Map<Object, Object> copiedObjects = new IdentityHashMap<Object, Object>();
+        for (Map.Entry<String, List<Object>> entry : mConfigMap.entrySet()) {
+            List<Object> objectCopies = new ArrayList<Object>(entry.getValue().size());
+            for (Object configObject : entry.getValue()) {
+                Object objectCopy = copiedObjects.get(configObject);
+                if (objectCopy == null) {
+                    objectCopy = createObjectCopy(entry.getKey(), configObject);
+                    copiedObjects.put(configObject, objectCopy);
+                }
+                objectCopies.add(objectCopy);
+            }
+            copy.setConfigurationObjectList(entry.getKey(), objectCopies);
+        }
+        return copy;
+    }
+
+    /**
+     * Create a new instance of given config object's class, with the same option values.
+     */
+    private Object createObjectCopy(String typeName, Object configObject)
+            throws ConfigurationException {
+        Class<?> objectClass = configObject.getClass();
+        try {
+            Object objectCopy = objectClass.getDeclaredConstructor().newInstance();
+            OptionCopier.copyOptionState(configObject, objectCopy);
+            return objectCopy;
+        } catch (InstantiationException e) {
+            throw new ConfigurationException(String.format(
+                    "Could not instantiate class %s for config object type %s",
+                    objectClass.getName(), typeName), e);
+        } catch (IllegalAccessException e) {
+            throw new ConfigurationException(String.format(
+                    "Could not access class %s for config object type %s",
+                    objectClass.getName(), typeName), e);
+        } catch (NoSuchMethodException e) {
+            throw new ConfigurationException(String.format(
+                    "Class %s for config object type %s has no default constructor",
+                    objectClass.getName(), typeName), e);
+        } catch (InvocationTargetException e) {
+            throw new ConfigurationException(String.format(
+                    "Could not instantiate class %s for config object type %s",
+                    objectClass.getName(), typeName), e.getCause());
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
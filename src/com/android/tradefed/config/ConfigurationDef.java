@@ -21,12 +21,17 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Holds a record of a configuration, its associated objects and their options.
  */
 public class ConfigurationDef {
 
+    /** cache of config object classes by name, shared by all definitions */
+    private static final Map<String, Class<?>> sClassCache =
+            new ConcurrentHashMap<String, Class<?>>();
+
     /** a map of object type names to config object class name(s). */
     private final Map<String, List<String>> mObjectClassMap;
     /** a list of option name/value pairs. */
@@ -144,7 +149,7 @@ public class ConfigurationDef {
      * @throws ConfigurationException if configuration could not be created
      */
     IConfiguration createConfiguration() throws ConfigurationException {
-        IConfiguration config = new Configuration(getName(), getDescription());
+        Configuration config = new Configuration(getName(), getDescription());
 
         for (Map.Entry<String, List<String>> objClassEntry : mObjectClassMap.entrySet()) {
             List<Object> objectList = new ArrayList<Object>(objClassEntry.getValue().size());
@@ -154,13 +159,7 @@ public class ConfigurationDef {
             }
             config.setConfigurationObjectList(objClassEntry.getKey(), objectList);
         }
-        for (OptionDef optionEntry : mOptionList) {
-            if (optionEntry.key == null) {
-                config.injectOptionValue(optionEntry.name, optionEntry.value);
-            } else {
-                config.injectOptionValue(optionEntry.name, optionEntry.key, optionEntry.value);
-            }
-        }
+        config.injectOptionValues(mOptionList);
 
         return config;
     }
@@ -211,8 +210,14 @@ public class ConfigurationDef {
      */
     private Class<?> getClassForObject(String objectTypeName, String className)
             throws ConfigurationException {
+        Class<?> objectClass = sClassCache.get(className);
+        if (objectClass != null) {
+            return objectClass;
+        }
         try {
-            return Class.forName(className);
+            objectClass = Class.forName(className);
+            sClassCache.put(className, objectClass);
+            return objectClass;
         } catch (ClassNotFoundException e) {
             throw new ConfigurationException(
                     String.format("Could not find class %s for config object type %s", className,
@@ -18,6 +18,7 @@ package com.android.tradefed.config;
 import com.android.ddmlib.Log;
 import com.android.tradefed.util.ClassPathScanner;
 import com.android.tradefed.util.ClassPathScanner.IClassPathFilter;
+import com.android.tradefed.util.ClassPathScanner.IEntryAttributeReader;
 import com.android.tradefed.util.StreamUtil;
 
 import java.io.BufferedInputStream;
@@ -28,14 +29,13 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Factory for creating {@link IConfiguration}.
@@ -48,20 +48,20 @@ public class ConfigurationFactory implements IConfigurationFactory {
     private static final String CONFIG_PREFIX = "config/";
 
     private Map<String, ConfigurationDef> mConfigDefMap;
+    /** map of config name to description, for configs that have not been fully loaded */
+    private Map<String, String> mConfigDescriptionMap;
 
     /**
      * A {@link IClassPathFilter} for configuration XML files.
      */
-    private class ConfigClasspathFilter implements IClassPathFilter {
+    private static class ConfigClasspathFilter implements IClassPathFilter {
 
         /**
          * {@inheritDoc}
          */
         @Override
         public boolean accept(String pathName) {
-            // only accept entries that match the pattern, and that we don't already know about
-            return pathName.startsWith(CONFIG_PREFIX) && pathName.endsWith(CONFIG_SUFFIX) &&
-                    !mConfigDefMap.containsKey(pathName);
+            return pathName.startsWith(CONFIG_PREFIX) && pathName.endsWith(CONFIG_SUFFIX);
         }
 
         /**
@@ -77,19 +77,32 @@ public class ConfigurationFactory implements IConfigurationFactory {
     }
 
     /**
-     * A {@link Comparator} for {@link ConfigurationDef} that sorts by
-     * {@link ConfigurationDef#getName()}.
+     * A {@link IEntryAttributeReader} that reads the description of configuration XML files, so
+     * descriptions can be stored in jar indexes.
      */
-    private static class ConfigDefComparator implements Comparator<ConfigurationDef> {
+    private static class ConfigDescriptionReader implements IEntryAttributeReader {
 
         /**
          * {@inheritDoc}
          */
         @Override
-        public int compare(ConfigurationDef d1, ConfigurationDef d2) {
-            return d1.getName().compareTo(d2.getName());
+        public String getName() {
+            return "config-description";
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String readAttribute(String entryName, InputStream entryStream) {
+            try {
+                return new ConfigurationXmlParser(null).parseDescription(entryName,
+                        new BufferedInputStream(entryStream));
+            } catch (ConfigurationException e) {
+                // leave it to getConfigDescription to report the failure
+                return null;
+            }
+        }
     }
 
     /**
@@ -139,6 +152,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
 
     ConfigurationFactory() {
         mConfigDefMap = new Hashtable<String, ConfigurationDef>();
+        mConfigDescriptionMap = new Hashtable<String, String>();
     }
 
     /**
@@ -211,21 +225,76 @@ public class ConfigurationFactory implements IConfigurationFactory {
                 "content.");
         out.println();
         out.println("Available configurations include:");
-        try {
-            loadAllConfigs(true);
-        } catch (ConfigurationException e) {
-            // ignore, should never happen
-        }
-        // sort the configs by name before displaying
-        SortedSet<ConfigurationDef> configDefs = new TreeSet<ConfigurationDef>(
-                new ConfigDefComparator());
-        configDefs.addAll(mConfigDefMap.values());
-        for (ConfigurationDef def: configDefs) {
-            out.printf("  %s: %s", def.getName(), def.getDescription());
+        for (Map.Entry<String, String> configEntry : getConfigDescriptions().entrySet()) {
+            out.printf("  %s: %s", configEntry.getKey(), configEntry.getValue());
             out.println();
         }
     }
 
+    /**
+     * Gets the descriptions of all configurations found in classpath.
+     * <p/>
+     * Only the description of each configuration is parsed, so configurations are not fully
+     * loaded until they are used. The descriptions of configurations in jars are stored in the
+     * jar indexes, so they are only parsed again when the jar changes. Exposed for unit testing.
+     *
+     * @return a {@link SortedMap} of config name to description
+     */
+    SortedMap<String, String> getConfigDescriptions() {
+        SortedMap<String, String> descriptions = new TreeMap<String, String>();
+        Map<String, String> indexedDescriptions = new ClassPathScanner()
+                .getClassPathEntryAttributes(new ConfigClasspathFilter(),
+                        new ConfigDescriptionReader());
+        for (Map.Entry<String, String> indexedDescription : indexedDescriptions.entrySet()) {
+            if (!mConfigDescriptionMap.containsKey(indexedDescription.getKey())) {
+                mConfigDescriptionMap.put(indexedDescription.getKey(),
+                        indexedDescription.getValue());
+            }
+        }
+        for (String configName : getClassPathConfigNames()) {
+            String description = getConfigDescription(configName);
+            if (description != null) {
+                descriptions.put(configName, description);
+            }
+        }
+        return descriptions;
+    }
+
+    /**
+     * Gets the description of given configuration, loading it if necessary.
+     *
+     * @return the description or <code>null</code> if the configuration could not be loaded
+     */
+    private String getConfigDescription(String configName) {
+        ConfigurationDef configDef = mConfigDefMap.get(configName);
+        if (configDef != null) {
+            return configDef.getDescription();
+        }
+        String description = mConfigDescriptionMap.get(configName);
+        if (description == null) {
+            InputStream configStream = null;
+            try {
+                configStream = getConfigStream(configName);
+                description = new ConfigurationXmlParser(null).parseDescription(configName,
+                        configStream);
+                mConfigDescriptionMap.put(configName, description);
+            } catch (ConfigurationException e) {
+                Log.e(LOG_TAG, String.format("Failed to load configuration '%s'. Reason: %s",
+                        configName, e.toString()));
+            } finally {
+                StreamUtil.closeStream(configStream);
+            }
+        }
+        return description;
+    }
+
+    /**
+     * Gets the names of all configurations found in classpath.
+     */
+    private Set<String> getClassPathConfigNames() {
+        return new ClassPathScanner().getClassPathEntries(new ConfigClasspathFilter());
+    }
+
     /**
      * Loads all configurations found in classpath.
      *
@@ -234,9 +303,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
      * @throws ConfigurationException
      */
     void loadAllConfigs(boolean discardExceptions) throws ConfigurationException {
-        ClassPathScanner cpScanner = new ClassPathScanner();
-        Set<String> configNames = cpScanner.getClassPathEntries(new ConfigClasspathFilter());
-        for (String configName : configNames) {
+        for (String configName : getClassPathConfigNames()) {
             try {
                 ConfigurationDef configDef = getConfigurationDef(configName);
                 mConfigDefMap.put(configName, configDef);
@@ -139,6 +139,39 @@ class ConfigurationXmlParser {
         }
     }
 
+    /**
+     * SAX callback object that only reads the configuration description, then stops parsing.
+     */
+    private static class DescriptionHandler extends DefaultHandler {
+
+        /** thrown to stop parsing once the description has been read */
+        private static class DescriptionFoundException extends SAXException {
+            private static final long serialVersionUID = 1L;
+        }
+
+        private String mDescription = "";
+
+        String getDescription() {
+            return mDescription;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String name, Attributes attributes)
+                throws SAXException {
+            if (ConfigHandler.CONFIG_TAG.equals(localName)) {
+                String description = attributes.getValue("description");
+                if (description != null) {
+                    mDescription = description;
+                }
+            }
+            // the description can only be on the root element
+            throw new DescriptionFoundException();
+        }
+    }
+
+    /** shared factory, since locating the parser implementation is expensive */
+    private static SAXParserFactory sParserFactory = null;
+
     private final IConfigDefLoader mConfigDefLoader;
 
     ConfigurationXmlParser(IConfigDefLoader loader) {
@@ -156,9 +189,7 @@ class ConfigurationXmlParser {
      */
     ConfigurationDef parse(String name, InputStream xmlInput) throws ConfigurationException {
         try {
-            SAXParserFactory parserFactory = SAXParserFactory.newInstance();
-            parserFactory.setNamespaceAware(true);
-            SAXParser parser = parserFactory.newSAXParser();
+            SAXParser parser = createParser();
             ConfigHandler configHandler = new ConfigHandler(name, mConfigDefLoader);
             parser.parse(new InputSource(xmlInput), configHandler);
             return configHandler.getParsedDef();
@@ -172,6 +203,44 @@ class ConfigurationXmlParser {
         throw new ConfigurationException("should never reach here");
     }
 
+    /**
+     * Parses out only the description of the configuration contained in given input. Objects,
+     * options and includes are not processed.
+     *
+     * @param name the name of the configuration
+     * @param xmlInput the configuration xml to parse
+     * @return the description, or an empty {@link String} if the configuration has none
+     * @throws ConfigurationException if input could not be parsed
+     */
+    String parseDescription(String name, InputStream xmlInput) throws ConfigurationException {
+        DescriptionHandler descriptionHandler = new DescriptionHandler();
+        try {
+            SAXParser parser = createParser();
+            parser.parse(new InputSource(xmlInput), descriptionHandler);
+        } catch (DescriptionHandler.DescriptionFoundException e) {
+            // expected
+        } catch (ParserConfigurationException e) {
+            throwConfigException(name, e);
+        } catch (SAXException e) {
+            throwConfigException(name, e);
+        } catch (IOException e) {
+            throwConfigException(name, e);
+        }
+        return descriptionHandler.getDescription();
+    }
+
+    /**
+     * Creates a namespace aware {@link SAXParser}.
+     */
+    private static synchronized SAXParser createParser() throws ParserConfigurationException,
+            SAXException {
+        if (sParserFactory == null) {
+            sParserFactory = SAXParserFactory.newInstance();
+            sParserFactory.setNamespaceAware(true);
+        }
+        return sParserFactory.newSAXParser();
+    }
+
     private void throwConfigException(String configName, Throwable e)
             throws ConfigurationException {
         if (e.getCause() instanceof ConfigurationException) {
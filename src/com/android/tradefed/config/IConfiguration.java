@@ -156,6 +156,18 @@ public interface IConfiguration {
      */
     public IConfiguration clone();
 
+    /**
+     * Create a deep copy of this configuration.
+     * <p/>
+     * Every config object is replaced by a new instance of its class that has the same
+     * {@link Option} values. Any other state of the config objects is not copied, so this should
+     * only be called on a configuration that has not been used in an invocation.
+     *
+     * @return a {@link IConfiguration} copy
+     * @throws ConfigurationException if a config object could not be copied
+     */
+    public IConfiguration createCopy() throws ConfigurationException;
+
     /**
      * Replace the current {@link IBuildProvider} in the configuration.
      *
@@ -49,6 +49,54 @@ public class OptionCopier {
         }
     }
 
+    /**
+     * Make the {@link Option} fields of <var>destObject</var> hold exactly the same values as
+     * those of <var>origObject</var>.
+     * <p/>
+     * Unlike {@link #copyOptions(Object, Object)}, both objects must be of the same class, no
+     * {@link OptionUpdateRule} is applied, and {@link Collection} and {@link Map} options are
+     * replaced rather than added to. Used to create copies of a configuration object from a
+     * template instance.
+     *
+     * @param origObject the {@link Object} to copy from
+     * @param destObject the {@link Object} to copy to
+     * @throws ConfigurationException if options failed to copy
+     */
+    @SuppressWarnings("unchecked")
+    public static void copyOptionState(Object origObject, Object destObject)
+            throws ConfigurationException {
+        if (origObject.getClass() != destObject.getClass()) {
+            throw new ConfigurationException(String.format(
+                    "Cannot copy option state from %s to %s", origObject.getClass().getName(),
+                    destObject.getClass().getName()));
+        }
+        for (Field field : OptionSetter.getOptionFieldsForClass(origObject.getClass())) {
+            try {
+                Object origValue = field.get(origObject);
+                Object destValue = field.get(destObject);
+                if (origValue instanceof Collection && destValue instanceof Collection) {
+                    Collection<Object> destCollection = (Collection<Object>)destValue;
+                    destCollection.clear();
+                    destCollection.addAll((Collection<Object>)origValue);
+                } else if (origValue instanceof Map && destValue instanceof Map) {
+                    Map<Object, Object> destMap = (Map<Object, Object>)destValue;
+                    destMap.clear();
+                    destMap.putAll((Map<Object, Object>)origValue);
+                } else if (origValue instanceof Collection || origValue instanceof Map) {
+                    throw new ConfigurationException(String.format(
+                            "Cannot copy option %s of %s: container is not initialized",
+                            field.getName(), origObject.getClass().getName()));
+                } else {
+                    field.set(destObject, origValue);
+                }
+            } catch (IllegalAccessException e) {
+                throw new ConfigurationException(String.format(
+                        "Failed to copy option %s of %s: %s", field.getName(),
+                        origObject.getClass().getName(), e.getMessage()));
+            }
+        }
+    }
+
     /**
      * Build a map of {@link Option#name()} to {@link Field} for given {@link Object}.
      *
@@ -27,11 +27,14 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Populates {@link Option} fields.
@@ -139,24 +142,76 @@ public class OptionSetter {
                 type));
     }
 
+    /**
+     * Cache of the {@link OptionClassBinding} for each option source class, so the reflection
+     * needed to find and validate a class's options is only performed once per class.
+     */
+    private static final Map<Class<?>, OptionClassBinding> sClassBindings =
+            new ConcurrentHashMap<Class<?>, OptionClassBinding>();
+    /** Cache of the {@link Option} fields of each class */
+    private static final Map<Class<?>, Collection<Field>> sOptionFields =
+            new ConcurrentHashMap<Class<?>, Collection<Field>>();
+
     private final Collection<Object> mOptionSources;
     private final Map<String, OptionFieldsForName> mOptionMap;
 
+    /**
+     * A validated {@link Option} field, with its {@link Handler} resolved.
+     */
+    private static class OptionFieldBinding {
+        final Field mField;
+        final Option mOption;
+        final Handler mHandler;
+
+        OptionFieldBinding(Field field, Option option, Handler handler) {
+            mField = field;
+            mOption = option;
+            mHandler = handler;
+        }
+    }
+
+    /**
+     * The precomputed option bindings of a class, shared by all its instances.
+     */
+    private static class OptionClassBinding {
+        final String mClassName;
+        /**
+         * all the instance independent names of the class's options, including the names
+         * qualified with the class name and {@link OptionClass} alias
+         */
+        final Map<String, OptionFieldBinding> mNameMap =
+                new LinkedHashMap<String, OptionFieldBinding>();
+        /** the unqualified names, that can also be qualified with an instance index */
+        final Map<String, OptionFieldBinding> mUnqualifiedNameMap =
+                new LinkedHashMap<String, OptionFieldBinding>();
+
+        OptionClassBinding(Class<?> optionClass) {
+            mClassName = optionClass.getName();
+        }
+    }
+
     /**
      * Container for the list of option fields with given name.
      * <p/>
      * Used to enforce constraint that fields with same name can exist in different option sources,
      * but not the same option source
      */
-    private class OptionFieldsForName implements Iterable<Map.Entry<Object, Field>> {
-
-        private Map<Object, Field> mSourceFieldMap = new HashMap<Object, Field>();
-
-        void addField(String name, Object source, Field field) throws ConfigurationException {
-            if (size() > 0) {
-                Handler existingFieldHandler = getHandler(getFirstField().getGenericType());
-                Handler newFieldHandler = getHandler(field.getGenericType());
-                if (!existingFieldHandler.equals(newFieldHandler)) {
+    private class OptionFieldsForName implements Iterable<Map.Entry<Object, OptionFieldBinding>> {
+
+        // most options only have one source, so start small
+        private Map<Object, OptionFieldBinding> mSourceFieldMap =
+                new HashMap<Object, OptionFieldBinding>(2);
+        private OptionFieldBinding mFirstField = null;
+        private Object mFirstSource = null;
+
+        void addField(String name, Object source, OptionFieldBinding field)
+                throws ConfigurationException {
+            if (mFirstField == null) {
+                mFirstField = field;
+                mFirstSource = source;
+            } else if (mFirstField != field) {
+                Handler existingFieldHandler = mFirstField.mHandler;
+                if (!existingFieldHandler.equals(field.mHandler)) {
                     throw new ConfigurationException(String.format(
                             "@Option field with name '%s' in class '%s' is defined with a " +
                             "different type than same option in class '%s'",
@@ -176,23 +231,27 @@ public class OptionSetter {
         }
 
         public Field getFirstField() throws ConfigurationException {
-            if (size() <= 0) {
+            return getFirstBinding().mField;
+        }
+
+        public OptionFieldBinding getFirstBinding() throws ConfigurationException {
+            if (mFirstField == null) {
                 // should never happen
                 throw new ConfigurationException("no option fields found");
             }
-            return mSourceFieldMap.values().iterator().next();
+            return mFirstField;
         }
 
         public Object getFirstObject() throws ConfigurationException {
-            if (size() <= 0) {
+            if (mFirstSource == null) {
                 // should never happen
                 throw new ConfigurationException("no option fields found");
             }
-            return mSourceFieldMap.keySet().iterator().next();
+            return mFirstSource;
         }
 
         @Override
-        public Iterator<Map.Entry<Object, Field>> iterator() {
+        public Iterator<Map.Entry<Object, OptionFieldBinding>> iterator() {
             return mSourceFieldMap.entrySet().iterator();
         }
     }
@@ -242,11 +301,11 @@ public class OptionSetter {
      */
     public void setOptionValue(String optionName, String valueText) throws ConfigurationException {
         OptionFieldsForName optionFields = fieldsForArg(optionName);
-        for (Map.Entry<Object, Field> fieldEntry : optionFields) {
+        for (Map.Entry<Object, OptionFieldBinding> fieldEntry : optionFields) {
 
             Object optionSource = fieldEntry.getKey();
-            Field field = fieldEntry.getValue();
-            Handler handler = getHandler(field.getGenericType());
+            Field field = fieldEntry.getValue().mField;
+            Handler handler = fieldEntry.getValue().mHandler;
             Object value = handler.translate(valueText);
             if (value == null) {
                 final String type = field.getType().getSimpleName();
@@ -335,11 +394,11 @@ public class OptionSetter {
             throws ConfigurationException {
         // FIXME: try to unify code paths with setOptionValue
         OptionFieldsForName optionFields = fieldsForArg(optionName);
-        for (Map.Entry<Object, Field> fieldEntry : optionFields) {
+        for (Map.Entry<Object, OptionFieldBinding> fieldEntry : optionFields) {
 
             Object optionSource = fieldEntry.getKey();
-            Field field = fieldEntry.getValue();
-            Handler handler = getHandler(field.getGenericType());
+            Field field = fieldEntry.getValue().mField;
+            Handler handler = fieldEntry.getValue().mHandler;
             if (handler == null || !(handler instanceof MapHandler)) {
                 throw new ConfigurationException("Not a map!");
             }
@@ -435,14 +494,54 @@ public class OptionSetter {
     private void addOptionsForObject(Object optionSource,
             Map<String, OptionFieldsForName> optionMap, Integer index)
             throws ConfigurationException {
-        Collection<Field> optionFields = getOptionFieldsForClass(optionSource.getClass());
-        for (Field field : optionFields) {
+        OptionClassBinding classBinding = getClassBinding(optionSource.getClass());
+        for (Map.Entry<String, OptionFieldBinding> nameEntry : classBinding.mNameMap.entrySet()) {
+            addNameToMap(optionMap, optionSource, nameEntry.getKey(), nameEntry.getValue());
+        }
+        // Allows use of an enumerated namespace, to enable options to map to specific instances of
+        // a className, rather than just to all instances of that particular className.
+        // Example option name: com.fully.qualified.ClassName:2:option-name
+        final String indexPrefix = new StringBuilder(classBinding.mClassName)
+                .append(NAMESPACE_SEPARATOR).append(index).append(NAMESPACE_SEPARATOR)
+                .toString();
+        for (Map.Entry<String, OptionFieldBinding> nameEntry :
+                classBinding.mUnqualifiedNameMap.entrySet()) {
+            addNameToMap(optionMap, optionSource, indexPrefix + nameEntry.getKey(),
+                    nameEntry.getValue());
+        }
+    }
+
+    /**
+     * Get the {@link OptionClassBinding} for given class, creating it if necessary.
+     *
+     * @throws ConfigurationException if any {@link Option} in the class is incorrectly specified
+     */
+    private static OptionClassBinding getClassBinding(Class<?> optionClass)
+            throws ConfigurationException {
+        OptionClassBinding classBinding = sClassBindings.get(optionClass);
+        if (classBinding == null) {
+            // concurrent callers may both create the binding, which is harmless
+            classBinding = createClassBinding(optionClass);
+            sClassBindings.put(optionClass, classBinding);
+        }
+        return classBinding;
+    }
+
+    /**
+     * Find and validate all the option fields (both declared and inherited) of given class, and
+     * index them by name.
+     */
+    private static OptionClassBinding createClassBinding(Class<?> optionClass)
+            throws ConfigurationException {
+        final String className = optionClass.getName();
+        OptionClassBinding classBinding = new OptionClassBinding(optionClass);
+        for (Field field : getOptionFieldsForClass(optionClass)) {
             final Option option = field.getAnnotation(Option.class);
             if (option.name().indexOf(NAMESPACE_SEPARATOR) != -1) {
                 throw new ConfigurationException(String.format(
                         "Option name '%s' in class '%s' is invalid. " +
                         "Option names cannot contain the namespace separator character '%c'",
-                        option.name(), optionSource.getClass().getName(), NAMESPACE_SEPARATOR));
+                        option.name(), className, NAMESPACE_SEPARATOR));
             }
 
             // Make sure the source doesn't use GREATEST or LEAST for a non-Comparable field.
@@ -456,25 +555,57 @@ public class OptionSetter {
                         throw new ConfigurationException(String.format(
                                 "Option '%s' in class '%s' attempts to use updateRule %s with " +
                                 "non-Comparable type '%s'.", option.name(),
-                                optionSource.getClass().getName(), option.updateRule(),
+                                className, option.updateRule(),
                                 field.getGenericType()));
                     }
                 }
             }
 
-            addNameToMap(optionMap, optionSource, option.name(), field);
-            addNamespacedOptionToMap(optionMap, optionSource, option.name(), field, index);
+            final Handler handler = getHandler(type);
+            if (handler == null) {
+                throw new ConfigurationException(String.format(
+                        "Option name '%s' in class '%s' is invalid. Unsupported @Option field type '%s'",
+                        option.name(), className, field.getType()));
+            }
+            OptionFieldBinding fieldBinding = new OptionFieldBinding(field, option, handler);
+            addNameToBinding(classBinding, option.name(), fieldBinding);
             if (option.shortName() != Option.NO_SHORT_NAME) {
-                addNameToMap(optionMap, optionSource, String.valueOf(option.shortName()), field);
-                addNamespacedOptionToMap(optionMap, optionSource,
-                        String.valueOf(option.shortName()), field, index);
+                addNameToBinding(classBinding, String.valueOf(option.shortName()), fieldBinding);
             }
-            if (isBooleanField(field)) {
+            if (handler.isBoolean()) {
                 // add the corresponding "no" option to make boolean false
-                addNameToMap(optionMap, optionSource, BOOL_FALSE_PREFIX + option.name(), field);
-                addNamespacedOptionToMap(optionMap, optionSource, BOOL_FALSE_PREFIX + option.name(),
-                        field, index);
+                addNameToBinding(classBinding, BOOL_FALSE_PREFIX + option.name(), fieldBinding);
+            }
+        }
+
+        // Add the namespaced versions of the options
+        String alias = null;
+        if (optionClass.isAnnotationPresent(OptionClass.class)) {
+            alias = optionClass.getAnnotation(OptionClass.class).alias();
+        }
+        for (Map.Entry<String, OptionFieldBinding> nameEntry :
+                classBinding.mUnqualifiedNameMap.entrySet()) {
+            final String name = nameEntry.getKey();
+            final OptionFieldBinding fieldBinding = nameEntry.getValue();
+            classBinding.mNameMap.put(name, fieldBinding);
+            if (alias != null) {
+                classBinding.mNameMap.put(String.format("%s%c%s", alias, NAMESPACE_SEPARATOR,
+                        name), fieldBinding);
             }
+            // Allows use of a className-delimited namespace.
+            // Example option name: com.fully.qualified.ClassName:option-name
+            classBinding.mNameMap.put(String.format("%s%c%s", className, NAMESPACE_SEPARATOR,
+                    name), fieldBinding);
+        }
+        return classBinding;
+    }
+
+    private static void addNameToBinding(OptionClassBinding classBinding, String name,
+            OptionFieldBinding fieldBinding) throws ConfigurationException {
+        if (classBinding.mUnqualifiedNameMap.put(name, fieldBinding) != null) {
+            throw new ConfigurationException(String.format(
+                    "@Option field with name '%s' is defined more than once in class '%s'",
+                    name, classBinding.mClassName));
         }
     }
 
@@ -496,10 +627,10 @@ public class OptionSetter {
                 continue;
             }
 
-            for (Map.Entry<Object, Field> fieldEntry : optionFields) {
+            for (Map.Entry<Object, OptionFieldBinding> fieldEntry : optionFields) {
                 final Object obj = fieldEntry.getKey();
-                final Field field = fieldEntry.getValue();
-                final Option option = field.getAnnotation(Option.class);
+                final Field field = fieldEntry.getValue().mField;
+                final Option option = fieldEntry.getValue().mOption;
                 if (option == null) {
                     continue;
                 } else if (!option.mandatory()) {
@@ -539,11 +670,20 @@ public class OptionSetter {
      * Gets a list of all {@link Option} fields (both declared and inherited) for given class.
      *
      * @param optionClass the {@link Class} to search
-     * @return a {@link Collection} of fields annotated with {@link Option}
+     * @return an unmodifiable {@link Collection} of accessible fields annotated with
+     *         {@link Option}
      */
     static Collection<Field> getOptionFieldsForClass(final Class<?> optionClass) {
-        Collection<Field> fieldList = new ArrayList<Field>();
-        buildOptionFieldsForClass(optionClass, fieldList);
+        Collection<Field> fieldList = sOptionFields.get(optionClass);
+        if (fieldList == null) {
+            fieldList = new ArrayList<Field>();
+            buildOptionFieldsForClass(optionClass, fieldList);
+            for (Field field : fieldList) {
+                field.setAccessible(true);
+            }
+            fieldList = Collections.unmodifiableCollection(fieldList);
+            sOptionFields.put(optionClass, fieldList);
+        }
         return fieldList;
     }
 
@@ -636,8 +776,7 @@ public class OptionSetter {
     }
 
     public boolean isBooleanOption(String name) throws ConfigurationException {
-        Field field = fieldsForArg(name).getFirstField();
-        return isBooleanField(field);
+        return fieldsForArg(name).getFirstBinding().mHandler.isBoolean();
     }
 
     static boolean isBooleanField(Field field) throws ConfigurationException {
@@ -645,8 +784,7 @@ public class OptionSetter {
     }
 
     public boolean isMapOption(String name) throws ConfigurationException {
-        Field field = fieldsForArg(name).getFirstField();
-        return isMapField(field);
+        return fieldsForArg(name).getFirstBinding().mHandler.isMap();
     }
 
     static boolean isMapField(Field field) throws ConfigurationException {
@@ -654,7 +792,7 @@ public class OptionSetter {
     }
 
     private void addNameToMap(Map<String, OptionFieldsForName> optionMap, Object optionSource,
-            String name, Field field) throws ConfigurationException {
+            String name, OptionFieldBinding field) throws ConfigurationException {
         OptionFieldsForName fields = optionMap.get(name);
         if (fields == null) {
             fields = new OptionFieldsForName();
@@ -662,40 +800,6 @@ public class OptionSetter {
         }
 
         fields.addField(name, optionSource, field);
-        if (getHandler(field.getGenericType()) == null) {
-            throw new ConfigurationException(String.format(
-                    "Option name '%s' in class '%s' is invalid. Unsupported @Option field type '%s'",
-                    name, optionSource.getClass().getName(), field.getType()));
-        }
-    }
-
-    /**
-     * Adds the namespaced versions of the option to the map
-     *
-     * @see {@link #makeOptionMap()} for details on the enumeration scheme
-     */
-    private void addNamespacedOptionToMap(Map<String, OptionFieldsForName> optionMap,
-            Object optionSource, String name, Field field, int index)
-            throws ConfigurationException {
-        final String className = optionSource.getClass().getName();
-
-        if (optionSource.getClass().isAnnotationPresent(OptionClass.class)) {
-            final OptionClass classAnnotation = optionSource.getClass().getAnnotation(
-                    OptionClass.class);
-            addNameToMap(optionMap, optionSource, String.format("%s%c%s", classAnnotation.alias(),
-                    NAMESPACE_SEPARATOR, name), field);
-        }
-
-        // Allows use of a className-delimited namespace.
-        // Example option name: com.fully.qualified.ClassName:option-name
-        addNameToMap(optionMap, optionSource, String.format("%s%c%s",
-                className, NAMESPACE_SEPARATOR, name), field);
-
-        // Allows use of an enumerated namespace, to enable options to map to specific instances of
-        // a className, rather than just to all instances of that particular className.
-        // Example option name: com.fully.qualified.ClassName:2:option-name
-        addNameToMap(optionMap, optionSource, String.format("%s%c%d%c%s",
-                className, NAMESPACE_SEPARATOR, index, NAMESPACE_SEPARATOR, name), field);
     }
 
     private abstract static class Handler {
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.metrics.MetricsRegistry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Transfers large files to or from a device in chunks, verifying the checksum of each chunk and
+ * retrying only the chunks that fail, so a transient failure costs one chunk rather than the
+ * whole file.
+ * <p/>
+ * A file is transferred to a partial file next to its destination, which is renamed once
+ * complete. A transfer that fails is resumed by the next transfer of the same file from the last
+ * complete chunk of the partial file, once the checksum of that chunk has been verified against
+ * the source.
+ * <p/>
+ * Progress is reported to an optional {@link IProgressListener}, and the throughput of the last
+ * transfer is available from {@link #getMetrics()}. The bytes and time of completed transfers
+ * are also recorded per device in the {@link MetricsRegistry}.
+ */
+public class ChunkedFileTransfer {
+
+    /** the default chunk size in bytes */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    /** the default max number of attempts to transfer each chunk */
+    public static final int DEFAULT_MAX_CHUNK_ATTEMPTS = 3;
+    /** suffix of the file a transfer is written to until complete */
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final String BYTES_METRIC = "tf_chunked_transfer_bytes_total";
+    static final String BYTES_HELP = "Number of bytes transferred by completed chunked " +
+            "file transfers";
+    private static final String TIME_METRIC = "tf_chunked_transfer_seconds";
+    private static final String TIME_HELP = "Duration of completed chunked file transfers";
+
+    /**
+     * Receives the progress of a transfer.
+     */
+    public static interface IProgressListener {
+        /**
+         * Reports the progress of a transfer, after each chunk.
+         *
+         * @param bytesTransferred the number of bytes of the file transferred so far, including
+         *            bytes transferred by a previous transfer that was resumed
+         * @param totalBytes the size of the file in bytes
+         * @param bytesPerSecond the throughput of this transfer so far
+         */
+        public void transferProgress(long bytesTransferred, long totalBytes,
+                double bytesPerSecond);
+    }
+
+    private final IFileChunkTransport mTransport;
+    private final String mSerial;
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private int mMaxChunkAttempts = DEFAULT_MAX_CHUNK_ATTEMPTS;
+    private IProgressListener mProgressListener = null;
+
+    /** statistics of the current or last transfer */
+    private long mBytesTransferred = 0;
+    private long mResumedBytes = 0;
+    private long mElapsedMs = 0;
+    private int mChunkCount = 0;
+    private int mChunkRetries = 0;
+
+    /**
+     * Creates a {@link ChunkedFileTransfer} for a device.
+     *
+     * @param device the {@link ITestDevice} to transfer files to or from
+     */
+    public ChunkedFileTransfer(ITestDevice device) {
+        this(new DeviceFileChunkTransport(device), device.getSerialNumber());
+    }
+
+    /**
+     * Creates a {@link ChunkedFileTransfer} with the given transport. Exposed for unit testing.
+     */
+    ChunkedFileTransfer(IFileChunkTransport transport, String serial) {
+        mTransport = transport;
+        mSerial = serial;
+    }
+
+    /**
+     * Set the chunk size in bytes. A transfer can only be resumed with the same chunk size.
+     */
+    public void setChunkSize(int chunkSize) {
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Set the max number of attempts to transfer each chunk before failing the transfer.
+     */
+    public void setMaxChunkAttempts(int maxChunkAttempts) {
+        mMaxChunkAttempts = maxChunkAttempts;
+    }
+
+    /**
+     * Set the {@link IProgressListener} to report progress to.
+     */
+    public void setProgressListener(IProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Retrieves a file from the device.
+     *
+     * @param remoteFilePath the absolute path of the file on the device
+     * @param localFile the local file to store the contents in. Replaced if it exists.
+     * @return <code>true</code> if the file was retrieved, <code>false</code> otherwise. A
+     *         failed transfer is resumed by the next call for the same file.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered
+     */
+    public boolean pullFile(String remoteFilePath, File localFile)
+            throws DeviceNotAvailableException {
+        resetStatistics();
+        File partialFile = new File(localFile.getPath() + PARTIAL_SUFFIX);
+        RandomAccessFile output = null;
+        long startTime = System.currentTimeMillis();
+        try {
+            long size = mTransport.getRemoteFileSize(remoteFilePath);
+            if (size < 0) {
+                CLog.w("Cannot pull %s from %s: file does not exist", remoteFilePath, mSerial);
+                return false;
+            }
+            long offset = 0;
+            if (partialFile.exists()) {
+                offset = getResumeOffset(partialFile, partialFile.length(), size, remoteFilePath);
+            }
+            mResumedBytes = offset;
+            output = new RandomAccessFile(partialFile, "rw");
+            output.setLength(offset);
+            output.seek(offset);
+            while (offset < size) {
+                int length = (int)Math.min(mChunkSize, size - offset);
+                byte[] data = pullChunk(remoteFilePath, offset / mChunkSize, length);
+                if (data == null) {
+                    CLog.w("Failed to pull %s from %s at offset %d, %d bytes pulled so far",
+                            remoteFilePath, mSerial, offset, offset);
+                    return false;
+                }
+                output.write(data);
+                offset += length;
+                reportProgress(offset, size, startTime);
+            }
+            output.close();
+            output = null;
+            FileUtil.deleteFile(localFile);
+            if (!partialFile.renameTo(localFile)) {
+                CLog.e("Failed to rename %s to %s", partialFile.getAbsolutePath(),
+                        localFile.getAbsolutePath());
+                return false;
+            }
+            logTransfer("Pulled", "pull", remoteFilePath, startTime);
+            return true;
+        } catch (IOException e) {
+            CLog.w("Failed to pull %s from %s: %s", remoteFilePath, mSerial, e.getMessage());
+            return false;
+        } finally {
+            closeFile(output);
+            mElapsedMs = System.currentTimeMillis() - startTime;
+        }
+    }
+
+    /**
+     * Pushes a file to the device.
+     *
+     * @param localFile the local file to push
+     * @param remoteFilePath the absolute path of the file on the device. Replaced if it exists.
+     * @return <code>true</code> if the file was pushed, <code>false</code> otherwise. A failed
+     *         transfer is resumed by the next call for the same file.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered
+     */
+    public boolean pushFile(File localFile, String remoteFilePath)
+            throws DeviceNotAvailableException {
+        resetStatistics();
+        String partialPath = remoteFilePath + PARTIAL_SUFFIX;
+        RandomAccessFile input = null;
+        long startTime = System.currentTimeMillis();
+        try {
+            long size = localFile.length();
+            input = new RandomAccessFile(localFile, "r");
+            long offset = 0;
+            long partialSize = mTransport.getRemoteFileSize(partialPath);
+            if (partialSize > 0) {
+                offset = getResumeOffset(localFile, partialSize, size, partialPath);
+            }
+            mResumedBytes = offset;
+            // always write the first chunk, to create or truncate the partial file
+            do {
+                int length = (int)Math.min(mChunkSize, size - offset);
+                byte[] data = new byte[length];
+                input.seek(offset);
+                input.readFully(data);
+                if (!pushChunk(partialPath, offset / mChunkSize, data)) {
+                    CLog.w("Failed to push %s to %s on %s at offset %d",
+                            localFile.getAbsolutePath(), remoteFilePath, mSerial, offset);
+                    return false;
+                }
+                offset += length;
+                reportProgress(offset, size, startTime);
+            } while (offset < size);
+            mTransport.renameRemoteFile(partialPath, remoteFilePath);
+            logTransfer("Pushed", "push", remoteFilePath, startTime);
+            return true;
+        } catch (IOException e) {
+            CLog.w("Failed to push %s to %s on %s: %s", localFile.getAbsolutePath(),
+                    remoteFilePath, mSerial, e.getMessage());
+            return false;
+        } finally {
+            closeFile(input);
+            mElapsedMs = System.currentTimeMillis() - startTime;
+        }
+    }
+
+    /**
+     * Get the statistics of the last transfer.
+     *
+     * @return a {@link Map} of the bytes transferred, bytes resumed from a previous transfer,
+     *         elapsed time, throughput in bytes per second, number of chunks transferred, and
+     *         number of chunk attempts that failed
+     */
+    public Map<String, String> getMetrics() {
+        Map<String, String> metrics = new LinkedHashMap<String, String>();
+        metrics.put("bytes", Long.toString(mBytesTransferred));
+        metrics.put("resumed_bytes", Long.toString(mResumedBytes));
+        metrics.put("elapsed_ms", Long.toString(mElapsedMs));
+        metrics.put("bytes_per_sec", String.format("%.0f",
+                getBytesPerSecond(mBytesTransferred, mElapsedMs)));
+        metrics.put("chunks", Integer.toString(mChunkCount));
+        metrics.put("chunk_retries", Integer.toString(mChunkRetries));
+        return metrics;
+    }
+
+    /**
+     * Pull a chunk, verifying its checksum and retrying on failure.
+     *
+     * @return the chunk data, or <code>null</code> if all attempts failed
+     */
+    private byte[] pullChunk(String remoteFilePath, long chunkIndex, int length)
+            throws DeviceNotAvailableException {
+        for (int attempt = 1; attempt <= mMaxChunkAttempts; attempt++) {
+            try {
+                ByteArrayOutputStream data = new ByteArrayOutputStream(length);
+                String checksum = mTransport.pullChunk(remoteFilePath, mChunkSize, chunkIndex,
+                        data);
+                byte[] bytes = data.toByteArray();
+                if (bytes.length != length) {
+                    CLog.w("Pulled %d bytes of chunk %d of %s from %s, expected %d",
+                            bytes.length, chunkIndex, remoteFilePath, mSerial, length);
+                } else if (!checksum.equals(getChecksum(bytes, 0, length))) {
+                    CLog.w("Checksum mismatch for chunk %d of %s from %s", chunkIndex,
+                            remoteFilePath, mSerial);
+                } else {
+                    mChunkCount++;
+                    mBytesTransferred += length;
+                    return bytes;
+                }
+            } catch (IOException e) {
+                CLog.w("Failed to pull chunk %d of %s from %s: %s", chunkIndex, remoteFilePath,
+                        mSerial, e.getMessage());
+            }
+            mChunkRetries++;
+        }
+        return null;
+    }
+
+    /**
+     * Push a chunk, verifying its checksum and retrying on failure.
+     *
+     * @return <code>true</code> if the chunk was pushed
+     * @throws IOException if the checksum of the chunk could not be calculated
+     */
+    private boolean pushChunk(String remoteFilePath, long chunkIndex, byte[] data)
+            throws IOException, DeviceNotAvailableException {
+        String expectedChecksum = getChecksum(data, 0, data.length);
+        for (int attempt = 1; attempt <= mMaxChunkAttempts; attempt++) {
+            try {
+                String checksum = mTransport.pushChunk(remoteFilePath, mChunkSize, chunkIndex,
+                        data);
+                if (checksum.equals(expectedChecksum)) {
+                    mChunkCount++;
+                    mBytesTransferred += data.length;
+                    return true;
+                }
+                CLog.w("Checksum mismatch for chunk %d of %s on %s", chunkIndex, remoteFilePath,
+                        mSerial);
+            } catch (IOException e) {
+                CLog.w("Failed to push chunk %d of %s to %s: %s", chunkIndex, remoteFilePath,
+                        mSerial, e.getMessage());
+            }
+            mChunkRetries++;
+        }
+        return false;
+    }
+
+    /**
+     * Get the offset to resume a transfer from: the end of the last complete chunk of the
+     * partial destination, if that chunk matches the source.
+     *
+     * @param localFile the local source or partial destination
+     * @param partialSize the size of the partial destination
+     * @param size the size of the source
+     * @param remoteFilePath the remote source or partial destination
+     * @return the offset to resume from, or 0 to start again
+     */
+    private long getResumeOffset(File localFile, long partialSize, long size,
+            String remoteFilePath) throws IOException, DeviceNotAvailableException {
+        long chunkCount = Math.min(partialSize, size) / mChunkSize;
+        if (chunkCount == 0) {
+            return 0;
+        }
+        long chunkIndex = chunkCount - 1;
+        byte[] data = new byte[mChunkSize];
+        RandomAccessFile file = new RandomAccessFile(localFile, "r");
+        try {
+            file.seek(chunkIndex * mChunkSize);
+            file.readFully(data);
+        } finally {
+            file.close();
+        }
+        if (!getChecksum(data, 0, data.length).equals(
+                mTransport.getRemoteChecksum(remoteFilePath, mChunkSize, chunkIndex))) {
+            CLog.i("Partial transfer of %s on %s does not match, starting again",
+                    remoteFilePath, mSerial);
+            return 0;
+        }
+        CLog.i("Resuming transfer of %s on %s at offset %d", remoteFilePath, mSerial,
+                chunkCount * mChunkSize);
+        return chunkCount * mChunkSize;
+    }
+
+    private void reportProgress(long offset, long size, long startTime) {
+        if (mProgressListener != null) {
+            mProgressListener.transferProgress(offset, size, getBytesPerSecond(mBytesTransferred,
+                    System.currentTimeMillis() - startTime));
+        }
+    }
+
+    private void logTransfer(String action, String direction, String remoteFilePath,
+            long startTime) {
+        long elapsedMs = System.currentTimeMillis() - startTime;
+        MetricsRegistry registry = MetricsRegistry.getRegistry();
+        registry.getCounter(BYTES_METRIC, BYTES_HELP, "device", mSerial, "direction", direction)
+                .increment(mBytesTransferred);
+        registry.getHistogram(TIME_METRIC, TIME_HELP, "device", mSerial, "direction", direction)
+                .record(elapsedMs);
+        CLog.i("%s %s on %s: %d bytes in %d ms (%.0f bytes/s), %d bytes resumed, %d chunk " +
+                "retries", action, remoteFilePath, mSerial, mBytesTransferred, elapsedMs,
+                getBytesPerSecond(mBytesTransferred, elapsedMs), mResumedBytes, mChunkRetries);
+    }
+
+    private void resetStatistics() {
+        mBytesTransferred = 0;
+        mResumedBytes = 0;
+        mElapsedMs = 0;
+        mChunkCount = 0;
+        mChunkRetries = 0;
+    }
+
+    private static double getBytesPerSecond(long bytes, long elapsedMs) {
+        return bytes * 1000.0 / Math.max(1, elapsedMs);
+    }
+
+    private static String getChecksum(byte[] data, int offset, int length) throws IOException {
+        return StreamUtil.calculateMd5(new ByteArrayInputStream(data, offset, length));
+    }
+
+    private static void closeFile(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
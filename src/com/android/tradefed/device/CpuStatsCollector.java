@@ -17,6 +17,7 @@
 package com.android.tradefed.device;
 
 import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.device.ITestDevice.CommandPriority;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.SimpleStats;
 
@@ -43,6 +44,9 @@ import java.util.Map;
  * </p><p>
  * The {@code cpustats} command was added in the Jellybean release, so this collector should only be
  * used for new tests.
+ * </p><p>
+ * Every measurement is kept until the collector is discarded. For long running measurements, use
+ * a {@link DeviceTelemetrySampler} with a {@link DeviceTelemetrySampler.CpuStatsProbe} instead.
  * </p>
  * @see TopHelper
  */
@@ -245,18 +249,7 @@ public class CpuStatsCollector extends Thread {
                 String[] args = line.trim().split(",");
                 if (args.length >= 8) {
                     try {
-                        CpuStats s = new CpuStats();
-                        s.mTimeStats.put(TimeCategory.USER, Integer.parseInt(args[1]));
-                        s.mTimeStats.put(TimeCategory.NICE, Integer.parseInt(args[2]));
-                        s.mTimeStats.put(TimeCategory.SYS, Integer.parseInt(args[3]));
-                        s.mTimeStats.put(TimeCategory.IDLE, Integer.parseInt(args[4]));
-                        s.mTimeStats.put(TimeCategory.IOW, Integer.parseInt(args[5]));
-                        s.mTimeStats.put(TimeCategory.IRQ, Integer.parseInt(args[6]));
-                        s.mTimeStats.put(TimeCategory.SIRQ, Integer.parseInt(args[7]));
-                        for (int i = 0; i + 8 < args.length; i += 2) {
-                            s.mFreqStats.put(Integer.parseInt(args[8 + i]),
-                                    Integer.parseInt(args[9 + i]));
-                        }
+                        CpuStats s = parseCpuStats(args);
                         synchronized(this) {
                             if (!mCpuStats.containsKey(args[0])) {
                                 mCpuStats.put(args[0], new LinkedList<CpuStats>());
@@ -315,6 +308,29 @@ public class CpuStatsCollector extends Thread {
         }
     }
 
+    /**
+     * Parse the fields of a line of {@code cpustats} output, after the label.
+     *
+     * @param args the comma separated fields of the line, starting with the label
+     * @return the {@link CpuStats}
+     * @throws NumberFormatException if a field is not a number
+     * @throws IndexOutOfBoundsException if there are too few fields
+     */
+    static CpuStats parseCpuStats(String[] args) {
+        CpuStats s = new CpuStats();
+        s.mTimeStats.put(TimeCategory.USER, Integer.parseInt(args[1]));
+        s.mTimeStats.put(TimeCategory.NICE, Integer.parseInt(args[2]));
+        s.mTimeStats.put(TimeCategory.SYS, Integer.parseInt(args[3]));
+        s.mTimeStats.put(TimeCategory.IDLE, Integer.parseInt(args[4]));
+        s.mTimeStats.put(TimeCategory.IOW, Integer.parseInt(args[5]));
+        s.mTimeStats.put(TimeCategory.IRQ, Integer.parseInt(args[6]));
+        s.mTimeStats.put(TimeCategory.SIRQ, Integer.parseInt(args[7]));
+        for (int i = 0; i + 8 < args.length; i += 2) {
+            s.mFreqStats.put(Integer.parseInt(args[8 + i]), Integer.parseInt(args[9 + i]));
+        }
+        return s;
+    }
+
     private CpuStatsReceiver mReceiver = new CpuStatsReceiver();
 
     /**
@@ -368,7 +384,8 @@ public class CpuStatsCollector extends Thread {
     @Override
     public void run() {
         try {
-            mTestDevice.executeShellCommand(String.format(CPU_STATS_CMD, mDelay), mReceiver);
+            mTestDevice.executeShellCommand(String.format(CPU_STATS_CMD, mDelay), mReceiver,
+                    CommandPriority.STREAMING);
         } catch (DeviceNotAvailableException e) {
             CLog.e("Device %s not available: %s", mTestDevice.getSerialNumber(),
                     e.getMessage());
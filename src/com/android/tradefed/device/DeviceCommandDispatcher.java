@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.device.ITestDevice.CommandPriority;
+import com.android.tradefed.log.LogUtil.CLog;
+
+/**
+ * Coordinates the adb commands performed on a single device from multiple threads.
+ * <p/>
+ * Limits the number of concurrent adb sessions to the device, granting sessions to
+ * {@link CommandPriority#FOREGROUND} commands before {@link CommandPriority#BACKGROUND} ones, and
+ * capping the number of sessions background commands may use. Long-lived
+ * {@link CommandPriority#STREAMING} commands are not counted against the background cap. Also
+ * ensures that when several threads fail to communicate with the device at once, only one of
+ * them performs recovery while the others wait for its outcome.
+ */
+class DeviceCommandDispatcher {
+
+    /**
+     * A device recovery operation.
+     */
+    static interface RecoveryAction {
+        public void recover() throws DeviceNotAvailableException;
+    }
+
+    /** per-thread record of a held session, so nested commands don't take an extra session */
+    private static class SessionHold {
+        int mDepth = 0;
+        CommandPriority mPriority = null;
+    }
+
+    private int mMaxSessions;
+    private int mMaxBackgroundSessions;
+    private int mActiveSessions = 0;
+    private int mActiveBackgroundSessions = 0;
+    private final int[] mWaitingCount = new int[CommandPriority.values().length];
+
+    private final ThreadLocal<SessionHold> mSessionHold = new ThreadLocal<SessionHold>() {
+        @Override
+        protected SessionHold initialValue() {
+            return new SessionHold();
+        }
+    };
+
+    /** the thread currently recovering the device, or <code>null</code> */
+    private Thread mRecoveryThread = null;
+    /** incremented every time a recovery attempt completes */
+    private long mRecoveryGeneration = 0;
+    /** the outcome of the last recovery attempt, <code>null</code> if it succeeded */
+    private DeviceNotAvailableException mRecoveryFailure = null;
+
+    /**
+     * Creates a {@link DeviceCommandDispatcher}.
+     *
+     * @param maxSessions the maximum number of concurrent adb sessions
+     * @param maxBackgroundSessions the maximum number of concurrent adb sessions used by
+     *            {@link CommandPriority#BACKGROUND} commands
+     */
+    DeviceCommandDispatcher(int maxSessions, int maxBackgroundSessions) {
+        setSessionLimits(maxSessions, maxBackgroundSessions);
+    }
+
+    /**
+     * Set the concurrent adb session limits.
+     *
+     * @param maxSessions the maximum number of concurrent adb sessions
+     * @param maxBackgroundSessions the maximum number of concurrent adb sessions used by
+     *            {@link CommandPriority#BACKGROUND} commands
+     */
+    synchronized void setSessionLimits(int maxSessions, int maxBackgroundSessions) {
+        mMaxSessions = Math.max(1, maxSessions);
+        mMaxBackgroundSessions = Math.max(1, Math.min(maxBackgroundSessions, mMaxSessions));
+        notifyAll();
+    }
+
+    /**
+     * Acquire an adb session for the current thread, blocking until one is available.
+     * <p/>
+     * Sessions are reentrant: a thread that already holds a session does not wait. Every call
+     * must be matched by a call to {@link #releaseSession()}.
+     *
+     * @param priority the {@link CommandPriority} of the command that needs the session
+     */
+    void acquireSession(CommandPriority priority) {
+        SessionHold hold = mSessionHold.get();
+        if (hold.mDepth > 0) {
+            hold.mDepth++;
+            return;
+        }
+        boolean interrupted = false;
+        synchronized (this) {
+            mWaitingCount[priority.ordinal()]++;
+            try {
+                while (!canAcquireSession(priority)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // commands are not interruptible, so just preserve the interrupt
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                mWaitingCount[priority.ordinal()]--;
+            }
+            mActiveSessions++;
+            if (priority == CommandPriority.BACKGROUND) {
+                mActiveBackgroundSessions++;
+            }
+        }
+        hold.mDepth = 1;
+        hold.mPriority = priority;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Release the adb session held by the current thread.
+     */
+    void releaseSession() {
+        SessionHold hold = mSessionHold.get();
+        if (hold.mDepth <= 0) {
+            CLog.w("Attempted to release an adb session that was not acquired");
+            return;
+        }
+        hold.mDepth--;
+        if (hold.mDepth > 0) {
+            return;
+        }
+        synchronized (this) {
+            mActiveSessions--;
+            if (hold.mPriority == CommandPriority.BACKGROUND) {
+                mActiveBackgroundSessions--;
+            }
+            notifyAll();
+        }
+        hold.mPriority = null;
+    }
+
+    /**
+     * Determine if a command of given priority can be granted a session now. Must be called with
+     * the lock held.
+     */
+    private boolean canAcquireSession(CommandPriority priority) {
+        if (mRecoveryThread == Thread.currentThread()) {
+            // recovery has exclusive use of the device, and must not wait on commands it blocks
+            return true;
+        }
+        if (mRecoveryThread != null || mActiveSessions >= mMaxSessions) {
+            return false;
+        }
+        if (priority == CommandPriority.BACKGROUND &&
+                mActiveBackgroundSessions >= mMaxBackgroundSessions) {
+            return false;
+        }
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (mWaitingCount[i] > 0) {
+                // leave the session for the higher priority command
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the current recovery generation. Callers should record this before attempting a
+     * command, and pass it to {@link #recover(long, RecoveryAction)} if the command fails.
+     */
+    synchronized long getRecoveryGeneration() {
+        return mRecoveryGeneration;
+    }
+
+    /**
+     * Recover the device, unless it has already been recovered since given generation.
+     * <p/>
+     * If another thread is already recovering the device, waits for it to complete, and then
+     * shares its outcome instead of performing another recovery.
+     *
+     * @param generation the recovery generation recorded before the failed command was attempted
+     * @param recovery the {@link RecoveryAction} to perform
+     * @throws DeviceNotAvailableException if recovery failed
+     */
+    void recover(long generation, RecoveryAction recovery) throws DeviceNotAvailableException {
+        synchronized (this) {
+            if (mRecoveryThread != Thread.currentThread()) {
+                boolean interrupted = false;
+                while (mRecoveryThread != null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (mRecoveryGeneration != generation) {
+                    // device was recovered by another thread after the command was attempted
+                    if (mRecoveryFailure != null) {
+                        throw new DeviceNotAvailableException(mRecoveryFailure.getMessage(),
+                                mRecoveryFailure);
+                    }
+                    return;
+                }
+                mRecoveryThread = Thread.currentThread();
+            } else {
+                // nested recovery attempt from within recovery itself
+                recovery.recover();
+                return;
+            }
+        }
+        DeviceNotAvailableException failure = null;
+        try {
+            recovery.recover();
+        } catch (DeviceNotAvailableException e) {
+            failure = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                mRecoveryThread = null;
+                mRecoveryGeneration++;
+                mRecoveryFailure = failure;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the number of sessions currently in use. Exposed for unit testing.
+     */
+    synchronized int getActiveSessions() {
+        return mActiveSessions;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link IFileChunkTransport} for a {@link ITestDevice}.
+ * <p/>
+ * Each chunk is copied to or from a temporary file on the device with dd, checksummed with md5,
+ * and transferred with the sync service. A pushed chunk is read back from the destination file
+ * before it is checksummed, so a failed write is detected. The device must have the dd and md5
+ * commands.
+ */
+public class DeviceFileChunkTransport implements IFileChunkTransport {
+
+    private static final Pattern MD5_PATTERN = Pattern.compile("^([0-9a-f]{32})\\s",
+            Pattern.MULTILINE);
+    /** pattern for the date in ls -l output, which follows the file size */
+    private static final Pattern DATE_PATTERN = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+
+    private final ITestDevice mDevice;
+    private final String mChunkPath;
+    /** {@link #mChunkPath} quoted for shell commands */
+    private final String mShellChunkPath;
+
+    /**
+     * Creates a {@link DeviceFileChunkTransport}.
+     *
+     * @param device the {@link ITestDevice} to transfer files to or from
+     */
+    public DeviceFileChunkTransport(ITestDevice device) {
+        mDevice = device;
+        // unique per transport, so concurrent transfers to one device don't share a chunk file
+        mChunkPath = String.format("/data/local/tmp/tradefed-chunk-%s", UUID.randomUUID());
+        mShellChunkPath = quote(mChunkPath);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRemoteFileSize(String remoteFilePath) throws IOException,
+            DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand(String.format("ls -l %s",
+                quote(remoteFilePath)));
+        return parseFileSize(output);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getRemoteChecksum(String remoteFilePath, int chunkSize, long chunkIndex)
+            throws IOException, DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand(String.format(
+                "dd if=%2$s of=%1$s bs=%3$d skip=%4$d count=1 && md5 %1$s; rm %1$s",
+                mShellChunkPath, quote(remoteFilePath), chunkSize, chunkIndex));
+        return parseChecksum(output);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String pullChunk(String remoteFilePath, int chunkSize, long chunkIndex,
+            OutputStream outputStream) throws IOException, DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand(String.format(
+                "dd if=%2$s of=%1$s bs=%3$d skip=%4$d count=1 && md5 %1$s",
+                mShellChunkPath, quote(remoteFilePath), chunkSize, chunkIndex));
+        File localChunk = null;
+        InputStream input = null;
+        try {
+            String checksum = parseChecksum(output);
+            localChunk = FileUtil.createTempFile("chunk", ".tmp");
+            if (!mDevice.pullFile(mChunkPath, localChunk)) {
+                throw new IOException(String.format("Failed to pull chunk %d of %s", chunkIndex,
+                        remoteFilePath));
+            }
+            input = new FileInputStream(localChunk);
+            StreamUtil.copyStreams(input, outputStream);
+            return checksum;
+        } finally {
+            StreamUtil.closeStream(input);
+            FileUtil.deleteFile(localChunk);
+            mDevice.executeShellCommand(String.format("rm %s", mShellChunkPath));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String pushChunk(String remoteFilePath, int chunkSize, long chunkIndex, byte[] data)
+            throws IOException, DeviceNotAvailableException {
+        File localChunk = FileUtil.createTempFile("chunk", ".tmp");
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(localChunk);
+            output.write(data);
+            output.close();
+            output = null;
+            if (!mDevice.pushFile(localChunk, mChunkPath)) {
+                throw new IOException(String.format("Failed to push chunk %d of %s", chunkIndex,
+                        remoteFilePath));
+            }
+        } finally {
+            StreamUtil.closeStream(output);
+            FileUtil.deleteFile(localChunk);
+        }
+        // checksum the chunk as read back from the destination, not the pushed chunk file
+        String result = mDevice.executeShellCommand(String.format(
+                "dd if=%1$s of=%2$s bs=%3$d seek=%4$d && " +
+                "dd if=%2$s of=%1$s bs=%3$d skip=%4$d count=1 && md5 %1$s; rm %1$s",
+                mShellChunkPath, quote(remoteFilePath), chunkSize, chunkIndex));
+        return parseChecksum(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void renameRemoteFile(String fromPath, String toPath) throws IOException,
+            DeviceNotAvailableException {
+        mDevice.executeShellCommand(String.format("mv %s %s", quote(fromPath),
+                quote(toPath)));
+        if (getRemoteFileSize(fromPath) >= 0 || getRemoteFileSize(toPath) < 0) {
+            throw new IOException(String.format("Failed to rename %s to %s", fromPath, toPath));
+        }
+    }
+
+    /**
+     * Quote a path for use in a device shell command. Exposed for unit testing.
+     */
+    static String quote(String path) {
+        return String.format("'%s'", path.replace("'", "'\\''"));
+    }
+
+    /**
+     * Parse the size of a file from ls -l output. Exposed for unit testing.
+     *
+     * @return the size, or -1 if the file does not exist
+     * @throws IOException if the output could not be parsed
+     */
+    static long parseFileSize(String output) throws IOException {
+        String[] fields = output.trim().split("\\s+");
+        for (int i = 1; i < fields.length; i++) {
+            if (DATE_PATTERN.matcher(fields[i]).matches()) {
+                try {
+                    return Long.parseLong(fields[i - 1]);
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+        if (output.contains("No such file")) {
+            return -1;
+        }
+        throw new IOException(String.format("Failed to parse file size from '%s'",
+                output.trim()));
+    }
+
+    /**
+     * Parse a checksum from md5 output. Exposed for unit testing.
+     *
+     * @throws IOException if the output has no checksum
+     */
+    static String parseChecksum(String output) throws IOException {
+        Matcher matcher = MD5_PATTERN.matcher(output);
+        if (!matcher.find()) {
+            throw new IOException(String.format("Failed to calculate checksum: '%s'",
+                    output.trim()));
+        }
+        return matcher.group(1);
+    }
+}
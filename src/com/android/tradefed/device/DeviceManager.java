@@ -31,6 +31,10 @@ import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.TableFormatter;
+import com.android.tradefed.util.metrics.Counter;
+import com.android.tradefed.util.metrics.Histogram;
+import com.android.tradefed.util.metrics.IGauge;
+import com.android.tradefed.util.metrics.MetricsRegistry;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -64,6 +68,18 @@ public class DeviceManager implements IDeviceManager {
     /** a {@link DeviceSelectionOptions} that matches any device */
     private static final IDeviceSelection ANY_DEVICE_OPTIONS = new DeviceSelectionOptions();
 
+    private static final MetricsRegistry sMetrics = MetricsRegistry.getRegistry();
+    private static final String ALLOCATIONS_METRIC = "tf_device_allocations_total";
+    private static final String ALLOCATIONS_HELP =
+            "Number of device allocation requests, excluding failed polls that did not wait";
+    private static final Counter sAllocatedCount = sMetrics.getCounter(ALLOCATIONS_METRIC,
+            ALLOCATIONS_HELP, "result", "allocated");
+    private static final Counter sNoDeviceCount = sMetrics.getCounter(ALLOCATIONS_METRIC,
+            ALLOCATIONS_HELP, "result", "no_device");
+    private static final Histogram sAllocationWaitTime = sMetrics.getHistogram(
+            "tf_device_allocation_wait_seconds",
+            "Time spent waiting for an available device, for successful allocations");
+
     private static DeviceManager sInstance;
 
     private boolean mIsInitialized = false;
@@ -114,6 +130,7 @@ public class DeviceManager implements IDeviceManager {
         mAllocatedDeviceMap = new Hashtable<String, IManagedTestDevice>();
         mAvailableDeviceQueue = new ConditionPriorityBlockingQueue<IDevice>();
         mCheckDeviceMap = new Hashtable<String, IDeviceStateMonitor>();
+        registerGauges();
 
         if (isFastbootAvailable()) {
             mFastbootListeners = Collections.synchronizedSet(new HashSet<IFastbootListener>());
@@ -371,12 +388,15 @@ public class DeviceManager implements IDeviceManager {
      * @return the {@link IDevice} or <code>null</code> if interrupted
      */
     private IDevice takeAvailableDevice() {
+        long startTime = System.currentTimeMillis();
+        IDevice device = null;
         try {
-            return mAvailableDeviceQueue.take(ANY_DEVICE_OPTIONS);
+            device = mAvailableDeviceQueue.take(ANY_DEVICE_OPTIONS);
         } catch (InterruptedException e) {
             CLog.w("interrupted while taking device");
-            return null;
         }
+        recordAllocation(device, startTime, true);
+        return device;
     }
 
     /**
@@ -415,14 +435,55 @@ public class DeviceManager implements IDeviceManager {
      * @return the {@link IDevice} or <code>null</code> if interrupted
      */
     private IDevice pollAvailableDevice(long timeout, IDeviceSelection options) {
+        long startTime = System.currentTimeMillis();
+        IDevice device = null;
         try {
-            return mAvailableDeviceQueue.poll(timeout, TimeUnit.MILLISECONDS, options);
+            device = mAvailableDeviceQueue.poll(timeout, TimeUnit.MILLISECONDS, options);
         } catch (InterruptedException e) {
             CLog.w("interrupted while polling for device");
-            return null;
+        }
+        // the scheduler polls without waiting whenever it looks for a device, so only count
+        // requests that waited as failed allocations
+        recordAllocation(device, startTime, timeout > 0);
+        return device;
+    }
+
+    /**
+     * Record the outcome of an allocation request.
+     *
+     * @param device the allocated {@link IDevice}, or <code>null</code> if none was allocated
+     * @param startTime the time the request started, in ms
+     * @param countFailure whether to count the request if no device was allocated
+     */
+    private void recordAllocation(IDevice device, long startTime, boolean countFailure) {
+        if (device != null) {
+            sAllocatedCount.increment();
+            sAllocationWaitTime.recordSince(startTime);
+        } else if (countFailure) {
+            sNoDeviceCount.increment();
         }
     }
 
+    /**
+     * Register gauges for the number of available and allocated devices.
+     */
+    private void registerGauges() {
+        sMetrics.registerGauge("tf_devices_available",
+                "Number of devices available for allocation", new IGauge() {
+                    @Override
+                    public long getValue() {
+                        return mAvailableDeviceQueue.size();
+                    }
+                });
+        sMetrics.registerGauge("tf_devices_allocated", "Number of allocated devices",
+                new IGauge() {
+                    @Override
+                    public long getValue() {
+                        return mAllocatedDeviceMap.size();
+                    }
+                });
+    }
+
     private ITestDevice createAllocatedDevice(IDevice allocatedDevice) {
         IManagedTestDevice testDevice = createTestDevice(allocatedDevice,
                 createStateMonitor(allocatedDevice));
@@ -490,7 +551,11 @@ public class DeviceManager implements IDeviceManager {
         if (mAllocatedDeviceMap.remove(device.getSerialNumber()) == null) {
             CLog.e("freeDevice called with unallocated device %s",
                     device.getSerialNumber());
-        } else if (deviceState == FreeDeviceState.UNRESPONSIVE) {
+            return;
+        }
+        sMetrics.getCounter("tf_device_frees_total", "Number of devices freed, by state",
+                "state", deviceState.name()).increment();
+        if (deviceState == FreeDeviceState.UNRESPONSIVE) {
             // TODO: add class flag to control if unresponsive device's are returned to pool
             // TODO: also consider tracking unresponsive events received per device - so a
             // device that is continually unresponsive could be removed from available queue
@@ -25,11 +25,15 @@ import com.android.tradefed.device.IDeviceManager.IFastbootListener;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.metrics.Histogram;
+import com.android.tradefed.util.metrics.MetricsRegistry;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Helper class for monitoring the state of a {@link IDevice}.
@@ -42,6 +46,11 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
 
     /** the time in ms to wait between 'poll for responsiveness' attempts */
     private static final long CHECK_POLL_TIME = 3 * 1000;
+    /**
+     * the time in ms to wait after the first availability probe. The wait doubles after each
+     * probe, up to {@link #CHECK_POLL_TIME}
+     */
+    static final long MIN_CHECK_POLL_TIME = 250;
     /** the maximum operation time in ms for a 'poll for responsiveness' command */
     private static final int MAX_OP_TIME = 10 * 1000;
 
@@ -51,6 +60,36 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     /** The  time in ms to wait for a device to available. */
     private long mDefaultAvailableTimeout = 6 * 60 * 1000;
 
+    /** marker printed by the availability probe once dev.bootcomplete is set */
+    static final String BOOT_COMPLETE_MARKER = "tf_boot_complete";
+
+    /**
+     * The checks performed by {@link #waitForDeviceAvailable(long)}, after the device is online.
+     */
+    enum ReadinessCheck {
+        /** the dev.bootcomplete flag is set */
+        BOOT_COMPLETE("boot_complete"),
+        /** the package manager is responsive */
+        PACKAGE_MANAGER("package_manager"),
+        /** the external storage is mounted and writable */
+        EXTERNAL_STORAGE("external_storage");
+
+        private final String mMetricName;
+
+        ReadinessCheck(String metricName) {
+            mMetricName = metricName;
+        }
+    }
+
+    private static final MetricsRegistry sMetrics = MetricsRegistry.getRegistry();
+    private static final String READY_TIME_METRIC = "tf_device_ready_seconds";
+    private static final String READY_TIME_HELP =
+            "Time from the start of a wait for device availability until each check passed";
+    private static final Histogram sOnlineTime = sMetrics.getHistogram(READY_TIME_METRIC,
+            READY_TIME_HELP, "check", "online");
+    private static final Histogram sAvailableTime = sMetrics.getHistogram(READY_TIME_METRIC,
+            READY_TIME_HELP, "check", "available");
+
     private List<DeviceStateListener> mStateListeners;
     private IDeviceManager mMgr;
     private final boolean mFastbootEnabled;
@@ -191,7 +230,8 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         // 3. Device's package manager is responsive
         // 4. Device's external storage is mounted
         //
-        // The current implementation waits for each event to occur in sequence.
+        // Once the device is online, the remaining events are checked together by a single
+        // shell command per poll. Polls start often, and back off while the device boots.
         //
         // it will track the currently elapsed time and fail if it is
         // greater than waitTime
@@ -201,19 +241,36 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         if (device == null) {
             return null;
         }
-        long elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForBootComplete(waitTime - elapsedTime)) {
-            return null;
-        }
-        elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForPmResponsive(waitTime - elapsedTime)) {
-            return null;
-        }
-        elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForStoreMount(waitTime - elapsedTime)) {
-            return null;
+        sOnlineTime.recordSince(startTime);
+        CLog.i("Waiting %d ms for device %s boot complete, package manager and external store",
+                waitTime, getSerialNumber());
+        Set<ReadinessCheck> passedChecks = EnumSet.noneOf(ReadinessCheck.class);
+        long pollTime = MIN_CHECK_POLL_TIME;
+        while (true) {
+            Set<ReadinessCheck> readyChecks = probeReadiness();
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            for (ReadinessCheck check : readyChecks) {
+                if (passedChecks.add(check)) {
+                    CLog.d("Device %s %s ready after %d ms", getSerialNumber(),
+                            check.mMetricName, elapsedTime);
+                    sMetrics.getHistogram(READY_TIME_METRIC, READY_TIME_HELP, "check",
+                            check.mMetricName).record(elapsedTime);
+                }
+            }
+            if (readyChecks.size() == ReadinessCheck.values().length) {
+                sAvailableTime.record(elapsedTime);
+                return device;
+            }
+            if (elapsedTime >= waitTime) {
+                Set<ReadinessCheck> failedChecks = EnumSet.allOf(ReadinessCheck.class);
+                failedChecks.removeAll(readyChecks);
+                CLog.w("Device %s is not available after %d ms, %s not ready", getSerialNumber(),
+                        waitTime, failedChecks);
+                return null;
+            }
+            getRunUtil().sleep(Math.min(pollTime, waitTime - elapsedTime));
+            pollTime = Math.min(pollTime * 2, CHECK_POLL_TIME);
         }
-        return device;
     }
 
     /**
@@ -225,127 +282,64 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     }
 
     /**
-     * Blocks until the device's boot complete flag is set
+     * Performs all {@link ReadinessCheck}s with a single shell command.
+     * <p/>
+     * The package manager is only queried once boot is complete, as it may be slow to respond
+     * before then. External storage is checked by writing and reading back a file.
      *
-     * @param waitTime the amount in ms to wait
+     * @return the {@link ReadinessCheck}s that passed
      */
-    private boolean waitForBootComplete(final long waitTime) {
-        CLog.i("Waiting %d ms for device %s boot complete", waitTime, getSerialNumber());
-        long startTime = System.currentTimeMillis();
-        final String cmd = "getprop dev.bootcomplete";
-        while ((System.currentTimeMillis() - startTime) < waitTime) {
-            try {
-                String bootFlag = getIDevice().getPropertySync("dev.bootcomplete");
-                if ("1".equals(bootFlag)) {
-                    return true;
-                }
-            } catch (IOException e) {
-                CLog.i("%s failed %s", cmd, e.getMessage());
-            } catch (TimeoutException e) {
-                CLog.i("%s failed: timeout", cmd);
-            } catch (AdbCommandRejectedException e) {
-                CLog.i("%s failed: %s", cmd, e.getMessage());
-            } catch (ShellCommandUnresponsiveException e) {
-                CLog.i("%s failed: %s", cmd, e.getMessage());
-            }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+    private Set<ReadinessCheck> probeReadiness() {
+        String externalStore = getIDevice().getMountPoint(IDevice.MNT_EXTERNAL_STORAGE);
+        if (externalStore == null) {
+            // let the device shell expand the mount point
+            externalStore = "$" + IDevice.MNT_EXTERNAL_STORAGE;
         }
-        CLog.w("Device %s did not boot after %d ms", getSerialNumber(), waitTime);
-        return false;
-    }
-
-    /**
-     * Waits for the device package manager to be responsive.
-     *
-     * @param waitTime time in ms to wait before giving up
-     * @return <code>true</code> if package manage becomes responsive before waitTime expires.
-     * <code>false</code> otherwise
-     */
-    private boolean waitForPmResponsive(final long waitTime) {
-        CLog.i("Waiting %d ms for device %s package manager",
-                waitTime, getSerialNumber());
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < waitTime) {
-            final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-            final String cmd = "pm path android";
-            try {
-                getIDevice().executeShellCommand(cmd, receiver, MAX_OP_TIME);
-                String output = receiver.getOutput();
-                Log.v(LOG_TAG, String.format("%s returned %s", cmd, output));
-                if (output.contains("package:")) {
-                    return true;
-                }
-            } catch (IOException e) {
-                Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-            } catch (TimeoutException e) {
-                Log.i(LOG_TAG, String.format("%s failed: timeout", cmd));
-            } catch (AdbCommandRejectedException e) {
-                Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-            } catch (ShellCommandUnresponsiveException e) {
-                Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-            }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+        long number = System.currentTimeMillis();
+        String testFile = String.format("\"%s/%d\"", externalStore, number);
+        String testString = String.format("number %d one", number);
+        String cmd = String.format("case $(getprop dev.bootcomplete) in 1) echo %s; " +
+                "pm path android;; esac; echo '%s' > %s && cat %s; rm %s", BOOT_COMPLETE_MARKER,
+                testString, testFile, testFile, testFile);
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        try {
+            getIDevice().executeShellCommand(cmd, receiver, MAX_OP_TIME);
+            String output = receiver.getOutput();
+            CLog.v("%s returned %s", cmd, output);
+            return parseReadiness(output, testString);
+        } catch (IOException e) {
+            CLog.i("%s failed: %s", cmd, e.getMessage());
+        } catch (TimeoutException e) {
+            CLog.i("%s failed: timeout", cmd);
+        } catch (AdbCommandRejectedException e) {
+            CLog.i("%s failed: %s", cmd, e.getMessage());
+        } catch (ShellCommandUnresponsiveException e) {
+            CLog.i("%s failed: %s", cmd, e.getMessage());
         }
-        Log.w(LOG_TAG, String.format("Device %s package manager is unresponsive",
-                getSerialNumber()));
-        return false;
+        return EnumSet.noneOf(ReadinessCheck.class);
     }
 
     /**
-     * Waits for the device's external store to be mounted.
+     * Parse the output of the availability probe.
+     * <p/>
+     * Exposed for unit testing.
      *
-     * @param waitTime time in ms to wait before giving up
-     * @return <code>true</code> if external store is mounted before waitTime expires.
-     * <code>false</code> otherwise
+     * @param output the probe output
+     * @param testString the string written to and read back from external storage
+     * @return the {@link ReadinessCheck}s that passed
      */
-    private boolean waitForStoreMount(final long waitTime) {
-        Log.i(LOG_TAG, String.format("Waiting %d ms for device %s external store", waitTime,
-                getSerialNumber()));
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < waitTime) {
-            final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-            final CollectingOutputReceiver bitBucket = new CollectingOutputReceiver();
-            final long number = System.currentTimeMillis();
-            final String externalStore = getMountPoint(IDevice.MNT_EXTERNAL_STORAGE);
-
-            final String testFile = String.format("'%s/%d'", externalStore, number);
-            final String testString = String.format("number %d one", number);
-            final String writeCmd = String.format("echo '%s' > %s", testString, testFile);
-            final String checkCmd = String.format("cat %s", testFile);
-            final String cleanupCmd = String.format("rm %s", testFile);
-            String cmd = null;
-            if (externalStore != null) {
-                try {
-                    cmd = writeCmd;
-                    getIDevice().executeShellCommand(writeCmd, bitBucket, MAX_OP_TIME);
-                    cmd = checkCmd;
-                    getIDevice().executeShellCommand(checkCmd, receiver, MAX_OP_TIME);
-                    cmd = cleanupCmd;
-                    getIDevice().executeShellCommand(cleanupCmd, bitBucket, MAX_OP_TIME);
-
-                    String output = receiver.getOutput();
-                    Log.v(LOG_TAG, String.format("%s returned %s", checkCmd, output));
-                    if (output.contains(testString)) {
-                        return true;
-                    }
-                } catch (IOException e) {
-                    Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-                } catch (TimeoutException e) {
-                    Log.i(LOG_TAG, String.format("%s failed: timeout", cmd));
-                } catch (AdbCommandRejectedException e) {
-                    Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-                } catch (ShellCommandUnresponsiveException e) {
-                    Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-                }
-            } else {
-                Log.w(LOG_TAG, String.format("Failed to get external store mount point for %s",
-                        getSerialNumber()));
+    static Set<ReadinessCheck> parseReadiness(String output, String testString) {
+        Set<ReadinessCheck> readyChecks = EnumSet.noneOf(ReadinessCheck.class);
+        if (output.contains(BOOT_COMPLETE_MARKER)) {
+            readyChecks.add(ReadinessCheck.BOOT_COMPLETE);
+            if (output.contains("package:")) {
+                readyChecks.add(ReadinessCheck.PACKAGE_MANAGER);
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
         }
-        Log.w(LOG_TAG, String.format("Device %s external storage is not mounted after %d ms",
-                getSerialNumber(), waitTime));
-        return false;
+        if (output.contains(testString)) {
+            readyChecks.add(ReadinessCheck.EXTERNAL_STORAGE);
+        }
+        return readyChecks;
     }
 
     /**
@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.device.CpuStatsCollector.CpuStats;
+import com.android.tradefed.device.CpuStatsCollector.TimeCategory;
+import com.android.tradefed.device.TopHelper.TopStats;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.TimeSeries;
+import com.android.tradefed.util.brillopad.MemInfoParser;
+import com.android.tradefed.util.brillopad.ProcrankParser;
+import com.android.tradefed.util.brillopad.item.MemInfoItem;
+import com.android.tradefed.util.brillopad.item.ProcrankItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Samples device telemetry, such as CPU and memory usage, with a set of {@link ITelemetryProbe}s.
+ * <p>
+ * All probes are run in turn by a single long running shell command, so sampling does not open a
+ * new adb connection per sample. The command is restarted if the device goes offline.
+ * </p><p>
+ * Each sampled value is recorded in a {@link TimeSeries} named {@code <probe name>.<value name>},
+ * which retains a fixed number of the most recent samples. The number of series is also limited,
+ * so the sampler can run for the length of a long test without growing. The samples can be sent to
+ * {@link ITestInvocationListener#testLog} with {@link #logSamples}, or summarized as test metrics
+ * with {@link #getMetrics()}.
+ * </p>
+ */
+public class DeviceTelemetrySampler {
+    /** the default number of samples retained per series */
+    public static final int DEFAULT_CAPACITY = 3600;
+    /** the default maximum number of series recorded */
+    public static final int DEFAULT_MAX_SERIES = 256;
+    /** printed before the output of each probe, followed by the probe index */
+    static final String PROBE_MARKER = "#telemetry probe ";
+    /** printed after the output of the last probe of each sample */
+    static final String SAMPLE_END_MARKER = "#telemetry end";
+
+    private final ITestDevice mTestDevice;
+    private final int mInterval;
+    private final int mCapacity;
+    private final List<ITelemetryProbe> mProbes = new ArrayList<ITelemetryProbe>();
+    /** map of series name to series. Guarded by this */
+    private final Map<String, TimeSeries> mSeries = new LinkedHashMap<String, TimeSeries>();
+    private int mMaxSeries = DEFAULT_MAX_SERIES;
+    /** the number of samples dropped because the series limit was reached. Guarded by this */
+    private long mDroppedSamples = 0;
+    private final SamplerReceiver mReceiver = new SamplerReceiver();
+    private BackgroundDeviceAction mSamplerAction = null;
+
+    /**
+     * A probe that samples CPU usage with {@code top}.
+     * <p>
+     * Records the {@code total}, {@code user}, {@code system}, {@code iow} and {@code irq}
+     * percentages.
+     * </p>
+     */
+    public static class TopProbe implements ITelemetryProbe {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getName() {
+            return "top";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getCommand(int interval) {
+            return String.format("top -n 1 -d %d -m 10 -t", interval);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isTimed() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void parse(List<String> lines, Map<String, Double> values) {
+            for (String line : lines) {
+                TopStats s = TopHelper.parseTopStats(line);
+                if (s != null) {
+                    values.put("total", s.mTotalPercent);
+                    values.put("user", s.mUserPercent);
+                    values.put("system", s.mSystemPercent);
+                    values.put("iow", s.mIowPercent);
+                    values.put("irq", s.mIrqPercent);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A probe that samples CPU usage and frequency with {@code cpustats}.
+     * <p>
+     * Records the {@code total}, {@code user}, {@code system}, {@code iow} and {@code irq}
+     * percentages, and the {@code estimated_mhz} and {@code used_mhz} percentage if frequency
+     * stats are available, for the "Total" and each "cpuN" label.
+     * </p>
+     * @see CpuStatsCollector
+     */
+    public static class CpuStatsProbe implements ITelemetryProbe {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getName() {
+            return "cpustats";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getCommand(int interval) {
+            return String.format("cpustats -m -n 1 -d %d", interval);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isTimed() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void parse(List<String> lines, Map<String, Double> values) {
+            for (String line : lines) {
+                String[] args = line.trim().split(",");
+                if (args.length < 8) {
+                    CLog.w("Unexpected input: %s", line.trim());
+                    continue;
+                }
+                try {
+                    CpuStats s = CpuStatsCollector.parseCpuStats(args);
+                    String label = args[0];
+                    values.put(label + ".total", 100 - s.getPercentage(TimeCategory.IDLE));
+                    values.put(label + ".user", s.getPercentage(TimeCategory.USER) +
+                            s.getPercentage(TimeCategory.NICE));
+                    values.put(label + ".system", s.getPercentage(TimeCategory.SYS));
+                    values.put(label + ".iow", s.getPercentage(TimeCategory.IOW));
+                    values.put(label + ".irq", s.getPercentage(TimeCategory.IRQ) +
+                            s.getPercentage(TimeCategory.SIRQ));
+                    if (!s.mFreqStats.isEmpty()) {
+                        values.put(label + ".estimated_mhz", s.getEstimatedMhz());
+                        values.put(label + ".used_mhz", s.getUsedMhzPercentage());
+                    }
+                } catch (NumberFormatException e) {
+                    CLog.w("Unexpected input: %s", line.trim());
+                } catch (IndexOutOfBoundsException e) {
+                    CLog.w("Unexpected input: %s", line.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * A probe that samples {@code /proc/meminfo}.
+     * <p>
+     * Records every field, in kB, by the name used in {@code /proc/meminfo}.
+     * </p>
+     */
+    public static class MemInfoProbe implements ITelemetryProbe {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getName() {
+            return "meminfo";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getCommand(int interval) {
+            return "cat /proc/meminfo";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isTimed() {
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void parse(List<String> lines, Map<String, Double> values) {
+            MemInfoItem item = new MemInfoParser().parse(lines);
+            for (Map.Entry<String, Integer> field : item.entrySet()) {
+                values.put(field.getKey(), field.getValue().doubleValue());
+            }
+        }
+    }
+
+    /**
+     * A probe that samples per process memory usage with {@code procrank}.
+     * <p>
+     * Records the {@code pss} and {@code uss}, in kB, of each process as
+     * {@code <process name>.pss} and {@code <process name>.uss}.
+     * </p>
+     */
+    public static class ProcrankProbe implements ITelemetryProbe {
+        private final Set<String> mProcessNames;
+
+        /**
+         * Creates a {@link ProcrankProbe}.
+         *
+         * @param processNames the names of the processes to record. If none are specified, every
+         *            process is recorded, until the sampler's series limit is reached.
+         */
+        public ProcrankProbe(String... processNames) {
+            mProcessNames = new HashSet<String>(Arrays.asList(processNames));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getName() {
+            return "procrank";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getCommand(int interval) {
+            return "procrank";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isTimed() {
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void parse(List<String> lines, Map<String, Double> values) {
+            ProcrankItem item = new ProcrankParser().parse(lines);
+            for (Map.Entry<String, Map<String, Integer>> process : item.entrySet()) {
+                if (!mProcessNames.isEmpty() && !mProcessNames.contains(process.getKey())) {
+                    continue;
+                }
+                Integer pss = process.getValue().get("Pss");
+                if (pss != null) {
+                    values.put(process.getKey() + ".pss", pss.doubleValue());
+                }
+                Integer uss = process.getValue().get("Uss");
+                if (uss != null) {
+                    values.put(process.getKey() + ".uss", uss.doubleValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Receiver which splits the sampler output by probe, and records the parsed samples.
+     */
+    class SamplerReceiver extends MultiLineReceiver {
+        private boolean mIsCancelled = false;
+        private ITelemetryProbe mCurrentProbe = null;
+        private List<String> mCurrentLines = new ArrayList<String>();
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void processNewLines(String[] lines) {
+            if (isCancelled()) {
+                return;
+            }
+            for (String line : lines) {
+                if (line.startsWith(PROBE_MARKER)) {
+                    endProbeOutput();
+                    try {
+                        mCurrentProbe = mProbes.get(Integer.parseInt(
+                                line.substring(PROBE_MARKER.length())));
+                    } catch (NumberFormatException e) {
+                        CLog.w("Unexpected probe marker: %s", line);
+                    } catch (IndexOutOfBoundsException e) {
+                        CLog.w("Unexpected probe marker: %s", line);
+                    }
+                } else if (line.equals(SAMPLE_END_MARKER)) {
+                    endProbeOutput();
+                } else if (mCurrentProbe != null && !line.isEmpty()) {
+                    mCurrentLines.add(line);
+                }
+            }
+        }
+
+        /**
+         * Parse and record the output of the current probe.
+         */
+        private void endProbeOutput() {
+            if (mCurrentProbe == null) {
+                return;
+            }
+            Map<String, Double> values = new LinkedHashMap<String, Double>();
+            mCurrentProbe.parse(mCurrentLines, values);
+            long timestamp = System.currentTimeMillis();
+            for (Map.Entry<String, Double> value : values.entrySet()) {
+                addSample(String.format("%s.%s", mCurrentProbe.getName(), value.getKey()),
+                        timestamp, value.getValue());
+            }
+            mCurrentProbe = null;
+            mCurrentLines.clear();
+        }
+
+        /**
+         * Stops sampling.
+         */
+        public synchronized void cancel() {
+            mIsCancelled = true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized boolean isCancelled() {
+            return mIsCancelled;
+        }
+    }
+
+    /**
+     * Create a {@link DeviceTelemetrySampler} which samples every second, and retains
+     * {@link #DEFAULT_CAPACITY} samples per series.
+     *
+     * @param testDevice the device to sample
+     */
+    public DeviceTelemetrySampler(ITestDevice testDevice) {
+        this(testDevice, 1, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a {@link DeviceTelemetrySampler}.
+     * <p>
+     * Timed probes, such as {@link TopProbe}, measure over the whole sampling interval. If several
+     * timed probes are added, each sample takes the sum of their intervals.
+     * </p>
+     *
+     * @param testDevice the device to sample
+     * @param interval the sampling interval in seconds
+     * @param capacity the number of samples retained per series
+     */
+    public DeviceTelemetrySampler(ITestDevice testDevice, int interval, int capacity) {
+        mTestDevice = testDevice;
+        mInterval = interval;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Set the maximum number of series to record. Samples of new series beyond the limit are
+     * dropped. Defaults to {@link #DEFAULT_MAX_SERIES}.
+     */
+    public synchronized void setMaxSeries(int maxSeries) {
+        mMaxSeries = maxSeries;
+    }
+
+    /**
+     * Add a probe to sample with. Must be called before {@link #start()}.
+     */
+    public void addProbe(ITelemetryProbe probe) {
+        mProbes.add(probe);
+    }
+
+    /**
+     * Start sampling in the background.
+     */
+    public synchronized void start() {
+        if (mProbes.isEmpty()) {
+            throw new IllegalStateException("No telemetry probes added");
+        }
+        mSamplerAction = new BackgroundDeviceAction(getCommand(), "telemetry sampler",
+                mTestDevice, mReceiver, 0);
+        mSamplerAction.start();
+    }
+
+    /**
+     * Stop sampling.
+     */
+    public synchronized void cancel() {
+        mReceiver.cancel();
+        if (mSamplerAction != null) {
+            mSamplerAction.cancel();
+        }
+    }
+
+    /**
+     * Gets whether sampling has been stopped.
+     */
+    public boolean isCancelled() {
+        return mReceiver.isCancelled();
+    }
+
+    /**
+     * Get the names of all series recorded so far.
+     */
+    public synchronized Set<String> getSeriesNames() {
+        return Collections.unmodifiableSet(new LinkedHashSet<String>(mSeries.keySet()));
+    }
+
+    /**
+     * Get a recorded series.
+     *
+     * @param name the series name, such as {@code top.total}
+     * @return the {@link TimeSeries}, or {@code null} if no samples were recorded with that name
+     */
+    public synchronized TimeSeries getSeries(String name) {
+        return mSeries.get(name);
+    }
+
+    /**
+     * Summarize every recorded series as test metrics.
+     *
+     * @return a map of {@code <series name>_mean}, {@code _min}, {@code _max}, {@code _p50} and
+     *         {@code _p90} to the value of that statistic for the series
+     */
+    public synchronized Map<String, String> getMetrics() {
+        Map<String, String> metrics = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, TimeSeries> series : mSeries.entrySet()) {
+            String name = series.getKey();
+            TimeSeries values = series.getValue();
+            metrics.put(name + "_mean", values.getMean().toString());
+            metrics.put(name + "_min", values.getMin().toString());
+            metrics.put(name + "_max", values.getMax().toString());
+            metrics.put(name + "_p50", values.getPercentile(50).toString());
+            metrics.put(name + "_p90", values.getPercentile(90).toString());
+        }
+        return metrics;
+    }
+
+    /**
+     * Send the retained samples of every series to {@link ITestInvocationListener#testLog}, as
+     * lines of {@code <series name>,<timestamp ms>,<value>}.
+     *
+     * @param listener the {@link ITestInvocationListener} to log to
+     * @param dataName the name of the log
+     */
+    public void logSamples(ITestInvocationListener listener, String dataName) {
+        StringBuilder samples = new StringBuilder();
+        synchronized (this) {
+            for (Map.Entry<String, TimeSeries> series : mSeries.entrySet()) {
+                TimeSeries values = series.getValue();
+                synchronized (values) {
+                    for (int i = 0; i < values.size(); i++) {
+                        samples.append(series.getKey()).append(',');
+                        samples.append(values.getTimestamp(i)).append(',');
+                        samples.append(values.getValue(i)).append('\n');
+                    }
+                }
+            }
+        }
+        InputStreamSource source = new ByteArrayInputStreamSource(samples.toString().getBytes());
+        try {
+            listener.testLog(dataName, LogDataType.TEXT, source);
+        } finally {
+            source.cancel();
+        }
+    }
+
+    /**
+     * Build the shell command which runs every probe in turn, forever.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    String getCommand() {
+        StringBuilder command = new StringBuilder("while true; do ");
+        boolean timed = false;
+        for (int i = 0; i < mProbes.size(); i++) {
+            ITelemetryProbe probe = mProbes.get(i);
+            command.append(String.format("echo '%s%d'; %s; ", PROBE_MARKER, i,
+                    probe.getCommand(mInterval)));
+            timed |= probe.isTimed();
+        }
+        command.append(String.format("echo '%s'; ", SAMPLE_END_MARKER));
+        if (!timed) {
+            command.append(String.format("sleep %d; ", mInterval));
+        }
+        command.append("done");
+        return command.toString();
+    }
+
+    /**
+     * Record a sample.
+     */
+    synchronized void addSample(String name, long timestamp, double value) {
+        TimeSeries series = mSeries.get(name);
+        if (series == null) {
+            if (mSeries.size() >= mMaxSeries) {
+                if (mDroppedSamples == 0) {
+                    CLog.w("Reached limit of %d telemetry series on %s, dropping samples of %s "
+                            + "and any further new series", mMaxSeries,
+                            mTestDevice.getSerialNumber(), name);
+                }
+                mDroppedSamples++;
+                return;
+            }
+            series = new TimeSeries(mCapacity);
+            mSeries.put(name, series);
+        }
+        series.add(timestamp, value);
+    }
+
+    /**
+     * Get the number of samples dropped because the series limit was reached.
+     */
+    public synchronized long getDroppedSampleCount() {
+        return mDroppedSamples;
+    }
+
+    /**
+     * Method to access the receiver used to parse the sampler output. Used for unit testing.
+     */
+    SamplerReceiver getReceiver() {
+        return mReceiver;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Transfers a file to or from a device one fixed size chunk at a time, as used by
+ * {@link ChunkedFileTransfer}.
+ * <p/>
+ * Chunks are addressed by index, so chunk <var>i</var> of a file with chunk size <var>n</var>
+ * starts at byte <var>i</var> * <var>n</var>. Checksums are lowercase hex md5s.
+ */
+public interface IFileChunkTransport {
+
+    /**
+     * Get the size of a file on the device.
+     *
+     * @param remoteFilePath the path of the file on the device
+     * @return the size in bytes, or -1 if the file does not exist
+     * @throws IOException if the size could not be determined
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered
+     */
+    public long getRemoteFileSize(String remoteFilePath) throws IOException,
+            DeviceNotAvailableException;
+
+    /**
+     * Get the checksum of a chunk of a file on the device.
+     *
+     * @param remoteFilePath the path of the file on the device
+     * @param chunkSize the chunk size in bytes
+     * @param chunkIndex the index of the chunk
+     * @return the checksum of the chunk
+     * @throws IOException if the checksum could not be calculated
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered
+     */
+    public String getRemoteChecksum(String remoteFilePath, int chunkSize, long chunkIndex)
+            throws IOException, DeviceNotAvailableException;
+
+    /**
+     * Read a chunk of a file on the device.
+     *
+     * @param remoteFilePath the path of the file on the device
+     * @param chunkSize the chunk size in bytes
+     * @param chunkIndex the index of the chunk
+     * @param outputStream the {@link OutputStream} to write the chunk to. The last chunk of a file
+     *            may be shorter than the chunk size.
+     * @return the checksum of the chunk calculated on the device, to verify the data received
+     * @throws IOException if the chunk could not be read
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered
+     */
+    public String pullChunk(String remoteFilePath, int chunkSize, long chunkIndex,
+            OutputStream outputStream) throws IOException, DeviceNotAvailableException;
+
+    /**
+     * Write a chunk of a file on the device, truncating the file at the end of the chunk.
+     *
+     * @param remoteFilePath the path of the file on the device
+     * @param chunkSize the chunk size in bytes
+     * @param chunkIndex the index of the chunk
+     * @param data the chunk data, which may be shorter than the chunk size for the last chunk
+     * @return the checksum of the chunk calculated on the device, to verify the data sent
+     * @throws IOException if the chunk could not be written
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered
+     */
+    public String pushChunk(String remoteFilePath, int chunkSize, long chunkIndex, byte[] data)
+            throws IOException, DeviceNotAvailableException;
+
+    /**
+     * Rename a file on the device, replacing any existing file.
+     *
+     * @param fromPath the current path of the file on the device
+     * @param toPath the new path of the file on the device
+     * @throws IOException if the file could not be renamed
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered
+     */
+    public void renameRemoteFile(String fromPath, String toPath) throws IOException,
+            DeviceNotAvailableException;
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A source of samples for a {@link DeviceTelemetrySampler}.
+ * <p/>
+ * Each probe provides a shell command that takes a single sample, and parses the output of that
+ * command into named values.
+ */
+public interface ITelemetryProbe {
+
+    /**
+     * Get the name of the probe, used as the prefix of the name of every series it records.
+     */
+    public String getName();
+
+    /**
+     * Get the shell command that takes a single sample.
+     *
+     * @param interval the sampling interval in seconds
+     * @return the command
+     */
+    public String getCommand(int interval);
+
+    /**
+     * Whether the command returned by {@link #getCommand(int)} measures over the sampling interval,
+     * and therefore takes that long to run.
+     */
+    public boolean isTimed();
+
+    /**
+     * Parse the output of a single sample.
+     *
+     * @param lines the non-empty lines output by the command
+     * @param values the {@link Map} to add the sampled values to, by name
+     */
+    public void parse(List<String> lines, Map<String, Double> values);
+}
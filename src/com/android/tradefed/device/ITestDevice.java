@@ -18,6 +18,7 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.RawImage;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.tradefed.build.IBuildInfo;
@@ -51,6 +52,27 @@ public interface ITestDevice {
         AVAILABLE
     }
 
+    /**
+     * The priority of an adb command, used to share the device's adb sessions between threads.
+     */
+    public enum CommandPriority {
+        /** commands performed by or on behalf of the test being executed. */
+        FOREGROUND,
+        /**
+         * commands performed by background work such as telemetry collection. These are granted a
+         * session only once no foreground command is waiting, and only use a limited number of
+         * sessions.
+         */
+        BACKGROUND,
+        /**
+         * long-lived commands that stream output for the whole run, such as top or cpu stats
+         * collectors. These are granted a session after foreground and background commands, and
+         * count against the total session limit but not the background limit, so that they never
+         * starve shorter background work.
+         */
+        STREAMING
+    }
+
     /**
      * A simple struct class to store information about a single mountpoint
      */
@@ -259,6 +281,22 @@ public interface ITestDevice {
     public void executeShellCommand(String command, IShellOutputReceiver receiver,
             int maxTimeToOutputShellResponse, int retryAttempts) throws DeviceNotAvailableException;
 
+    /**
+     * Executes the given adb shell command with given {@link CommandPriority}, retrying multiple
+     * times if command fails.
+     * <p/>
+     * Same as {@link #executeShellCommand(String, IShellOutputReceiver)}, except that
+     * {@link CommandPriority#BACKGROUND} commands yield adb sessions to foreground commands.
+     *
+     * @param command the adb shell command to run
+     * @param receiver the {@link IShellOutputReceiver} to direct shell output to.
+     * @param priority the {@link CommandPriority} of the command
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public void executeShellCommand(String command, IShellOutputReceiver receiver,
+            CommandPriority priority) throws DeviceNotAvailableException;
+
     /**
      * Helper method which executes a adb shell command and returns output as a {@link String}.
      *
@@ -592,6 +630,16 @@ public interface ITestDevice {
      */
     public InputStreamSource getScreenshot() throws DeviceNotAvailableException;
 
+    /**
+     * Grabs a screenshot from the device as raw pixels, without encoding it.
+     *
+     * @param priority the {@link CommandPriority} of the screenshot
+     * @return the {@link RawImage}, or <code>null</code> if the screenshot was not successful.
+     * @throws DeviceNotAvailableException
+     */
+    public RawImage getRawScreenshot(CommandPriority priority)
+            throws DeviceNotAvailableException;
+
     /**
      * Connects to a wifi network.
      * <p/>
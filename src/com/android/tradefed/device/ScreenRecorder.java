@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.RawImage;
+import com.android.tradefed.device.ITestDevice.CommandPriority;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Class that records screenshots of a device in background, so the screen leading up to a test
+ * failure can be reported.
+ * <p>
+ * Screenshots are captured at a fixed interval into a ring of at most a fixed number of frames
+ * and bytes, so memory and CPU use do not depend on how long the test runs. A frame identical to
+ * the previous frame is dropped. The oldest frame in the ring is stored compressed, and every
+ * later frame is stored as the compressed difference from the frame before it, which is small
+ * when only part of the screen changes.
+ * </p><p>
+ * The most recent frames can be sent to {@link ITestInvocationListener#testLog} as a zip of PNG
+ * images with {@link #logRecording}.
+ * </p>
+ */
+public class ScreenRecorder {
+    /** the default maximum number of frames retained */
+    public static final int DEFAULT_MAX_FRAMES = 60;
+    /** the default maximum size of the retained frames, in bytes */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private final ITestDevice mDevice;
+    private final long mIntervalMs;
+    private final int mMaxFrames;
+    private final long mMaxBytes;
+
+    /** the retained frames, oldest first. Guarded by this */
+    private final LinkedList<Frame> mFrames = new LinkedList<Frame>();
+    private long mFrameBytes = 0;
+    private long mDroppedFrames = 0;
+    /** pixels of the last frame captured and a scratch buffer, reused to avoid garbage */
+    private int[] mPreviousPixels = null;
+    private int[] mPixels = null;
+    private byte[] mPixelBytes = null;
+    private int mWidth = 0;
+    private int mHeight = 0;
+
+    private CaptureThread mCaptureThread = null;
+
+    /**
+     * A captured frame.
+     */
+    private static class Frame {
+        final long mTimestamp;
+        final int mWidth;
+        final int mHeight;
+        /** whether the frame is stored as pixels, rather than the difference from the previous */
+        final boolean mIsKeyFrame;
+        final byte[] mData;
+
+        Frame(long timestamp, int width, int height, boolean isKeyFrame, byte[] data) {
+            mTimestamp = timestamp;
+            mWidth = width;
+            mHeight = height;
+            mIsKeyFrame = isKeyFrame;
+            mData = data;
+        }
+    }
+
+    /**
+     * Thread which captures a frame every interval until cancelled.
+     */
+    private class CaptureThread extends Thread {
+        private boolean mIsCancelled = false;
+
+        CaptureThread() {
+            super(String.format("ScreenRecorder-%s", mDevice.getSerialNumber()));
+            // don't keep VM open if this thread is still running
+            setDaemon(true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            while (!isCancelled()) {
+                long startTime = System.currentTimeMillis();
+                try {
+                    // capture as background work, so the test's own commands are not delayed
+                    RawImage rawImage = mDevice.getRawScreenshot(CommandPriority.BACKGROUND);
+                    if (rawImage != null) {
+                        addFrame(rawImage, startTime);
+                    }
+                } catch (DeviceNotAvailableException e) {
+                    CLog.w("Stopped recording screen of %s: device not available",
+                            mDevice.getSerialNumber());
+                    return;
+                }
+                synchronized (this) {
+                    long waitTime = startTime + mIntervalMs - System.currentTimeMillis();
+                    if (!mIsCancelled && waitTime > 0) {
+                        try {
+                            wait(waitTime);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            mIsCancelled = true;
+            notifyAll();
+        }
+
+        synchronized boolean isCancelled() {
+            return mIsCancelled;
+        }
+    }
+
+    /**
+     * Creates a {@link ScreenRecorder} which retains at most {@link #DEFAULT_MAX_FRAMES} frames
+     * and {@link #DEFAULT_MAX_BYTES} bytes.
+     *
+     * @param device the device to record
+     * @param intervalMs the time between screenshots, in ms
+     */
+    public ScreenRecorder(ITestDevice device, long intervalMs) {
+        this(device, intervalMs, DEFAULT_MAX_FRAMES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a {@link ScreenRecorder}.
+     *
+     * @param device the device to record
+     * @param intervalMs the time between screenshots, in ms
+     * @param maxFrames the maximum number of frames to retain
+     * @param maxBytes the maximum size of the retained frames, in bytes. The most recent frame is
+     *            always retained.
+     */
+    public ScreenRecorder(ITestDevice device, long intervalMs, int maxFrames, long maxBytes) {
+        mDevice = device;
+        mIntervalMs = intervalMs;
+        mMaxFrames = maxFrames;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Start recording.
+     */
+    public synchronized void start() {
+        if (mCaptureThread == null) {
+            mCaptureThread = new CaptureThread();
+            mCaptureThread.start();
+        }
+    }
+
+    /**
+     * Stop recording. The recorded frames are retained.
+     */
+    public void stop() {
+        CaptureThread captureThread;
+        synchronized (this) {
+            captureThread = mCaptureThread;
+            mCaptureThread = null;
+        }
+        if (captureThread != null) {
+            captureThread.cancel();
+        }
+    }
+
+    /**
+     * Discard all recorded frames.
+     */
+    public synchronized void clear() {
+        mFrames.clear();
+        mFrameBytes = 0;
+        mPreviousPixels = null;
+    }
+
+    /**
+     * Get the number of frames retained.
+     */
+    public synchronized int getFrameCount() {
+        return mFrames.size();
+    }
+
+    /**
+     * Get the number of frames dropped for being identical to the previous frame.
+     */
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Get the total size of the frames retained, in bytes.
+     */
+    public synchronized long getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    /**
+     * Send the frames recorded in a recent period to {@link ITestInvocationListener#testLog}, as
+     * a zip of PNG images. Does nothing if no frames were recorded in that period.
+     *
+     * @param listener the {@link ITestInvocationListener} to log to
+     * @param dataName the name of the log
+     * @param durationMs the length of the period before the last frame to log, in ms
+     */
+    public void logRecording(ITestInvocationListener listener, String dataName,
+            long durationMs) {
+        InputStreamSource recording = getRecording(durationMs);
+        if (recording == null) {
+            return;
+        }
+        try {
+            listener.testLog(dataName, LogDataType.ZIP, recording);
+        } finally {
+            recording.cancel();
+        }
+    }
+
+    /**
+     * Get the frames recorded in a recent period, as a zip of PNG images named by frame number
+     * and the time in ms since the first frame in the zip.
+     *
+     * @param durationMs the length of the period before the last frame to include, in ms
+     * @return the zip, or {@code null} if no frames were recorded in that period
+     */
+    public InputStreamSource getRecording(long durationMs) {
+        LinkedList<Frame> frames;
+        synchronized (this) {
+            if (mFrames.isEmpty()) {
+                return null;
+            }
+            frames = new LinkedList<Frame>(mFrames);
+        }
+        long startTime = frames.getLast().mTimestamp - durationMs;
+        ByteArrayOutputStream zipData = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(zipData);
+        // PNG images are already compressed
+        zip.setLevel(Deflater.NO_COMPRESSION);
+        try {
+            int[] pixels = null;
+            long firstTimestamp = -1;
+            int frameNumber = 0;
+            for (Frame frame : frames) {
+                pixels = decodeFrame(frame, pixels);
+                if (frame.mTimestamp < startTime) {
+                    continue;
+                }
+                if (firstTimestamp < 0) {
+                    firstTimestamp = frame.mTimestamp;
+                }
+                zip.putNextEntry(new ZipEntry(String.format("frame_%03d_%06dms.png",
+                        frameNumber++, frame.mTimestamp - firstTimestamp)));
+                zip.write(ScreenshotEncoder.encodePng(pixels, frame.mWidth, frame.mHeight, false,
+                        Deflater.BEST_SPEED));
+                zip.closeEntry();
+            }
+            zip.close();
+        } catch (IOException e) {
+            // not expected when writing to memory
+            CLog.e("Failed to create screen recording for %s", mDevice.getSerialNumber());
+            CLog.e(e);
+            return null;
+        } catch (DataFormatException e) {
+            CLog.e("Failed to decode screen recording for %s", mDevice.getSerialNumber());
+            CLog.e(e);
+            return null;
+        }
+        return new ByteArrayInputStreamSource(zipData.toByteArray());
+    }
+
+    /**
+     * Record a frame.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param rawImage the screenshot
+     * @param timestamp the time the screenshot was captured, in ms
+     */
+    synchronized void addFrame(RawImage rawImage, long timestamp) {
+        if (!ScreenshotEncoder.isSupported(rawImage)) {
+            CLog.w("Unsupported screenshot format from %s: %d bpp", mDevice.getSerialNumber(),
+                    rawImage.bpp);
+            return;
+        }
+        boolean isKeyFrame = mPreviousPixels == null || mFrames.isEmpty() ||
+                rawImage.width != mWidth || rawImage.height != mHeight;
+        int numPixels = rawImage.width * rawImage.height;
+        if (mPixels == null || mPixels.length != numPixels) {
+            mPixels = new int[numPixels];
+            mPixelBytes = new byte[numPixels * 4];
+            mPreviousPixels = null;
+            isKeyFrame = true;
+        }
+        ScreenshotEncoder.convertToArgb(rawImage, mPixels);
+        if (!isKeyFrame && Arrays.equals(mPixels, mPreviousPixels)) {
+            mDroppedFrames++;
+            return;
+        }
+        int[] pixels = mPixels;
+        if (isKeyFrame) {
+            mPreviousPixels = new int[numPixels];
+        } else {
+            // store the difference from the previous frame, which is mostly zero
+            for (int i = 0; i < numPixels; i++) {
+                mPreviousPixels[i] ^= pixels[i];
+            }
+            pixels = mPreviousPixels;
+        }
+        Frame frame = new Frame(timestamp, rawImage.width, rawImage.height, isKeyFrame,
+                compress(pixels));
+        // keep the current frame as the previous frame, and reuse the difference buffer
+        int[] previousPixels = mPreviousPixels;
+        mPreviousPixels = mPixels;
+        mPixels = previousPixels;
+        mWidth = rawImage.width;
+        mHeight = rawImage.height;
+
+        mFrames.add(frame);
+        mFrameBytes += frame.mData.length;
+        while (mFrames.size() > 1 && (mFrames.size() > mMaxFrames || mFrameBytes > mMaxBytes)) {
+            removeOldestFrame();
+        }
+    }
+
+    /**
+     * Remove the oldest frame, storing the next frame as pixels if it is stored as a difference.
+     */
+    private void removeOldestFrame() {
+        Frame oldest = mFrames.removeFirst();
+        mFrameBytes -= oldest.mData.length;
+        Frame next = mFrames.getFirst();
+        if (next.mIsKeyFrame) {
+            return;
+        }
+        try {
+            int[] pixels = decodeFrame(next, decodeFrame(oldest, null));
+            Frame keyFrame = new Frame(next.mTimestamp, next.mWidth, next.mHeight, true,
+                    compress(pixels));
+            mFrames.set(0, keyFrame);
+            mFrameBytes += keyFrame.mData.length - next.mData.length;
+        } catch (DataFormatException e) {
+            // not expected, since the data was compressed by this class
+            CLog.e("Failed to decode screen recording for %s", mDevice.getSerialNumber());
+            CLog.e(e);
+            clear();
+        }
+    }
+
+    /**
+     * Compress pixels with a fast compression level, using the shared byte buffer.
+     */
+    private byte[] compress(int[] pixels) {
+        ByteBuffer.wrap(mPixelBytes, 0, pixels.length * 4).asIntBuffer().put(pixels);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(mPixelBytes, 0, pixels.length * 4);
+            deflater.finish();
+            ByteArrayOutputStream data = new ByteArrayOutputStream(64 * 1024);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                data.write(buffer, 0, length);
+            }
+            return data.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decode the pixels of a frame.
+     *
+     * @param frame the frame to decode
+     * @param previousPixels the pixels of the previous frame, which are replaced if not
+     *            {@code null} and the frame is the same size
+     * @return the pixels of the frame
+     * @throws DataFormatException if the frame data is corrupt
+     */
+    private static int[] decodeFrame(Frame frame, int[] previousPixels)
+            throws DataFormatException {
+        int numPixels = frame.mWidth * frame.mHeight;
+        byte[] pixelBytes = new byte[numPixels * 4];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(frame.mData);
+            int length = 0;
+            while (length < pixelBytes.length && !inflater.finished()) {
+                length += inflater.inflate(pixelBytes, length, pixelBytes.length - length);
+                if (inflater.needsInput()) {
+                    break;
+                }
+            }
+            if (length != pixelBytes.length) {
+                throw new DataFormatException(String.format("Expected %d bytes, got %d",
+                        pixelBytes.length, length));
+            }
+        } finally {
+            inflater.end();
+        }
+        IntBuffer values = ByteBuffer.wrap(pixelBytes).asIntBuffer();
+        if (frame.mIsKeyFrame || previousPixels == null || previousPixels.length != numPixels) {
+            int[] pixels = previousPixels != null && previousPixels.length == numPixels ?
+                    previousPixels : new int[numPixels];
+            values.get(pixels);
+            return pixels;
+        }
+        for (int i = 0; i < numPixels; i++) {
+            previousPixels[i] ^= values.get(i);
+        }
+        return previousPixels;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.RawImage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Converts device screenshots to PNG.
+ * <p/>
+ * Framebuffer data is converted in bulk into an array of ARGB pixels, rather than a pixel at a
+ * time through {@link RawImage#getARGB(int)}. The pixels are then PNG encoded directly with a
+ * {@link Deflater}, at a configurable compression level.
+ * <p/>
+ * Screenshots can be encoded on a small shared pool of background threads with
+ * {@link #encodePngAsync(RawImage, int)}, so the caller does not wait for the encoding. The pool
+ * queue is bounded to limit the number of raw screenshots held in memory. Once it is full, further
+ * screenshots are encoded by the caller.
+ */
+public class ScreenshotEncoder {
+
+    private static final byte[] PNG_SIGNATURE = {
+            (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+    /** each byte is stored as the difference from the same byte of the previous pixel */
+    private static final byte FILTER_SUB = 1;
+
+    private static final int MAX_ENCODE_THREADS = 4;
+
+    private static ExecutorService sEncodeExecutor = null;
+
+    private ScreenshotEncoder() {
+    }
+
+    /**
+     * Returns whether the pixel format of a screenshot is supported.
+     */
+    public static boolean isSupported(RawImage rawImage) {
+        return rawImage.bpp == 16 || rawImage.bpp == 32;
+    }
+
+    /**
+     * Converts a screenshot to a {@link BufferedImage}, converting the pixels directly into the
+     * image's backing array.
+     *
+     * @param rawImage the screenshot
+     * @return a {@link BufferedImage} of type {@link BufferedImage#TYPE_INT_ARGB}
+     */
+    public static BufferedImage toBufferedImage(RawImage rawImage) {
+        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height,
+                BufferedImage.TYPE_INT_ARGB);
+        convertToArgb(rawImage, ((DataBufferInt)image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+
+    /**
+     * Converts the pixels of a screenshot to ARGB, with the same result as calling
+     * {@link RawImage#getARGB(int)} for each pixel.
+     *
+     * @param rawImage the screenshot
+     * @param argb the array to store the pixels in, row by row. Must hold at least
+     *            {@code width * height} pixels.
+     * @throws UnsupportedOperationException if the pixel format is not supported
+     */
+    public static void convertToArgb(RawImage rawImage, int[] argb) {
+        final int numPixels = rawImage.width * rawImage.height;
+        if (rawImage.bpp == 32) {
+            ByteBuffer.wrap(rawImage.data, 0, numPixels * 4).order(ByteOrder.LITTLE_ENDIAN)
+                    .asIntBuffer().get(argb, 0, numPixels);
+            if (rawImage.red_offset == 0 && rawImage.green_offset == 8 &&
+                    rawImage.blue_offset == 16 && rawImage.alpha_offset == 24 &&
+                    rawImage.red_length == 8 && rawImage.green_length == 8 &&
+                    rawImage.blue_length == 8 && rawImage.alpha_length == 8) {
+                // RGBA, the common case, only needs red and blue swapped
+                for (int i = 0; i < numPixels; i++) {
+                    int value = argb[i];
+                    argb[i] = (value & 0xff00ff00) | ((value & 0xff) << 16) |
+                            ((value >>> 16) & 0xff);
+                }
+                return;
+            }
+        } else if (rawImage.bpp == 16) {
+            byte[] data = rawImage.data;
+            for (int i = 0; i < numPixels; i++) {
+                argb[i] = (data[i * 2] & 0xff) | ((data[i * 2 + 1] & 0xff) << 8);
+            }
+        } else {
+            throw new UnsupportedOperationException(String.format(
+                    "Unsupported screenshot format: %d bpp", rawImage.bpp));
+        }
+        // extract each channel from the raw pixel value, as RawImage#getARGB does
+        final int redOffset = rawImage.red_offset;
+        final int redMask = getMask(rawImage.red_length);
+        final int redShift = 8 - rawImage.red_length;
+        final int greenOffset = rawImage.green_offset;
+        final int greenMask = getMask(rawImage.green_length);
+        final int greenShift = 8 - rawImage.green_length;
+        final int blueOffset = rawImage.blue_offset;
+        final int blueMask = getMask(rawImage.blue_length);
+        final int blueShift = 8 - rawImage.blue_length;
+        final boolean hasAlpha = rawImage.alpha_length != 0;
+        final int alphaOffset = rawImage.alpha_offset;
+        final int alphaMask = getMask(rawImage.alpha_length);
+        final int alphaShift = 8 - rawImage.alpha_length;
+        for (int i = 0; i < numPixels; i++) {
+            int value = argb[i];
+            int r = ((value >>> redOffset) & redMask) << redShift;
+            int g = ((value >>> greenOffset) & greenMask) << greenShift;
+            int b = ((value >>> blueOffset) & blueMask) << blueShift;
+            int a = hasAlpha ? ((value >>> alphaOffset) & alphaMask) << alphaShift : 0xff;
+            argb[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private static int getMask(int length) {
+        return (1 << length) - 1;
+    }
+
+    /**
+     * Converts a screenshot to PNG.
+     *
+     * @param rawImage the screenshot
+     * @param compressionLevel the compression level, from 0 to 9, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}
+     * @return the PNG data
+     * @throws UnsupportedOperationException if the pixel format is not supported
+     */
+    public static byte[] encodePng(RawImage rawImage, int compressionLevel) {
+        int[] argb = new int[rawImage.width * rawImage.height];
+        convertToArgb(rawImage, argb);
+        return encodePng(argb, rawImage.width, rawImage.height, rawImage.alpha_length != 0,
+                compressionLevel);
+    }
+
+    /**
+     * Encodes ARGB pixels as PNG.
+     *
+     * @param argb the pixels, row by row
+     * @param width the image width
+     * @param height the image height
+     * @param hasAlpha whether to store the alpha channel
+     * @param compressionLevel the compression level, from 0 to 9, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}
+     * @return the PNG data
+     */
+    public static byte[] encodePng(int[] argb, int width, int height, boolean hasAlpha,
+            int compressionLevel) {
+        final int channels = hasAlpha ? 4 : 3;
+        // use initial buffer size of 128K
+        ByteArrayOutputStream imageData = new ByteArrayOutputStream(128 * 1024);
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(imageData, deflater,
+                    64 * 1024);
+            byte[] row = new byte[1 + width * channels];
+            row[0] = FILTER_SUB;
+            for (int y = 0; y < height; y++) {
+                int prevPixel = 0;
+                int rowIndex = 1;
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    int pixel = argb[i];
+                    row[rowIndex++] = (byte)((pixel >>> 16) - (prevPixel >>> 16));
+                    row[rowIndex++] = (byte)((pixel >>> 8) - (prevPixel >>> 8));
+                    row[rowIndex++] = (byte)(pixel - prevPixel);
+                    if (hasAlpha) {
+                        row[rowIndex++] = (byte)((pixel >>> 24) - (prevPixel >>> 24));
+                    }
+                    prevPixel = pixel;
+                }
+                deflaterStream.write(row);
+            }
+            deflaterStream.finish();
+
+            ByteArrayOutputStream png = new ByteArrayOutputStream(imageData.size() + 64);
+            png.write(PNG_SIGNATURE);
+            ByteArrayOutputStream headerData = new ByteArrayOutputStream(13);
+            DataOutputStream header = new DataOutputStream(headerData);
+            header.writeInt(width);
+            header.writeInt(height);
+            header.writeByte(8);
+            header.writeByte(hasAlpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+            // default compression, filtering and no interlacing
+            header.writeByte(0);
+            header.writeByte(0);
+            header.writeByte(0);
+            writeChunk(png, "IHDR", headerData.toByteArray());
+            writeChunk(png, "IDAT", imageData.toByteArray());
+            writeChunk(png, "IEND", new byte[0]);
+            return png.toByteArray();
+        } catch (IOException e) {
+            // not expected when writing to memory
+            throw new RuntimeException(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeChunk(ByteArrayOutputStream png, String type, byte[] data)
+            throws IOException {
+        DataOutputStream chunk = new DataOutputStream(png);
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        chunk.writeInt(data.length);
+        chunk.write(typeBytes);
+        chunk.write(data);
+        chunk.writeInt((int)crc.getValue());
+    }
+
+    /**
+     * Converts a screenshot to PNG on a background thread.
+     *
+     * @param rawImage the screenshot
+     * @param compressionLevel the compression level, from 0 to 9, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}
+     * @return a {@link Future} for the PNG data
+     */
+    public static Future<byte[]> encodePngAsync(final RawImage rawImage,
+            final int compressionLevel) {
+        return getEncodeExecutor().submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return encodePng(rawImage, compressionLevel);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getEncodeExecutor() {
+        if (sEncodeExecutor == null) {
+            int numThreads = Math.max(1, Math.min(MAX_ENCODE_THREADS,
+                    Runtime.getRuntime().availableProcessors() / 2));
+            sEncodeExecutor = new ThreadPoolExecutor(numThreads, numThreads, 0,
+                    TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(numThreads),
+                    new ThreadFactory() {
+                        private int mThreadCount = 0;
+
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, String.format("ScreenshotEncoder-%d",
+                                    mThreadCount++));
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return sEncodeExecutor;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.MultiLineReceiver;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A {@link IShellOutputReceiver} that splits shell output into lines without decoding it.
+ * <p/>
+ * Line splitting and trimming match {@link MultiLineReceiver}: lines are separated by "\r\n",
+ * complete lines are trimmed, and any unfinished line is passed untrimmed to
+ * {@link #processLine(byte[], int, int)} on {@link #flush()}. Unlike {@link MultiLineReceiver},
+ * lines are handed to subclasses as ranges of the received buffer, so parsers that are only
+ * interested in a few lines of very large output don't pay for building a {@link String} per
+ * line.
+ */
+public abstract class StreamingLineReceiver implements IShellOutputReceiver {
+
+    private static final String ENCODING = "UTF-8";
+
+    /** bytes of the line that has not been terminated yet */
+    private byte[] mUnfinishedLine = new byte[128];
+    private int mUnfinishedLength = 0;
+    /** true if output was received since the last flush */
+    private boolean mHasUnfinishedLine = false;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+        // like MultiLineReceiver, always track an unfinished line, even if empty
+        mHasUnfinishedLine = true;
+        final int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (i > lineStart) {
+                if (data[i - 1] != '\r') {
+                    continue;
+                }
+                if (mUnfinishedLength == 0) {
+                    processTrimmedLine(data, lineStart, i - 1);
+                } else {
+                    appendUnfinished(data, lineStart, i - 1 - lineStart);
+                    processTrimmedLine(mUnfinishedLine, 0, mUnfinishedLength);
+                    mUnfinishedLength = 0;
+                }
+            } else {
+                // "\r" may have been the last byte of the previous chunk
+                if (mUnfinishedLength == 0 || mUnfinishedLine[mUnfinishedLength - 1] != '\r') {
+                    continue;
+                }
+                processTrimmedLine(mUnfinishedLine, 0, mUnfinishedLength - 1);
+                mUnfinishedLength = 0;
+            }
+            lineStart = i + 1;
+        }
+        appendUnfinished(data, lineStart, end - lineStart);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void flush() {
+        if (mHasUnfinishedLine) {
+            mHasUnfinishedLine = false;
+            int length = mUnfinishedLength;
+            mUnfinishedLength = 0;
+            processLine(mUnfinishedLine, 0, length);
+        }
+        done();
+    }
+
+    /**
+     * Called for each line of output.
+     * <p/>
+     * The contents of <var>data</var> are only valid for the duration of the call.
+     *
+     * @param data the buffer containing the line
+     * @param start the index of the first byte of the line
+     * @param end the index after the last byte of the line, excluding the line separator
+     */
+    protected abstract void processLine(byte[] data, int start, int end);
+
+    /**
+     * Called at the end of the process execution (unless the process was canceled). This allows
+     * the receiver to terminate and flush whatever data was not yet processed.
+     */
+    public void done() {
+        // ignore
+    }
+
+    private void processTrimmedLine(byte[] data, int start, int end) {
+        while (start < end && isWhitespace(data[start])) {
+            start++;
+        }
+        while (end > start && isWhitespace(data[end - 1])) {
+            end--;
+        }
+        processLine(data, start, end);
+    }
+
+    private void appendUnfinished(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        int required = mUnfinishedLength + length;
+        if (required > mUnfinishedLine.length) {
+            byte[] newBuffer = new byte[Math.max(required, mUnfinishedLine.length * 2)];
+            System.arraycopy(mUnfinishedLine, 0, newBuffer, 0, mUnfinishedLength);
+            mUnfinishedLine = newBuffer;
+        }
+        System.arraycopy(data, offset, mUnfinishedLine, mUnfinishedLength, length);
+        mUnfinishedLength = required;
+    }
+
+    /**
+     * Same definition of whitespace as {@link String#trim()}. Bytes of multi-byte UTF-8
+     * characters are never whitespace.
+     */
+    private static boolean isWhitespace(byte b) {
+        return (b & 0xff) <= ' ';
+    }
+
+    /**
+     * Returns <code>true</code> if given range of <var>data</var> starts with <var>prefix</var>.
+     */
+    protected static boolean startsWith(byte[] data, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first occurrence of <var>pattern</var> in given range of
+     * <var>data</var>, or -1 if not found.
+     */
+    protected static int indexOf(byte[] data, int start, int end, byte[] pattern) {
+        if (pattern.length == 0) {
+            return start;
+        }
+        final byte first = pattern[0];
+        final int last = end - pattern.length;
+        for (int i = start; i <= last; i++) {
+            if (data[i] == first && startsWith(data, i, end, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes given range of <var>data</var> into a {@link String}, trimming whitespace.
+     */
+    protected static String decodeTrimmed(byte[] data, int start, int end) {
+        while (start < end && isWhitespace(data[start])) {
+            start++;
+        }
+        while (end > start && isWhitespace(data[end - 1])) {
+            end--;
+        }
+        return decode(data, start, end);
+    }
+
+    /**
+     * Decodes given range of <var>data</var> into a {@link String}.
+     */
+    protected static String decode(byte[] data, int start, int end) {
+        try {
+            return new String(data, start, end - start, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            return new String(data, start, end - start);
+        }
+    }
+
+    /**
+     * Encodes given {@link String} with the same encoding used to decode output.
+     */
+    protected static byte[] encode(String s) {
+        try {
+            return s.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            return s.getBytes();
+        }
+    }
+}
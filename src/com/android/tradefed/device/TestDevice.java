@@ -36,6 +36,7 @@ import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.WifiHelper.WifiState;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.FutureInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.StubTestRunListener;
 import com.android.tradefed.targetprep.TargetSetupError;
@@ -45,10 +46,7 @@ import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
-import com.android.tradefed.util.StreamUtil;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
@@ -66,8 +64,6 @@ import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.imageio.ImageIO;
-
 /**
  * Default implementation of a {@link ITestDevice}
  */
@@ -126,6 +122,8 @@ class TestDevice implements IManagedTestDevice {
 
     private TestDeviceOptions mOptions = new TestDeviceOptions();
     private Process mEmulatorProcess;
+    private final DeviceCommandDispatcher mDispatcher = new DeviceCommandDispatcher(
+            mOptions.getMaxAdbSessions(), mOptions.getMaxBackgroundAdbSessions());
 
     private RecoveryMode mRecoveryMode = RecoveryMode.AVAILABLE;
 
@@ -207,6 +205,8 @@ class TestDevice implements IManagedTestDevice {
         mOptions = options;
         mMonitor.setDefaultOnlineTimeout(options.getOnlineTimeout());
         mMonitor.setDefaultAvailableTimeout(options.getAvailableTimeout());
+        mDispatcher.setSessionLimits(options.getMaxAdbSessions(),
+                options.getMaxBackgroundAdbSessions());
     }
 
     /**
@@ -437,6 +437,15 @@ class TestDevice implements IManagedTestDevice {
     @Override
     public void executeShellCommand(final String command, final IShellOutputReceiver receiver)
             throws DeviceNotAvailableException {
+        executeShellCommand(command, receiver, CommandPriority.FOREGROUND);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void executeShellCommand(final String command, final IShellOutputReceiver receiver,
+            CommandPriority priority) throws DeviceNotAvailableException {
         DeviceAction action = new DeviceAction() {
             @Override
             public boolean run() throws TimeoutException, IOException,
@@ -445,7 +454,8 @@ class TestDevice implements IManagedTestDevice {
                 return true;
             }
         };
-        performDeviceAction(String.format("shell %s", command), action, MAX_RETRY_ATTEMPTS);
+        performDeviceAction(String.format("shell %s", command), action, MAX_RETRY_ATTEMPTS,
+                priority);
     }
 
     /**
@@ -499,9 +509,10 @@ class TestDevice implements IManagedTestDevice {
                 runner.getPackageName()), runTestsAction, 0);
         if (failureListener.isRunFailure()) {
             // run failed, might be system crash. Ensure device is up
+            long recoveryGeneration = mDispatcher.getRecoveryGeneration();
             if (mMonitor.waitForDeviceAvailable(5 * 1000) == null) {
                 // device isn't up, recover
-                recoverDevice();
+                recoverDevice(recoveryGeneration);
             }
         }
         return result;
@@ -1267,8 +1278,25 @@ class TestDevice implements IManagedTestDevice {
      */
     private boolean performDeviceAction(String actionDescription, final DeviceAction action,
             int retryAttempts) throws DeviceNotAvailableException {
+        return performDeviceAction(actionDescription, action, retryAttempts,
+                CommandPriority.FOREGROUND);
+    }
+
+    /**
+     * Performs an action on this device with given {@link CommandPriority}.
+     * <p/>
+     * The action waits for one of the device's adb sessions to be available. If it fails, the
+     * session is released before the device is recovered, and if another thread is already
+     * recovering the device the action waits for that recovery rather than starting another.
+     *
+     * @see #performDeviceAction(String, DeviceAction, int)
+     */
+    private boolean performDeviceAction(String actionDescription, final DeviceAction action,
+            int retryAttempts, CommandPriority priority) throws DeviceNotAvailableException {
 
         for (int i = 0; i < retryAttempts + 1; i++) {
+            long recoveryGeneration = mDispatcher.getRecoveryGeneration();
+            mDispatcher.acquireSession(priority);
             try {
                 return action.run();
             } catch (TimeoutException e) {
@@ -1291,10 +1319,12 @@ class TestDevice implements IManagedTestDevice {
             } catch (ShellCommandUnresponsiveException e) {
                 CLog.w("Device %s stopped responding when attempting %s", getSerialNumber(),
                         actionDescription);
+            } finally {
+                mDispatcher.releaseSession();
             }
             // TODO: currently treat all exceptions the same. In future consider different recovery
             // mechanisms for time out's vs IOExceptions
-            recoverDevice();
+            recoverDevice(recoveryGeneration);
         }
         if (retryAttempts > 0) {
             throw new DeviceUnresponsiveException(String.format("Attempted %s multiple times "
@@ -1375,6 +1405,26 @@ class TestDevice implements IManagedTestDevice {
         CLog.i("Recovery successful for %s", getSerialNumber());
     }
 
+    /**
+     * Attempts to recover device communication, coordinating with other threads using the
+     * device.
+     * <p/>
+     * If another thread is already recovering the device, waits for it and shares its outcome.
+     * Recovery is skipped if the device has already been recovered since
+     * <var>recoveryGeneration</var>.
+     *
+     * @param recoveryGeneration the recovery generation recorded before the failed operation
+     * @throws DeviceNotAvailableException if device is not longer available
+     */
+    private void recoverDevice(long recoveryGeneration) throws DeviceNotAvailableException {
+        mDispatcher.recover(recoveryGeneration, new DeviceCommandDispatcher.RecoveryAction() {
+            @Override
+            public void recover() throws DeviceNotAvailableException {
+                recoverDevice();
+            }
+        });
+    }
+
     /**
      * Attempts to recover device fastboot communication.
      *
@@ -1506,12 +1556,29 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public InputStreamSource getScreenshot() throws DeviceNotAvailableException {
-        ScreenshotAction action = new ScreenshotAction();
-        if (performDeviceAction("screenshot", action, MAX_RETRY_ATTEMPTS)) {
-            byte[] pngData = compressRawImageAsPng(action.mRawScreenshot);
-            if (pngData != null) {
-                return new ByteArrayInputStreamSource(pngData);
+        RawImage rawScreenshot = getRawScreenshot(CommandPriority.FOREGROUND);
+        if (rawScreenshot != null) {
+            if (!ScreenshotEncoder.isSupported(rawScreenshot)) {
+                CLog.e("Unsupported screenshot format from %s: %d bpp", getSerialNumber(),
+                        rawScreenshot.bpp);
+                return null;
             }
+            // compress in the background, so the caller can continue
+            return new FutureInputStreamSource(ScreenshotEncoder.encodePngAsync(
+                    rawScreenshot, getOptions().getScreenshotCompressionLevel()));
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RawImage getRawScreenshot(CommandPriority priority)
+            throws DeviceNotAvailableException {
+        ScreenshotAction action = new ScreenshotAction();
+        if (performDeviceAction("screenshot", action, MAX_RETRY_ATTEMPTS, priority)) {
+            return action.mRawScreenshot;
         }
         return null;
     }
@@ -1531,38 +1598,6 @@ class TestDevice implements IManagedTestDevice {
         }
     }
 
-    private byte[] compressRawImageAsPng(RawImage rawImage) {
-        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height,
-                BufferedImage.TYPE_INT_ARGB);
-
-        // borrowed conversion logic from platform/sdk/screenshot/.../Screenshot.java
-        int index = 0;
-        int IndexInc = rawImage.bpp >> 3;
-        for (int y = 0 ; y < rawImage.height ; y++) {
-            for (int x = 0 ; x < rawImage.width ; x++) {
-                int value = rawImage.getARGB(index);
-                index += IndexInc;
-                image.setRGB(x, y, value);
-            }
-        }
-        // store compressed image in memory, and let callers write to persistent storage
-        // use initial buffer size of 128K
-        byte[] pngData = null;
-        ByteArrayOutputStream imageOut = new ByteArrayOutputStream(128*1024);
-        try {
-            if (ImageIO.write(image, "png", imageOut)) {
-                pngData = imageOut.toByteArray();
-            } else {
-                CLog.e("Failed to compress screenshot to png");
-            }
-        } catch (IOException e) {
-            CLog.e("Failed to compress screenshot to png");
-            CLog.e(e);
-        }
-        StreamUtil.closeStream(imageOut);
-        return pngData;
-    }
-
     /**
      * {@inheritDoc}
      */
@@ -2167,8 +2202,9 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public void waitForDeviceOnline(long waitTime) throws DeviceNotAvailableException {
+        long recoveryGeneration = mDispatcher.getRecoveryGeneration();
         if (mMonitor.waitForDeviceOnline(waitTime) == null) {
-            recoverDevice();
+            recoverDevice(recoveryGeneration);
         }
     }
 
@@ -2177,8 +2213,9 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public void waitForDeviceOnline() throws DeviceNotAvailableException {
+        long recoveryGeneration = mDispatcher.getRecoveryGeneration();
         if (mMonitor.waitForDeviceOnline() == null) {
-            recoverDevice();
+            recoverDevice(recoveryGeneration);
         }
     }
 
@@ -2187,8 +2224,9 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public void waitForDeviceAvailable(long waitTime) throws DeviceNotAvailableException {
+        long recoveryGeneration = mDispatcher.getRecoveryGeneration();
         if (mMonitor.waitForDeviceAvailable(waitTime) == null) {
-            recoverDevice();
+            recoverDevice(recoveryGeneration);
         }
     }
 
@@ -2197,8 +2235,9 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public void waitForDeviceAvailable() throws DeviceNotAvailableException {
+        long recoveryGeneration = mDispatcher.getRecoveryGeneration();
         if (mMonitor.waitForDeviceAvailable() == null) {
-            recoverDevice();
+            recoverDevice(recoveryGeneration);
         }
     }
 
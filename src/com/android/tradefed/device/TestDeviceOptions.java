@@ -17,6 +17,8 @@ package com.android.tradefed.device;
 
 import com.android.tradefed.config.Option;
 
+import java.util.zip.Deflater;
+
 /**
  * Container for {@link ITestDevice} {@link Option}s
  */
@@ -63,6 +65,21 @@ public class TestDeviceOptions {
             + "to be available aka fully boot.")
     private long mAvailableTimeout = 6 * 60 * 1000;
 
+    @Option(name = "max-adb-sessions", description = "maximum number of concurrent adb commands "
+            + "to perform on the device.")
+    private int mMaxAdbSessions = 8;
+
+    @Option(name = "max-background-adb-sessions", description = "maximum number of concurrent "
+            + "adb commands performed by background work such as telemetry collection. Long-lived "
+            + "streaming collectors such as top and cpu stats do not count against this limit, "
+            + "but do count against max-adb-sessions.")
+    private int mMaxBackgroundAdbSessions = 2;
+
+    @Option(name = "screenshot-compression-level", description = "the PNG compression level "
+            + "for screenshots, from 0 to 9. Lower levels are faster, but produce larger files. "
+            + "-1 uses the default level.")
+    private int mScreenshotCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+
     /**
      * @return the mEnableAdbRoot
      */
@@ -214,4 +231,37 @@ public class TestDeviceOptions {
     public long getAvailableTimeout() {
         return mAvailableTimeout;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the maximum number of concurrent adb commands to perform on the device.
+     */
+    public int getMaxAdbSessions() {
+        return mMaxAdbSessions;
+    }
+
+    public void setMaxAdbSessions(int maxAdbSessions) {
+        mMaxAdbSessions = maxAdbSessions;
+    }
+
+    /**
+     * @return the maximum number of concurrent adb commands performed by background work.
+     */
+    public int getMaxBackgroundAdbSessions() {
+        return mMaxBackgroundAdbSessions;
+    }
+
+    public void setMaxBackgroundAdbSessions(int maxBackgroundAdbSessions) {
+        mMaxBackgroundAdbSessions = maxBackgroundAdbSessions;
+    }
+
+    /**
+     * @return the PNG compression level for screenshots.
+     */
+    public int getScreenshotCompressionLevel() {
+        return mScreenshotCompressionLevel;
+    }
+
+    public void setScreenshotCompressionLevel(int screenshotCompressionLevel) {
+        mScreenshotCompressionLevel = screenshotCompressionLevel;
+    }
+}
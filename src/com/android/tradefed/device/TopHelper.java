@@ -17,6 +17,7 @@
 package com.android.tradefed.device;
 
 import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.device.ITestDevice.CommandPriority;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.SimpleStats;
 
@@ -36,6 +37,9 @@ import java.util.regex.Pattern;
  * Provides a method to record the output of top and get all recorded CPU usage measurements or an
  * average of a specified range of measurements.  Note that top can cause approximately a 10%
  * overhead to the CPU usage while running, so results will not be entirely accurate.
+ * </p><p>
+ * Every measurement is kept until the helper is discarded. For long running measurements, use a
+ * {@link DeviceTelemetrySampler} with a {@link DeviceTelemetrySampler.TopProbe} instead.
  * </p>
  */
 public class TopHelper extends Thread {
@@ -122,18 +126,8 @@ public class TopHelper extends Thread {
                 }
             }
             for (String line : lines) {
-                line = line.trim();
-                Matcher m = TOP_PERCENT_PATTERN.matcher(line);
-                if (m.matches()) {
-                    TopStats s = new TopStats();
-
-                    // Will not trigger NumberFormatException due to TOP_PATTERN matching.
-                    s.mUserPercent = Double.parseDouble(m.group(1));
-                    s.mSystemPercent = Double.parseDouble(m.group(2));
-                    s.mIowPercent = Double.parseDouble(m.group(3));
-                    s.mIrqPercent = Double.parseDouble(m.group(4));
-                    s.mTotalPercent = (s.mUserPercent + s.mSystemPercent + s.mIowPercent +
-                            s.mIrqPercent);
+                TopStats s = parseTopStats(line);
+                if (s != null) {
                     synchronized(this) {
                         mTopStats.add(s);
                     }
@@ -179,6 +173,28 @@ public class TopHelper extends Thread {
         }
     }
 
+    /**
+     * Parse the CPU usage percentages from a line of top output.
+     *
+     * @param line a line of top output
+     * @return the {@link TopStats}, or {@code null} if the line does not contain the percentages
+     */
+    static TopStats parseTopStats(String line) {
+        Matcher m = TOP_PERCENT_PATTERN.matcher(line.trim());
+        if (!m.matches()) {
+            return null;
+        }
+        TopStats s = new TopStats();
+
+        // Will not trigger NumberFormatException due to TOP_PATTERN matching.
+        s.mUserPercent = Double.parseDouble(m.group(1));
+        s.mSystemPercent = Double.parseDouble(m.group(2));
+        s.mIowPercent = Double.parseDouble(m.group(3));
+        s.mIrqPercent = Double.parseDouble(m.group(4));
+        s.mTotalPercent = (s.mUserPercent + s.mSystemPercent + s.mIowPercent + s.mIrqPercent);
+        return s;
+    }
+
     private TopReceiver mReceiver = new TopReceiver();
 
     /**
@@ -232,7 +248,8 @@ public class TopHelper extends Thread {
     @Override
     public void run() {
         try {
-            mTestDevice.executeShellCommand(String.format(TOP_CMD, mDelay), mReceiver);
+            mTestDevice.executeShellCommand(String.format(TOP_CMD, mDelay), mReceiver,
+                    CommandPriority.STREAMING);
         } catch (DeviceNotAvailableException e) {
             CLog.e("Device %s not available: %s", mTestDevice.getSerialNumber(),
                     e.getMessage());
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records nested timing spans for the phases of an invocation, such as fetching the build, each
+ * {@link com.android.tradefed.targetprep.ITargetPreparer} and each
+ * {@link com.android.tradefed.testtype.IRemoteTest}.
+ * <p/>
+ * A trace is registered for the {@link ThreadGroup} of the invocation, in the same manner as the
+ * invocation's logger in {@link com.android.tradefed.log.LogRegistry}, so code running as part of
+ * the invocation can record spans via {@link #startSpan(String, String)} without needing a
+ * reference to the trace. Spans started when no trace is registered are ignored.
+ * <p/>
+ * The trace can be retrieved in the Chrome trace event format, which can be loaded in
+ * chrome://tracing. The duration of every span is also recorded in the host-wide
+ * {@link MetricsRegistry}, so time spent in each phase can be aggregated across invocations.
+ */
+public class InvocationTrace {
+
+    /** span category for the top level phases of an invocation */
+    public static final String INVOCATION = "invocation";
+    /** span category for each target preparer */
+    public static final String TARGET_PREPARER = "target_preparer";
+    /** span category for each test */
+    public static final String TEST = "test";
+    /** span category for device operations */
+    public static final String DEVICE = "device";
+
+    private static final Map<ThreadGroup, InvocationTrace> sTraces =
+            new Hashtable<ThreadGroup, InvocationTrace>();
+
+    private static final MetricsRegistry sMetrics = MetricsRegistry.getRegistry();
+    private static final String SPAN_METRIC = "tf_invocation_span_seconds";
+    private static final String SPAN_HELP = "Time spent in each phase of an invocation";
+
+    /** span returned when no trace is registered */
+    private static final Span NULL_SPAN = new Span(null, null, null, 0) {
+        @Override
+        public long end() {
+            return 0;
+        }
+    };
+
+    private final String mName;
+    private final long mStartNs;
+    private long mEndNs = -1;
+    /** completed spans, in the order they ended. Guarded by this */
+    private final List<Span> mSpans = new ArrayList<Span>();
+    /** the open spans of each thread, innermost first. Guarded by this */
+    private final Map<Thread, LinkedList<Span>> mOpenSpans =
+            new HashMap<Thread, LinkedList<Span>>();
+
+    /**
+     * A timed span. Spans started on the same thread nest inside any span still open on that
+     * thread.
+     */
+    public static class Span {
+        private final InvocationTrace mTrace;
+        private final String mCategory;
+        private final String mName;
+        private final Thread mThread;
+        private final long mStartNs;
+        private long mDurationNs = -1;
+        private long mChildDurationNs = 0;
+
+        Span(InvocationTrace trace, String category, String name, long startNs) {
+            mTrace = trace;
+            mCategory = category;
+            mName = name;
+            mThread = Thread.currentThread();
+            mStartNs = startNs;
+        }
+
+        /**
+         * Ends the span. Has no effect if the span has already ended.
+         *
+         * @return the duration of the span in ms
+         */
+        public long end() {
+            mTrace.endSpan(this, System.nanoTime());
+            return mDurationNs / 1000000;
+        }
+    }
+
+    /**
+     * Creates a {@link InvocationTrace}.
+     * <p/>
+     * Exposed for unit testing. Use {@link #startTrace(String)} instead.
+     *
+     * @param name the name of the invocation
+     */
+    InvocationTrace(String name) {
+        mName = name;
+        mStartNs = System.nanoTime();
+    }
+
+    /**
+     * Starts a trace, and registers it for the current {@link ThreadGroup}.
+     *
+     * @param name the name of the invocation
+     * @return the {@link InvocationTrace}
+     */
+    public static InvocationTrace startTrace(String name) {
+        InvocationTrace trace = new InvocationTrace(name);
+        sTraces.put(Thread.currentThread().getThreadGroup(), trace);
+        return trace;
+    }
+
+    /**
+     * Gets the trace registered for the current {@link ThreadGroup}.
+     *
+     * @return the {@link InvocationTrace} or <code>null</code> if no trace is registered
+     */
+    public static InvocationTrace getTrace() {
+        return sTraces.get(Thread.currentThread().getThreadGroup());
+    }
+
+    /**
+     * Starts a span in the trace registered for the current {@link ThreadGroup}.
+     *
+     * @param category the category of the span, such as {@link #TARGET_PREPARER}
+     * @param name the name of the span
+     * @return the {@link Span}. Never <code>null</code>.
+     */
+    public static Span startSpan(String category, String name) {
+        InvocationTrace trace = getTrace();
+        if (trace == null) {
+            return NULL_SPAN;
+        }
+        return trace.start(category, name);
+    }
+
+    /**
+     * Starts a span in this trace.
+     *
+     * @param category the category of the span
+     * @param name the name of the span
+     * @return the {@link Span}
+     */
+    public synchronized Span start(String category, String name) {
+        Span span = new Span(this, category, name, System.nanoTime());
+        LinkedList<Span> openSpans = mOpenSpans.get(span.mThread);
+        if (openSpans == null) {
+            openSpans = new LinkedList<Span>();
+            mOpenSpans.put(span.mThread, openSpans);
+        }
+        openSpans.addFirst(span);
+        return span;
+    }
+
+    private void endSpan(Span span, long endNs) {
+        synchronized (this) {
+            if (span.mDurationNs >= 0) {
+                return;
+            }
+            span.mDurationNs = endNs - span.mStartNs;
+            LinkedList<Span> openSpans = mOpenSpans.get(span.mThread);
+            openSpans.remove(span);
+            if (!openSpans.isEmpty()) {
+                openSpans.getFirst().mChildDurationNs += span.mDurationNs;
+            }
+            mSpans.add(span);
+        }
+        sMetrics.getHistogram(SPAN_METRIC, SPAN_HELP, "category", span.mCategory, "name",
+                span.mName).record(span.mDurationNs / 1000000);
+    }
+
+    /**
+     * Ends the trace, and unregisters it if it is registered for the current
+     * {@link ThreadGroup}. Spans still open are ended.
+     */
+    public void finish() {
+        long endNs = System.nanoTime();
+        List<Span> openSpans = new ArrayList<Span>();
+        synchronized (this) {
+            if (mEndNs >= 0) {
+                return;
+            }
+            mEndNs = endNs;
+            for (LinkedList<Span> threadSpans : mOpenSpans.values()) {
+                openSpans.addAll(threadSpans);
+            }
+        }
+        // end innermost spans first, so child durations are accounted to their parent
+        for (Span span : openSpans) {
+            endSpan(span, endNs);
+        }
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        if (sTraces.get(group) == this) {
+            sTraces.remove(group);
+        }
+    }
+
+    /**
+     * Gets the trace in the Chrome trace event format.
+     */
+    public synchronized InputStreamSource getTraceData() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        appendEvent(json, "M", "process_name", null, 0, 0, -1);
+        json.append(",\"args\":{\"name\":");
+        appendString(json, mName);
+        json.append("}}");
+        Map<Thread, Integer> threadIds = new LinkedHashMap<Thread, Integer>();
+        for (Span span : mSpans) {
+            Integer tid = threadIds.get(span.mThread);
+            if (tid == null) {
+                tid = threadIds.size();
+                threadIds.put(span.mThread, tid);
+                json.append(",\n");
+                appendEvent(json, "M", "thread_name", null, tid, 0, -1);
+                json.append(",\"args\":{\"name\":");
+                appendString(json, span.mThread.getName());
+                json.append("}}");
+            }
+            json.append(",\n");
+            appendEvent(json, "X", span.mName, span.mCategory, tid,
+                    (span.mStartNs - mStartNs) / 1000, span.mDurationNs / 1000);
+            json.append("}");
+        }
+        json.append("\n]}\n");
+        return new ByteArrayInputStreamSource(json.toString().getBytes());
+    }
+
+    /**
+     * Append a trace event, without its closing brace.
+     */
+    private void appendEvent(StringBuilder json, String phase, String name, String category,
+            int tid, long timestampUs, long durationUs) {
+        json.append("{\"ph\":\"").append(phase).append("\",\"name\":");
+        appendString(json, name);
+        if (category != null) {
+            json.append(",\"cat\":");
+            appendString(json, category);
+        }
+        json.append(",\"pid\":0,\"tid\":").append(tid);
+        json.append(",\"ts\":").append(timestampUs);
+        if (durationUs >= 0) {
+            json.append(",\"dur\":").append(durationUs);
+        }
+    }
+
+    private void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int)c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Gets a breakdown of where the time of the invocation went.
+     * <p/>
+     * Each span is charged with its self time, i.e. its duration less the time spent in spans
+     * nested within it, and the totals are listed by span, slowest first. As an invocation runs
+     * its phases in sequence, the slowest spans are where the invocation's time is best reduced.
+     */
+    public synchronized String getSummary() {
+        long totalNs = (mEndNs >= 0 ? mEndNs : System.nanoTime()) - mStartNs;
+        final Map<String, Long> selfTimes = new HashMap<String, Long>();
+        for (Span span : mSpans) {
+            String key = String.format("%s:%s", span.mCategory, span.mName);
+            Long selfTime = selfTimes.get(key);
+            long spanSelfTime = span.mDurationNs - span.mChildDurationNs;
+            selfTimes.put(key, (selfTime == null ? 0 : selfTime) + spanSelfTime);
+        }
+        List<String> keys = new ArrayList<String>(selfTimes.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String key1, String key2) {
+                return selfTimes.get(key2).compareTo(selfTimes.get(key1));
+            }
+        });
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Time breakdown for %s, total %d ms:\n", mName,
+                totalNs / 1000000));
+        for (String key : keys) {
+            long selfTime = selfTimes.get(key);
+            summary.append(String.format("  %8d ms %5.1f%%  %s\n", selfTime / 1000000,
+                    totalNs > 0 ? 100.0 * selfTime / totalNs : 0, key));
+        }
+        return summary.toString();
+    }
+}
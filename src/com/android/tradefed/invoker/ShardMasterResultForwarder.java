@@ -16,6 +16,7 @@
 package com.android.tradefed.invoker;
 
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ResultForwarder;
 
@@ -30,9 +31,12 @@ import java.util.List;
  */
 class ShardMasterResultForwarder extends ResultForwarder {
 
+    private final int mTotalShards;
+    private final long mCreationTime;
     private int mShardsRemaining;
     private int mTotalElapsed = 0;
     private boolean mStartReported = false;
+    private boolean mFirstShardStarted = false;
 
     /**
      * Create a {@link ShardMasterResultForwarder}.
@@ -43,7 +47,9 @@ class ShardMasterResultForwarder extends ResultForwarder {
      */
     public ShardMasterResultForwarder(List<ITestInvocationListener> listeners, int expectedShards) {
         super(listeners);
+        mTotalShards = expectedShards;
         mShardsRemaining = expectedShards;
+        mCreationTime = System.currentTimeMillis();
     }
 
     @Override
@@ -51,6 +57,11 @@ class ShardMasterResultForwarder extends ResultForwarder {
         if (!mStartReported) {
             super.invocationStarted(buildInfo);
             mStartReported = true;
+        } else if (!mFirstShardStarted) {
+            // the start of the original invocation is reported first, so this is a shard
+            mFirstShardStarted = true;
+            CLog.i("First of %d shards started %d ms after sharding", mTotalShards,
+                    System.currentTimeMillis() - mCreationTime);
         }
     }
 
@@ -42,6 +42,8 @@ import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IShardableTest;
+import com.android.tradefed.util.metrics.Histogram;
+import com.android.tradefed.util.metrics.MetricsRegistry;
 
 import junit.framework.Test;
 
@@ -49,6 +51,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Default implementation of {@link ITestInvocation}.
@@ -64,6 +72,15 @@ public class TestInvocation implements ITestInvocation {
     static final String TRADEFED_LOG_NAME = "host_log";
     static final String DEVICE_LOG_NAME = "device_logcat";
     static final String BUILD_ERROR_BUGREPORT_NAME = "build_error_bugreport";
+    static final String TRACE_NAME = "invocation_trace";
+
+    /** the maximum number of shard configs to create in parallel */
+    private static final int MAX_SHARD_THREADS = 4;
+    private static final long SHARD_THREAD_IDLE_TIME_S = 60;
+
+    private static final MetricsRegistry sMetrics = MetricsRegistry.getRegistry();
+    private static final Histogram sInvocationTime = sMetrics.getHistogram(
+            "tf_invocation_duration_seconds", "Time from invocation start to end");
 
     private String mStatus = "(not invoked)";
 
@@ -103,16 +120,26 @@ public class TestInvocation implements ITestInvocation {
     @Override
     public void invoke(ITestDevice device, IConfiguration config, IRescheduler rescheduler)
             throws DeviceNotAvailableException {
+        InvocationTrace trace = InvocationTrace.startTrace(String.format("invocation on %s",
+                device.getSerialNumber()));
         try {
             mStatus = "fetching build";
             config.getLogOutput().init();
             getLogRegistry().registerLogger(config.getLogOutput());
-            IBuildInfo info = config.getBuildProvider().getBuild();
+            InvocationTrace.Span fetchSpan = InvocationTrace.startSpan(InvocationTrace.INVOCATION,
+                    "fetch_build");
+            IBuildInfo info = null;
+            try {
+                info = config.getBuildProvider().getBuild();
+            } finally {
+                fetchSpan.end();
+            }
             if (info != null) {
                 injectBuild(info, config.getTests());
-                if (shardConfig(config, info, rescheduler)) {
-                    CLog.i("Invocation for %s has been sharded, rescheduling",
-                            device.getSerialNumber());
+                if (shardConfig(config, device, info, rescheduler)) {
+                    // the log is closed once all shards have been rescheduled
+                    getLogRegistry().unregisterLogger();
+                    return;
                 } else {
                     device.setRecovery(config.getDeviceRecovery());
                     performInvocation(config, device, info, rescheduler);
@@ -124,6 +151,7 @@ public class TestInvocation implements ITestInvocation {
                 CLog.d("No build to test");
             }
         } catch (BuildRetrievalError e) {
+            countInvocation("build_retrieval_error");
             CLog.e(e);
             // report an empty invocation, so this error is sent to listeners
             startInvocation(config, device, e.getBuildInfo());
@@ -137,6 +165,8 @@ public class TestInvocation implements ITestInvocation {
             return;
         } catch (IOException e) {
             CLog.e(e);
+        } finally {
+            trace.finish();
         }
         // save current log contents to global log
         getLogRegistry().dumpToGlobalLog(config.getLogOutput());
@@ -166,42 +196,135 @@ public class TestInvocation implements ITestInvocation {
      * @see {@link IShardableTest}, {@link IRescheduler}
      *
      * @param config the current {@link IConfiguration}.
+     * @param device the {@link ITestDevice} of the invocation
      * @param info the {@link IBuildInfo} to test
      * @param rescheduler the {@link IRescheduler}
      * @return true if test was sharded. Otherwise return <code>false</code>
      */
-    private boolean shardConfig(IConfiguration config, IBuildInfo info, IRescheduler rescheduler) {
+    private boolean shardConfig(IConfiguration config, ITestDevice device, IBuildInfo info,
+            IRescheduler rescheduler) {
         mStatus = "sharding";
-        List<IRemoteTest> shardableTests = new ArrayList<IRemoteTest>();
-        boolean isSharded = false;
-        for (IRemoteTest test : config.getTests()) {
-            isSharded |= shardTest(shardableTests, test);
-        }
-        if (isSharded) {
-            ShardMasterResultForwarder resultCollector = new ShardMasterResultForwarder(
-                    config.getTestInvocationListeners(), shardableTests.size());
-            ShardListener origConfigListener = new ShardListener(resultCollector);
-            config.setTestInvocationListener(origConfigListener);
-            // report invocation started using original buildinfo
-            resultCollector.invocationStarted(info);
-            for (IRemoteTest testShard : shardableTests) {
-                CLog.i("Rescheduling sharded config...");
-                IConfiguration shardConfig = config.clone();
-                shardConfig.setTest(testShard);
-                shardConfig.setBuildProvider(new ExistingBuildProvider(info.clone(),
-                        config.getBuildProvider()));
-                shardConfig.setTestInvocationListener(new ShardListener(resultCollector));
-                shardConfig.setLogOutput(config.getLogOutput().clone());
-                shardConfig.setCommandOptions(config.getCommandOptions().clone());
-                // use the same {@link ITargetPreparer}, {@link IDeviceRecovery} etc as original
-                // config
-                rescheduler.scheduleConfig(shardConfig);
+        InvocationTrace.Span shardSpan = InvocationTrace.startSpan(InvocationTrace.INVOCATION,
+                "shard");
+        try {
+            List<IRemoteTest> shardableTests = new ArrayList<IRemoteTest>();
+            boolean isSharded = false;
+            for (IRemoteTest test : config.getTests()) {
+                isSharded |= shardTest(shardableTests, test);
+            }
+            if (isSharded) {
+                ShardMasterResultForwarder resultCollector = new ShardMasterResultForwarder(
+                        config.getTestInvocationListeners(), shardableTests.size());
+                ShardListener origConfigListener = new ShardListener(resultCollector);
+                config.setTestInvocationListener(origConfigListener);
+                // report invocation started using original buildinfo
+                resultCollector.invocationStarted(info);
+                CLog.i("Invocation for %s has been sharded, rescheduling",
+                        device.getSerialNumber());
+                scheduleShards(config, info, rescheduler, resultCollector, shardableTests);
+                return true;
             }
-            // clean up original build
-            config.getBuildProvider().cleanUp(info);
-            return true;
+            return false;
+        } finally {
+            shardSpan.end();
         }
-        return false;
+    }
+
+    /**
+     * Create and reschedule a config for each shard.
+     * <p/>
+     * Shard configs are created in parallel in the background, since cloning the build can be
+     * slow, and each is rescheduled as soon as it is ready. This lets the invocation complete and
+     * release its device without waiting for all shards. The original build is cleaned up, and
+     * the invocation log closed, once every shard has its own copy.
+     */
+    private void scheduleShards(final IConfiguration config, final IBuildInfo info,
+            final IRescheduler rescheduler, final ShardMasterResultForwarder resultCollector,
+            final List<IRemoteTest> shardableTests) {
+        final long startTime = System.currentTimeMillis();
+        final AtomicInteger remainingShards = new AtomicInteger(shardableTests.size());
+        ExecutorService executor = createShardExecutor(Thread.currentThread().getName());
+        for (final IRemoteTest testShard : shardableTests) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // each shard thread has its own thread group, so it can log to the
+                    // invocation's log
+                    getLogRegistry().registerLogger(config.getLogOutput());
+                    try {
+                        CLog.i("Rescheduling sharded config...");
+                        rescheduler.scheduleConfig(createShardConfig(config, info, testShard,
+                                resultCollector));
+                    } catch (RuntimeException e) {
+                        CLog.e("Failed to create sharded config");
+                        CLog.e(e);
+                        // complete the shard, so results of the other shards are still reported
+                        synchronized (resultCollector) {
+                            resultCollector.invocationFailed(e);
+                            resultCollector.invocationEnded(0);
+                        }
+                    } finally {
+                        boolean isLastShard = remainingShards.decrementAndGet() == 0;
+                        if (isLastShard) {
+                            CLog.i("Rescheduled %d shards in %d ms", shardableTests.size(),
+                                    System.currentTimeMillis() - startTime);
+                            // clean up original build
+                            config.getBuildProvider().cleanUp(info);
+                        }
+                        getLogRegistry().unregisterLogger();
+                        if (isLastShard) {
+                            getLogRegistry().dumpToGlobalLog(config.getLogOutput());
+                            config.getLogOutput().closeLog();
+                        }
+                    }
+                }
+            });
+        }
+        // let the queued shards complete, then release the threads
+        executor.shutdown();
+    }
+
+    /**
+     * Create the config for a shard.
+     */
+    private IConfiguration createShardConfig(IConfiguration config, IBuildInfo info,
+            IRemoteTest testShard, ShardMasterResultForwarder resultCollector) {
+        IConfiguration shardConfig = config.clone();
+        shardConfig.setTest(testShard);
+        shardConfig.setBuildProvider(new ExistingBuildProvider(info.clone(),
+                config.getBuildProvider()));
+        shardConfig.setTestInvocationListener(new ShardListener(resultCollector));
+        shardConfig.setLogOutput(config.getLogOutput().clone());
+        shardConfig.setCommandOptions(config.getCommandOptions().clone());
+        // use the same {@link ITargetPreparer}, {@link IDeviceRecovery} etc as original
+        // config
+        return shardConfig;
+    }
+
+    /**
+     * Create the {@link ExecutorService} used to create the shard configs of one invocation.
+     * <p/>
+     * Each thread is created in its own {@link ThreadGroup}, since the {@link LogRegistry} maps
+     * loggers by thread group. Threads are not daemons, so that queued shards are still scheduled
+     * if the process is shutting down.
+     */
+    private static ExecutorService createShardExecutor(final String invocationName) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_SHARD_THREADS,
+                MAX_SHARD_THREADS, SHARD_THREAD_IDLE_TIME_S, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int mThreadCount = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                String name = String.format("%s-ShardConfigCreator-%d", invocationName,
+                        mThreadCount++);
+                Thread thread = new Thread(new ThreadGroup(name), r, name);
+                thread.setDaemon(false);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
@@ -216,7 +339,8 @@ public class TestInvocation implements ITestInvocation {
         if (test instanceof IShardableTest) {
             IShardableTest shardableTest = (IShardableTest)test;
             Collection<IRemoteTest> shards = shardableTest.split();
-            if (shards != null) {
+            // with no shards, nothing would run the test or clean up the build
+            if (shards != null && !shards.isEmpty()) {
                 shardableTests.addAll(shards);
                 isSharded = true;
             }
@@ -269,25 +393,40 @@ public class TestInvocation implements ITestInvocation {
         boolean resumed = false;
         long startTime = System.currentTimeMillis();
         long elapsedTime = -1;
+        String result = "completed";
+
+        InvocationTrace.Span phaseSpan = null;
 
         info.setDeviceSerial(device.getSerialNumber());
         startInvocation(config, device, info);
         try {
             device.setOptions(config.getDeviceOptions());
+            phaseSpan = InvocationTrace.startSpan(InvocationTrace.INVOCATION, "target_setup");
             for (ITargetPreparer preparer : config.getTargetPreparers()) {
-                preparer.setUp(device, info);
+                InvocationTrace.Span preparerSpan = InvocationTrace.startSpan(
+                        InvocationTrace.TARGET_PREPARER, preparer.getClass().getSimpleName());
+                try {
+                    preparer.setUp(device, info);
+                } finally {
+                    preparerSpan.end();
+                }
             }
+            phaseSpan.end();
+            phaseSpan = InvocationTrace.startSpan(InvocationTrace.INVOCATION, "run_tests");
             runTests(device, info, config, rescheduler);
         } catch (BuildError e) {
+            result = "build_error";
             CLog.w("Build %s failed on device %s. Reason: %s", info.getBuildId(),
                     device.getSerialNumber(), e.toString());
             takeBugreport(device, config.getTestInvocationListeners());
             reportFailure(e, config.getTestInvocationListeners(), config.getBuildProvider(), info);
         } catch (TargetSetupError e) {
+            result = "target_setup_error";
             CLog.e("Caught exception while running invocation");
             CLog.e(e);
             reportFailure(e, config.getTestInvocationListeners(), config.getBuildProvider(), info);
         } catch (DeviceNotAvailableException e) {
+            result = "device_not_available";
             // log a warning here so its captured before reportLogs is called
             CLog.w("Invocation did not complete due to device %s becoming not available. " +
                     "Reason: %s", device.getSerialNumber(), e.getMessage());
@@ -300,15 +439,22 @@ public class TestInvocation implements ITestInvocation {
             }
             throw e;
         } catch (RuntimeException e) {
+            result = "error";
             // log a warning here so its captured before reportLogs is called
             CLog.w("Unexpected exception when running invocation: %s", e.toString());
             reportFailure(e, config.getTestInvocationListeners(), config.getBuildProvider(), info);
             throw e;
         } finally {
             mStatus = "done running tests";
+            if (phaseSpan != null) {
+                // end the current phase, so it does not include reporting
+                phaseSpan.end();
+            }
             try {
                 reportLogs(device, config.getTestInvocationListeners(), config.getLogOutput());
                 elapsedTime = System.currentTimeMillis() - startTime;
+                sInvocationTime.record(elapsedTime);
+                countInvocation(result);
                 if (!resumed) {
                     InvocationSummaryHelper.reportInvocationEnded(
                             config.getTestInvocationListeners(), elapsedTime);
@@ -319,6 +465,11 @@ public class TestInvocation implements ITestInvocation {
         }
     }
 
+    private void countInvocation(String result) {
+        sMetrics.getCounter("tf_invocations_total", "Number of invocations performed, by result",
+                "result", result).increment();
+    }
+
     /**
      * Starts the invocation.
      * <p/>
@@ -395,22 +546,39 @@ public class TestInvocation implements ITestInvocation {
 
     private void reportLogs(ITestDevice device, List<ITestInvocationListener> listeners,
             ILeveledLogOutput logger) {
-        InputStreamSource logcatSource = null;
-        InputStreamSource globalLogSource = logger.getLog();
-        if (device != null) {
-            logcatSource = device.getLogcat();
+        InvocationTrace.Span reportSpan = InvocationTrace.startSpan(InvocationTrace.INVOCATION,
+                "report_logs");
+        try {
+            if (device != null) {
+                InputStreamSource logcatSource = device.getLogcat();
+                for (ITestInvocationListener listener : listeners) {
+                    listener.testLog(DEVICE_LOG_NAME, LogDataType.TEXT, logcatSource);
+                }
+                logcatSource.cancel();
+            }
+        } finally {
+            reportSpan.end();
         }
 
+        // the trace and the tradefed log are reported last, so they cover as much as possible
+        InvocationTrace trace = InvocationTrace.getTrace();
+        InputStreamSource traceSource = null;
+        if (trace != null) {
+            trace.finish();
+            CLog.i(trace.getSummary());
+            traceSource = trace.getTraceData();
+        }
+        InputStreamSource globalLogSource = logger.getLog();
         for (ITestInvocationListener listener : listeners) {
-            if (logcatSource != null) {
-                listener.testLog(DEVICE_LOG_NAME, LogDataType.TEXT, logcatSource);
+            if (traceSource != null) {
+                listener.testLog(TRACE_NAME, LogDataType.JSON, traceSource);
             }
             listener.testLog(TRADEFED_LOG_NAME, LogDataType.TEXT, globalLogSource);
         }
 
         // Clean up after our ISSen
-        if (logcatSource != null) {
-            logcatSource.cancel();
+        if (traceSource != null) {
+            traceSource.cancel();
         }
         globalLogSource.cancel();
 
@@ -462,7 +630,13 @@ public class TestInvocation implements ITestInvocation {
             if (test instanceof IDeviceTest) {
                 ((IDeviceTest)test).setDevice(device);
             }
-            test.run(new ResultForwarder(listeners));
+            InvocationTrace.Span span = InvocationTrace.startSpan(InvocationTrace.TEST,
+                    test.getClass().getSimpleName());
+            try {
+                test.run(new ResultForwarder(listeners));
+            } finally {
+                span.end();
+            }
         }
     }
 
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A {@link Writer} that queues writes in a bounded ring buffer, and writes them to an underlying
+ * {@link Writer} on a background thread, so logging threads do not wait for file I/O.
+ * <p/>
+ * The background thread writes all entries queued since its last write as a batch, and flushes
+ * the underlying writer once no entries have been queued for {@link #FLUSH_DELAY_MS}. If the
+ * buffer is full, writers block until there is room, so log entries are never dropped.
+ */
+class AsyncLogWriter extends Writer {
+
+    /** time to wait for more entries before flushing the underlying writer */
+    static final long FLUSH_DELAY_MS = 100;
+
+    private final Writer mWriter;
+    private final Thread mWriterThread;
+
+    /** the ring buffer of queued entries. Guarded by this */
+    private final String[] mBuffer;
+    private int mHead = 0;
+    private int mCount = 0;
+    /** number of entries queued and written since creation. Guarded by this */
+    private long mQueuedCount = 0;
+    private long mWrittenCount = 0;
+    private boolean mClosed = false;
+    /** whether the background thread is waiting for entries. Guarded by this */
+    private boolean mWriterWaiting = false;
+    /** number of callers waiting for room, or for entries to be written. Guarded by this */
+    private int mCallersWaiting = 0;
+    /** the first error from the underlying writer, not yet reported to a caller */
+    private IOException mError = null;
+
+    /**
+     * Creates a {@link AsyncLogWriter}, and starts its background thread.
+     *
+     * @param writer the underlying {@link Writer}
+     * @param capacity the maximum number of queued entries
+     * @param name the name of the background thread
+     */
+    AsyncLogWriter(Writer writer, int capacity, String name) {
+        mWriter = writer;
+        mBuffer = new String[capacity];
+        mWriterThread = new Thread(name) {
+            @Override
+            public void run() {
+                writeQueuedEntries();
+            }
+        };
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(String str) throws IOException {
+        boolean interrupted = false;
+        synchronized (this) {
+            checkOpen();
+            while (mCount == mBuffer.length && !mClosed) {
+                interrupted |= waitAsCaller();
+            }
+            checkOpen();
+            mBuffer[(mHead + mCount) % mBuffer.length] = str;
+            mCount++;
+            mQueuedCount++;
+            if (mWriterWaiting) {
+                notifyAll();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        write(new String(cbuf, off, len));
+    }
+
+    /**
+     * Waits until all queued entries have been written, and flushes the underlying writer.
+     */
+    @Override
+    public void flush() throws IOException {
+        boolean interrupted = false;
+        synchronized (this) {
+            long target = mQueuedCount;
+            while (mWrittenCount < target && mWriterThread.isAlive()) {
+                interrupted |= waitAsCaller();
+            }
+            throwError();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mWriter.flush();
+    }
+
+    /**
+     * Writes all queued entries, then stops the background thread and closes the underlying
+     * writer.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriter.close();
+        synchronized (this) {
+            throwError();
+        }
+    }
+
+    /**
+     * Wait for the background thread to write entries.
+     *
+     * @return <code>true</code> if interrupted
+     */
+    private boolean waitAsCaller() {
+        mCallersWaiting++;
+        try {
+            wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        } finally {
+            mCallersWaiting--;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("log writer is closed");
+        }
+        throwError();
+    }
+
+    private void throwError() throws IOException {
+        if (mError != null) {
+            IOException error = mError;
+            mError = null;
+            throw error;
+        }
+    }
+
+    /**
+     * Main loop of the background thread.
+     */
+    private void writeQueuedEntries() {
+        String[] batch = new String[mBuffer.length];
+        boolean unflushed = false;
+        while (true) {
+            int batchSize;
+            synchronized (this) {
+                if (mCount == 0 && unflushed && !mClosed) {
+                    waitAsWriter(FLUSH_DELAY_MS);
+                }
+                if (mCount == 0 && unflushed) {
+                    batchSize = 0;
+                } else {
+                    while (mCount == 0 && !mClosed) {
+                        waitAsWriter(0);
+                    }
+                    if (mCount == 0) {
+                        // closed, and everything has been written and flushed
+                        return;
+                    }
+                    batchSize = mCount;
+                    for (int i = 0; i < batchSize; i++) {
+                        int index = (mHead + i) % mBuffer.length;
+                        batch[i] = mBuffer[index];
+                        mBuffer[index] = null;
+                    }
+                    mHead = (mHead + batchSize) % mBuffer.length;
+                    mCount = 0;
+                    if (mCallersWaiting > 0) {
+                        // wake any writers waiting for room
+                        notifyAll();
+                    }
+                }
+            }
+            IOException error = null;
+            try {
+                if (batchSize == 0) {
+                    // idle, flush everything written so far
+                    unflushed = false;
+                    mWriter.flush();
+                    continue;
+                }
+                for (int i = 0; i < batchSize; i++) {
+                    mWriter.write(batch[i]);
+                }
+                unflushed = true;
+            } catch (IOException e) {
+                error = e;
+            }
+            Arrays.fill(batch, 0, batchSize, null);
+            synchronized (this) {
+                if (error != null && mError == null) {
+                    mError = error;
+                }
+                mWrittenCount += batchSize;
+                if (mCallersWaiting > 0) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void waitAsWriter(long timeoutMs) {
+        mWriterWaiting = true;
+        try {
+            wait(timeoutMs);
+        } catch (InterruptedException e) {
+            // ignore, only stop once closed
+        } finally {
+            mWriterWaiting = false;
+        }
+    }
+}
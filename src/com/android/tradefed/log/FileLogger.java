@@ -31,6 +31,7 @@ import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import java.util.Collection;
 import java.util.HashSet;
 
@@ -41,9 +42,11 @@ import java.util.HashSet;
 public class FileLogger implements ILeveledLogOutput {
     private static final String TEMP_FILE_PREFIX = "tradefed_log_";
     private static final String TEMP_FILE_SUFFIX = ".txt";
+    /** the maximum number of log entries queued for writing */
+    private static final int LOG_BUFFER_CAPACITY = 8192;
 
     private File mTempLogFile = null;
-    private BufferedWriter mLogWriter = null;
+    private Writer mLogWriter = null;
 
     @Option(name = "log-level", description = "the minimum log level to log.")
     private LogLevel mLogLevel = LogLevel.DEBUG;
@@ -78,7 +81,9 @@ public class FileLogger implements ILeveledLogOutput {
     public void init() throws IOException {
         try {
             mTempLogFile = FileUtil.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
-            mLogWriter = new BufferedWriter(new FileWriter(mTempLogFile));
+            // write to the file in the background, so logging threads do not wait for file I/O
+            mLogWriter = new AsyncLogWriter(new BufferedWriter(new FileWriter(mTempLogFile)),
+                    LOG_BUFFER_CAPACITY, String.format("LogWriter-%s", mTempLogFile.getName()));
         }
         catch (IOException e) {
             if (mTempLogFile != null) {
@@ -139,7 +144,7 @@ public class FileLogger implements ILeveledLogOutput {
     }
 
     /**
-     * Writes given message to log.
+     * Queues given message to be written to log.
      * <p/>
      * Exposed for unit testing.
      *
@@ -261,7 +266,7 @@ public class FileLogger implements ILeveledLogOutput {
                 mCloseStackFrames = Thread.currentThread().getStackTrace();
                 // set mLogWriter to null first before closing, to prevent "write" calls after
                 // "close"
-                BufferedWriter writer = mLogWriter;
+                Writer writer = mLogWriter;
                 mLogWriter = null;
 
                 writer.flush();
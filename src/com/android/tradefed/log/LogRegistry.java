@@ -74,6 +74,21 @@ public class LogRegistry implements ILogRegistry {
         return mLogRegistry;
     }
 
+    /**
+     * Check if a message of the given {@link LogLevel} would be logged by the logger for the
+     * current thread. Does not create the {@link LogRegistry}.
+     *
+     * @return <code>true</code> if the message would be logged, or if the {@link LogRegistry}
+     *         has not been created
+     */
+    static boolean isLoggable(LogLevel logLevel) {
+        LogRegistry registry = mLogRegistry;
+        if (registry == null) {
+            return true;
+        }
+        return logLevel.getPriority() >= registry.getLogger().getLogLevel().getPriority();
+    }
+
     /**
      * {@inheritDoc}
      */
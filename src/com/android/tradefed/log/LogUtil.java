@@ -16,17 +16,48 @@
 
 package com.android.tradefed.log;
 
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A logging utility class.  Useful for code that needs to override static methods from {@link Log}
  */
 public class LogUtil {
 
+    /** {@link SimpleDateFormat} is not thread-safe, so each thread gets its own */
+    private static final ThreadLocal<TimestampFormatter> sTimestampFormatter =
+            new ThreadLocal<TimestampFormatter>() {
+        @Override
+        protected TimestampFormatter initialValue() {
+            return new TimestampFormatter();
+        }
+    };
+
+    /**
+     * Formats log timestamps. As timestamps have a resolution of one second, the last timestamp
+     * is reused until the second changes.
+     */
+    private static class TimestampFormatter {
+        private final SimpleDateFormat mFormat = new SimpleDateFormat("MM-dd HH:mm:ss");
+        private long mSecond = -1;
+        private String mTimestamp = null;
+
+        String format(long timeMs) {
+            long second = timeMs / 1000;
+            if (second != mSecond) {
+                mTimestamp = mFormat.format(new Date(timeMs));
+                mSecond = second;
+            }
+            return mTimestamp;
+        }
+    }
+
     /**
      * Make uninstantiable
      */
@@ -52,22 +83,34 @@ public class LogUtil {
      * {@see Log#getLogFormatString()}
      */
     public static String getLogFormatString(LogLevel logLevel, String tag, String message) {
-        SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss");
-        return String.format("%s %c/%s: %s\n", formatter.format(new Date()),
-                logLevel.getPriorityLetter(), tag, message);
+        StringBuilder formatted = new StringBuilder(128);
+        formatted.append(sTimestampFormatter.get().format(System.currentTimeMillis()));
+        formatted.append(' ').append(logLevel.getPriorityLetter()).append('/').append(tag);
+        formatted.append(": ").append(message).append('\n');
+        return formatted.toString();
     }
 
     /**
      * A shim class for {@link Log} that automatically uses the simple classname of the caller as
      * the log tag
+     * <p/>
+     * The log level is checked before the message is formatted or the caller is looked up, so
+     * calls below the current log level are cheap.
      */
     public static class CLog {
+        /** cache of fully-qualified class name to simple class name */
+        private static final Map<String, String> sSimpleNames =
+                new ConcurrentHashMap<String, String>();
+
         /**
          * The shim version of {@link Log#v(String, String)}.
          *
          * @param message The {@code String} to log
          */
         public static void v(String message) {
+            if (!isLoggable(LogLevel.VERBOSE)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.v(getClassName(2), message);
         }
@@ -80,6 +123,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void v(String format, Object... args) {
+            if (!isLoggable(LogLevel.VERBOSE)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.v(getClassName(2), String.format(format, args));
         }
@@ -90,6 +136,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void d(String message) {
+            if (!isLoggable(LogLevel.DEBUG)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.d(getClassName(2), message);
         }
@@ -102,6 +151,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void d(String format, Object... args) {
+            if (!isLoggable(LogLevel.DEBUG)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.d(getClassName(2), String.format(format, args));
         }
@@ -112,6 +164,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void i(String message) {
+            if (!isLoggable(LogLevel.INFO)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.i(getClassName(2), message);
         }
@@ -124,6 +179,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void i(String format, Object... args) {
+            if (!isLoggable(LogLevel.INFO)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.i(getClassName(2), String.format(format, args));
         }
@@ -134,6 +192,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void w(String message) {
+            if (!isLoggable(LogLevel.WARN)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.w(getClassName(2), message);
         }
@@ -146,6 +207,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void w(String format, Object... args) {
+            if (!isLoggable(LogLevel.WARN)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.w(getClassName(2), String.format(format, args));
         }
@@ -156,6 +220,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void e(String message) {
+            if (!isLoggable(LogLevel.ERROR)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.e(getClassName(2), message);
         }
@@ -168,6 +235,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void e(String format, Object... args) {
+            if (!isLoggable(LogLevel.ERROR)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.e(getClassName(2), String.format(format, args));
         }
@@ -179,6 +249,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void e(Throwable t) {
+            if (!isLoggable(LogLevel.ERROR)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.e(getClassName(2), t);
         }
@@ -195,9 +268,20 @@ public class LogUtil {
             Log.logAndDisplay(logLevel, getClassName(2), String.format(format, args));
         }
 
+        /**
+         * Check if a message of the given {@link LogLevel} would be logged, by both ddmlib and
+         * the {@link LogRegistry}.
+         */
+        private static boolean isLoggable(LogLevel logLevel) {
+            return logLevel.getPriority() >= DdmPreferences.getLogLevel().getPriority() &&
+                    LogRegistry.isLoggable(logLevel);
+        }
+
         /**
          * Return the simple classname from the {@code frame}th stack frame in the call path.
          * Note: this method does <emph>not</emph> check array bounds for the stack trace length.
+         * <p/>
+         * The simple name of each class is cached, so only the stack trace is captured per call.
          *
          * @param frame The index of the stack trace frame to inspect for the class name
          * @return The simple class name (or full-qualified if an error occurs getting a ref to the
@@ -206,21 +290,21 @@ public class LogUtil {
         public static String getClassName(int frame) {
             StackTraceElement[] frames = (new Throwable()).getStackTrace();
             String fullName = frames[frame].getClassName();
-            @SuppressWarnings("rawtypes")
-            Class klass = null;
+            String simpleName = sSimpleNames.get(fullName);
+            if (simpleName == null) {
+                simpleName = getSimpleName(fullName);
+                sSimpleNames.put(fullName, simpleName);
+            }
+            return simpleName;
+        }
+
+        private static String getSimpleName(String fullName) {
             try {
-                klass = Class.forName(fullName);
+                return Class.forName(fullName).getSimpleName();
             } catch (ClassNotFoundException e) {
                 // oops; not much we can do.
-                // Intentionally fall through so we hit the null check below
-            }
-
-            if (klass == null) {
                 return fullName;
-            } else {
-                return klass.getSimpleName();
             }
         }
     }
 }
-
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A result reporter that uploads test results and metrics to a server in batches, in background.
+ * <p/>
+ * Each test, test run and invocation is reported as a single line JSON record, and queued with a
+ * {@link ResultUploader} shared by all invocations using the same spool directory. Records are
+ * posted to [--upload-url] as newline separated JSON, many records per request, so the invocation
+ * never waits on the network.
+ */
+@OptionClass(alias = "batch-upload")
+public class BatchUploadResultReporter extends StubTestInvocationListener {
+
+    /** max length of a failure stack trace included in a record */
+    private static final int MAX_TRACE_LENGTH = 4 * 1024;
+
+    @Option(name = "upload-url", description = "the URL to post batches of result records to.")
+    private String mUploadUrl = null;
+
+    @Option(name = "spool-dir", description =
+            "the directory to store result records in until they are uploaded.")
+    private File mSpoolDir = new File(System.getProperty("java.io.tmpdir"),
+            "tradefed-result-spool");
+
+    @Option(name = "batch-size", description =
+            "the size in bytes of result records to upload in a single request.")
+    private long mBatchSize = 256 * 1024;
+
+    @Option(name = "batch-interval", description =
+            "the max time in ms to hold result records before uploading them.")
+    private long mBatchIntervalMs = 30 * 1000;
+
+    @Option(name = "max-spool-size", description =
+            "the max size in bytes of the result spool, above which the oldest records are " +
+            "discarded.")
+    private long mMaxSpoolSize = 64 * 1024 * 1024;
+
+    @Option(name = "compress-upload", description = "gzip compress uploaded result records.")
+    private boolean mCompressUpload = false;
+
+    private ResultUploader mUploader = null;
+    /** the JSON fields identifying the invocation, included in every record */
+    private String mInvocationFields = null;
+    private String mRunName = null;
+    private String mRunFailure = null;
+    private TestFailure mTestFailure = null;
+    private String mTestTrace = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationStarted(IBuildInfo buildInfo) {
+        if (mUploadUrl == null) {
+            CLog.e("Missing upload-url, results will not be uploaded");
+            return;
+        }
+        try {
+            mUploader = getUploader();
+        } catch (IOException e) {
+            CLog.e("Failed to create result spool, results will not be uploaded: %s",
+                    e.getMessage());
+            return;
+        }
+        StringBuilder fields = new StringBuilder();
+        appendField(fields, "build_id", buildInfo.getBuildId());
+        appendField(fields, "target", buildInfo.getBuildTargetName());
+        appendField(fields, "flavor", buildInfo.getBuildFlavor());
+        appendField(fields, "tag", buildInfo.getTestTag());
+        appendField(fields, "serial", buildInfo.getDeviceSerial());
+        mInvocationFields = fields.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        mRunName = runName;
+        mRunFailure = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        mTestFailure = null;
+        mTestTrace = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+        mTestFailure = status;
+        mTestTrace = trace;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        StringBuilder record = startRecord("test");
+        if (record == null) {
+            return;
+        }
+        appendField(record, "class", test.getClassName());
+        appendField(record, "test", test.getTestName());
+        appendField(record, "status", mTestFailure == null ? "PASSED" : mTestFailure.name());
+        if (mTestTrace != null) {
+            appendField(record, "trace", mTestTrace.length() > MAX_TRACE_LENGTH ?
+                    mTestTrace.substring(0, MAX_TRACE_LENGTH) : mTestTrace);
+        }
+        addRecord(record, testMetrics);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        mRunFailure = errorMessage;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        StringBuilder record = startRecord("run");
+        if (record == null) {
+            return;
+        }
+        record.append(",\"elapsed_ms\":").append(elapsedTime);
+        if (mRunFailure != null) {
+            appendField(record, "failure", mRunFailure);
+        }
+        addRecord(record, runMetrics);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(Throwable cause) {
+        StringBuilder record = startRecord("invocation_failed");
+        if (record == null) {
+            return;
+        }
+        appendField(record, "cause", String.valueOf(cause));
+        addRecord(record, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationEnded(long elapsedTime) {
+        StringBuilder record = startRecord("invocation");
+        if (record == null) {
+            return;
+        }
+        record.append(",\"elapsed_ms\":").append(elapsedTime);
+        addRecord(record, null);
+    }
+
+    /**
+     * Get the {@link ResultUploader} to use. Exposed for unit testing.
+     */
+    ResultUploader getUploader() throws IOException {
+        return ResultUploader.getUploader(mSpoolDir, mUploadUrl, mBatchSize, mBatchIntervalMs,
+                mMaxSpoolSize, mCompressUpload);
+    }
+
+    /**
+     * Start a record of the given type, or return <code>null</code> if results are not being
+     * uploaded.
+     */
+    private StringBuilder startRecord(String type) {
+        if (mUploader == null) {
+            return null;
+        }
+        StringBuilder record = new StringBuilder("{\"type\":");
+        appendString(record, type);
+        record.append(mInvocationFields);
+        if (mRunName != null) {
+            appendField(record, "run", mRunName);
+        }
+        return record;
+    }
+
+    /**
+     * Finish a record with its metrics, and queue it for upload.
+     */
+    private void addRecord(StringBuilder record, Map<String, String> metrics) {
+        if (metrics != null && !metrics.isEmpty()) {
+            record.append(",\"metrics\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> metric : metrics.entrySet()) {
+                if (!first) {
+                    record.append(',');
+                }
+                first = false;
+                appendString(record, metric.getKey());
+                record.append(':');
+                appendString(record, metric.getValue());
+            }
+            record.append('}');
+        }
+        record.append('}');
+        mUploader.addRecord(record.toString());
+    }
+
+    private void appendField(StringBuilder record, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        record.append(",\"").append(name).append("\":");
+        appendString(record, value);
+    }
+
+    /**
+     * Append a JSON string, escaping all non-ASCII characters so a record is ASCII and never
+     * contains a newline.
+     */
+    private void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20 || c >= 0x7f) {
+                json.append(String.format("\\u%04x", (int)c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -25,22 +25,39 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A pass-through {@link ITestInvocationListener} that checks the device for files and sends them
  * to {@link #testLog} if found.
+ * <p/>
+ * All patterns are expanded with a single shell command. Matching files are then pulled
+ * concurrently, each over its own sync connection, while the files already pulled are sent to
+ * {@link #testLog} in order.
  */
 public class DeviceFileReporter {
+    /** the default number of files to pull concurrently */
+    static final int DEFAULT_PULL_THREADS = 3;
+    /** printed before the files matching each pattern, followed by the pattern index */
+    static final String PATTERN_MARKER = "#DeviceFileReporter pattern ";
+
     private final Map<String, LogDataType> mFilePatterns = new LinkedHashMap<String, LogDataType>();
     private final ITestInvocationListener mListener;
     private final ITestDevice mDevice;
 
     private LogDataType mDefaultFileType = LogDataType.UNKNOWN;
+    private int mPullThreads = DEFAULT_PULL_THREADS;
 
     /**
      * Initialize a new DeviceFileReporter with the provided {@link ITestDevice}
@@ -100,43 +117,158 @@ public class DeviceFileReporter {
         mDefaultFileType = type;
     }
 
+    /**
+     * Set the maximum number of files to pull from the device concurrently.
+     *
+     * @param pullThreads the number of files to pull concurrently. Must be at least 1.
+     */
+    public void setPullThreads(int pullThreads) {
+        if (pullThreads < 1) {
+            throw new IllegalArgumentException("pullThreads must be at least 1");
+        }
+        mPullThreads = pullThreads;
+    }
+
+    /**
+     * A file matching one of the patterns, which is pulled in the background.
+     */
+    private static class PendingFile {
+        final String mFilename;
+        final LogDataType mType;
+        final Future<File> mPull;
+
+        PendingFile(String filename, LogDataType type, Future<File> pull) {
+            mFilename = filename;
+            mType = type;
+            mPull = pull;
+        }
+    }
+
     /**
      * Actually search the filesystem for the specified patterns and send them to
      * {@link ITestInvocationListener#testLog} if found
      */
     public List<String> run() throws DeviceNotAvailableException {
         List<String> filenames = new LinkedList<String>();
+        if (mFilePatterns.isEmpty()) {
+            return filenames;
+        }
+        // search for all patterns at once, marking where the matches for each pattern start
+        List<LogDataType> types = new ArrayList<LogDataType>(mFilePatterns.size());
+        StringBuilder searchCmd = new StringBuilder();
         for (Map.Entry<String, LogDataType> pat : mFilePatterns.entrySet()) {
-            final String searchCmd = String.format("ls '%s'", pat.getKey());
-            final String fileList = mDevice.executeShellCommand(searchCmd);
-            for (String filename : fileList.split("\r\n")) {
-                if (filename.isEmpty() || filename.endsWith(": No such file or directory")) {
+            searchCmd.append(String.format("echo '%s%d'; ls '%s'; ", PATTERN_MARKER,
+                    types.size(), pat.getKey()));
+            types.add(pat.getValue());
+        }
+        final String fileList = mDevice.executeShellCommand(searchCmd.toString());
+
+        ExecutorService pullExecutor = Executors.newFixedThreadPool(mPullThreads,
+                new ThreadFactory() {
+            private int mThreadCount = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("DeviceFileReporter-%s-%d",
+                        mDevice.getSerialNumber(), mThreadCount++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // files being pulled, in the order they will be reported
+        LinkedList<PendingFile> pendingFiles = new LinkedList<PendingFile>();
+        try {
+            LogDataType type = null;
+            for (String line : fileList.split("\r\n")) {
+                if (line.startsWith(PATTERN_MARKER)) {
+                    type = types.get(Integer.parseInt(line.substring(PATTERN_MARKER.length())));
+                    continue;
+                }
+                if (type == null || line.isEmpty() ||
+                        line.endsWith(": No such file or directory")) {
+                    continue;
+                }
+                pendingFiles.add(new PendingFile(line, type, pullExecutor.submit(
+                        createPullTask(line))));
+                // limit the number of pulled files waiting to be reported
+                if (pendingFiles.size() > mPullThreads * 2) {
+                    reportFile(pendingFiles.removeFirst(), filenames);
+                }
+            }
+            while (!pendingFiles.isEmpty()) {
+                reportFile(pendingFiles.removeFirst(), filenames);
+            }
+        } finally {
+            // pulls that never started will never complete, so cancel them
+            for (Runnable unstartedPull : pullExecutor.shutdownNow()) {
+                ((Future<?>)unstartedPull).cancel(false);
+            }
+            // clean up any files pulled but not reported, if reporting was aborted
+            for (PendingFile pendingFile : pendingFiles) {
+                if (pendingFile.mPull.isCancelled()) {
                     continue;
                 }
-                File file = null;
-                InputStreamSource iss = null;
                 try {
-                    CLog.v("Trying to pull file %s from device %s", filename,
-                            mDevice.getSerialNumber());
-                    file = mDevice.pullFile(filename);
-                    CLog.v("Local file %s has size %d", file, file.length());
-                    iss = createIssForFile(file);
-                    mListener.testLog(filename, pat.getValue(), iss);
-                    filenames.add(filename);
-                } catch (IOException e) {
-                    CLog.w("Failed to log file %s: %s", filename, e.getMessage());
-                } finally {
-                    if (iss != null) {
-                        iss.cancel();
-                        iss = null;
-                    }
-                    FileUtil.deleteFile(file);
+                    FileUtil.deleteFile(pendingFile.mPull.get());
+                } catch (InterruptedException e) {
+                    // ignore
+                } catch (ExecutionException e) {
+                    // ignore
                 }
             }
         }
         return filenames;
     }
 
+    private Callable<File> createPullTask(final String filename) {
+        return new Callable<File>() {
+            @Override
+            public File call() throws DeviceNotAvailableException {
+                CLog.v("Trying to pull file %s from device %s", filename,
+                        mDevice.getSerialNumber());
+                return mDevice.pullFile(filename);
+            }
+        };
+    }
+
+    /**
+     * Wait for a file to be pulled, and send it to {@link ITestInvocationListener#testLog}.
+     */
+    private void reportFile(PendingFile pendingFile, List<String> filenames)
+            throws DeviceNotAvailableException {
+        File file = null;
+        InputStreamSource iss = null;
+        try {
+            file = pendingFile.mPull.get();
+            if (file == null) {
+                CLog.w("Failed to pull file %s", pendingFile.mFilename);
+                return;
+            }
+            CLog.v("Local file %s has size %d", file, file.length());
+            iss = createIssForFile(file);
+            mListener.testLog(pendingFile.mFilename, pendingFile.mType, iss);
+            filenames.add(pendingFile.mFilename);
+        } catch (IOException e) {
+            CLog.w("Failed to log file %s: %s", pendingFile.mFilename, e.getMessage());
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while pulling file %s", pendingFile.mFilename);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException)e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            CLog.w("Failed to pull file %s: %s", pendingFile.mFilename, e.getCause());
+        } finally {
+            if (iss != null) {
+                iss.cancel();
+                iss = null;
+            }
+            FileUtil.deleteFile(file);
+        }
+    }
+
     /**
      * Create an {@link InputStreamSource} for a file
      * <p />
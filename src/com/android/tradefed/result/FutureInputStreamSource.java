@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * An {@link InputStreamSource} for data that is still being computed in the background.
+ * <p/>
+ * {@link #createInputStream()} and {@link #size()} wait for the computation to finish. If it
+ * fails, the failure is logged and {@link #createInputStream()} returns {@code null}.
+ */
+public class FutureInputStreamSource implements InputStreamSource {
+    private Future<byte[]> mData;
+    private boolean mIsCancelled = false;
+
+    /**
+     * Creates a {@link FutureInputStreamSource}.
+     *
+     * @param data the {@link Future} result of the computation
+     */
+    public FutureInputStreamSource(Future<byte[]> data) {
+        mData = data;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized InputStream createInputStream() {
+        byte[] data = getData();
+        if (data == null) {
+            return null;
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void cancel() {
+        if (!mIsCancelled) {
+            mIsCancelled = true;
+            mData.cancel(false);
+            mData = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long size() {
+        byte[] data = getData();
+        return data == null ? 0 : data.length;
+    }
+
+    /**
+     * Wait for the data to be computed.
+     *
+     * @return the data, or {@code null} if cancelled or the computation failed
+     */
+    private byte[] getData() {
+        if (mIsCancelled) {
+            return null;
+        }
+        try {
+            return mData.get();
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while waiting for data");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            CLog.e("Failed to compute data");
+            CLog.e(e.getCause());
+        }
+        return null;
+    }
+}
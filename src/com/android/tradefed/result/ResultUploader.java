@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.net.HttpHelper;
+import com.android.tradefed.util.net.IHttpHelper;
+import com.android.tradefed.util.net.IHttpHelper.DataSizeException;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads result records to a server in batches, in background, through a durable local spool.
+ * <p/>
+ * Records are appended to a spool file by a writer thread, which closes the file as a batch once
+ * it reaches the batch size or has been open for the batch interval. An uploader thread posts each
+ * closed batch, oldest first, and deletes it once the server accepts it, retrying with back-off
+ * while the server is unavailable. Batches left in the spool by a previous process are uploaded
+ * when the spool is next used.
+ * <p/>
+ * {@link #addRecord(String)} only waits for the writer, never for the network. The spool is kept
+ * below a maximum size by discarding the oldest batches, so an unavailable server cannot fill the
+ * disk.
+ * <p/>
+ * A single {@link ResultUploader} is shared by all users of a spool directory, so records from
+ * many invocations are coalesced into the same batches.
+ * <p/>
+ * A ready batch is named {@code batch-<time>-<sequence>-<record count>.batch}, so the spool can
+ * be trimmed without reading the batches it discards.
+ */
+public class ResultUploader {
+
+    private static final String BATCH_PREFIX = "batch-";
+    /** suffix of the batch being written */
+    private static final String OPEN_SUFFIX = ".open";
+    /** suffix of batches ready to upload */
+    private static final String BATCH_SUFFIX = ".batch";
+    /** suffix appended to batches that could not be deleted, to remove them from the spool */
+    private static final String FAILED_SUFFIX = ".failed";
+    /** max number of records waiting to be written before {@link #addRecord} waits */
+    private static final int MAX_PENDING_RECORDS = 10000;
+    private static final long INITIAL_RETRY_INTERVAL_MS = 10 * 1000;
+    private static final long MAX_RETRY_INTERVAL_MS = 10 * 60 * 1000;
+    /** marker record requesting that the open batch be closed */
+    private static final String FLUSH_RECORD = new String("flush");
+
+    private static final Map<File, ResultUploader> sUploaders = new HashMap<File, ResultUploader>();
+
+    private final File mSpoolDir;
+    private final String mPostUrl;
+    private final long mBatchSize;
+    private final long mBatchIntervalMs;
+    private final long mMaxSpoolSize;
+    private final IHttpHelper mHttpHelper;
+
+    private final LinkedBlockingQueue<String> mPendingRecords =
+            new LinkedBlockingQueue<String>(MAX_PENDING_RECORDS);
+    /** the batch being written, and the batch being uploaded. Guarded by this */
+    private File mOpenBatch = null;
+    private File mUploadingBatch = null;
+    /** batches that could be neither deleted nor renamed, and are ignored. Guarded by this */
+    private final Set<File> mIgnoredBatches = new HashSet<File>();
+    /** the stream, size and close time of the open batch. Only used by the writer */
+    private FileOutputStream mBatchOutput = null;
+    private long mOpenBatchSize = 0;
+    private int mOpenBatchRecords = 0;
+    private long mBatchEndTime = 0;
+    private int mBatchCount = 0;
+    private long mInitialRetryIntervalMs = INITIAL_RETRY_INTERVAL_MS;
+    private long mRetryIntervalMs = INITIAL_RETRY_INTERVAL_MS;
+    private long mUploadedCount = 0;
+    private long mDiscardedCount = 0;
+    /** number of flushes requested, and number of flush records processed by the writer */
+    private long mFlushesRequested = 0;
+    private long mFlushesDone = 0;
+
+    /**
+     * Get the {@link ResultUploader} for a spool directory, creating and starting it if
+     * necessary. The settings of an existing {@link ResultUploader} are not changed.
+     *
+     * @param spoolDir the directory to spool records in
+     * @param postUrl the URL to post batches to
+     * @param batchSize the size in bytes at which a batch is closed
+     * @param batchIntervalMs the time after which a batch with records is closed, in ms
+     * @param maxSpoolSize the max size of the spool in bytes, above which the oldest batches are
+     *            discarded
+     * @param compress whether to gzip compress uploads
+     * @return the {@link ResultUploader}
+     * @throws IOException if the spool directory could not be created
+     */
+    public static ResultUploader getUploader(File spoolDir, String postUrl, long batchSize,
+            long batchIntervalMs, long maxSpoolSize, boolean compress) throws IOException {
+        File dir = spoolDir.getAbsoluteFile();
+        synchronized (sUploaders) {
+            ResultUploader uploader = sUploaders.get(dir);
+            if (uploader == null) {
+                HttpHelper httpHelper = new HttpHelper();
+                httpHelper.setCompressRequests(compress);
+                uploader = new ResultUploader(dir, postUrl, batchSize, batchIntervalMs,
+                        maxSpoolSize, httpHelper);
+                uploader.start();
+                sUploaders.put(dir, uploader);
+            } else if (!uploader.mPostUrl.equals(postUrl)) {
+                CLog.w("Result spool %s already uploads to %s, ignoring %s", dir, uploader.mPostUrl,
+                        postUrl);
+            }
+            return uploader;
+        }
+    }
+
+    /**
+     * Creates a {@link ResultUploader}. Exposed for unit testing.
+     */
+    ResultUploader(File spoolDir, String postUrl, long batchSize, long batchIntervalMs,
+            long maxSpoolSize, IHttpHelper httpHelper) {
+        mSpoolDir = spoolDir;
+        mPostUrl = postUrl;
+        mBatchSize = batchSize;
+        mBatchIntervalMs = batchIntervalMs;
+        mMaxSpoolSize = maxSpoolSize;
+        mHttpHelper = httpHelper;
+    }
+
+    /**
+     * Set the interval to wait after the first failed upload. Exposed for unit testing.
+     */
+    synchronized void setInitialRetryInterval(long intervalMs) {
+        mInitialRetryIntervalMs = intervalMs;
+        mRetryIntervalMs = intervalMs;
+    }
+
+    /**
+     * Start the writer and uploader threads, first marking any batch left open by a previous
+     * process as ready to upload. Exposed for unit testing.
+     */
+    void start() throws IOException {
+        FileUtil.mkdirsRWX(mSpoolDir);
+        if (!mSpoolDir.isDirectory()) {
+            throw new IOException(String.format("Failed to create result spool %s",
+                    mSpoolDir.getAbsolutePath()));
+        }
+        for (File batch : listBatches(OPEN_SUFFIX)) {
+            closeBatch(batch, countRecords(batch));
+        }
+        Thread writerThread = new Thread(String.format("ResultSpoolWriter-%s",
+                mSpoolDir.getName())) {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Thread uploaderThread = new Thread(String.format("ResultUploader-%s",
+                mSpoolDir.getName())) {
+            @Override
+            public void run() {
+                uploadBatches();
+            }
+        };
+        uploaderThread.setDaemon(true);
+        uploaderThread.start();
+    }
+
+    /**
+     * Queues a record for upload. Waits only if the writer is far behind.
+     *
+     * @param record the record, which must not contain a newline
+     */
+    public void addRecord(String record) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mPendingRecords.put(record);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the open batch, and waits until all batches have been uploaded.
+     *
+     * @param timeoutMs the max time to wait in ms
+     * @return <code>true</code> if all batches were uploaded, <code>false</code> if timed out
+     */
+    public boolean flush(long timeoutMs) {
+        long endTime = System.currentTimeMillis() + timeoutMs;
+        long flushNumber;
+        synchronized (this) {
+            flushNumber = ++mFlushesRequested;
+        }
+        // records are written in order, so all earlier records are closed once this is processed
+        addRecord(FLUSH_RECORD);
+        synchronized (this) {
+            while (mFlushesDone < flushNumber || !listReadyBatches().isEmpty()) {
+                long waitTime = endTime - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    return false;
+                }
+                try {
+                    wait(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of records uploaded.
+     */
+    public synchronized long getUploadedCount() {
+        return mUploadedCount;
+    }
+
+    /**
+     * Get the number of records discarded to keep the spool below its max size.
+     */
+    public synchronized long getDiscardedCount() {
+        return mDiscardedCount;
+    }
+
+    /**
+     * Main loop of the writer thread. Appends records to the open batch, syncing after each group
+     * of records written at once, and closes the batch when it is full or old enough.
+     */
+    private void writeRecords() {
+        List<String> records = new ArrayList<String>();
+        StringBuilder data = new StringBuilder();
+        while (true) {
+            try {
+                String record;
+                if (mBatchOutput == null) {
+                    record = mPendingRecords.take();
+                } else {
+                    record = mPendingRecords.poll(
+                            Math.max(0, mBatchEndTime - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                }
+                if (record != null) {
+                    records.add(record);
+                    mPendingRecords.drainTo(records);
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+            int flushCount = 0;
+            for (String record : records) {
+                if (record == FLUSH_RECORD) {
+                    flushCount++;
+                    writeBatchData(data);
+                    closeOpenBatch();
+                } else {
+                    data.append(record).append('\n');
+                    if (mOpenBatchSize + data.length() >= mBatchSize) {
+                        writeBatchData(data);
+                        closeOpenBatch();
+                    }
+                }
+            }
+            records.clear();
+            writeBatchData(data);
+            if (mBatchOutput != null && System.currentTimeMillis() >= mBatchEndTime) {
+                closeOpenBatch();
+            }
+            synchronized (this) {
+                mFlushesDone += flushCount;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Append records to the open batch, creating it if necessary, and sync it.
+     *
+     * @param data the records to write, which is cleared
+     */
+    private void writeBatchData(StringBuilder data) {
+        if (data.length() == 0) {
+            return;
+        }
+        try {
+            if (mBatchOutput == null) {
+                mBatchOutput = new FileOutputStream(createBatch());
+                mOpenBatchSize = 0;
+                mOpenBatchRecords = 0;
+                mBatchEndTime = System.currentTimeMillis() + mBatchIntervalMs;
+            }
+            String records = data.toString();
+            byte[] bytes = records.getBytes("UTF-8");
+            mBatchOutput.write(bytes);
+            mBatchOutput.getFD().sync();
+            mOpenBatchSize += bytes.length;
+            mOpenBatchRecords += countRecords(records);
+        } catch (IOException e) {
+            CLog.e("Failed to write to result spool %s: %s", mSpoolDir.getAbsolutePath(),
+                    e.getMessage());
+        }
+        data.setLength(0);
+    }
+
+    /**
+     * Close the open batch, if any, so it is uploaded.
+     */
+    private void closeOpenBatch() {
+        if (mBatchOutput == null) {
+            return;
+        }
+        StreamUtil.closeStream(mBatchOutput);
+        mBatchOutput = null;
+        synchronized (this) {
+            closeBatch(mOpenBatch, mOpenBatchRecords);
+            mOpenBatch = null;
+        }
+        trimSpool();
+    }
+
+    private synchronized File createBatch() {
+        mOpenBatch = new File(mSpoolDir, String.format("%s%013d-%04d%s", BATCH_PREFIX,
+                System.currentTimeMillis(), mBatchCount++ % 10000, OPEN_SUFFIX));
+        return mOpenBatch;
+    }
+
+    /**
+     * Mark a batch as ready to upload.
+     *
+     * @param openBatch the open batch
+     * @param numRecords the number of complete records in the batch
+     */
+    private void closeBatch(File openBatch, int numRecords) {
+        String name = openBatch.getName();
+        File batch = new File(mSpoolDir, String.format("%s-%d%s",
+                name.substring(0, name.length() - OPEN_SUFFIX.length()), numRecords,
+                BATCH_SUFFIX));
+        if (!openBatch.renameTo(batch)) {
+            CLog.e("Failed to close result batch %s", openBatch.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Discard the oldest batches until the spool is below its max size.
+     */
+    private void trimSpool() {
+        List<File> batches = listReadyBatches();
+        long spoolSize = 0;
+        for (File batch : batches) {
+            spoolSize += batch.length();
+        }
+        for (File batch : batches) {
+            if (spoolSize <= mMaxSpoolSize) {
+                break;
+            }
+            long batchSize = batch.length();
+            int numRecords = getRecordCount(batch);
+            synchronized (this) {
+                // the uploader may have picked up or finished this batch since it was listed
+                if (batch.equals(mUploadingBatch) || !batch.exists()) {
+                    continue;
+                }
+                removeBatch(batch);
+                mDiscardedCount += numRecords;
+            }
+            spoolSize -= batchSize;
+            CLog.w("Result spool %s is full, discarding %d records", mSpoolDir.getAbsolutePath(),
+                    numRecords);
+        }
+    }
+
+    /**
+     * Main loop of the uploader thread. Uploads the oldest batch, waiting with an escalating
+     * interval after each failure.
+     */
+    private void uploadBatches() {
+        while (true) {
+            List<File> batches = waitForBatches();
+            File batch = batches.get(0);
+            synchronized (this) {
+                if (!batch.exists()) {
+                    // discarded since listed
+                    continue;
+                }
+                mUploadingBatch = batch;
+            }
+            String data;
+            try {
+                data = readBatch(batch);
+            } catch (IOException e) {
+                CLog.e("Failed to read result batch %s, discarding it: %s",
+                        batch.getAbsolutePath(), e.getMessage());
+                synchronized (this) {
+                    removeBatch(batch);
+                    mUploadingBatch = null;
+                    notifyAll();
+                }
+                continue;
+            }
+            // ignore any record left partially written by a crash
+            data = data.substring(0, data.lastIndexOf('\n') + 1);
+            try {
+                if (data.length() > 0) {
+                    mHttpHelper.doPostWithRetry(mPostUrl, data);
+                }
+                synchronized (this) {
+                    // the batch must not be uploaded again, even if it can't be deleted
+                    removeBatch(batch);
+                    mUploadingBatch = null;
+                    mUploadedCount += countRecords(data);
+                    mRetryIntervalMs = mInitialRetryIntervalMs;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                handleUploadFailure(batch, e);
+            } catch (DataSizeException e) {
+                handleUploadFailure(batch, e);
+            } catch (RuntimeException e) {
+                handleUploadFailure(batch, e);
+            }
+        }
+    }
+
+    private void handleUploadFailure(File batch, Exception e) {
+        long retryIntervalMs;
+        synchronized (this) {
+            retryIntervalMs = mRetryIntervalMs;
+            mRetryIntervalMs = Math.min(mRetryIntervalMs * 2, MAX_RETRY_INTERVAL_MS);
+        }
+        CLog.w("Failed to upload result batch %s to %s, retrying in %d ms: %s", batch.getName(),
+                mPostUrl, retryIntervalMs, e.toString());
+        RunUtil.getDefault().sleep(retryIntervalMs);
+    }
+
+    /**
+     * Wait until there are batches ready to upload. Batches are closed while holding the lock, so
+     * a batch closed after checking is always followed by a notification.
+     */
+    private synchronized List<File> waitForBatches() {
+        List<File> batches = listReadyBatches();
+        while (batches.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            batches = listReadyBatches();
+        }
+        return batches;
+    }
+
+    /**
+     * Remove a batch from the spool. A batch that can't be deleted is renamed so it is no longer
+     * listed, and if that fails too it is ignored by this process.
+     */
+    private synchronized void removeBatch(File batch) {
+        if (batch.delete() || !batch.exists()) {
+            return;
+        }
+        File failedBatch = new File(mSpoolDir, batch.getName() + FAILED_SUFFIX);
+        if (batch.renameTo(failedBatch)) {
+            CLog.e("Failed to delete result batch %s, moved it to %s", batch.getAbsolutePath(),
+                    failedBatch.getName());
+        } else {
+            CLog.e("Failed to delete or move result batch %s, ignoring it",
+                    batch.getAbsolutePath());
+            mIgnoredBatches.add(batch);
+        }
+    }
+
+    /**
+     * List the batches ready to upload, oldest first.
+     */
+    private synchronized List<File> listReadyBatches() {
+        List<File> batches = listBatches(BATCH_SUFFIX);
+        batches.removeAll(mIgnoredBatches);
+        return batches;
+    }
+
+    /**
+     * List the batches with the given suffix, oldest first.
+     */
+    private List<File> listBatches(final String suffix) {
+        File[] files = mSpoolDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(BATCH_PREFIX) &&
+                        file.getName().endsWith(suffix);
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<File>(Arrays.asList(files));
+    }
+
+    private static String readBatch(File batch) throws IOException {
+        InputStream input = new FileInputStream(batch);
+        try {
+            return StreamUtil.getStringFromStream(input);
+        } finally {
+            StreamUtil.closeStream(input);
+        }
+    }
+
+    /**
+     * Get the number of records in a ready batch, from its name if possible.
+     */
+    private static int getRecordCount(File batch) {
+        String name = batch.getName();
+        String[] segments = name.substring(0, name.length() - BATCH_SUFFIX.length()).split("-");
+        if (segments.length == 4) {
+            try {
+                return Integer.parseInt(segments[3]);
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        // batch named by an older version
+        return countRecords(batch);
+    }
+
+    private static int countRecords(File batch) {
+        try {
+            return countRecords(readBatch(batch));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static int countRecords(String data) {
+        int count = 0;
+        for (int i = 0; i < data.length(); i++) {
+            if (data.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -22,6 +22,7 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.IFileEntry;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.ITestDevice.RecoveryMode;
+import com.android.tradefed.invoker.InvocationTrace;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.FileUtil;
@@ -81,14 +82,25 @@ public class DefaultTestsZipInstaller implements ITestsZipInstaller {
 
         // Stop the runtime, so it doesn't notice us mucking with the filesystem
         device.executeShellCommand("stop");
-        deleteData(device);
+        InvocationTrace.Span span = InvocationTrace.startSpan(InvocationTrace.DEVICE,
+                "delete_data");
+        try {
+            deleteData(device);
+        } finally {
+            span.end();
+        }
 
         CLog.d("Syncing test files/apks");
-        File hostDir = new File(deviceBuild.getTestsDir(), "DATA");
+        File hostDir = deviceBuild.getTestsDirFile("DATA");
 
         File[] hostDataFiles = getTestsZipDataFiles(hostDir);
-        for (File hostSubDir : hostDataFiles) {
-            device.syncFiles(hostSubDir, DEVICE_DATA_PATH);
+        span = InvocationTrace.startSpan(InvocationTrace.DEVICE, "sync_tests_zip");
+        try {
+            for (File hostSubDir : hostDataFiles) {
+                device.syncFiles(hostSubDir, DEVICE_DATA_PATH);
+            }
+        } finally {
+            span.end();
         }
 
         // FIXME: this may end up mixing host slashes and device slashes
@@ -183,7 +195,7 @@ public class DefaultTestsZipInstaller implements ITestsZipInstaller {
      * @return array of {@link File}
      */
     File[] getTestsZipDataFiles(File hostDir) throws TargetSetupError {
-        if (!hostDir.isDirectory()) {
+        if (hostDir == null || !hostDir.isDirectory()) {
             throw new TargetSetupError("Unrecognized tests.zip content: missing DATA folder");
         }
         File[] childFiles = hostDir.listFiles();
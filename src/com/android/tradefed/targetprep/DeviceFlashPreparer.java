@@ -24,6 +24,7 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceUnresponsiveException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.ITestDevice.RecoveryMode;
+import com.android.tradefed.invoker.InvocationTrace;
 import com.android.tradefed.targetprep.IDeviceFlasher.UserDataFlashOption;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
@@ -105,11 +106,17 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
         flasher.setUserDataFlashOption(mUserDataFlashOption);
         flasher.setForceSystemFlash(mForceSystemFlash);
         preEncryptDevice(device, flasher);
-        flasher.flash(device, deviceBuild);
-        device.waitForDeviceOnline();
+        InvocationTrace.Span span = InvocationTrace.startSpan(InvocationTrace.DEVICE, "flash");
+        try {
+            flasher.flash(device, deviceBuild);
+            device.waitForDeviceOnline();
+        } finally {
+            span.end();
+        }
         postEncryptDevice(device, flasher);
         // only want logcat captured for current build, delete any accumulated log data
         device.clearLogcat();
+        span = InvocationTrace.startSpan(InvocationTrace.DEVICE, "wait_for_boot");
         try {
             device.setRecoveryMode(RecoveryMode.AVAILABLE);
             device.waitForDeviceAvailable(mDeviceBootTime);
@@ -118,6 +125,8 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
             throw new DeviceFailedToBootError(String.format(
                     "Device %s did not become available after flashing %s",
                     device.getSerialNumber(), deviceBuild.getDeviceBuildId()));
+        } finally {
+            span.end();
         }
         device.postBootSetup();
     }
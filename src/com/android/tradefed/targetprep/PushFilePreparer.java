@@ -18,6 +18,7 @@ package com.android.tradefed.targetprep;
 
 import com.android.ddmlib.Log;
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.build.IDeviceBuildInfo;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
@@ -39,7 +40,8 @@ public class PushFilePreparer implements ITargetPreparer {
 
     @Option(name="push", description=
             "A push-spec, formatted as '/path/to/srcfile.txt->/path/to/destfile.txt' or " +
-            "'/path/to/srcfile.txt->/path/to/destdir/'. May be repeated.")
+            "'/path/to/srcfile.txt->/path/to/destdir/'. Relative source paths not found on " +
+            "the host are looked up in the build's tests dir. May be repeated.")
     private Collection<String> mPushSpecs = new LinkedList<String>();
 
     @Option(name="post-push", description=
@@ -86,6 +88,21 @@ public class PushFilePreparer implements ITargetPreparer {
         }
     }
 
+    /**
+     * Resolve the local source file for a push-spec. Relative paths that do not exist on the host
+     * are looked up in the build's tests dir, if any, extracting them on demand.
+     */
+    private File resolveSrcFile(String path, IBuildInfo buildInfo) {
+        File src = new File(path);
+        if (!src.exists() && !src.isAbsolute() && buildInfo instanceof IDeviceBuildInfo) {
+            File testsDirFile = ((IDeviceBuildInfo)buildInfo).getTestsDirFile(path);
+            if (testsDirFile != null) {
+                return testsDirFile;
+            }
+        }
+        return src;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -101,7 +118,7 @@ public class PushFilePreparer implements ITargetPreparer {
                 continue;
             }
 
-            File src = new File(pair[0]);
+            File src = resolveSrcFile(pair[0], buildInfo);
             if (!src.exists()) {
                 fail(String.format("Local source file '%s' does not exist", pair[0]));
                 continue;
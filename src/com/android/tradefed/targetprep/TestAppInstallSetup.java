@@ -23,7 +23,6 @@ import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
-import com.android.tradefed.util.FileUtil;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -66,14 +65,15 @@ public class TestAppInstallSetup implements ITargetPreparer {
             Log.i(LOG_TAG, "No test apps to install, skipping");
             return;
         }
-        File testsDir = ((IDeviceBuildInfo)buildInfo).getTestsDir();
+        IDeviceBuildInfo deviceBuild = (IDeviceBuildInfo)buildInfo;
+        File testsDir = deviceBuild.getTestsDir();
         if (testsDir == null || !testsDir.exists()) {
             throw new TargetSetupError(
                     "Provided buildInfo does not contain a valid tests directory");
         }
 
         for (String testAppName : mTestFileNames) {
-            File testAppFile = FileUtil.getFileForPath(testsDir, "DATA", "app", testAppName);
+            File testAppFile = deviceBuild.getTestsDirFile("DATA", "app", testAppName);
             if (!testAppFile.exists()) {
                 throw new TargetSetupError(
                     String.format("Could not find test app %s directory in extracted tests.zip",
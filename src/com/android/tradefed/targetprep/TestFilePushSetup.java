@@ -25,7 +25,6 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
-import com.android.tradefed.util.FileUtil;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -69,14 +68,15 @@ public class TestFilePushSetup implements ITargetPreparer {
             CLog.d("No test files to push, skipping");
             return;
         }
-        File testsDir = ((IDeviceBuildInfo)buildInfo).getTestsDir();
+        IDeviceBuildInfo deviceBuild = (IDeviceBuildInfo)buildInfo;
+        File testsDir = deviceBuild.getTestsDir();
         if (testsDir == null || !testsDir.exists()) {
             throw new TargetSetupError(
                     "Provided buildInfo does not contain a valid tests directory");
         }
 
         for (String fileName : mTestPaths) {
-            File localFile = FileUtil.getFileForPath(testsDir, "DATA", fileName);
+            File localFile = deviceBuild.getTestsDirFile("DATA", fileName);
             if (!localFile.exists()) {
                 throw new TargetSetupError(String.format(
                         "Could not find test file %s directory in extracted tests.zip", localFile));
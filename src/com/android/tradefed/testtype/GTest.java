@@ -17,9 +17,11 @@
 package com.android.tradefed.testtype;
 
 import com.android.ddmlib.FileListingService;
+import com.android.ddmlib.FileListingService.FileEntry;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
@@ -27,11 +29,23 @@ import com.android.tradefed.device.IFileEntry;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 /**
  * A Test that runs a native test package on given device.
  */
 @OptionClass(alias = "gtest")
-public class GTest implements IDeviceTest, IRemoteTest {
+public class GTest implements IDeviceTest, IRemoteTest, IShardableTest {
 
     private static final String LOG_TAG = "GTest";
     static final String DEFAULT_NATIVETEST_PATH = "/data/nativetest";
@@ -63,6 +77,18 @@ public class GTest implements IDeviceTest, IRemoteTest {
             description = "Send coverage target info to test listeners.")
     private boolean mSendCoverage = true;
 
+    @Option(name = "parallel-binaries", description =
+            "The max number of gtest binaries to run concurrently on the device.")
+    private int mNumParallelBinaries = 1;
+
+    @Option(name = "num-shards", description =
+            "Shard the tests of each gtest binary into given number of separately runnable " +
+            "chunks, using gtest's native sharding support.")
+    private int mNumShards = 1;
+
+    /** the index of this shard, if this test is a shard created by {@link #split()} */
+    private int mShardIndex = 0;
+
     /** coverage target value. Just report all gtests as 'native' for now */
     private static final String COVERAGE_TARGET = "Native";
 
@@ -70,6 +96,10 @@ public class GTest implements IDeviceTest, IRemoteTest {
     private static final String GTEST_FLAG_PRINT_TIME = "--gtest_print_time";
     private static final String GTEST_FLAG_FILTER = "--gtest_filter";
     private static final String GTEST_FLAG_RUN_DISABLED_TESTS = "--gtest_also_run_disabled_tests";
+    private static final String GTEST_ENV_SHARDS = "GTEST_TOTAL_SHARDS=%d GTEST_SHARD_INDEX=%d";
+
+    /** max length of a single batched shell command */
+    private static final int MAX_BATCH_COMMAND_LENGTH = 1000;
 
     /**
      * {@inheritDoc}
@@ -130,6 +160,20 @@ public class GTest implements IDeviceTest, IRemoteTest {
         mMaxTestTimeMs = timeout;
     }
 
+    /**
+     * Set the max number of gtest binaries to run concurrently on the device.
+     */
+    public void setNumParallelBinaries(int numParallelBinaries) {
+        mNumParallelBinaries = numParallelBinaries;
+    }
+
+    /**
+     * Set the number of shards to split each gtest binary's tests into.
+     */
+    public void setNumShards(int numShards) {
+        mNumShards = numShards;
+    }
+
     /**
      * Set the Android native test name to run (positive filter).
      *
@@ -248,6 +292,189 @@ public class GTest implements IDeviceTest, IRemoteTest {
         }
     }
 
+    /**
+     * Executes all native tests under given path, running up to {@link #mNumParallelBinaries}
+     * binaries concurrently.
+     * <p/>
+     * Each binary's output is parsed by its own result parser, whose results are buffered and
+     * forwarded to <var>listener</var> by the calling thread once the binary completes, in the
+     * order the binaries were found, so results of different binaries are never interleaved and
+     * no results are reported after this method returns.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param testPath the device path to search for native tests
+     * @param testDevice The device to run tests on
+     * @param listener the {@link ITestRunListener)
+     * @throws DeviceNotAvailableException
+     */
+    void doRunAllTestsInParallel(String testPath, final ITestDevice testDevice,
+            final ITestRunListener listener) throws DeviceNotAvailableException {
+        List<String> binaries = findTestBinaries(testPath, testDevice);
+        if (binaries.isEmpty()) {
+            Log.w(LOG_TAG, String.format("Could not find native tests in %s on %s", testPath,
+                    testDevice.getSerialNumber()));
+            return;
+        }
+        // force files to be executable, in as few commands as possible
+        for (String chmodCommand : batchCommands("chmod 755", binaries)) {
+            testDevice.executeShellCommand(chmodCommand);
+        }
+        final String flags = getAllGTestFlags();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mNumParallelBinaries, binaries.size()));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(binaries.size());
+            List<BufferedRunListener> buffers = new ArrayList<BufferedRunListener>(
+                    binaries.size());
+            for (final String fullPath : binaries) {
+                final BufferedRunListener buffer = new BufferedRunListener();
+                buffers.add(buffer);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws DeviceNotAvailableException {
+                        IShellOutputReceiver resultParser = createResultParser(
+                                getFileName(fullPath), buffer);
+                        Log.i(LOG_TAG, String.format("Running gtest %s %s on %s", fullPath,
+                                flags, testDevice.getSerialNumber()));
+                        runTest(testDevice, resultParser, fullPath, flags);
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    waitForResult(results.get(i));
+                } finally {
+                    // once the binary has completed, its buffer is no longer written to
+                    if (results.get(i).isDone()) {
+                        buffers.get(i).replay(listener);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Waits for the binaries still running after a failure to stop, so they do not outlive the
+     * run.
+     */
+    private void awaitTermination(ExecutorService executor) {
+        try {
+            if (!executor.awaitTermination(mMaxTestTimeMs, TimeUnit.MILLISECONDS)) {
+                Log.w(LOG_TAG, "Timed out waiting for gtest binaries to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for a test binary run to complete, rethrowing any failure.
+     */
+    private void waitForResult(Future<Void> result) throws DeviceNotAvailableException {
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Find the full device paths of all files under given path, using a single shell command.
+     * <p/>
+     * Falls back to walking the file listing if <code>find</code> is not available on device.
+     */
+    List<String> findTestBinaries(String testPath, ITestDevice testDevice)
+            throws DeviceNotAvailableException {
+        List<String> binaries = new ArrayList<String>();
+        String output = testDevice.executeShellCommand(String.format("find %s -type f",
+                testPath));
+        if (output != null && output.startsWith(testPath)) {
+            for (String line : output.split("\r?\n")) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    binaries.add(escapePath(line));
+                }
+            }
+            return binaries;
+        }
+        IFileEntry rootEntry = testDevice.getFileEntry(testPath);
+        if (rootEntry != null) {
+            addTestBinaries(rootEntry, binaries);
+        }
+        return binaries;
+    }
+
+    private void addTestBinaries(IFileEntry entry, List<String> binaries)
+            throws DeviceNotAvailableException {
+        if (entry.isDirectory()) {
+            for (IFileEntry childEntry : entry.getChildren(true)) {
+                addTestBinaries(childEntry, binaries);
+            }
+        } else {
+            binaries.add(entry.getFullEscapedPath());
+        }
+    }
+
+    /**
+     * Build the shell commands needed to apply <var>command</var> to all <var>args</var>, with
+     * as many args per command as will fit in {@link #MAX_BATCH_COMMAND_LENGTH}.
+     */
+    static List<String> batchCommands(String command, Collection<String> args) {
+        List<String> commands = new LinkedList<String>();
+        StringBuilder batch = new StringBuilder(command);
+        for (String arg : args) {
+            if (batch.length() > command.length() &&
+                    batch.length() + arg.length() + 1 > MAX_BATCH_COMMAND_LENGTH) {
+                commands.add(batch.toString());
+                batch = new StringBuilder(command);
+            }
+            batch.append(' ');
+            batch.append(arg);
+        }
+        if (batch.length() > command.length()) {
+            commands.add(batch.toString());
+        }
+        return commands;
+    }
+
+    /**
+     * Escape each segment of a device path for the shell, as
+     * {@link IFileEntry#getFullEscapedPath()} does.
+     */
+    static String escapePath(String fullPath) {
+        String[] segments = fullPath.split(FileListingService.FILE_SEPARATOR, -1);
+        StringBuilder escapedPath = new StringBuilder();
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) {
+                escapedPath.append(FileListingService.FILE_SEPARATOR);
+            }
+            escapedPath.append(FileEntry.escape(segments[i]));
+        }
+        return escapedPath.toString();
+    }
+
+    /**
+     * Get the unescaped file name of an escaped device path.
+     */
+    private static String getFileName(String fullPath) {
+        String fileName = fullPath.substring(
+                fullPath.lastIndexOf(FileListingService.FILE_SEPARATOR) + 1);
+        return fileName.replace("\\", "");
+    }
+
     /**
      * Run the given gtest binary
      *
@@ -260,8 +487,13 @@ public class GTest implements IDeviceTest, IRemoteTest {
     private void runTest(final ITestDevice testDevice, final IShellOutputReceiver resultParser,
             final String fullPath, final String flags) throws DeviceNotAvailableException {
         // TODO: add individual test timeout support, and rerun support
+        String command = String.format("%s %s", fullPath, flags);
+        if (mNumShards > 1) {
+            command = String.format("%s %s", String.format(GTEST_ENV_SHARDS, mNumShards,
+                    mShardIndex), command);
+        }
         try {
-            testDevice.executeShellCommand(String.format("%s %s", fullPath, flags), resultParser,
+            testDevice.executeShellCommand(command, resultParser,
                     mMaxTestTimeMs /* maxTimeToShellOutputResponse */,
                     0 /* retryAttempts */);
         } catch (DeviceNotAvailableException e) {
@@ -305,6 +537,10 @@ public class GTest implements IDeviceTest, IRemoteTest {
         }
 
         String testPath = getTestPath();
+        if (mNumParallelBinaries > 1) {
+            doRunAllTestsInParallel(testPath, mDevice, listener);
+            return;
+        }
         IFileEntry nativeTestDirectory = mDevice.getFileEntry(testPath);
         if (nativeTestDirectory == null) {
             Log.w(LOG_TAG, String.format("Could not find native test directory %s in %s!",
@@ -313,4 +549,125 @@ public class GTest implements IDeviceTest, IRemoteTest {
         }
         doRunAllTestsInSubdirectory(nativeTestDirectory, mDevice, listener);
     }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Each shard runs every gtest binary, but only its own share of each binary's tests.
+     */
+    @Override
+    public Collection<IRemoteTest> split() {
+        if (mNumShards <= 1) {
+            return null;
+        }
+        Collection<IRemoteTest> shards = new ArrayList<IRemoteTest>(mNumShards);
+        for (int i = 0; i < mNumShards; i++) {
+            GTest shard = new GTest();
+            shard.mNativeTestDevicePath = mNativeTestDevicePath;
+            shard.mTestModule = mTestModule;
+            shard.mTestNamePositiveFilter = mTestNamePositiveFilter;
+            shard.mTestNameNegativeFilter = mTestNameNegativeFilter;
+            shard.mRunDisabledTests = mRunDisabledTests;
+            shard.mMaxTestTimeMs = mMaxTestTimeMs;
+            shard.mSendCoverage = mSendCoverage;
+            shard.mNumParallelBinaries = mNumParallelBinaries;
+            shard.mNumShards = mNumShards;
+            shard.mShardIndex = i;
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    /**
+     * A {@link ITestRunListener} that records the results of a single gtest binary, so they can
+     * be forwarded as a whole once the binary completes.
+     */
+    private static class BufferedRunListener implements ITestRunListener {
+
+        private abstract static class Event {
+            abstract void replay(ITestRunListener listener);
+        }
+
+        private final List<Event> mEvents = new LinkedList<Event>();
+
+        synchronized void replay(ITestRunListener listener) {
+            for (Event event : mEvents) {
+                event.replay(listener);
+            }
+            mEvents.clear();
+        }
+
+        @Override
+        public synchronized void testRunStarted(final String runName, final int testCount) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testRunStarted(runName, testCount);
+                }
+            });
+        }
+
+        @Override
+        public synchronized void testStarted(final TestIdentifier test) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testStarted(test);
+                }
+            });
+        }
+
+        @Override
+        public synchronized void testFailed(final TestFailure status, final TestIdentifier test,
+                final String trace) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testFailed(status, test, trace);
+                }
+            });
+        }
+
+        @Override
+        public synchronized void testEnded(final TestIdentifier test,
+                final Map<String, String> testMetrics) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testEnded(test, testMetrics);
+                }
+            });
+        }
+
+        @Override
+        public synchronized void testRunFailed(final String errorMessage) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testRunFailed(errorMessage);
+                }
+            });
+        }
+
+        @Override
+        public synchronized void testRunStopped(final long elapsedTime) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testRunStopped(elapsedTime);
+                }
+            });
+        }
+
+        @Override
+        public synchronized void testRunEnded(final long elapsedTime,
+                final Map<String, String> runMetrics) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testRunEnded(elapsedTime, runMetrics);
+                }
+            });
+        }
+    }
 }
@@ -17,9 +17,9 @@ package com.android.tradefed.testtype;
 
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.StreamingLineReceiver;
 import com.android.tradefed.testtype.testdefs.XmlDefsTest;
 
 import java.util.ArrayList;
@@ -85,8 +85,12 @@ import java.util.regex.Pattern;
  * </pre>
  *
  * All other lines are ignored.
+ * <p/>
+ * Output is scanned as raw bytes. Only lines starting with one of the tags above are decoded, and
+ * the output of a test is only decoded if it is reported as a failure, so large amounts of
+ * passing test output are cheap to parse.
  */
-public class GTestResultParser extends MultiLineReceiver {
+public class GTestResultParser extends StreamingLineReceiver {
     private static final String LOG_TAG = "GTestResultParser";
 
     // Variables to keep track of state
@@ -107,13 +111,20 @@ public class GTestResultParser extends MultiLineReceiver {
 
     private String mCoverageTarget = null;
 
+    /**
+     * The raw output of the current test, lines separated by "\r\n". Reused across tests, and
+     * only decoded if the test fails.
+     */
+    private byte[] mTestOutput = new byte[256];
+    private int mTestOutputLength = 0;
+    private boolean mHasTestOutput = false;
+
     /**
      * Test result data
      */
     private static class TestResult {
         private String mTestName = null;
         private String mTestClass = null;
-        private StringBuilder mStackTrace = null;
         @SuppressWarnings("unused")
         private Long mRunTime = null;
 
@@ -125,30 +136,6 @@ public class GTestResultParser extends MultiLineReceiver {
             return mTestName != null && mTestClass != null;
         }
 
-        /** Returns whether there is currently a stack trace
-         *
-         * @return true if there is currently a stack trace, false otherwise
-         */
-        boolean hasStackTrace() {
-            return mStackTrace != null;
-        }
-
-        /**
-         * Returns the stack trace of the current test.
-         *
-         * @return a String representation of the current test's stack trace; if there is not
-         * a current stack trace, it returns an error string. Use {@link TestResult#hasStackTrace}
-         * if you need to know whether there is a stack trace.
-         */
-        String getTrace() {
-            if (hasStackTrace()) {
-                return mStackTrace.toString();
-            } else {
-                Log.e(LOG_TAG, "Could not find stack trace for failed test");
-                return new Throwable("Unknown failure").toString();
-            }
-        }
-
         /** Provides a more user readable string for TestResult, if possible */
         @Override
         public String toString() {
@@ -184,13 +171,15 @@ public class GTestResultParser extends MultiLineReceiver {
     private static class Prefixes {
         @SuppressWarnings("unused")
         private static final String INFORMATIONAL_MARKER = "[----------]";
-        private static final String START_TEST_RUN_MARKER = "[==========] Running";
-        private static final String TEST_RUN_MARKER = "[==========]";
-        private static final String START_TEST_MARKER = "[ RUN      ]";
-        private static final String OK_TEST_MARKER = "[       OK ]";
-        private static final String FAILED_TEST_MARKER = "[  FAILED  ]";
+        private static final byte[] START_TEST_RUN_MARKER = encode("[==========] Running");
+        private static final byte[] TEST_RUN_MARKER = encode("[==========]");
+        private static final byte[] START_TEST_MARKER = encode("[ RUN      ]");
+        private static final byte[] OK_TEST_MARKER = encode("[       OK ]");
+        private static final byte[] FAILED_TEST_MARKER = encode("[  FAILED  ]");
     }
 
+    private static final byte[] LINE_SEPARATOR = encode("\r\n");
+
     /**
      * Creates the GTestResultParser.
      *
@@ -234,62 +223,71 @@ public class GTestResultParser extends MultiLineReceiver {
      */
     private void clearCurrentTestResult() {
         mCurrentTestResult = null;
+        mTestOutputLength = 0;
+        mHasTestOutput = false;
     }
 
     /**
-     * {@inheritDoc}
+     * Parse given lines of output.
+     * <p/>
+     * Provided for callers that have already split the output into lines. Shell output should
+     * be passed to {@link #addOutput(byte[], int, int)} instead.
+     *
+     * @param lines the output lines
      */
-    @Override
     public void processNewLines(String[] lines) {
         for (String line : lines) {
-            parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
+            byte[] data = encode(line);
+            processLine(data, 0, data.length);
         }
     }
 
     /**
      * Parse an individual output line.
-     *
-     * @param line  Text output line
+     * <p/>
+     * {@inheritDoc}
      */
-    private void parse(String line) {
-        String message = null;
-
-        if (mTestRunInProgress || line.startsWith(Prefixes.TEST_RUN_MARKER)) {
-            if (line.startsWith(Prefixes.START_TEST_MARKER)) {
+    @Override
+    protected void processLine(byte[] data, int start, int end) {
+        if (mTestRunInProgress || startsWith(data, start, end, Prefixes.TEST_RUN_MARKER)) {
+            if (start < end && data[start] != '[') {
+                // fast path for the common case of plain test output
+                if (testInProgress()) {
+                    appendTestOutputLine(data, start, end);
+                }
+            }
+            else if (startsWith(data, start, end, Prefixes.START_TEST_MARKER)) {
                 // Individual test started
-                message = line.substring(Prefixes.START_TEST_MARKER.length()).trim();
-                processTestStartedTag(message);
+                processTestStartedTag(decodeTrimmed(data,
+                        start + Prefixes.START_TEST_MARKER.length, end));
             }
-            else if (line.startsWith(Prefixes.OK_TEST_MARKER)) {
+            else if (startsWith(data, start, end, Prefixes.OK_TEST_MARKER)) {
                 // Individual test completed successfully
-                message = line.substring(Prefixes.OK_TEST_MARKER.length()).trim();
-                processOKTag(message);
+                processOKTag(decodeTrimmed(data, start + Prefixes.OK_TEST_MARKER.length, end));
                 clearCurrentTestResult();
             }
-            else if (line.startsWith(Prefixes.FAILED_TEST_MARKER)) {
+            else if (startsWith(data, start, end, Prefixes.FAILED_TEST_MARKER)) {
                 // Individual test completed with failure
-                message = line.substring(Prefixes.FAILED_TEST_MARKER.length()).trim();
-                processFailedTag(message);
+                processFailedTag(decodeTrimmed(data, start + Prefixes.FAILED_TEST_MARKER.length,
+                        end));
                 clearCurrentTestResult();
             }
-            else if (line.startsWith(Prefixes.START_TEST_RUN_MARKER)) {
+            else if (startsWith(data, start, end, Prefixes.START_TEST_RUN_MARKER)) {
                 // Test run started
                 // Make sure to leave the "Running" in the string
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunStartedTag(message);
+                processRunStartedTag(decodeTrimmed(data,
+                        start + Prefixes.TEST_RUN_MARKER.length, end));
             }
-            else if (line.startsWith(Prefixes.TEST_RUN_MARKER)) {
+            else if (startsWith(data, start, end, Prefixes.TEST_RUN_MARKER)) {
                 // Test run ended
                 // This is for the end of the test suite run, so make sure this else-if is after the
                 // check for START_TEST_SUITE_MARKER
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunCompletedTag(message);
+                processRunCompletedTag(decodeTrimmed(data,
+                        start + Prefixes.TEST_RUN_MARKER.length, end));
             }
             else if (testInProgress()) {
                 // Note this does not handle the case of an error outside an actual test run
-                appendTestOutputLine(line);
+                appendTestOutputLine(data, start, end);
             }
         }
     }
@@ -536,13 +534,13 @@ public class GTestResultParser extends MultiLineReceiver {
             // the last known test failed, regardless of whether we received a pass or fail tag.
             for (ITestRunListener listener : mTestListeners) {
                 listener.testFailed(ITestRunListener.TestFailure.ERROR, testId,
-                                mCurrentTestResult.getTrace());
+                                getTrace());
             }
         }
         else if (!testPassed) {  // test failed
             for (ITestRunListener listener : mTestListeners) {
                 listener.testFailed(ITestRunListener.TestFailure.FAILURE, testId,
-                                mCurrentTestResult.getTrace());
+                                getTrace());
             }
         }
         // For all cases (pass or fail), we ultimately need to report test has ended
@@ -579,17 +577,52 @@ public class GTestResultParser extends MultiLineReceiver {
     /**
      * Appends the test output to the current TestResult.
      *
-     * @param line Raw test result line of output.
+     * @param data the buffer containing the raw test result line of output
+     * @param start the index of the first byte of the line
+     * @param end the index after the last byte of the line
      */
-    private void appendTestOutputLine(String line) {
-        TestResult testResult = getCurrentTestResult();
-        if (testResult.mStackTrace == null) {
-            testResult.mStackTrace = new StringBuilder();
+    private void appendTestOutputLine(byte[] data, int start, int end) {
+        getCurrentTestResult();
+        if (mHasTestOutput) {
+            appendTestOutput(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
         }
-        else {
-            testResult.mStackTrace.append("\r\n");
+        mHasTestOutput = true;
+        appendTestOutput(data, start, end - start);
+    }
+
+    private void appendTestOutput(byte[] data, int offset, int length) {
+        int required = mTestOutputLength + length;
+        if (required > mTestOutput.length) {
+            byte[] newBuffer = new byte[Math.max(required, mTestOutput.length * 2)];
+            System.arraycopy(mTestOutput, 0, newBuffer, 0, mTestOutputLength);
+            mTestOutput = newBuffer;
+        }
+        System.arraycopy(data, offset, mTestOutput, mTestOutputLength, length);
+        mTestOutputLength = required;
+    }
+
+    /** Returns whether there is currently a stack trace
+     *
+     * @return true if there is currently a stack trace, false otherwise
+     */
+    private boolean hasStackTrace() {
+        return mHasTestOutput;
+    }
+
+    /**
+     * Returns the stack trace of the current test.
+     *
+     * @return a String representation of the current test's stack trace; if there is not
+     * a current stack trace, it returns an error string. Use {@link #hasStackTrace}
+     * if you need to know whether there is a stack trace.
+     */
+    private String getTrace() {
+        if (hasStackTrace()) {
+            return decode(mTestOutput, 0, mTestOutputLength);
+        } else {
+            Log.e(LOG_TAG, "Could not find stack trace for failed test");
+            return new Throwable("Unknown failure").toString();
         }
-        testResult.mStackTrace.append(line);
     }
 
     /**
@@ -612,8 +645,8 @@ public class GTestResultParser extends MultiLineReceiver {
             // If there was any stack trace during the test run, append it to the "test failed"
             // error message so we have an idea of what caused the crash/failure.
             Map<String, String> emptyMap = Collections.emptyMap();
-            if (mCurrentTestResult.hasStackTrace()) {
-                testRunStackTrace = mCurrentTestResult.getTrace();
+            if (hasStackTrace()) {
+                testRunStackTrace = getTrace();
             }
             for (ITestRunListener listener : mTestListeners) {
                 listener.testFailed(ITestRunListener.TestFailure.ERROR, testId,
@@ -21,15 +21,26 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ResultForwarder;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A Test that runs a set of individual instrumentation tests.
+ * <p/>
+ * Tests are run in batches, each with a single instrumentation command. If a batch fails to run
+ * any of its tests, it is split in two, down to the individual test that prevents the run. Once
+ * that test has been run on its own, the remaining tests are run in large batches again. This
+ * keeps the number of instrumentation commands needed to get past a crashing test logarithmic
+ * in the number of tests, rather than linear.
  */
 class InstrumentationListTest implements IDeviceTest, IRemoteTest {
 
@@ -38,6 +49,12 @@ class InstrumentationListTest implements IDeviceTest, IRemoteTest {
     /** number of attempts to make if test fails to run */
     static final int FAILED_RUN_TEST_ATTEMPTS = 2;
 
+    /**
+     * max total length of the test names in a batch, to keep the instrumentation command within
+     * the adb shell command length limit
+     */
+    static final int MAX_BATCH_ARG_LENGTH = 2000;
+
     /** the Android package name of test application */
     private final String mPackageName;
     /** the Android InstrumentationTestRunner class name to use */
@@ -110,36 +127,125 @@ class InstrumentationListTest implements IDeviceTest, IRemoteTest {
         if (mDevice == null) {
             throw new IllegalArgumentException("Device has not been set");
         }
-        // reuse the InstrumentationTest class to perform actual test run
-        for (TestIdentifier testToRun : mTests) {
-            InstrumentationTest runner = createInstrumentationTest();
-            runner.setDevice(mDevice);
-            runner.setPackageName(mPackageName);
-            runner.setRunnerName(mRunnerName);
-            runner.setClassName(testToRun.getClassName());
-            runner.setMethodName(testToRun.getTestName());
-            runner.setTestTimeout(mTestTimeout);
-            // no need to rerun when executing tests one by one
-            runner.setRerunMode(false);
-            runner.setRunName(mRunName);
-            runTest(runner, listener, testToRun);
+        // copy the tests, since the caller may be tracking progress using the original collection
+        LinkedList<TestIdentifier> pendingTests = new LinkedList<TestIdentifier>(mTests);
+        // number of tests at the head of pendingTests known to contain a test that prevents a
+        // batch from running, or 0 if there is no such test
+        int numSuspects = 0;
+        while (!pendingTests.isEmpty()) {
+            // bisect the suspect tests, otherwise run as many tests as possible
+            int maxBatchSize = numSuspects > 0 ? Math.max(1, numSuspects / 2) : Integer.MAX_VALUE;
+            List<TestIdentifier> batch = getNextBatch(pendingTests, maxBatchSize);
+            if (batch.size() == 1) {
+                TestIdentifier testToRun = pendingTests.removeFirst();
+                InstrumentationTest runner = createRunner();
+                runner.setClassName(testToRun.getClassName());
+                runner.setMethodName(testToRun.getTestName());
+                if (runTest(runner, listener, testToRun)) {
+                    numSuspects = Math.max(0, numSuspects - 1);
+                } else {
+                    // found the test that prevents batches from running
+                    numSuspects = 0;
+                }
+                continue;
+            }
+            Set<TestIdentifier> completedTests = runBatch(batch, listener);
+            pendingTests.removeAll(completedTests);
+            int numCompleted = 0;
+            for (TestIdentifier test : batch) {
+                if (completedTests.contains(test)) {
+                    numCompleted++;
+                }
+            }
+            if (numCompleted == 0) {
+                CLog.w("None of %d tests from %s ran, splitting batch", batch.size(),
+                        mPackageName);
+                numSuspects = batch.size();
+            } else if (numCompleted < batch.size()) {
+                // the test in progress when the run failed has been reported as failed, so the
+                // remaining tests can be attempted as a large batch again
+                numSuspects = 0;
+            } else if (numSuspects > 0) {
+                // the test preventing the run must be in the other half
+                numSuspects -= batch.size();
+            }
+        }
+    }
+
+    /**
+     * Get the next batch of tests to run.
+     *
+     * @param pendingTests the tests remaining to be run
+     * @param maxSize the max number of tests to include
+     * @return the batch of tests, which always contains at least one test
+     */
+    private List<TestIdentifier> getNextBatch(List<TestIdentifier> pendingTests, int maxSize) {
+        List<TestIdentifier> batch = new ArrayList<TestIdentifier>();
+        int argLength = 0;
+        for (TestIdentifier test : pendingTests) {
+            // account for the '#' and ',' separators
+            argLength += test.getClassName().length() + test.getTestName().length() + 2;
+            if (batch.size() >= maxSize ||
+                    (!batch.isEmpty() && argLength > MAX_BATCH_ARG_LENGTH)) {
+                break;
+            }
+            batch.add(test);
         }
+        return batch;
     }
 
-    private void runTest(InstrumentationTest runner, ITestInvocationListener listener,
+    /**
+     * Run a batch of tests with a single instrumentation command.
+     *
+     * @return the tests that were run
+     */
+    private Set<TestIdentifier> runBatch(Collection<TestIdentifier> batch,
+            ITestInvocationListener listener) throws DeviceNotAvailableException {
+        CLog.d("Running batch of %d tests from %s", batch.size(), mPackageName);
+        InstrumentationTest runner = createRunner();
+        runner.setTestMethods(batch);
+        CollectingTestListener testTracker = new CollectingTestListener();
+        runner.run(new ResultForwarder(listener, testTracker));
+        return testTracker.getCurrentRunResults().getCompletedTests();
+    }
+
+    /**
+     * Create a {@link InstrumentationTest} to run a subset of the tests.
+     */
+    private InstrumentationTest createRunner() {
+        // reuse the InstrumentationTest class to perform actual test run
+        InstrumentationTest runner = createInstrumentationTest();
+        runner.setDevice(mDevice);
+        runner.setPackageName(mPackageName);
+        runner.setRunnerName(mRunnerName);
+        runner.setTestTimeout(mTestTimeout);
+        // reruns are handled here
+        runner.setRerunMode(false);
+        runner.setRunName(mRunName);
+        return runner;
+    }
+
+    /**
+     * Run a single test, making multiple attempts if it fails to run.
+     *
+     * @return <code>true</code> if the test ran, <code>false</code> if it was marked as failed
+     *         because it did not run
+     */
+    private boolean runTest(InstrumentationTest runner, ITestInvocationListener listener,
             TestIdentifier testToRun) throws DeviceNotAvailableException {
         // use a listener filter, to track if the test failed to run
         TestTrackingListener trackingListener = new TestTrackingListener(listener, testToRun);
         for (int i=1; i <= FAILED_RUN_TEST_ATTEMPTS; i++) {
             runner.run(trackingListener);
             if (trackingListener.didTestRun()) {
-                return;
+                return true;
             } else {
                 CLog.w("Expected test %s did not run on attempt %d of %d", testToRun, i,
                         FAILED_RUN_TEST_ATTEMPTS);
             }
         }
         trackingListener.markTestAsFailed();
+        return false;
     }
 
     private static class TestTrackingListener extends ResultForwarder {
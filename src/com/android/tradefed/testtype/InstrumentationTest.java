@@ -32,12 +32,18 @@ import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StringEscapeUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A Test that runs an instrumentation test package on given device.
@@ -52,6 +58,9 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
     static final String DELAY_MSEC_ARG = "delay_msec";
 
+    /** matches the md5 in the output of md5sum or md5 on device */
+    private static final Pattern DEVICE_MD5_PATTERN = Pattern.compile("^([0-9a-fA-F]{32})\\s");
+
     @Option(name = "package", shortName = 'p',
             description="The manifest package name of the Android test application to run.",
             importance = Importance.IF_UNSET)
@@ -110,6 +119,18 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             description = "Additional instrumentation arguments to provide.")
     private Map<String, String> mInstrArgMap = new HashMap<String, String>();
 
+    @Option(name = "test-list-cache-dir",
+            description = "Optional directory to cache the collected list of tests in, keyed by " +
+            "the test apk contents and test filters. May be shared by multiple hosts. If unset, " +
+            "tests are collected from the device on every run.")
+    private File mTestListCacheDir = null;
+
+    @Option(name = "checkpoint-journal",
+            description = "Optional file to journal completed tests in, so that a run which " +
+            "did not complete, e.g. because the host was restarted, resumes at the first " +
+            "incomplete test when run again. Requires rerun mode.")
+    private File mCheckpointJournalFile = null;
+
     private ITestDevice mDevice = null;
 
     private IRemoteAndroidTestRunner mRunner;
@@ -127,6 +148,9 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
     private boolean mForceBatchMode = false;
 
+    /** the specific test methods to run, or <code>null</code> to not filter by method */
+    private Collection<TestIdentifier> mTestMethods = null;
+
     /**
      * {@inheritDoc}
      */
@@ -211,6 +235,23 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         mForceBatchMode = forceBatchMode;
     }
 
+    /**
+     * Optionally, restrict the run to the given test methods, with a single instrumentation
+     * command. Takes precedence over any class, method and java package filter.
+     *
+     * @param tests the test methods to run
+     */
+    void setTestMethods(Collection<TestIdentifier> tests) {
+        mTestMethods = tests;
+    }
+
+    /**
+     * Get the test methods to run.
+     */
+    Collection<TestIdentifier> getTestMethods() {
+        return mTestMethods;
+    }
+
     /**
      * Get the class name to run.
      */
@@ -331,6 +372,24 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         mInstallFile = installFile;
     }
 
+    /**
+     * Set the directory used to cache collected test lists.
+     *
+     * @param cacheDir the cache directory, or <code>null</code> to disable caching
+     */
+    public void setTestListCacheDir(File cacheDir) {
+        mTestListCacheDir = cacheDir;
+    }
+
+    /**
+     * Set the file used to journal completed tests.
+     *
+     * @param journalFile the journal file, or <code>null</code> to disable journaling
+     */
+    public void setCheckpointJournalFile(File journalFile) {
+        mCheckpointJournalFile = journalFile;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -380,7 +439,15 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
         mRunner = createRemoteAndroidTestRunner(mPackageName, mRunnerName,
                 mDevice.getIDevice());
-        if (mTestClassName != null) {
+        if (mTestMethods != null) {
+            String[] testNames = new String[mTestMethods.size()];
+            int i = 0;
+            for (TestIdentifier test : mTestMethods) {
+                testNames[i++] = String.format("%s#%s", test.getClassName(),
+                        StringEscapeUtils.escapeShell(test.getTestName()));
+            }
+            mRunner.setClassNames(testNames);
+        } else if (mTestClassName != null) {
             if (mTestMethodName != null) {
                 mRunner.setMethodName(mTestClassName, mTestMethodName);
             } else {
@@ -409,22 +476,76 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         }
     }
 
+    /**
+     * Execute test run, recording completed tests in the checkpoint journal if requested.
+     *
+     * @param listener the test result listener
+     * @throws DeviceNotAvailableException if device stops communicating
+     */
+    private void doTestRun(ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        TestCheckpointJournal journal = null;
+        Collection<TestIdentifier> checkpointedTests = Collections.emptyList();
+        String runKey = null;
+        boolean useTestListCache = mTestListCacheDir != null && mRemainingTests == null &&
+                isRerunMode();
+        if (mCheckpointJournalFile != null || useTestListCache) {
+            // computed once, as it may require hashing the test apk
+            runKey = getRunKey();
+            if (runKey == null) {
+                CLog.w("Could not determine contents of %s, checkpoint journal and test list " +
+                        "cache will not be used", mPackageName);
+            }
+        }
+        if (mCheckpointJournalFile != null && runKey != null) {
+            journal = new TestCheckpointJournal(mCheckpointJournalFile, runKey);
+            try {
+                checkpointedTests = journal.open();
+                listener = new ResultForwarder(listener, journal.getListener());
+            } catch (IOException e) {
+                CLog.w("Failed to open checkpoint journal %s: %s",
+                        mCheckpointJournalFile.getAbsolutePath(), e.getMessage());
+                journal = null;
+            }
+        }
+        boolean runCompleted = false;
+        try {
+            doTestRun(listener, checkpointedTests, runKey);
+            runCompleted = true;
+        } finally {
+            if (journal != null && runCompleted) {
+                // next run should start from the beginning
+                journal.delete();
+            } else if (journal != null) {
+                journal.close();
+            }
+        }
+    }
+
     /**
      * Execute test run.
      *
      * @param listener the test result listener
+     * @param checkpointedTests the tests completed by a previous run that did not complete
+     * @param runKey the key of this run from {@link #getRunKey()}, or <code>null</code> if
+     *            unknown
      * @throws DeviceNotAvailableException if device stops communicating
      */
-    private void doTestRun(final ITestInvocationListener listener)
+    private void doTestRun(final ITestInvocationListener listener,
+            Collection<TestIdentifier> checkpointedTests, String runKey)
             throws DeviceNotAvailableException {
 
         if (mRemainingTests != null && !mForceBatchMode) {
-            // have remaining tests! This must be a rerun - rerun them individually
+            // have remaining tests! This must be a rerun - rerun them in adaptive batches
             rerunTests(listener);
             return;
         }
         if (mRemainingTests == null) {
-            mRemainingTests = collectTestsToRun(mRunner);
+            mRemainingTests = collectTestsToRun(mRunner, runKey);
+            if (mRemainingTests != null && resumeFromCheckpoint(checkpointedTests)) {
+                rerunTests(listener);
+                return;
+            }
         }
         if (mRemainingTests == null) {
             // failed to collect the tests or collection is off. Just try to run them all
@@ -436,6 +557,23 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         }
     }
 
+    /**
+     * Remove the tests completed by a previous run from <var>mRemainingTests</var>.
+     *
+     * @return <code>true</code> if any tests were already completed
+     */
+    private boolean resumeFromCheckpoint(Collection<TestIdentifier> checkpointedTests) {
+        int numTests = mRemainingTests.size();
+        mRemainingTests.removeAll(checkpointedTests);
+        int numCompleted = numTests - mRemainingTests.size();
+        if (numCompleted == 0) {
+            return false;
+        }
+        CLog.i("Resuming %s from checkpoint: %d of %d tests already completed", mPackageName,
+                numCompleted, numTests);
+        return true;
+    }
+
     /**
      * Execute the test run, but re-run incomplete tests individually if run fails to complete.
      *
@@ -455,7 +593,7 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
     }
 
     /**
-     * Rerun any <var>mRemainingTests</var> one by one
+     * Rerun any <var>mRemainingTests</var>, bisecting down to individual tests as needed
      *
      * @param listener the {@link ITestInvocationListener}
      * @throws DeviceNotAvailableException
@@ -495,34 +633,133 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
      * tests.
      *
      * @param runner the {@link IRemoteAndroidTestRunner} to use to run the tests.
+     * @param runKey the key of this run in the test list cache, or <code>null</code> if unknown
      * @return a {@link Collection} of {@link TestIdentifier}s that represent all tests to be
      * executed by this run
      * @throws DeviceNotAvailableException
      */
-    private Collection<TestIdentifier> collectTestsToRun(final IRemoteAndroidTestRunner runner)
-            throws DeviceNotAvailableException {
+    private Collection<TestIdentifier> collectTestsToRun(final IRemoteAndroidTestRunner runner,
+            String runKey) throws DeviceNotAvailableException {
         if (isRerunMode()) {
-            Log.d(LOG_TAG, String.format("Collecting test info for %s on device %s",
-                    mPackageName, mDevice.getSerialNumber()));
-            runner.setLogOnly(true);
-            // the collecting test command can fail for large volumes of test bug 1750602. insert a
-            // small delay between each test to prevent this
-            if (mTestDelay > 0) {
-                runner.addInstrumentationArg(DELAY_MSEC_ARG, Integer.toString(mTestDelay));
+            TestListCache cache = null;
+            if (mTestListCacheDir != null && runKey != null) {
+                cache = new TestListCache(mTestListCacheDir);
+                Collection<TestIdentifier> tests = cache.getTests(runKey);
+                if (tests != null) {
+                    CLog.i("Using %d cached tests for %s", tests.size(), mPackageName);
+                    return tests;
+                }
+            }
+            Collection<TestIdentifier> tests = collectTestsFromDevice(runner);
+            // don't cache an empty list, in case it was caused by a misbehaving instrumentation
+            if (tests != null && !tests.isEmpty() && cache != null) {
+                cache.putTests(runKey, tests);
             }
-            // use a shorter timeout when collecting tests
-            runner.setMaxtimeToOutputResponse(mCollectTestsShellTimeout);
-            // try to collect tests multiple times, in case device is temporarily not available
-            // on first attempt
-            Collection<TestIdentifier>  tests = collectTestsAndRetry(runner);
-            runner.setLogOnly(false);
-            runner.setMaxtimeToOutputResponse(mTestTimeout);
-            runner.removeInstrumentationArg(DELAY_MSEC_ARG);
             return tests;
         }
         return null;
     }
 
+    /**
+     * Collect the list of tests that should be executed by this test run from the device, by
+     * executing the test run in 'logOnly' mode.
+     *
+     * @param runner the {@link IRemoteAndroidTestRunner} to use to run the tests.
+     * @return a {@link Collection} of {@link TestIdentifier}s, or <code>null</code> if tests could
+     *         not be collected
+     * @throws DeviceNotAvailableException
+     */
+    private Collection<TestIdentifier> collectTestsFromDevice(
+            final IRemoteAndroidTestRunner runner) throws DeviceNotAvailableException {
+        Log.d(LOG_TAG, String.format("Collecting test info for %s on device %s",
+                mPackageName, mDevice.getSerialNumber()));
+        runner.setLogOnly(true);
+        // the collecting test command can fail for large volumes of test bug 1750602. insert a
+        // small delay between each test to prevent this
+        if (mTestDelay > 0) {
+            runner.addInstrumentationArg(DELAY_MSEC_ARG, Integer.toString(mTestDelay));
+        }
+        // use a shorter timeout when collecting tests
+        runner.setMaxtimeToOutputResponse(mCollectTestsShellTimeout);
+        // try to collect tests multiple times, in case device is temporarily not available
+        // on first attempt
+        Collection<TestIdentifier>  tests = collectTestsAndRetry(runner);
+        runner.setLogOnly(false);
+        runner.setMaxtimeToOutputResponse(mTestTimeout);
+        runner.removeInstrumentationArg(DELAY_MSEC_ARG);
+        return tests;
+    }
+
+    /**
+     * Build the key identifying this run's tests, used by the test list cache and the checkpoint
+     * journal.
+     * <p/>
+     * The key covers the test apk contents, runner and every filter that can change the set of
+     * tests run, so a rebuilt test apk neither reuses a cached test list nor resumes from the
+     * checkpoint of a previous version.
+     *
+     * @return the key, or <code>null</code> if the test apk contents could not be determined
+     * @throws DeviceNotAvailableException
+     */
+    private String getRunKey() throws DeviceNotAvailableException {
+        String apkHash = getApkHash();
+        if (apkHash == null) {
+            return null;
+        }
+        // sort args so key does not depend on map ordering
+        Map<String, String> sortedArgs = new TreeMap<String, String>(mInstrArgMap);
+        return TestListCache.createKey(apkHash, mPackageName, mRunnerName, mTestClassName,
+                mTestMethodName, mTestPackageName, mTestSize, sortedArgs.toString());
+    }
+
+    /**
+     * Calculate the md5 of the test apk, from the test apk file if known, or else from the
+     * package as installed on the device.
+     *
+     * @return the md5, or <code>null</code> if it could not be determined
+     * @throws DeviceNotAvailableException
+     */
+    private String getApkHash() throws DeviceNotAvailableException {
+        if (mInstallFile != null) {
+            try {
+                return FileUtil.calculateMd5(mInstallFile);
+            } catch (IOException e) {
+                CLog.w("Failed to calculate md5 of %s: %s", mInstallFile.getAbsolutePath(),
+                        e.getMessage());
+                return null;
+            }
+        }
+        return getInstalledApkHash();
+    }
+
+    /**
+     * Fallback used when no test apk file is known: calculate the md5 of the package's apk as
+     * installed on the device.
+     *
+     * @return the md5, or <code>null</code> if it could not be determined
+     * @throws DeviceNotAvailableException
+     */
+    private String getInstalledApkHash() throws DeviceNotAvailableException {
+        String pathOutput = mDevice.executeShellCommand(String.format("pm path %s",
+                mPackageName));
+        if (pathOutput == null || !pathOutput.trim().startsWith("package:")) {
+            return null;
+        }
+        String apkPath = pathOutput.trim().substring("package:".length()).split("\\s")[0];
+        // md5sum is not available on all devices, so fall back to toolbox's md5
+        for (String md5Cmd : new String[] {"md5sum", "md5"}) {
+            String md5Output = mDevice.executeShellCommand(String.format("%s %s", md5Cmd,
+                    apkPath));
+            if (md5Output != null) {
+                Matcher matcher = DEVICE_MD5_PATTERN.matcher(md5Output.trim() + " ");
+                if (matcher.find()) {
+                    return matcher.group(1).toLowerCase();
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Performs the actual work of collecting tests, making multiple attempts if necessary
      * @param runner
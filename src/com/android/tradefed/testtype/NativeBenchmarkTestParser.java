@@ -17,7 +17,7 @@ package com.android.tradefed.testtype;
 
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.device.StreamingLineReceiver;
 
 import java.text.DecimalFormat;
 import java.text.ParseException;
@@ -33,8 +33,10 @@ import java.util.regex.Pattern;
 * <code>
 * Time per iteration min: X avg: Y max: Z
 * </code>
+* <p/>
+* Output is scanned as raw bytes, and only lines containing the result are decoded.
 */
-public class NativeBenchmarkTestParser extends MultiLineReceiver {
+public class NativeBenchmarkTestParser extends StreamingLineReceiver {
 
     private final static String LOG_TAG = "NativeBenchmarkTestParser";
 
@@ -43,6 +45,7 @@ public class NativeBenchmarkTestParser extends MultiLineReceiver {
     private final static String COMPLETE_STRING = String.format(
             "Time per iteration min:%savg:%smax:%s", FLOAT_STRING, FLOAT_STRING, FLOAT_STRING);
     private final static Pattern COMPLETE_PATTERN = Pattern.compile(COMPLETE_STRING);
+    private final static byte[] COMPLETE_PREFIX = encode("Time per iteration min:");
 
     private final String mTestRunName;
     private boolean mIsCanceled = false;
@@ -60,12 +63,28 @@ public class NativeBenchmarkTestParser extends MultiLineReceiver {
     }
 
     /**
-     * {@inheritDoc}
+     * Parse given lines of output.
+     * <p/>
+     * Provided for callers that have already split the output into lines. Shell output should
+     * be passed to {@link #addOutput(byte[], int, int)} instead.
+     *
+     * @param lines the output lines
      */
-    @Override
     public void processNewLines(String[] lines) {
         for (String line : lines) {
-            parseLine(line);
+            byte[] data = encode(line);
+            processLine(data, 0, data.length);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void processLine(byte[] data, int start, int end) {
+        // only lines that could match the result pattern are worth decoding
+        if (indexOf(data, start, end, COMPLETE_PREFIX) >= 0) {
+            parseLine(decode(data, start, end));
         }
     }
 
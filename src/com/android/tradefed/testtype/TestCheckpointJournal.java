@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.StubTestInvocationListener;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary journal of the tests completed by a test run, so the run can resume at
+ * the first incomplete test after the invocation, or the whole host, is restarted.
+ * <p/>
+ * Completed tests are queued by the listener returned from {@link #getListener()}, and written
+ * by a background thread, which writes and syncs all tests queued since its last write at once.
+ * Each record carries a checksum, so a record left partially written by a crash is discarded
+ * when the journal is reopened.
+ * <p/>
+ * The journal starts with a key identifying the test run. A journal written for a different key
+ * is discarded when opened. The journal file is locked while open, so two runs can't record to
+ * the same journal at once.
+ * <p/>
+ * If a write fails, the journal stops recording, and {@link #flush()} reports the failure.
+ */
+public class TestCheckpointJournal {
+
+    private static final int MAGIC = 0x5446434a;
+    private static final byte VERSION = 1;
+    /** record defining the next class id */
+    private static final byte CLASS_RECORD = 1;
+    /** record of a completed test, referring to a class id */
+    private static final byte TEST_RECORD = 2;
+
+    private final File mJournalFile;
+    private final String mRunKey;
+
+    private final LinkedBlockingQueue<TestIdentifier> mPendingTests =
+            new LinkedBlockingQueue<TestIdentifier>();
+    /** map of class name to the id used for it in the journal. Only used by the writer */
+    private final Map<String, Integer> mClassIds = new HashMap<String, Integer>();
+
+    private RandomAccessFile mFile = null;
+    private Thread mWriterThread = null;
+    /** number of tests queued, and number of tests written. Guarded by this */
+    private long mQueuedCount = 0;
+    private long mWrittenCount = 0;
+    private boolean mClosing = false;
+    /** <code>true</code> if a write failed, after which nothing more is recorded */
+    private boolean mWriteFailed = false;
+
+    /**
+     * Creates a {@link TestCheckpointJournal}.
+     *
+     * @param journalFile the file to store the journal in
+     * @param runKey a key identifying the test run
+     */
+    public TestCheckpointJournal(File journalFile, String runKey) {
+        mJournalFile = journalFile;
+        mRunKey = runKey;
+    }
+
+    /**
+     * Opens the journal for recording, creating it if necessary.
+     *
+     * @return the tests already recorded in the journal, in the order they completed
+     * @throws IOException if journal could not be opened, or is in use by another run
+     */
+    public synchronized Collection<TestIdentifier> open() throws IOException {
+        Collection<TestIdentifier> completedTests = new LinkedHashSet<TestIdentifier>();
+        mFile = new RandomAccessFile(mJournalFile, "rw");
+        try {
+            lockFile();
+            long validLength = readJournal(completedTests);
+            if (validLength < 0) {
+                if (mFile.length() > 0) {
+                    CLog.i("Discarding checkpoint journal %s for a different test run",
+                            mJournalFile.getAbsolutePath());
+                }
+                completedTests.clear();
+                mClassIds.clear();
+                mFile.setLength(0);
+                mFile.write(createHeader());
+            } else {
+                // discard any partially written record
+                mFile.setLength(validLength);
+            }
+            mFile.seek(mFile.length());
+            mFile.getFD().sync();
+        } catch (IOException e) {
+            mFile.close();
+            mFile = null;
+            throw e;
+        }
+        mClosing = false;
+        mWriteFailed = false;
+        mWriterThread = new Thread(String.format("CheckpointJournal-%s", mJournalFile.getName())) {
+            @Override
+            public void run() {
+                writePendingTests();
+            }
+        };
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+        return completedTests;
+    }
+
+    /**
+     * Gets a {@link ITestInvocationListener} that records every test that ends in the journal.
+     */
+    public ITestInvocationListener getListener() {
+        return new StubTestInvocationListener() {
+            @Override
+            public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+                testCompleted(test);
+            }
+        };
+    }
+
+    /**
+     * Queues a completed test to be recorded in the journal.
+     */
+    public synchronized void testCompleted(TestIdentifier test) {
+        if (mWriterThread == null || mClosing || mWriteFailed) {
+            CLog.w("Checkpoint journal %s is not recording, ignoring completed test %s",
+                    mJournalFile.getAbsolutePath(), test);
+            return;
+        }
+        mQueuedCount++;
+        mPendingTests.add(test);
+    }
+
+    /**
+     * Waits until all queued tests have been written to the journal.
+     *
+     * @return <code>true</code> if all queued tests were written, <code>false</code> if a write
+     *         failed
+     */
+    public synchronized boolean flush() {
+        boolean interrupted = false;
+        while (mWrittenCount < mQueuedCount && !mWriteFailed && mWriterThread != null &&
+                mWriterThread.isAlive()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return mWrittenCount == mQueuedCount;
+    }
+
+    /**
+     * Writes all queued tests, then closes the journal.
+     */
+    public void close() {
+        Thread writerThread;
+        synchronized (this) {
+            if (mWriterThread == null) {
+                return;
+            }
+            flush();
+            mClosing = true;
+            writerThread = mWriterThread;
+            mWriterThread = null;
+        }
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                CLog.w("Failed to close checkpoint journal %s: %s",
+                        mJournalFile.getAbsolutePath(), e.getMessage());
+            }
+            mFile = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the journal, once the test run has completed.
+     */
+    public void delete() {
+        close();
+        FileUtil.deleteFile(mJournalFile);
+    }
+
+    /**
+     * Lock the journal file for this run.
+     *
+     * @throws IOException if the journal is locked by another run
+     */
+    private void lockFile() throws IOException {
+        FileLock lock;
+        try {
+            lock = mFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // locked by another journal in this process
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IOException(String.format("Checkpoint journal %s is in use by another run",
+                    mJournalFile.getAbsolutePath()));
+        }
+        // released when mFile is closed
+    }
+
+    /**
+     * Main loop of the writer thread. Writes everything queued since the last write as a single
+     * group, followed by a single sync. Stops at the first failed write.
+     */
+    private void writePendingTests() {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        while (true) {
+            try {
+                tests.add(mPendingTests.take());
+            } catch (InterruptedException e) {
+                // closing, and all queued tests have been written
+                return;
+            }
+            mPendingTests.drainTo(tests);
+            long validLength = -1;
+            try {
+                validLength = mFile.length();
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                for (TestIdentifier test : tests) {
+                    writeTestRecords(records, test);
+                }
+                mFile.write(records.toByteArray());
+                mFile.getFD().sync();
+            } catch (IOException e) {
+                CLog.e("Failed to write to checkpoint journal %s, no more tests will be " +
+                        "recorded: %s", mJournalFile.getAbsolutePath(), e.getMessage());
+                discardPartialWrite(validLength);
+                synchronized (this) {
+                    mWriteFailed = true;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                mWrittenCount += tests.size();
+                notifyAll();
+            }
+            tests.clear();
+        }
+    }
+
+    /**
+     * Truncate the journal to its length before a failed write, if known, so a later run does
+     * not have to discard a partially written group.
+     */
+    private void discardPartialWrite(long validLength) {
+        if (validLength < 0) {
+            return;
+        }
+        try {
+            mFile.setLength(validLength);
+            mFile.seek(validLength);
+        } catch (IOException e) {
+            // partially written records are discarded when the journal is next opened
+        }
+    }
+
+    /**
+     * Encode the records for a completed test, defining its class first if necessary.
+     */
+    private void writeTestRecords(ByteArrayOutputStream out, TestIdentifier test)
+            throws IOException {
+        Integer classId = mClassIds.get(test.getClassName());
+        if (classId == null) {
+            classId = mClassIds.size();
+            mClassIds.put(test.getClassName(), classId);
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream payloadStream = new DataOutputStream(payload);
+            payloadStream.writeByte(CLASS_RECORD);
+            payloadStream.writeUTF(test.getClassName());
+            writeRecord(out, payload.toByteArray());
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadStream = new DataOutputStream(payload);
+        payloadStream.writeByte(TEST_RECORD);
+        payloadStream.writeInt(classId);
+        payloadStream.writeUTF(test.getTestName());
+        writeRecord(out, payload.toByteArray());
+    }
+
+    /**
+     * Frame a record as its length, its payload, and a checksum of the payload.
+     */
+    private void writeRecord(ByteArrayOutputStream out, byte[] payload) throws IOException {
+        DataOutputStream dataStream = new DataOutputStream(out);
+        dataStream.writeInt(payload.length);
+        dataStream.write(payload);
+        dataStream.writeInt(getChecksum(payload));
+    }
+
+    private byte[] createHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerStream = new DataOutputStream(header);
+        headerStream.writeInt(MAGIC);
+        headerStream.writeByte(VERSION);
+        headerStream.writeUTF(mRunKey);
+        return header.toByteArray();
+    }
+
+    /**
+     * Read the journal contents.
+     *
+     * @param completedTests the {@link Collection} to add the recorded tests to
+     * @return the length of the valid part of the journal, or -1 if the journal is empty, is for
+     *         a different run, or has an unreadable header
+     * @throws IOException if journal could not be read
+     */
+    private long readJournal(Collection<TestIdentifier> completedTests) throws IOException {
+        byte[] contents = new byte[(int)mFile.length()];
+        mFile.seek(0);
+        mFile.readFully(contents);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(contents));
+        try {
+            if (input.readInt() != MAGIC || input.readByte() != VERSION ||
+                    !mRunKey.equals(input.readUTF())) {
+                return -1;
+            }
+        } catch (EOFException e) {
+            return -1;
+        }
+        long validLength = contents.length - input.available();
+        List<String> classNames = new ArrayList<String>();
+        try {
+            while (input.available() > 0) {
+                int length = input.readInt();
+                if (length < 0 || length > input.available()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                if (input.readInt() != getChecksum(payload)) {
+                    break;
+                }
+                DataInputStream payloadStream = new DataInputStream(
+                        new ByteArrayInputStream(payload));
+                byte type = payloadStream.readByte();
+                if (type == CLASS_RECORD) {
+                    String className = payloadStream.readUTF();
+                    mClassIds.put(className, classNames.size());
+                    classNames.add(className);
+                } else if (type == TEST_RECORD) {
+                    int classId = payloadStream.readInt();
+                    if (classId < 0 || classId >= classNames.size()) {
+                        break;
+                    }
+                    completedTests.add(new TestIdentifier(classNames.get(classId),
+                            payloadStream.readUTF()));
+                } else {
+                    break;
+                }
+                validLength = contents.length - input.available();
+            }
+        } catch (EOFException e) {
+            // partially written record
+        }
+        if (validLength < contents.length) {
+            CLog.w("Discarding %d bytes of partially written records from checkpoint journal %s",
+                    contents.length - validLength, mJournalFile.getAbsolutePath());
+        }
+        return validLength;
+    }
+
+    private int getChecksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int)crc.getValue();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * A persistent host-side cache of the tests contained in a test package.
+ * <p/>
+ * Entries are keyed by a hash of the test package contents and of every parameter that can
+ * change the set of tests, so a cached list is never stale: a changed package simply maps to a
+ * new key. The cache directory can be shared by multiple hosts.
+ */
+public class TestListCache {
+
+    private static final String CACHE_FILE_EXT = ".txt";
+    private static final char TEST_SEPARATOR = '#';
+
+    private final File mCacheDir;
+
+    /**
+     * Creates a {@link TestListCache}.
+     *
+     * @param cacheDir the directory to store cached test lists in
+     */
+    public TestListCache(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Build a cache key.
+     *
+     * @param packageHash a hash of the test package contents
+     * @param params the parameters that determine which tests are run. <code>null</code> values
+     *            are allowed.
+     * @return the key
+     */
+    public static String createKey(String packageHash, String... params) {
+        StringBuilder keyBuilder = new StringBuilder(packageHash);
+        for (String param : params) {
+            // use a separator that can't appear in a parameter, so params can't be confused
+            keyBuilder.append('\0');
+            keyBuilder.append(param);
+        }
+        try {
+            return StreamUtil.calculateMd5(new ByteArrayInputStream(
+                    keyBuilder.toString().getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the cached tests for given key.
+     *
+     * @param key the cache key, as returned from {@link #createKey(String, String...)}
+     * @return the {@link Collection} of tests, in the order they were stored, or
+     *         <code>null</code> if no tests are cached for the key
+     */
+    public Collection<TestIdentifier> getTests(String key) {
+        File cacheFile = getCacheFile(key);
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        Collection<TestIdentifier> tests = new LinkedHashSet<TestIdentifier>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(cacheFile));
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                int separatorIndex = line.indexOf(TEST_SEPARATOR);
+                if (separatorIndex < 0) {
+                    CLog.w("Ignoring corrupt test list cache entry %s",
+                            cacheFile.getAbsolutePath());
+                    return null;
+                }
+                tests.add(new TestIdentifier(line.substring(0, separatorIndex),
+                        line.substring(separatorIndex + 1)));
+            }
+            return tests;
+        } catch (IOException e) {
+            CLog.w("Failed to read test list cache entry %s: %s", cacheFile.getAbsolutePath(),
+                    e.getMessage());
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the tests for given key.
+     * <p/>
+     * The list is written to a temp file then renamed, so concurrent readers never see a
+     * partially written list.
+     *
+     * @param key the cache key, as returned from {@link #createKey(String, String...)}
+     * @param tests the tests to store
+     */
+    public void putTests(String key, Collection<TestIdentifier> tests) {
+        StringBuilder contents = new StringBuilder();
+        for (TestIdentifier test : tests) {
+            contents.append(test.getClassName());
+            contents.append(TEST_SEPARATOR);
+            contents.append(test.getTestName());
+            contents.append('\n');
+        }
+        File tmpFile = null;
+        try {
+            mCacheDir.mkdirs();
+            tmpFile = FileUtil.createTempFile("testlist", null, mCacheDir);
+            FileUtil.writeToFile(contents.toString(), tmpFile);
+            File cacheFile = getCacheFile(key);
+            if (!tmpFile.renameTo(cacheFile) && !cacheFile.exists()) {
+                CLog.w("Failed to add test list to cache %s", mCacheDir.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to add test list to cache %s: %s", mCacheDir.getAbsolutePath(),
+                    e.getMessage());
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    private File getCacheFile(String key) {
+        return new File(mCacheDir, key + CACHE_FILE_EXT);
+    }
+}
@@ -18,27 +18,69 @@ package com.android.tradefed.util;
 
 import com.android.ddmlib.Log;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 
 /**
  * Finds entries on classpath.
+ * <p/>
+ * The entry names of each jar are indexed the first time the jar is scanned. The index is kept
+ * in memory, and is also stored in a file next to the jar so later processes don't need to read
+ * the jar. An index is only used while the jar's modification time and size are unchanged.
+ * An index can also hold attributes of the jar's entries, read by a {@link IEntryAttributeReader}
+ * the first time they are requested, e.g. the descriptions of configurations.
  *
  * <p>Adapted from vogar.target.ClassPathScanner</p>
  */
 public class ClassPathScanner {
 
     private static final String LOG_TAG = "ClassPathScanner";
+    private static final String INDEX_FILE_EXT = ".index";
+
+    /** map of jar absolute path to its index, shared by all scanners */
+    private static final Map<String, JarIndex> sJarIndexes =
+            new ConcurrentHashMap<String, JarIndex>();
+
     private String[] mClassPath;
 
+    /**
+     * The entry names of a jar, the entry attributes read so far, and the jar attributes they
+     * were read at.
+     */
+    private static class JarIndex {
+        final long mLastModified;
+        final long mLength;
+        final List<String> mEntryNames;
+        /** map of attribute name to the map of entry name to attribute value */
+        final Map<String, Map<String, String>> mEntryAttributes =
+                new ConcurrentHashMap<String, Map<String, String>>();
+
+        JarIndex(long lastModified, long length, List<String> entryNames) {
+            mLastModified = lastModified;
+            mLength = length;
+            mEntryNames = entryNames;
+        }
+
+        boolean isValidFor(File jarFile) {
+            return mLastModified == jarFile.lastModified() && mLength == jarFile.length();
+        }
+    }
+
     /**
      * A filter for classpath entry paths
      * <p/>
@@ -102,6 +144,27 @@ public class ClassPathScanner {
         }
     }
 
+    /**
+     * Reads an attribute of jar entries, to be stored in the jar's index.
+     */
+    public static interface IEntryAttributeReader {
+        /**
+         * Gets the name that identifies the attribute in jar indexes. The attribute is read for
+         * the entries accepted by the {@link IClassPathFilter} it is requested with, so the name
+         * should only be used with one filter.
+         */
+        String getName();
+
+        /**
+         * Reads the attribute of a jar entry.
+         *
+         * @param entryName the name of the entry, in format "foo/path/file.ext"
+         * @param entryStream the contents of the entry
+         * @return the attribute value, or <code>null</code> if it could not be read
+         */
+        String readAttribute(String entryName, InputStream entryStream);
+    }
+
     public ClassPathScanner() {
         mClassPath = getClassPath();
     }
@@ -113,9 +176,7 @@ public class ClassPathScanner {
     public Set<String> getEntriesFromJar(File plainFile, IClassPathFilter filter)
             throws IOException {
         Set<String> entryNames = new LinkedHashSet<String>();
-        JarFile jarFile = new JarFile(plainFile);
-        for (Enumeration<? extends ZipEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
-            String entryName = e.nextElement().getName();
+        for (String entryName : getJarIndex(plainFile).mEntryNames) {
             if (filter.accept(entryName)) {
                 entryNames.add(filter.transform(entryName));
             }
@@ -123,6 +184,246 @@ public class ClassPathScanner {
         return entryNames;
     }
 
+    /**
+     * Gets an attribute of all entries contained in given jar file that match given filter,
+     * from the jar's index, reading and indexing them if necessary.
+     *
+     * @return a {@link Map} of transformed entry name to attribute value, for the entries whose
+     *         attribute could be read
+     * @throws IOException
+     */
+    public Map<String, String> getEntryAttributesFromJar(File plainFile, IClassPathFilter filter,
+            IEntryAttributeReader reader) throws IOException {
+        JarIndex index = getJarIndex(plainFile);
+        Map<String, String> attributes = index.mEntryAttributes.get(reader.getName());
+        if (attributes == null) {
+            attributes = readEntryAttributes(plainFile, index, filter, reader);
+            index.mEntryAttributes.put(reader.getName(), attributes);
+            writeIndexFile(getIndexFile(plainFile), index);
+        }
+        Map<String, String> transformedAttributes = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            transformedAttributes.put(filter.transform(attribute.getKey()), attribute.getValue());
+        }
+        return transformedAttributes;
+    }
+
+    /**
+     * Reads an attribute of the entries of given jar that match given filter.
+     */
+    private Map<String, String> readEntryAttributes(File plainFile, JarIndex index,
+            IClassPathFilter filter, IEntryAttributeReader reader) throws IOException {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        JarFile jarFile = new JarFile(plainFile);
+        try {
+            for (String entryName : index.mEntryNames) {
+                ZipEntry entry = jarFile.getEntry(entryName);
+                if (entry == null || !filter.accept(entryName)) {
+                    continue;
+                }
+                InputStream entryStream = jarFile.getInputStream(entry);
+                try {
+                    String value = reader.readAttribute(entryName, entryStream);
+                    if (value != null) {
+                        attributes.put(entryName, value);
+                    }
+                } finally {
+                    StreamUtil.closeStream(entryStream);
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+        return attributes;
+    }
+
+    /**
+     * Gets the up to date {@link JarIndex} for given jar, from memory, from its index file, or
+     * else by reading the jar.
+     */
+    private JarIndex getJarIndex(File plainFile) throws IOException {
+        String path = plainFile.getAbsolutePath();
+        JarIndex index = sJarIndexes.get(path);
+        if (index != null && index.isValidFor(plainFile)) {
+            return index;
+        }
+        // read attributes before the contents, so a concurrent change invalidates the index
+        long lastModified = plainFile.lastModified();
+        long length = plainFile.length();
+        File indexFile = getIndexFile(plainFile);
+        index = readIndexFile(indexFile);
+        if (index == null || index.mLastModified != lastModified || index.mLength != length) {
+            index = new JarIndex(lastModified, length, readEntryNames(plainFile));
+            writeIndexFile(indexFile, index);
+        }
+        sJarIndexes.put(path, index);
+        return index;
+    }
+
+    /**
+     * Reads the names of all entries in given jar.
+     */
+    private List<String> readEntryNames(File plainFile) throws IOException {
+        JarFile jarFile = new JarFile(plainFile);
+        try {
+            List<String> entryNames = new ArrayList<String>(jarFile.size());
+            for (Enumeration<? extends ZipEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+                entryNames.add(e.nextElement().getName());
+            }
+            return entryNames;
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * Gets the file used to store the index of given jar. Exposed for unit testing.
+     */
+    static File getIndexFile(File plainFile) {
+        return new File(plainFile.getParentFile(), String.format(".%s%s", plainFile.getName(),
+                INDEX_FILE_EXT));
+    }
+
+    /**
+     * Reads a {@link JarIndex} from given index file.
+     *
+     * @return the {@link JarIndex} or <code>null</code> if the file does not exist or is corrupt
+     */
+    private JarIndex readIndexFile(File indexFile) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(indexFile));
+            String header = reader.readLine();
+            String[] attributes = header == null ? new String[0] : header.split(" ");
+            if (attributes.length != 2) {
+                return null;
+            }
+            List<String> entryNames = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                entryNames.add(line);
+            }
+            JarIndex index = new JarIndex(Long.parseLong(attributes[0]),
+                    Long.parseLong(attributes[1]), entryNames);
+            // each attribute section follows an empty line, which is never an entry name
+            while (line != null && (line = reader.readLine()) != null) {
+                Map<String, String> entryAttributes = new LinkedHashMap<String, String>();
+                String attributeName = line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 2) {
+                        return null;
+                    }
+                    entryAttributes.put(unescape(fields[0]), unescape(fields[1]));
+                }
+                index.mEntryAttributes.put(attributeName, entryAttributes);
+            }
+            return index;
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, String.format("Failed to read class path index %s. Reason: %s",
+                    indexFile.getAbsolutePath(), e.toString()));
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores given {@link JarIndex} in given index file. Failures are ignored, since the jar may
+     * be in a read-only location.
+     * <p/>
+     * The file holds the jar attributes, then one entry name per line, then for each entry
+     * attribute an empty line, the attribute name, and one line per entry of the escaped entry
+     * name and value separated by a tab. The index is written to a temp file then renamed, so
+     * concurrent readers never see a partially written index.
+     */
+    private void writeIndexFile(File indexFile, JarIndex index) {
+        StringBuilder contents = new StringBuilder();
+        contents.append(index.mLastModified);
+        contents.append(' ');
+        contents.append(index.mLength);
+        contents.append('\n');
+        for (String entryName : index.mEntryNames) {
+            contents.append(entryName);
+            contents.append('\n');
+        }
+        for (Map.Entry<String, Map<String, String>> attribute :
+                index.mEntryAttributes.entrySet()) {
+            contents.append('\n');
+            contents.append(attribute.getKey());
+            contents.append('\n');
+            for (Map.Entry<String, String> entryAttribute : attribute.getValue().entrySet()) {
+                contents.append(escape(entryAttribute.getKey()));
+                contents.append('\t');
+                contents.append(escape(entryAttribute.getValue()));
+                contents.append('\n');
+            }
+        }
+        File tmpFile = null;
+        try {
+            tmpFile = FileUtil.createTempFile(indexFile.getName(), null,
+                    indexFile.getParentFile());
+            FileUtil.writeToFile(contents.toString(), tmpFile);
+            if (!tmpFile.renameTo(indexFile)) {
+                Log.d(LOG_TAG, String.format("Failed to store class path index %s",
+                        indexFile.getAbsolutePath()));
+            }
+        } catch (IOException e) {
+            Log.d(LOG_TAG, String.format("Failed to store class path index %s. Reason: %s",
+                    indexFile.getAbsolutePath(), e.toString()));
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    /**
+     * Escape a string so it contains no tabs or line breaks.
+     */
+    private static String escape(String str) {
+        return str.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n")
+                .replace("\r", "\\r");
+    }
+
+    /**
+     * Reverse {@link #escape(String)}.
+     */
+    private static String unescape(String str) {
+        StringBuilder result = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '\\' && i + 1 < str.length()) {
+                i++;
+                switch (str.charAt(i)) {
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    default:
+                        c = str.charAt(i);
+                        break;
+                }
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
     /**
      * Gets the names of all entries contained in given class path directory, that match given
      * filter
@@ -213,6 +514,38 @@ public class ClassPathScanner {
         return entryNames;
     }
 
+    /**
+     * Retrieves an attribute of the classpath entries in jars that match given
+     * {@link IClassPathFilter}, from the jar indexes. Entries in class path directories are not
+     * indexed, so their attributes are not included.
+     *
+     * @return a {@link Map} of transformed entry name to attribute value
+     * @see #getEntryAttributesFromJar(File, IClassPathFilter, IEntryAttributeReader)
+     */
+    public Map<String, String> getClassPathEntryAttributes(IClassPathFilter filter,
+            IEntryAttributeReader reader) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for (String classPathElement : mClassPath) {
+            File classPathFile = new File(classPathElement);
+            if (classPathFile.isFile() && classPathElement.endsWith(".jar")) {
+                try {
+                    Map<String, String> jarAttributes = getEntryAttributesFromJar(classPathFile,
+                            filter, reader);
+                    // earlier class path elements take precedence, as for class loading
+                    for (Map.Entry<String, String> attribute : jarAttributes.entrySet()) {
+                        if (!attributes.containsKey(attribute.getKey())) {
+                            attributes.put(attribute.getKey(), attribute.getValue());
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, String.format("Failed to read class path entry %s. Reason: %s",
+                            classPathElement, e.toString()));
+                }
+            }
+        }
+        return attributes;
+    }
+
     /**
      * Gets the class path from the System Property "java.class.path" and splits
      * it up into the individual elements.
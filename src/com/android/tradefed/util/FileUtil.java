@@ -581,6 +581,22 @@ public class FileUtil {
         }
     }
 
+    /**
+     * Calculates the md5 of the contents of given file.
+     *
+     * @return the md5 as a lowercase hex {@link String}
+     * @throws IOException if file could not be read
+     */
+    public static String calculateMd5(File file) throws IOException {
+        InputStream stream = null;
+        try {
+            stream = new BufferedInputStream(new FileInputStream(file));
+            return StreamUtil.calculateMd5(stream);
+        } finally {
+            StreamUtil.closeStream(stream);
+        }
+    }
+
     /**
      * Helper method which constructs a unique file on temporary disk, whose name corresponds as
      * closely as possible to the file name given by the remote file path
@@ -27,6 +27,8 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -144,6 +146,33 @@ public class StreamUtil {
         }
     }
 
+    /**
+     * Calculates the md5 of the contents of given stream. The stream is read to the end, but not
+     * closed.
+     *
+     * @param inStream the {@link InputStream}
+     * @return the md5 as a lowercase hex {@link String}
+     * @throws IOException if failure occurred reading the stream
+     */
+    public static String calculateMd5(InputStream inStream) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("md5 is not supported", e);
+        }
+        byte[] buffer = new byte[8 * 1024];
+        int length = -1;
+        while ((length = inStream.read(buffer)) != -1) {
+            md5.update(buffer, 0, length);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md5.digest()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
     /**
      * Gets the stack trace as a {@link String}.
      *
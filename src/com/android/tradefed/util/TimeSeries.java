@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-capacity series of timestamped samples, stored in primitive arrays.
+ * <p/>
+ * Once the capacity is reached, each new sample replaces the oldest retained sample, so memory use
+ * does not grow however long the series is recorded for. The count, mean, minimum and maximum are
+ * updated as samples are added, so they cover every sample ever added. Percentiles are calculated
+ * from the retained samples.
+ * <p/>
+ * Like {@link SimpleStats}, the statistics are {@code null} if no samples have been added.
+ */
+public class TimeSeries {
+    private final long[] mTimestamps;
+    private final double[] mValues;
+    /** index that the next sample will be stored at */
+    private int mNext = 0;
+    /** number of samples retained */
+    private int mSize = 0;
+
+    private long mCount = 0;
+    private double mSum = 0;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Creates a {@link TimeSeries}.
+     *
+     * @param capacity the maximum number of samples to retain. Must be at least 1.
+     */
+    public TimeSeries(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mTimestamps = new long[capacity];
+        mValues = new double[capacity];
+    }
+
+    /**
+     * Adds a sample, replacing the oldest retained sample if the series is full.
+     *
+     * @param timestamp the time of the sample, in ms
+     * @param value the sample value
+     */
+    public synchronized void add(long timestamp, double value) {
+        mTimestamps[mNext] = timestamp;
+        mValues[mNext] = value;
+        mNext = (mNext + 1) % mValues.length;
+        if (mSize < mValues.length) {
+            mSize++;
+        }
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * Returns the maximum number of samples retained.
+     */
+    public int getCapacity() {
+        return mValues.length;
+    }
+
+    /**
+     * Returns the number of samples retained.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of samples added, including those no longer retained.
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the timestamp of a retained sample.
+     *
+     * @param index the index of the sample, where 0 is the oldest retained sample
+     */
+    public synchronized long getTimestamp(int index) {
+        return mTimestamps[getArrayIndex(index)];
+    }
+
+    /**
+     * Returns the value of a retained sample.
+     *
+     * @param index the index of the sample, where 0 is the oldest retained sample
+     */
+    public synchronized double getValue(int index) {
+        return mValues[getArrayIndex(index)];
+    }
+
+    /**
+     * Returns the mean of all samples added, or {@code null} if no samples have been added.
+     */
+    public synchronized Double getMean() {
+        return mCount == 0 ? null : mSum / mCount;
+    }
+
+    /**
+     * Returns the minimum of all samples added, or {@code null} if no samples have been added.
+     */
+    public synchronized Double getMin() {
+        return mCount == 0 ? null : mMin;
+    }
+
+    /**
+     * Returns the maximum of all samples added, or {@code null} if no samples have been added.
+     */
+    public synchronized Double getMax() {
+        return mCount == 0 ? null : mMax;
+    }
+
+    /**
+     * Returns a percentile of the retained samples, using the nearest-rank method.
+     *
+     * @param percentile the percentile to return, from 0 to 100
+     * @return the percentile, or {@code null} if no samples are retained
+     */
+    public synchronized Double getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be from 0 to 100");
+        }
+        if (mSize == 0) {
+            return null;
+        }
+        double[] sorted = new double[mSize];
+        for (int i = 0; i < mSize; i++) {
+            sorted[i] = getValue(i);
+        }
+        Arrays.sort(sorted);
+        int rank = (int)Math.ceil(percentile / 100 * mSize);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    /**
+     * Creates a new {@link TimeSeries} from a range of the retained samples, such as to discard
+     * the samples taken while a measurement was starting up and shutting down.
+     *
+     * @param fromIndex the index of the first sample to include, where 0 is the oldest retained
+     *            sample
+     * @param toIndex the index after the last sample to include
+     * @return a {@link TimeSeries}, with a capacity of the number of samples included
+     */
+    public synchronized TimeSeries slice(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > mSize || fromIndex >= toIndex) {
+            throw new IndexOutOfBoundsException(String.format(
+                    "Invalid range [%d, %d) for %d samples", fromIndex, toIndex, mSize));
+        }
+        TimeSeries slice = new TimeSeries(toIndex - fromIndex);
+        for (int i = fromIndex; i < toIndex; i++) {
+            int arrayIndex = getArrayIndex(i);
+            slice.add(mTimestamps[arrayIndex], mValues[arrayIndex]);
+        }
+        return slice;
+    }
+
+    private int getArrayIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException(String.format("Index %d for %d samples", index,
+                    mSize));
+        }
+        return (mNext - mSize + index + mValues.length) % mValues.length;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A metric whose value only increases, such as the number of requests served.
+ * <p/>
+ * Safe to update from any thread without locking.
+ */
+public class Counter {
+
+    private final AtomicLong mValue = new AtomicLong(0);
+
+    /**
+     * Increment the counter by one.
+     */
+    public void increment() {
+        mValue.incrementAndGet();
+    }
+
+    /**
+     * Increment the counter by the given amount.
+     *
+     * @param amount the amount to add. Must not be negative
+     */
+    public void increment(long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("counters can only be incremented");
+        }
+        mValue.addAndGet(amount);
+    }
+
+    /**
+     * Gets the current value of the counter.
+     */
+    public long getValue() {
+        return mValue.get();
+    }
+}
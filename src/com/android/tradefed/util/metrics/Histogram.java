@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A metric that records the distribution of durations, by counting them in a fixed set of
+ * buckets.
+ * <p/>
+ * Safe to update from any thread without locking.
+ */
+public class Histogram {
+
+    /**
+     * Default bucket upper bounds in ms, from 1 ms to 1 hour, suitable for timing everything from
+     * a device command to a full invocation.
+     */
+    static final long[] DEFAULT_BOUNDS_MS = new long[] {1, 5, 10, 50, 100, 500, 1000, 5 * 1000,
+            10 * 1000, 30 * 1000, 60 * 1000, 5 * 60 * 1000, 10 * 60 * 1000, 30 * 60 * 1000,
+            60 * 60 * 1000};
+
+    private final long[] mBoundsMs;
+    /** count of durations in each bucket, plus a final bucket for durations above all bounds */
+    private final AtomicLongArray mBucketCounts;
+    private final AtomicLong mCount = new AtomicLong(0);
+    private final AtomicLong mSumMs = new AtomicLong(0);
+
+    /**
+     * Creates a {@link Histogram} with the default buckets.
+     */
+    public Histogram() {
+        this(DEFAULT_BOUNDS_MS);
+    }
+
+    /**
+     * Creates a {@link Histogram}.
+     *
+     * @param boundsMs the inclusive upper bound of each bucket, in ms, in increasing order
+     */
+    public Histogram(long... boundsMs) {
+        for (int i = 1; i < boundsMs.length; i++) {
+            if (boundsMs[i] <= boundsMs[i - 1]) {
+                throw new IllegalArgumentException("bucket bounds must be increasing");
+            }
+        }
+        mBoundsMs = boundsMs.clone();
+        mBucketCounts = new AtomicLongArray(boundsMs.length + 1);
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param durationMs the duration in ms
+     */
+    public void record(long durationMs) {
+        int bucket = Arrays.binarySearch(mBoundsMs, durationMs);
+        if (bucket < 0) {
+            // not an exact match, use the next bucket up
+            bucket = -bucket - 1;
+        }
+        mBucketCounts.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSumMs.addAndGet(durationMs);
+    }
+
+    /**
+     * Record the time elapsed since given start time.
+     *
+     * @param startTimeMs the start time, as returned by {@link System#currentTimeMillis()}
+     */
+    public void recordSince(long startTimeMs) {
+        record(System.currentTimeMillis() - startTimeMs);
+    }
+
+    /**
+     * Gets the bucket upper bounds, in ms.
+     */
+    long[] getBoundsMs() {
+        return mBoundsMs;
+    }
+
+    /**
+     * Gets the number of durations recorded in each bucket. The final bucket holds durations
+     * greater than all bounds.
+     */
+    long[] getBucketCounts() {
+        long[] counts = new long[mBucketCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mBucketCounts.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the total number of durations recorded.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Gets the sum of all durations recorded, in ms.
+     */
+    public long getSumMs() {
+        return mSumMs.get();
+    }
+}
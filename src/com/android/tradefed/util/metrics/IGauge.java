@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.metrics;
+
+/**
+ * A metric whose value can go up and down, such as the number of commands in a queue.
+ * <p/>
+ * Gauges are only evaluated when metrics are exported, so they add no cost to the code being
+ * measured.
+ */
+public interface IGauge {
+
+    /**
+     * Gets the current value of the gauge. May be called from any thread.
+     */
+    public long getValue();
+}
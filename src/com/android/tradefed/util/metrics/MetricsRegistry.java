@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.metrics;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A host-wide registry of {@link Counter}s, {@link IGauge}s and {@link Histogram}s, which can be
+ * exported in the Prometheus text exposition format.
+ * <p/>
+ * Metrics are identified by name, and optionally by a set of labels. Code recording a metric on
+ * a hot path should look it up once and keep a reference to it, e.g. in a static field, since
+ * updating a metric is much cheaper than looking it up.
+ * <p/>
+ * Metrics can be written to a snapshot file periodically, for collection by an external agent.
+ */
+public class MetricsRegistry {
+
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String HISTOGRAM = "histogram";
+
+    private static final MetricsRegistry sRegistry = new MetricsRegistry();
+
+    private final ConcurrentMap<String, MetricFamily> mFamilies =
+            new ConcurrentHashMap<String, MetricFamily>();
+    private ScheduledExecutorService mSnapshotExecutor = null;
+
+    /**
+     * All the metrics with the same name, keyed by their formatted labels.
+     */
+    private static class MetricFamily {
+        final String mType;
+        final String mHelp;
+        final ConcurrentMap<String, Object> mMetrics = new ConcurrentHashMap<String, Object>();
+
+        MetricFamily(String type, String help) {
+            mType = type;
+            mHelp = help;
+        }
+    }
+
+    /**
+     * Package-private constructor, should only be used by this class and its associated unit test.
+     * Use {@link #getRegistry()} instead.
+     */
+    MetricsRegistry() {
+    }
+
+    /**
+     * Gets the host-wide {@link MetricsRegistry}.
+     */
+    public static MetricsRegistry getRegistry() {
+        return sRegistry;
+    }
+
+    /**
+     * Gets the {@link Counter} with given name and labels, creating it if necessary.
+     *
+     * @param name the metric name
+     * @param help a description of the metric
+     * @param labels the label names and values, alternating
+     */
+    public Counter getCounter(String name, String help, String... labels) {
+        MetricFamily family = getFamily(name, COUNTER, help);
+        String key = formatLabels(labels);
+        Counter counter = (Counter)family.mMetrics.get(key);
+        if (counter == null) {
+            family.mMetrics.putIfAbsent(key, new Counter());
+            counter = (Counter)family.mMetrics.get(key);
+        }
+        return counter;
+    }
+
+    /**
+     * Gets the {@link Histogram} with given name and labels, creating it with the default
+     * buckets if necessary.
+     *
+     * @param name the metric name
+     * @param help a description of the metric
+     * @param labels the label names and values, alternating
+     */
+    public Histogram getHistogram(String name, String help, String... labels) {
+        MetricFamily family = getFamily(name, HISTOGRAM, help);
+        String key = formatLabels(labels);
+        Histogram histogram = (Histogram)family.mMetrics.get(key);
+        if (histogram == null) {
+            family.mMetrics.putIfAbsent(key, new Histogram());
+            histogram = (Histogram)family.mMetrics.get(key);
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a {@link IGauge}, replacing any existing gauge with the same name and labels.
+     *
+     * @param name the metric name
+     * @param help a description of the metric
+     * @param gauge the {@link IGauge} to evaluate when metrics are exported
+     * @param labels the label names and values, alternating
+     */
+    public void registerGauge(String name, String help, IGauge gauge, String... labels) {
+        MetricFamily family = getFamily(name, GAUGE, help);
+        family.mMetrics.put(formatLabels(labels), gauge);
+    }
+
+    private MetricFamily getFamily(String name, String type, String help) {
+        MetricFamily family = mFamilies.get(name);
+        if (family == null) {
+            mFamilies.putIfAbsent(name, new MetricFamily(type, help));
+            family = mFamilies.get(name);
+        }
+        if (!family.mType.equals(type)) {
+            throw new IllegalArgumentException(String.format(
+                    "Metric %s is already registered as a %s", name, family.mType));
+        }
+        return family;
+    }
+
+    private String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name and value pairs");
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(labels[i]);
+            builder.append("=\"");
+            builder.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")
+                    .replace("\n", "\\n"));
+            builder.append('"');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write all metrics, in the Prometheus text exposition format.
+     *
+     * @param writer the {@link PrintWriter} to write to
+     */
+    public void writeMetrics(PrintWriter writer) {
+        Map<String, MetricFamily> sortedFamilies = new TreeMap<String, MetricFamily>(mFamilies);
+        for (Map.Entry<String, MetricFamily> familyEntry : sortedFamilies.entrySet()) {
+            String name = familyEntry.getKey();
+            MetricFamily family = familyEntry.getValue();
+            writer.printf("# HELP %s %s\n", name, family.mHelp);
+            writer.printf("# TYPE %s %s\n", name, family.mType);
+            Map<String, Object> sortedMetrics = new TreeMap<String, Object>(family.mMetrics);
+            for (Map.Entry<String, Object> metricEntry : sortedMetrics.entrySet()) {
+                String labels = metricEntry.getKey();
+                Object metric = metricEntry.getValue();
+                if (metric instanceof Counter) {
+                    writeSample(writer, name, labels, Long.toString(((Counter)metric).getValue()));
+                } else if (metric instanceof IGauge) {
+                    writeGauge(writer, name, labels, (IGauge)metric);
+                } else {
+                    writeHistogram(writer, name, labels, (Histogram)metric);
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    private void writeGauge(PrintWriter writer, String name, String labels, IGauge gauge) {
+        try {
+            writeSample(writer, name, labels, Long.toString(gauge.getValue()));
+        } catch (RuntimeException e) {
+            // don't let one broken gauge prevent all metrics from being exported
+            CLog.w("Failed to evaluate gauge %s: %s", name, e);
+        }
+    }
+
+    private void writeHistogram(PrintWriter writer, String name, String labels,
+            Histogram histogram) {
+        // buckets are read after the total and capped at it, so a concurrent update can't make
+        // the buckets exceed the total
+        long count = histogram.getCount();
+        long sumMs = histogram.getSumMs();
+        long[] bounds = histogram.getBoundsMs();
+        long[] bucketCounts = histogram.getBucketCounts();
+        String labelPrefix = labels.length() > 0 ? labels + "," : "";
+        long cumulativeCount = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulativeCount += bucketCounts[i];
+            writeSample(writer, name + "_bucket",
+                    String.format("%sle=\"%s\"", labelPrefix, formatSeconds(bounds[i])),
+                    Long.toString(Math.min(cumulativeCount, count)));
+        }
+        writeSample(writer, name + "_bucket", labelPrefix + "le=\"+Inf\"", Long.toString(count));
+        writeSample(writer, name + "_sum", labels, formatSeconds(sumMs));
+        writeSample(writer, name + "_count", labels, Long.toString(count));
+    }
+
+    private void writeSample(PrintWriter writer, String name, String labels, String value) {
+        writer.print(name);
+        if (labels.length() > 0) {
+            writer.print('{');
+            writer.print(labels);
+            writer.print('}');
+        }
+        writer.print(' ');
+        writer.print(value);
+        writer.print('\n');
+    }
+
+    private String formatSeconds(long ms) {
+        return Double.toString(ms / 1000.0);
+    }
+
+    /**
+     * Write all metrics to given file.
+     * <p/>
+     * The metrics are written to a temp file then renamed, so readers never see a partially
+     * written snapshot.
+     *
+     * @param snapshotFile the file to write
+     * @throws IOException if file could not be written
+     */
+    public void writeSnapshot(File snapshotFile) throws IOException {
+        StringWriter contents = new StringWriter();
+        writeMetrics(new PrintWriter(contents));
+        File parentDir = snapshotFile.getAbsoluteFile().getParentFile();
+        File tmpFile = FileUtil.createTempFile("metrics", ".tmp", parentDir);
+        try {
+            FileUtil.writeToFile(contents.toString(), tmpFile);
+            if (!tmpFile.renameTo(snapshotFile)) {
+                throw new IOException(String.format("Failed to rename %s to %s",
+                        tmpFile.getAbsolutePath(), snapshotFile.getAbsolutePath()));
+            }
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    /**
+     * Start writing metrics to given file periodically, replacing any previous snapshot
+     * schedule.
+     *
+     * @param snapshotFile the file to write
+     * @param periodMs the time between snapshots, in ms
+     */
+    public synchronized void startSnapshots(final File snapshotFile, long periodMs) {
+        stopSnapshots();
+        mSnapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MetricsSnapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mSnapshotExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(snapshotFile);
+                } catch (IOException e) {
+                    CLog.w("Failed to write metrics snapshot %s: %s",
+                            snapshotFile.getAbsolutePath(), e.getMessage());
+                } catch (RuntimeException e) {
+                    // an exception escaping the task would cancel all future snapshots
+                    CLog.e("Failed to write metrics snapshot %s",
+                            snapshotFile.getAbsolutePath());
+                    CLog.e(e);
+                }
+            }
+        }, 0, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop writing periodic metrics snapshots.
+     */
+    public synchronized void stopSnapshots() {
+        if (mSnapshotExecutor != null) {
+            mSnapshotExecutor.shutdownNow();
+            mSnapshotExecutor = null;
+        }
+    }
+}
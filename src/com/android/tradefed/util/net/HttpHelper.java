@@ -22,6 +22,7 @@ import com.android.tradefed.util.IRunUtil.IRunnableResult;
 import com.android.tradefed.util.MultiMap;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,12 +31,38 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Contains helper methods for making http requests
+ * <p/>
+ * Response contents are always read to the end and closed, including the contents of error
+ * responses, so the underlying connection is returned to the JVM's keep-alive cache and reused by
+ * the next request to the same server. Responses are requested gzip compressed.
  */
 public class HttpHelper implements IHttpHelper {
+    /**
+     * Max number of asynchronous requests performed at once. Kept below the default size of the
+     * JVM's keep-alive cache per server, so every connection can be reused.
+     */
+    private static final int MAX_ASYNC_REQUESTS = 4;
+    /**
+     * Factor to increase the poll interval by after each failed attempt, as done by
+     * {@link IRunUtil#runEscalatingTimedRetry(long, long, long, long, IRunnableResult)}.
+     */
+    private static final int POLL_TIME_INCREASE_FACTOR = 4;
+    private static final String GZIP_ENCODING = "gzip";
+
+    private static ScheduledExecutorService sRequestScheduler = null;
+
     /**
      * Time before timing out a request in ms.
      */
@@ -52,6 +79,10 @@ public class HttpHelper implements IHttpHelper {
      * Max time for retrying request in ms.
      */
     private long mMaxTime = 10 * 60 * 1000;
+    /**
+     * Whether to compress POST request data.
+     */
+    private boolean mCompressRequests = false;
 
     /**
      * {@inheritDoc}
@@ -100,22 +131,24 @@ public class HttpHelper implements IHttpHelper {
     public String doGet(String url) throws IOException, DataSizeException {
         CLog.d("Performing GET request for %s", url);
         InputStream remote = null;
-        byte[] bufResult = new byte[MAX_DATA_SIZE];
-        int currBufPos = 0;
-
         try {
             remote = getRemoteUrlStream(new URL(url));
-            int bytesRead;
-            // read data from stream into temporary buffer
-            while ((bytesRead = remote.read(bufResult, currBufPos,
-                    bufResult.length - currBufPos)) != -1) {
-                currBufPos += bytesRead;
-                if (currBufPos >= bufResult.length) {
-                    throw new DataSizeException();
-                }
-            }
+            return readResponse(remote);
+        } finally {
+            StreamUtil.closeStream(remote);
+        }
+    }
 
-            return new String(bufResult, 0, currBufPos);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doGet(String url, OutputStream outputStream) throws IOException {
+        CLog.d("Performing streaming GET request for %s", url);
+        InputStream remote = null;
+        try {
+            remote = getRemoteUrlStream(new URL(url));
+            StreamUtil.copyStreams(remote, outputStream);
         } finally {
             StreamUtil.closeStream(remote);
         }
@@ -130,6 +163,8 @@ public class HttpHelper implements IHttpHelper {
         InputStream remote = null;
         try {
             remote = getRemoteUrlStream(new URL(url));
+            // read to the end, so the connection can be reused
+            drainStream(remote);
         } finally {
             StreamUtil.closeStream(remote);
         }
@@ -226,6 +261,92 @@ public class HttpHelper implements IHttpHelper {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<String> doGetAsync(String url) {
+        return scheduleRequest(new GetRequestRunnable(url, false));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<String> doPostAsync(String url, String postData) {
+        return scheduleRequest(new PostRequestRunnable(url, postData));
+    }
+
+    private Future<String> scheduleRequest(RequestRunnable runnable) {
+        AsyncRequest request = new AsyncRequest(runnable);
+        getRequestScheduler().execute(request);
+        return request.getFuture();
+    }
+
+    /**
+     * Get the scheduler shared by all asynchronous requests.
+     */
+    private static synchronized ScheduledExecutorService getRequestScheduler() {
+        if (sRequestScheduler == null) {
+            sRequestScheduler = new ScheduledThreadPoolExecutor(MAX_ASYNC_REQUESTS,
+                    new ThreadFactory() {
+                        private int mThreadCount = 0;
+
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, String.format("HttpHelper-%d",
+                                    mThreadCount++));
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sRequestScheduler;
+    }
+
+    /**
+     * Performs a request on the shared scheduler, scheduling a retry with an escalating poll
+     * interval upon failure, with the same timing as
+     * {@link IRunUtil#runEscalatingTimedRetry(long, long, long, long, IRunnableResult)}.
+     */
+    private class AsyncRequest implements Runnable {
+        private final RequestRunnable mRequest;
+        private final SettableFuture<String> mFuture = SettableFuture.create();
+        private final long mEndTime;
+        private long mPollInterval;
+
+        AsyncRequest(RequestRunnable request) {
+            mRequest = request;
+            mEndTime = System.currentTimeMillis() + getMaxTime();
+            mPollInterval = getInitialPollInterval();
+        }
+
+        Future<String> getFuture() {
+            return mFuture;
+        }
+
+        @Override
+        public void run() {
+            if (mFuture.isCancelled()) {
+                return;
+            }
+            if (mRequest.run()) {
+                mFuture.set(mRequest.getResponse());
+                return;
+            }
+            if (System.currentTimeMillis() + mPollInterval >= mEndTime) {
+                Exception e = mRequest.getException();
+                mFuture.setException(e != null ? e :
+                        new IOException("request could not be completed"));
+                return;
+            }
+            CLog.d("request for %s failed, retrying in %d ms", mRequest.getUrl(), mPollInterval);
+            getRequestScheduler().schedule(this, mPollInterval, TimeUnit.MILLISECONDS);
+            mPollInterval = Math.min(mPollInterval * POLL_TIME_INCREASE_FACTOR,
+                    getMaxPollInterval());
+        }
+    }
+
     /**
      * Runnable for making requests with
      * {@link IRunUtil#runEscalatingTimedRetry(long, long, long, long, IRunnableResult)}.
@@ -262,6 +383,13 @@ public class HttpHelper implements IHttpHelper {
             mException = e;
         }
 
+        /**
+         * Perform a single request, storing the response or the associated exception in case of
+         * error.
+         */
+        @Override
+        public abstract boolean run();
+
         @Override
         public void cancel() {
             // ignore
@@ -334,21 +462,11 @@ public class HttpHelper implements IHttpHelper {
                 outputStream = getConnectionOutputStream(conn);
                 outputStreamWriter = new OutputStreamWriter(outputStream);
                 outputStreamWriter.write(mPostData);
-                outputStreamWriter.flush();
+                // close rather than flush, to finish any compressed data
+                outputStreamWriter.close();
 
                 inputStream = getConnectionInputStream(conn);
-                byte[] bufResult = new byte[MAX_DATA_SIZE];
-                int currBufPos = 0;
-                int bytesRead;
-                // read data from stream into temporary buffer
-                while ((bytesRead = inputStream.read(bufResult, currBufPos,
-                        bufResult.length - currBufPos)) != -1) {
-                    currBufPos += bytesRead;
-                    if (currBufPos >= bufResult.length) {
-                        throw new DataSizeException();
-                    }
-                }
-                setResponse(new String(bufResult, 0, currBufPos));
+                setResponse(readResponse(inputStream));
                 return true;
             } catch (IOException e) {
                 CLog.i("IOException %s from %s", e.getMessage(), getUrl());
@@ -375,6 +493,45 @@ public class HttpHelper implements IHttpHelper {
         }
     }
 
+    /**
+     * Read a response into a {@link String}.
+     *
+     * @throws DataSizeException if the response is > {@link #MAX_DATA_SIZE}
+     */
+    private String readResponse(InputStream inputStream) throws IOException, DataSizeException {
+        byte[] bufResult = new byte[MAX_DATA_SIZE];
+        int currBufPos = 0;
+        int bytesRead;
+        // read data from stream into temporary buffer
+        while ((bytesRead = inputStream.read(bufResult, currBufPos,
+                bufResult.length - currBufPos)) != -1) {
+            currBufPos += bytesRead;
+            if (currBufPos >= bufResult.length) {
+                throw new DataSizeException();
+            }
+        }
+        return new String(bufResult, 0, currBufPos);
+    }
+
+    /**
+     * Read a stream to the end, discarding the data.
+     */
+    private static void drainStream(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        while (inputStream.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    /**
+     * Set the timeouts and request headers common to all requests made by this class.
+     */
+    private void prepareConnection(URLConnection conn) {
+        conn.setConnectTimeout((int)Math.min(getOpTimeout(), Integer.MAX_VALUE));
+        conn.setReadTimeout((int)Math.min(getOpTimeout(), Integer.MAX_VALUE));
+        conn.setRequestProperty("Accept-Encoding", GZIP_ENCODING);
+    }
+
     /**
      * Factory method for opening an input stream to a remote url. Exposed for unit testing.
      *
@@ -383,20 +540,59 @@ public class HttpHelper implements IHttpHelper {
      * @throws IOException if stream could not be opened.
      */
     InputStream getRemoteUrlStream(URL url) throws IOException {
-        return url.openStream();
+        URLConnection conn = url.openConnection();
+        if (!(conn instanceof HttpURLConnection)) {
+            return conn.getInputStream();
+        }
+        prepareConnection(conn);
+        return getConnectionInputStream((HttpURLConnection)conn);
     }
 
     /**
-     * Factory method for getting connection input stream. Exposed for unit testing.
+     * Factory method for getting connection input stream, decompressing the response if
+     * necessary. Exposed for unit testing.
+     * <p/>
+     * If the request failed, the error response is read and discarded before throwing, so the
+     * connection can be reused.
      */
     InputStream getConnectionInputStream(HttpURLConnection conn) throws IOException {
-        return conn.getInputStream();
+        InputStream inputStream;
+        try {
+            inputStream = conn.getInputStream();
+        } catch (IOException e) {
+            InputStream errorStream = conn.getErrorStream();
+            if (errorStream != null) {
+                try {
+                    drainStream(errorStream);
+                } catch (IOException drainException) {
+                    // ignore, the connection will not be reused
+                } finally {
+                    StreamUtil.closeStream(errorStream);
+                }
+            }
+            throw e;
+        }
+        if (GZIP_ENCODING.equalsIgnoreCase(conn.getContentEncoding())) {
+            try {
+                return new GZIPInputStream(inputStream);
+            } catch (IOException e) {
+                StreamUtil.closeStream(inputStream);
+                throw e;
+            }
+        }
+        return inputStream;
     }
 
     /**
-     * Factory method for getting connection output stream. Exposed for unit testing.
+     * Factory method for getting connection output stream, after setting the timeouts and
+     * request headers for compression. Exposed for unit testing.
      */
     OutputStream getConnectionOutputStream(HttpURLConnection conn) throws IOException {
+        prepareConnection(conn);
+        if (mCompressRequests) {
+            conn.setRequestProperty("Content-Encoding", GZIP_ENCODING);
+            return new GZIPOutputStream(conn.getOutputStream());
+        }
         return conn.getOutputStream();
     }
 
@@ -464,6 +660,22 @@ public class HttpHelper implements IHttpHelper {
         mMaxTime = time;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getCompressRequests() {
+        return mCompressRequests;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCompressRequests(boolean compress) {
+        mCompressRequests = compress;
+    }
+
     /**
      * Get {@link IRunUtil} to use. Exposed so unit tests can mock.
      */
@@ -20,8 +20,10 @@ import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.MultiMap;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.Future;
 
 /**
  * Helper methods for performing http requests.
@@ -82,6 +84,16 @@ public interface IHttpHelper {
      */
     public String doGet(String url) throws IOException, DataSizeException;
 
+    /**
+     * Performs a GET HTTP request method for a given URL, streaming the contents to the given
+     * {@link OutputStream}, so contents of any size can be retrieved in constant memory.
+     *
+     * @param url the URL
+     * @param outputStream the {@link OutputStream} to write the remote contents to
+     * @throws IOException if failed to retrieve data
+     */
+    public void doGet(String url, OutputStream outputStream) throws IOException;
+
     /**
      * Performs {{@link #doGet(String)} retrying upon failure.
      *
@@ -131,6 +143,31 @@ public interface IHttpHelper {
     public String doPostWithRetry(String url, String postData) throws IOException,
             DataSizeException;
 
+    /**
+     * Performs {@link #doGetWithRetry(String)} asynchronously.
+     * <p>
+     * Retries are scheduled on a shared scheduler, rather than blocking a thread while waiting to
+     * retry.
+     * </p>
+     * @param url the URL
+     * @return a {@link Future} for the {@link String} remote contents, which fails with the
+     *         exception from the last attempt if all attempts fail
+     */
+    public Future<String> doGetAsync(String url);
+
+    /**
+     * Performs {@link #doPostWithRetry(String, String)} asynchronously.
+     * <p>
+     * Retries are scheduled on a shared scheduler, rather than blocking a thread while waiting to
+     * retry.
+     * </p>
+     * @param url the URL
+     * @param postData the data to be posted once the connection is open
+     * @return a {@link Future} for the {@link String} remote contents, which fails with the
+     *         exception from the last attempt if all attempts fail
+     */
+    public Future<String> doPostAsync(String url, String postData);
+
     /**
      * Create a to given url.
      *
@@ -226,4 +263,15 @@ public interface IHttpHelper {
      *     com.android.tradefed.util.IRunUtil.IRunnableResult)
      */
     void setMaxTime(long time);
+
+    /**
+     * Get whether POST request data is gzip compressed.
+     */
+    boolean getCompressRequests();
+
+    /**
+     * Set whether POST request data is gzip compressed. The server must accept a gzip
+     * Content-Encoding.
+     */
+    void setCompressRequests(boolean compress);
 }
@@ -17,12 +17,19 @@ package com.android.tradefed;
 
 import com.android.tradefed.build.FileDownloadCacheFuncTest;
 import com.android.tradefed.command.CommandSchedulerFuncTest;
+import com.android.tradefed.command.CommandSchedulingPolicyFuncTest;
+import com.android.tradefed.command.RemoteManagerFuncTest;
+import com.android.tradefed.device.ScreenshotEncoderFuncTest;
 import com.android.tradefed.device.TestDeviceFuncTest;
+import com.android.tradefed.log.FileLoggerFuncTest;
+import com.android.tradefed.result.BatchUploadResultReporterFuncTest;
 import com.android.tradefed.targetprep.DeviceSetupFuncTest;
 import com.android.tradefed.testtype.DeviceTestSuite;
 import com.android.tradefed.testtype.InstrumentationTestFuncTest;
 import com.android.tradefed.util.FileUtilFuncTest;
 import com.android.tradefed.util.RunUtilFuncTest;
+import com.android.tradefed.util.metrics.MetricsFuncTest;
+import com.android.tradefed.util.net.HttpHelperFuncTest;
 
 import junit.framework.Test;
 
@@ -35,14 +42,21 @@ public class FuncTests extends DeviceTestSuite {
 
     public FuncTests() {
         super();
+        this.addTestSuite(BatchUploadResultReporterFuncTest.class);
         this.addTestSuite(CommandSchedulerFuncTest.class);
+        this.addTestSuite(CommandSchedulingPolicyFuncTest.class);
         this.addTestSuite(DeviceSetupFuncTest.class);
         this.addTestSuite(FileDownloadCacheFuncTest.class);
+        this.addTestSuite(FileLoggerFuncTest.class);
         this.addTestSuite(FileUtilFuncTest.class);
         // TODO: temporarily remove from suite until we figure out how to install gtest data
         //this.addTestSuite(GTestFuncTest.class);
+        this.addTestSuite(HttpHelperFuncTest.class);
         this.addTestSuite(InstrumentationTestFuncTest.class);
+        this.addTestSuite(MetricsFuncTest.class);
+        this.addTestSuite(RemoteManagerFuncTest.class);
         this.addTestSuite(RunUtilFuncTest.class);
+        this.addTestSuite(ScreenshotEncoderFuncTest.class);
         this.addTestSuite(TestDeviceFuncTest.class);
     }
 
@@ -20,10 +20,12 @@ import com.android.tradefed.build.DeviceBuildInfoTest;
 import com.android.tradefed.build.FileDownloadCacheTest;
 import com.android.tradefed.build.KernelBuildInfoTest;
 import com.android.tradefed.build.KernelDeviceBuildInfoTest;
+import com.android.tradefed.build.LazyTestsZipTest;
 import com.android.tradefed.build.OtaZipfileBuildProviderTest;
 import com.android.tradefed.build.SdkBuildInfoTest;
 import com.android.tradefed.command.CommandFileParserTest;
 import com.android.tradefed.command.CommandSchedulerTest;
+import com.android.tradefed.command.CommandSchedulingPolicyTest;
 import com.android.tradefed.command.ConsoleTest;
 import com.android.tradefed.command.RemoteManagerTest;
 import com.android.tradefed.config.ArgsOptionParserTest;
@@ -34,25 +36,37 @@ import com.android.tradefed.config.ConfigurationXmlParserTest;
 import com.android.tradefed.config.OptionCopierTest;
 import com.android.tradefed.config.OptionSetterTest;
 import com.android.tradefed.config.OptionUpdateRuleTest;
+import com.android.tradefed.device.ChunkedFileTransferTest;
 import com.android.tradefed.device.CpuStatsCollectorTest;
+import com.android.tradefed.device.DeviceCommandDispatcherTest;
+import com.android.tradefed.device.DeviceFileChunkTransportTest;
 import com.android.tradefed.device.DeviceManagerTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
+import com.android.tradefed.device.DeviceTelemetrySamplerTest;
 import com.android.tradefed.device.LargeOutputReceiverTest;
 import com.android.tradefed.device.ReconnectingRecoveryTest;
+import com.android.tradefed.device.ScreenRecorderTest;
+import com.android.tradefed.device.ScreenshotEncoderTest;
+import com.android.tradefed.device.StreamingLineReceiverTest;
 import com.android.tradefed.device.TestDeviceTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
 import com.android.tradefed.device.WifiHelperTest;
+import com.android.tradefed.invoker.InvocationTraceTest;
 import com.android.tradefed.invoker.TestInvocationTest;
+import com.android.tradefed.log.AsyncLogWriterTest;
 import com.android.tradefed.log.FileLoggerTest;
 import com.android.tradefed.log.LogRegistryTest;
+import com.android.tradefed.result.BatchUploadResultReporterTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
+import com.android.tradefed.result.DeviceFileReporterTest;
 import com.android.tradefed.result.EmailResultReporterTest;
 import com.android.tradefed.result.FailureEmailResultReporterTest;
 import com.android.tradefed.result.InvocationFailureEmailResultReporterTest;
 import com.android.tradefed.result.InvocationToJUnitResultForwarderTest;
 import com.android.tradefed.result.JUnitToInvocationResultForwarderTest;
 import com.android.tradefed.result.LogFileSaverTest;
+import com.android.tradefed.result.ResultUploaderTest;
 import com.android.tradefed.result.SnapshotInputStreamSourceTest;
 import com.android.tradefed.result.TestFailureEmailResultReporterTest;
 import com.android.tradefed.result.TestSummaryTest;
@@ -76,6 +90,8 @@ import com.android.tradefed.testtype.InstrumentationTestTest;
 import com.android.tradefed.testtype.NativeBenchmarkTestParserTest;
 import com.android.tradefed.testtype.NativeStressTestParserTest;
 import com.android.tradefed.testtype.NativeStressTestTest;
+import com.android.tradefed.testtype.TestCheckpointJournalTest;
+import com.android.tradefed.testtype.TestListCacheTest;
 import com.android.tradefed.testtype.testdefs.XmlDefsParserTest;
 import com.android.tradefed.testtype.testdefs.XmlDefsTestTest;
 import com.android.tradefed.util.ArrayUtilTest;
@@ -87,7 +103,9 @@ import com.android.tradefed.util.MultiMapTest;
 import com.android.tradefed.util.QuotationAwareTokenizerTest;
 import com.android.tradefed.util.RegexTrieTest;
 import com.android.tradefed.util.RunUtilTest;
+import com.android.tradefed.util.TimeSeriesTest;
 import com.android.tradefed.util.brillopad.BrillopadTests;
+import com.android.tradefed.util.metrics.MetricsRegistryTest;
 import com.android.tradefed.util.xml.AndroidManifestWriterTest;
 
 import junit.framework.Test;
@@ -107,12 +125,14 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(FileDownloadCacheTest.class);
         addTestSuite(KernelBuildInfoTest.class);
         addTestSuite(KernelDeviceBuildInfoTest.class);
+        addTestSuite(LazyTestsZipTest.class);
         addTestSuite(OtaZipfileBuildProviderTest.class);
         addTestSuite(SdkBuildInfoTest.class);
 
         // command
         addTestSuite(CommandFileParserTest.class);
         addTestSuite(CommandSchedulerTest.class);
+        addTestSuite(CommandSchedulingPolicyTest.class);
         addTestSuite(ConsoleTest.class);
         addTestSuite(RemoteManagerTest.class);
 
@@ -127,31 +147,43 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(OptionUpdateRuleTest.class);
 
         // device
+        addTestSuite(ChunkedFileTransferTest.class);
         addTestSuite(CpuStatsCollectorTest.class);
+        addTestSuite(DeviceCommandDispatcherTest.class);
+        addTestSuite(DeviceFileChunkTransportTest.class);
         addTestSuite(DeviceManagerTest.class);
         addTestSuite(DeviceSelectionOptionsTest.class);
         addTestSuite(DeviceStateMonitorTest.class);
+        addTestSuite(DeviceTelemetrySamplerTest.class);
         addTestSuite(LargeOutputReceiverTest.class);
         addTestSuite(ReconnectingRecoveryTest.class);
+        addTestSuite(ScreenRecorderTest.class);
+        addTestSuite(ScreenshotEncoderTest.class);
+        addTestSuite(StreamingLineReceiverTest.class);
         addTestSuite(TestDeviceTest.class);
         addTestSuite(WaitDeviceRecoveryTest.class);
         addTestSuite(WifiHelperTest.class);
 
         // invoker
+        addTestSuite(InvocationTraceTest.class);
         addTestSuite(TestInvocationTest.class);
 
         // log
+        addTestSuite(AsyncLogWriterTest.class);
         addTestSuite(FileLoggerTest.class);
         addTestSuite(LogRegistryTest.class);
 
         // result
+        addTestSuite(BatchUploadResultReporterTest.class);
         addTestSuite(CollectingTestListenerTest.class);
+        addTestSuite(DeviceFileReporterTest.class);
         addTestSuite(EmailResultReporterTest.class);
         addTestSuite(FailureEmailResultReporterTest.class);
         addTestSuite(InvocationFailureEmailResultReporterTest.class);
         addTestSuite(InvocationToJUnitResultForwarderTest.class);
         addTestSuite(JUnitToInvocationResultForwarderTest.class);
         addTestSuite(LogFileSaverTest.class);
+        addTestSuite(ResultUploaderTest.class);
         addTestSuite(SnapshotInputStreamSourceTest.class);
         addTestSuite(TestSummaryTest.class);
         addTestSuite(TestFailureEmailResultReporterTest.class);
@@ -178,6 +210,8 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(NativeBenchmarkTestParserTest.class);
         addTestSuite(NativeStressTestParserTest.class);
         addTestSuite(NativeStressTestTest.class);
+        addTestSuite(TestCheckpointJournalTest.class);
+        addTestSuite(TestListCacheTest.class);
 
         // testtype/testdefs
         addTestSuite(XmlDefsParserTest.class);
@@ -193,10 +227,12 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(QuotationAwareTokenizerTest.class);
         addTestSuite(RegexTrieTest.class);
         addTestSuite(RunUtilTest.class);
+        addTestSuite(TimeSeriesTest.class);
 
         // util subdirs
         addTestSuite(AndroidManifestWriterTest.class);
         addTest(BrillopadTests.suite());
+        addTestSuite(MetricsRegistryTest.class);
     }
 
     public static Test suite() {
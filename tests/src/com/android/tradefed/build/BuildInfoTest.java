@@ -20,6 +20,9 @@ import com.android.tradefed.util.FileUtil;
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Unit tests for {@link BuildInfo}.
@@ -58,12 +61,50 @@ public class BuildInfoTest extends TestCase {
         assertEquals(mBuildInfo.getBuildAttributes().get(ATTRIBUTE_KEY),
                 copy.getBuildAttributes().get(ATTRIBUTE_KEY));
         try {
-            // ensure a copy of mImageFile was created
+            // ensure mFile is shared with the copy
             assertEquals(VERSION, copy.getVersion(FILE_KEY));
-            assertTrue(!mFile.getAbsolutePath().equals(copy.getFile(FILE_KEY)));
-            assertTrue(FileUtil.compareFileContents(mFile, copy.getFile(FILE_KEY)));
+            assertEquals(mFile, copy.getFile(FILE_KEY));
         } finally {
-            FileUtil.deleteFile(copy.getFile(FILE_KEY));
+            copy.cleanUp();
+        }
+    }
+
+    /**
+     * Test that a file shared with a clone is only deleted once all builds are cleaned up.
+     */
+    public void testCleanUp_clone() {
+        BuildInfo copy = (BuildInfo) mBuildInfo.clone();
+        BuildInfo copyOfCopy = (BuildInfo) copy.clone();
+        mBuildInfo.cleanUp();
+        assertNull(mBuildInfo.getFile(FILE_KEY));
+        assertTrue(mFile.exists());
+        copy.cleanUp();
+        assertTrue(mFile.exists());
+        // cleaning up again should have no effect
+        copy.cleanUp();
+        assertTrue(mFile.exists());
+        copyOfCopy.cleanUp();
+        assertFalse(mFile.exists());
+    }
+
+    /**
+     * Test that copying the files of a build that is cleaned up during the copy fails cleanly.
+     */
+    public void testAddAllFiles_cleanedUp() {
+        // a build that still lists its file, but whose file handle has been released
+        final Map<String, VersionedFile> files = new HashMap<String, VersionedFile>(
+                mBuildInfo.getVersionedFileMap());
+        BuildInfo cleanedBuild = new BuildInfo("1", "build", "target") {
+            @Override
+            protected Map<String, VersionedFile> getVersionedFileMap() {
+                return files;
+            }
+        };
+        try {
+            new BuildInfo("2", "build", "target").addAllFiles(cleanedBuild);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
         }
     }
 
@@ -16,10 +16,14 @@
 package com.android.tradefed.build;
 
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
 
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Unit tests for {@link DeviceBuildInfo}.
@@ -53,15 +57,15 @@ public class DeviceBuildInfoTest extends TestCase {
     public void testClone() throws Exception {
         DeviceBuildInfo copy = (DeviceBuildInfo)mBuildInfo.clone();
         try {
-            // ensure a copy of mImageFile was created
+            // ensure mImageFile is shared with the copy
             assertEquals(VERSION, copy.getBasebandVersion());
-            assertTrue(!mImageFile.getAbsolutePath().equals(copy.getBasebandImageFile()));
-            assertTrue(FileUtil.compareFileContents(mImageFile, copy.getBasebandImageFile()));
+            assertEquals(mImageFile, copy.getBasebandImageFile());
+            mBuildInfo.cleanUp();
+            assertTrue(mImageFile.exists());
         } finally {
-            if (copy.getBasebandImageFile() != null) {
-                copy.getBasebandImageFile().delete();
-            }
+            copy.cleanUp();
         }
+        assertFalse(mImageFile.exists());
     }
 
     /**
@@ -73,4 +77,48 @@ public class DeviceBuildInfoTest extends TestCase {
         assertNull(mBuildInfo.getBasebandImageFile());
         assertFalse(mImageFile.exists());
     }
+
+    /**
+     * Test {@link DeviceBuildInfo#getTestsDirFile(String...)} when tests dir is lazily backed by
+     * a tests zip, including for a clone.
+     */
+    public void testGetTestsDirFile_lazy() throws Exception {
+        File testsZip = FileUtil.createTempFile("tests", ".zip");
+        File cacheDir = FileUtil.createTempDir("cache");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(testsZip));
+        try {
+            out.putNextEntry(new ZipEntry("DATA/app/Foo.apk"));
+            out.write("foo".getBytes());
+            out.closeEntry();
+        } finally {
+            StreamUtil.closeStream(out);
+        }
+        DeviceBuildInfo copy = null;
+        try {
+            mBuildInfo.setTestsZip(testsZip, VERSION, cacheDir);
+            assertEquals(VERSION, mBuildInfo.getTestsDirVersion());
+            assertEquals(0, mBuildInfo.getTestsDir().list().length);
+            copy = (DeviceBuildInfo)mBuildInfo.clone();
+            assertTrue(mBuildInfo.getTestsDirFile("DATA", "app", "Foo.apk").exists());
+            assertFalse(mBuildInfo.getTestsDirFile("DATA", "app", "Bar.apk").exists());
+            assertTrue(copy.getTestsDirFile("DATA", "app", "Foo.apk").exists());
+
+            File testsDir = mBuildInfo.getTestsDir();
+            mBuildInfo.cleanUp();
+            // tests dir is still in use by the copy
+            assertTrue(copy.getTestsDirFile("DATA", "app", "Foo.apk").exists());
+            copy.cleanUp();
+            assertFalse(testsDir.exists());
+            assertFalse(testsZip.exists());
+            // extracted content is kept for other invocations
+            assertEquals(1, cacheDir.list().length);
+        } finally {
+            mBuildInfo.cleanUp();
+            if (copy != null) {
+                copy.cleanUp();
+            }
+            FileUtil.deleteFile(testsZip);
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
 }
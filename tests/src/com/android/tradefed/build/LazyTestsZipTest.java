@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Unit tests for {@link LazyTestsZip}.
+ */
+public class LazyTestsZipTest extends TestCase {
+
+    private File mZipFile;
+    private File mViewDir;
+    private File mCacheDir;
+    private LazyTestsZip mLazyZip;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mZipFile = FileUtil.createTempFile("tests", ".zip");
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mZipFile)));
+        try {
+            addEntry(out, "DATA/", null);
+            addEntry(out, "DATA/app/", null);
+            addEntry(out, "DATA/app/Foo.apk", "foo");
+            addEntry(out, "DATA/app/Bar.apk", "bar");
+            addEntry(out, "DATA/data/foo.txt", "foo");
+            addEntry(out, "DATA/dataextra.txt", "extra");
+        } finally {
+            StreamUtil.closeStream(out);
+        }
+        mViewDir = FileUtil.createTempDir("view");
+        mCacheDir = FileUtil.createTempDir("cache");
+        mLazyZip = new LazyTestsZip(mZipFile, mViewDir, mCacheDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLazyZip.close();
+        FileUtil.deleteFile(mZipFile);
+        FileUtil.recursiveDelete(mViewDir);
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    private void addEntry(ZipOutputStream out, String name, String contents) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        if (contents != null) {
+            out.write(contents.getBytes());
+        }
+        out.closeEntry();
+    }
+
+    /**
+     * Test that requesting a single file only extracts that file.
+     */
+    public void testGetFile() throws Exception {
+        File apk = mLazyZip.getFile("DATA/app/Foo.apk");
+        assertTrue(apk.exists());
+        assertEquals("foo", StreamUtil.getStringFromStream(new FileInputStream(apk)));
+        assertFalse(new File(apk.getParentFile(), "Bar.apk").exists());
+        assertFalse(FileUtil.getFileForPath(mViewDir, "DATA", "data").exists());
+        assertEquals(1, mCacheDir.listFiles().length);
+    }
+
+    /**
+     * Test that requesting a folder extracts all of its contents, and nothing else.
+     */
+    public void testGetFile_folder() throws Exception {
+        File appDir = mLazyZip.getFile(FileUtil.getPath("DATA", "app"));
+        assertTrue(appDir.isDirectory());
+        assertTrue(new File(appDir, "Foo.apk").exists());
+        assertTrue(new File(appDir, "Bar.apk").exists());
+        assertFalse(FileUtil.getFileForPath(mViewDir, "DATA", "data").exists());
+
+        // DATA/data should not be confused with DATA/dataextra.txt
+        File dataDir = mLazyZip.getFile("DATA/data/");
+        assertTrue(new File(dataDir, "foo.txt").exists());
+        assertFalse(FileUtil.getFileForPath(mViewDir, "DATA", "dataextra.txt").exists());
+    }
+
+    /**
+     * Test that a missing entry results in a non-existent file.
+     */
+    public void testGetFile_missing() throws Exception {
+        assertFalse(mLazyZip.getFile("DATA/app/Missing.apk").exists());
+    }
+
+    /**
+     * Test that each entry is only extracted once, and is reused by other views, which cannot
+     * modify the cached copy.
+     */
+    public void testGetFile_cached() throws Exception {
+        mLazyZip.getFile("DATA");
+        // Foo.apk and foo.txt have same content, but different names
+        assertEquals(4, mCacheDir.listFiles().length);
+
+        File otherViewDir = FileUtil.createTempDir("view");
+        LazyTestsZip otherZip = new LazyTestsZip(mZipFile, otherViewDir, mCacheDir);
+        try {
+            File cachedFile = getCachedFile("DATA/app/Bar.apk");
+            // mark the cached copy, to detect whether it is reused
+            FileUtil.writeToFile("cached", cachedFile);
+            File apk = otherZip.getFile("DATA/app/Bar.apk");
+            assertEquals("cached", StreamUtil.getStringFromStream(new FileInputStream(apk)));
+            assertEquals(4, mCacheDir.listFiles().length);
+
+            FileUtil.writeToFile("modified", apk);
+            assertEquals("cached", StreamUtil.getStringFromStream(
+                    new FileInputStream(cachedFile)));
+        } finally {
+            otherZip.close();
+            FileUtil.recursiveDelete(otherViewDir);
+        }
+    }
+
+    /**
+     * Test that the least recently used entries are evicted when the cache is too large, and
+     * entries not used recently are evicted regardless of size.
+     */
+    public void testGetFile_evict() throws Exception {
+        mLazyZip.getFile("DATA");
+        mLazyZip.close();
+        File fooFile = getCachedFile("DATA/app/Foo.apk");
+        File barFile = getCachedFile("DATA/app/Bar.apk");
+        long now = System.currentTimeMillis();
+        fooFile.setLastModified(now - 120 * 1000);
+        barFile.setLastModified(now - 60 * 1000);
+
+        // each cached entry is 3 to 5 bytes, so only the 3 most recently used fit
+        LazyTestsZip otherZip = new LazyTestsZip(mZipFile, mViewDir, mCacheDir);
+        otherZip.setMaxCacheSize(12);
+        otherZip.listFiles("");
+        otherZip.close();
+        assertEquals(3, mCacheDir.listFiles().length);
+        assertFalse(fooFile.exists());
+
+        otherZip = new LazyTestsZip(mZipFile, mViewDir, mCacheDir);
+        otherZip.setMaxCacheAge(30 * 1000);
+        otherZip.listFiles("");
+        otherZip.close();
+        assertEquals(2, mCacheDir.listFiles().length);
+        assertFalse(barFile.exists());
+    }
+
+    /**
+     * Test that entries outside the tests zip root are rejected.
+     */
+    public void testGetFile_outsideRoot() throws Exception {
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mZipFile)));
+        try {
+            addEntry(out, "DATA/../../evil.txt", "evil");
+        } finally {
+            StreamUtil.closeStream(out);
+        }
+        try {
+            mLazyZip.getFile("DATA");
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(new File(mViewDir.getParentFile(), "evil.txt").exists());
+        try {
+            mLazyZip.getFile("../evil.txt");
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private File getCachedFile(String entryName) throws IOException {
+        ZipFile zip = new ZipFile(mZipFile);
+        try {
+            return new File(mCacheDir, LazyTestsZip.getCacheKey(zip.getEntry(entryName)));
+        } finally {
+            FileUtil.closeZip(zip);
+        }
+    }
+
+    /**
+     * Test {@link LazyTestsZip#listFiles(String)}.
+     */
+    public void testListFiles() throws Exception {
+        List<String> names = mLazyZip.listFiles("DATA/app");
+        assertEquals(2, names.size());
+        assertTrue(names.contains("DATA/app/Foo.apk"));
+        assertTrue(names.contains("DATA/app/Bar.apk"));
+        assertEquals(4, mLazyZip.listFiles("").size());
+        // listing should not extract anything
+        assertEquals(0, mCacheDir.listFiles().length);
+    }
+
+    /**
+     * Test {@link LazyTestsZip#normalizePath(String)}.
+     */
+    public void testNormalizePath() {
+        assertEquals("DATA/app", LazyTestsZip.normalizePath("/DATA/app/"));
+        assertEquals("", LazyTestsZip.normalizePath("/"));
+    }
+}
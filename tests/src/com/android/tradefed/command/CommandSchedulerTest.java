@@ -33,6 +33,11 @@ import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Unit tests for {@link CommandScheduler}.
@@ -63,7 +68,14 @@ public class CommandSchedulerTest extends TestCase {
         mDeviceOptions = new DeviceSelectionOptions();
         mCmdListener = new NotifyingCommandListener();
 
-        mScheduler = new CommandScheduler() {
+        mScheduler = createScheduler(new CommandSchedulingPolicy());
+    }
+
+    /**
+     * Create a {@link CommandScheduler} that uses the mock objects and the given policy.
+     */
+    private CommandScheduler createScheduler(CommandSchedulingPolicy policy) {
+        return new CommandScheduler(policy) {
             @Override
             ITestInvocation createRunInstance() {
                 return mMockInvocation;
@@ -165,6 +177,36 @@ public class CommandSchedulerTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Test that {@link CommandScheduler#run()} uses the {@link CommandSchedulingPolicy} it was
+     * created with.
+     */
+    public void testRun_schedulingPolicy() throws Exception {
+        final List<ICommandOptions> startedCommands = Collections.synchronizedList(
+                new ArrayList<ICommandOptions>());
+        mScheduler = createScheduler(new CommandSchedulingPolicy() {
+            @Override
+            public boolean isDeadlineMissed(ISchedulableCommand cmd) {
+                startedCommands.add(cmd.getCommandOptions());
+                return false;
+            }
+        });
+        String[] args = new String[] {};
+        mMockManager.setNumDevices(1);
+        setCreateConfigExpectations(args, 1);
+        mCmdListener.setExpectedCalls(1);
+        setExpectedInvokeCalls(1);
+        replayMocks();
+        mScheduler.addCommand(args, mCmdListener);
+        mScheduler.start();
+        waitForCommandStartedCalls();
+        mScheduler.shutdown();
+        mScheduler.join();
+        verifyMocks();
+        assertEquals(1, startedCommands.size());
+        assertSame(mCommandOptions, startedCommands.get(0));
+    }
+
     /**
      * Test {@link CommandScheduler#run()} when one config has been added in dry-run mode
      */
@@ -214,8 +256,10 @@ public class CommandSchedulerTest extends TestCase {
             ExceptionTracker tracker = new ExceptionTracker();
             Thread.setDefaultUncaughtExceptionHandler(tracker);
             mMockManager.setNumDevices(1);
-            // config should only be created three times
-            setCreateConfigExpectations(args, 3);
+            // config should only be created once, then copied for the template and each loop
+            setCreateConfigExpectations(args, 1);
+            EasyMock.expect(mMockConfiguration.createCopy()).andReturn(mMockConfiguration)
+                    .times(3);
             mCommandOptions.setLoopMode(true);
             mCommandOptions.setMinLoopTime(0);
             // wait for invocation to be executed twice
@@ -367,6 +411,96 @@ public class CommandSchedulerTest extends TestCase {
                 mCmdListener.getNumExpectedCalls(), mCmdListener.getNumCalls());
     }
 
+    /**
+     * Test that {@link CommandScheduler#handoverShutdown(int)} shuts down once all commands are
+     * sent, even if the remote manager fails to add one.
+     */
+    public void testHandoverShutdown_failedCommand() throws Exception {
+        FakeRemoteManager remoteManager = new FakeRemoteManager(true, RemoteManager.ADD_COMMAND);
+        List<String> requests = runHandover(remoteManager);
+        assertEquals(3, requests.size());
+        assertTrue(requests.get(0).startsWith("0;add_command;"));
+        assertEquals(Arrays.asList("unfilter;*", "close"), requests.subList(1, 3));
+    }
+
+    /**
+     * Test {@link CommandScheduler#handoverShutdown(int)} to a remote manager that predates
+     * request ids.
+     */
+    public void testHandoverShutdown_legacyManager() throws Exception {
+        FakeRemoteManager remoteManager = new FakeRemoteManager(false);
+        List<String> requests = runHandover(remoteManager);
+        assertEquals(4, requests.size());
+        assertTrue(requests.get(0).startsWith("0;add_command;"));
+        assertTrue(requests.get(1).startsWith("add_command;"));
+        assertEquals(Arrays.asList("unfilter;*", "close"), requests.subList(2, 4));
+    }
+
+    /**
+     * Test that {@link CommandScheduler#handoverShutdown(int)} sends waiting commands in the
+     * order of the scheduling policy.
+     */
+    public void testHandoverShutdown_priorityOrder() throws Exception {
+        String[] lowArgs = new String[] {"low"};
+        mCommandOptions.setPriority(CommandPriorityClass.LOW);
+        setCreateConfigExpectations(lowArgs, 1);
+        String[] urgentArgs = new String[] {"urgent"};
+        CommandOptions urgentOptions = new CommandOptions();
+        urgentOptions.setPriority(CommandPriorityClass.URGENT);
+        IConfiguration urgentConfig = EasyMock.createMock(IConfiguration.class);
+        EasyMock.expect(mMockConfigFactory.createConfigurationFromArgs(EasyMock.eq(urgentArgs)))
+                .andReturn(urgentConfig);
+        EasyMock.expect(urgentConfig.getCommandOptions()).andStubReturn(urgentOptions);
+        EasyMock.expect(urgentConfig.getDeviceRequirements()).andStubReturn(mDeviceOptions);
+        replayMocks(urgentConfig);
+        FakeRemoteManager remoteManager = new FakeRemoteManager(true);
+        List<String> requests = runHandover(remoteManager, lowArgs, urgentArgs);
+        assertEquals(Arrays.asList("0;add_command;0;urgent", "1;add_command;0;low", "unfilter;*",
+                "close"), requests);
+    }
+
+    /**
+     * Hand over a waiting command to the given remote manager, and wait for the scheduler to
+     * shut down.
+     *
+     * @return the requests received by the remote manager
+     */
+    private List<String> runHandover(FakeRemoteManager remoteManager) throws Exception {
+        String[] args = new String[] {};
+        setCreateConfigExpectations(args, 1);
+        replayMocks();
+        return runHandover(remoteManager, args);
+    }
+
+    /**
+     * Hand over the given waiting commands to the given remote manager, and wait for the
+     * scheduler to shut down. The mocks must already be replayed.
+     *
+     * @return the requests received by the remote manager
+     */
+    private List<String> runHandover(FakeRemoteManager remoteManager, String[]... commands)
+            throws Exception {
+        mMockManager = new MockDeviceManager(0) {
+            @Override
+            public Collection<String> getAllocatedDevices() {
+                return Collections.emptyList();
+            }
+        };
+        remoteManager.start();
+        try {
+            for (String[] args : commands) {
+                mScheduler.addCommand(args, mCmdListener);
+            }
+            mScheduler.start();
+            assertTrue(mScheduler.handoverShutdown(remoteManager.getPort()));
+            mScheduler.join(5 * 1000);
+            assertFalse(mScheduler.isAlive());
+            return remoteManager.getRequests();
+        } finally {
+            remoteManager.close();
+        }
+    }
+
     /**
      * Test {@link CommandScheduler#shutdown()} when no devices are available.
      */
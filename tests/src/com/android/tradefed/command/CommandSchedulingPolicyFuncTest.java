@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.command.CommandSchedulingSimulator.SimCommand;
+import com.android.tradefed.command.CommandSchedulingSimulator.WaitStats;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Simulates a day of a shared device pool with {@link CommandSchedulingSimulator}, and reports
+ * the queue wait percentiles of urgent presubmit commands, loop mode commands and low priority
+ * batch commands, with and without priority classes, deadlines and aging.
+ */
+public class CommandSchedulingPolicyFuncTest extends TestCase {
+
+    private static final long MIN = 60 * 1000;
+    private static final long DAY = 24 * 60 * MIN;
+    private static final int NUM_DEVICES = 10;
+    private static final int NUM_LOOP_COMMANDS = 12;
+    private static final int BATCH_SIZE = 20;
+    private static final long BATCH_INTERVAL = 6 * 60 * MIN;
+    private static final long PRESUBMIT_INTERVAL = 6 * MIN;
+    private static final long PRESUBMIT_DEADLINE = 10 * MIN;
+    private static final long AGING_INTERVAL = 30 * MIN;
+
+    /**
+     * Compare the priority policy against ordering by execution time alone.
+     */
+    public void testPriorityPolicy() {
+        Map<String, WaitStats> baseline = simulate(false, 0);
+        Map<String, WaitStats> priority = simulate(true, 0);
+        Map<String, WaitStats> aging = simulate(true, AGING_INTERVAL);
+        logStats("execution time only", baseline);
+        logStats("priority and deadline, no aging", priority);
+        logStats("priority and deadline, aging", aging);
+
+        assertTrue(priority.get("presubmit").getPercentile(90) <
+                baseline.get("presubmit").getPercentile(90));
+        assertTrue(priority.get("presubmit").getCountAbove(PRESUBMIT_DEADLINE) <
+                baseline.get("presubmit").getCountAbove(PRESUBMIT_DEADLINE));
+        // without aging, loop commands starve the low priority batch commands
+        assertTrue(aging.get("batch").getMax() < priority.get("batch").getMax());
+        assertEquals(0, aging.get("batch").getStillWaiting());
+    }
+
+    /**
+     * Simulate a day of load: loop mode commands that together need more than every device,
+     * urgent presubmit commands arriving at random, and bursts of low priority batch commands.
+     *
+     * @param usePriority if <code>false</code>, all commands are given the same priority class
+     *            and no deadline, so they are ordered by execution time alone
+     * @param agingInterval the priority aging interval of every command
+     */
+    private Map<String, WaitStats> simulate(boolean usePriority, long agingInterval) {
+        Random random = new Random(0);
+        CommandSchedulingSimulator simulator = new CommandSchedulingSimulator(NUM_DEVICES);
+        for (int i = 0; i < NUM_LOOP_COMMANDS; i++) {
+            CommandOptions options = createOptions(usePriority, CommandPriorityClass.NORMAL, 0,
+                    agingInterval);
+            options.setLoopMode(true);
+            options.setMinLoopTime(10 * MIN);
+            simulator.addCommand(new SimCommand("loop", options, (15 + i * 2) * MIN), 1);
+        }
+        for (long time = BATCH_INTERVAL / 2; time < DAY; time += BATCH_INTERVAL) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                simulator.addCommand(new SimCommand("batch", createOptions(usePriority,
+                        CommandPriorityClass.LOW, 0, agingInterval), 20 * MIN), time);
+            }
+        }
+        long time = 1;
+        while (true) {
+            time += (long)(-Math.log(1 - random.nextDouble()) * PRESUBMIT_INTERVAL);
+            if (time >= DAY) {
+                break;
+            }
+            CommandOptions options = createOptions(usePriority, CommandPriorityClass.URGENT,
+                    PRESUBMIT_DEADLINE, agingInterval);
+            long duration = 5 * MIN + (long)(-Math.log(1 - random.nextDouble()) * 10 * MIN);
+            simulator.addCommand(new SimCommand("presubmit", options, duration), time);
+        }
+        return simulator.run(DAY);
+    }
+
+    private CommandOptions createOptions(boolean usePriority, CommandPriorityClass priority,
+            long deadline, long agingInterval) {
+        CommandOptions options = new CommandOptions();
+        options.setPriorityAgingInterval(agingInterval);
+        if (usePriority) {
+            options.setPriority(priority);
+            options.setDeadline(deadline);
+        }
+        return options;
+    }
+
+    private void logStats(String policy, Map<String, WaitStats> groupStats) {
+        CLog.logAndDisplay(LogLevel.INFO, "Queue wait with %s, %d devices:", policy,
+                NUM_DEVICES);
+        for (Map.Entry<String, WaitStats> entry : groupStats.entrySet()) {
+            WaitStats stats = entry.getValue();
+            CLog.logAndDisplay(LogLevel.INFO, "  %-9s started %4d, p50 %6.1f min, p90 %6.1f " +
+                    "min, p99 %6.1f min, max %6.1f min, %3d waited over %d min, %2d still " +
+                    "waiting",
+                    entry.getKey(), stats.getCount(), toMinutes(stats.getPercentile(50)),
+                    toMinutes(stats.getPercentile(90)), toMinutes(stats.getPercentile(99)),
+                    toMinutes(stats.getMax()), stats.getCountAbove(PRESUBMIT_DEADLINE),
+                    PRESUBMIT_DEADLINE / MIN, stats.getStillWaiting());
+        }
+    }
+
+    private static double toMinutes(long timeMs) {
+        return timeMs / (double)MIN;
+    }
+}
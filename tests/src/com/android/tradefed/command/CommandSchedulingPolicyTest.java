@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link CommandSchedulingPolicy}.
+ */
+public class CommandSchedulingPolicyTest extends TestCase {
+
+    private static final long MIN = 60 * 1000;
+
+    private long mCurrentTime = 100 * MIN;
+    private CommandSchedulingPolicy mPolicy;
+
+    /**
+     * A command with a fixed ready time and execution time, that does not age by default.
+     */
+    private static class FakeCommand implements CommandSchedulingPolicy.ISchedulableCommand {
+        final CommandOptions mOptions = new CommandOptions();
+        final long mReadyTime;
+        final long mTotalExecTime;
+
+        FakeCommand(CommandPriorityClass priority, long readyTime, long totalExecTime) {
+            mOptions.setPriority(priority);
+            mOptions.setPriorityAgingInterval(0);
+            mReadyTime = readyTime;
+            mTotalExecTime = totalExecTime;
+        }
+
+        @Override
+        public ICommandOptions getCommandOptions() {
+            return mOptions;
+        }
+
+        @Override
+        public long getReadyTime() {
+            return mReadyTime;
+        }
+
+        @Override
+        public long getTotalExecTime() {
+            return mTotalExecTime;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPolicy = new CommandSchedulingPolicy() {
+            @Override
+            protected long getCurrentTime() {
+                return mCurrentTime;
+            }
+        };
+    }
+
+    /**
+     * Test that commands are ordered by priority class before execution time.
+     */
+    public void testCompare_priority() {
+        FakeCommand urgent = new FakeCommand(CommandPriorityClass.URGENT, mCurrentTime, 100 * MIN);
+        FakeCommand normal = new FakeCommand(CommandPriorityClass.NORMAL, mCurrentTime, 0);
+        assertTrue(mPolicy.compare(urgent, normal) < 0);
+        assertTrue(mPolicy.compare(normal, urgent) > 0);
+    }
+
+    /**
+     * Test that commands of the same class are ordered earliest deadline first, then by
+     * execution time.
+     */
+    public void testCompare_deadline() {
+        FakeCommand late = new FakeCommand(CommandPriorityClass.HIGH, mCurrentTime, 0);
+        late.mOptions.setDeadline(20 * MIN);
+        FakeCommand early = new FakeCommand(CommandPriorityClass.HIGH, mCurrentTime - 5 * MIN,
+                10 * MIN);
+        early.mOptions.setDeadline(20 * MIN);
+        FakeCommand none = new FakeCommand(CommandPriorityClass.HIGH, mCurrentTime - 50 * MIN, 0);
+        assertTrue(mPolicy.compare(early, late) < 0);
+        assertTrue(mPolicy.compare(late, none) < 0);
+        assertTrue(mPolicy.compare(none, early) > 0);
+
+        FakeCommand slow = new FakeCommand(CommandPriorityClass.HIGH, mCurrentTime, 10 * MIN);
+        assertTrue(mPolicy.compare(none, slow) < 0);
+        assertEquals(0, mPolicy.compare(none, none));
+    }
+
+    /**
+     * Test that the priority of a waiting command below NORMAL rises by one class per aging
+     * interval, up to NORMAL.
+     */
+    public void testGetEffectivePriority_aging() {
+        FakeCommand low = new FakeCommand(CommandPriorityClass.LOW, mCurrentTime - 65 * MIN, 0);
+        low.mOptions.setPriorityAgingInterval(30 * MIN);
+        assertEquals(CommandPriorityClass.LOW.ordinal(),
+                mPolicy.getEffectivePriority(low, mCurrentTime - 45 * MIN));
+        assertEquals(CommandPriorityClass.NORMAL.ordinal(),
+                mPolicy.getEffectivePriority(low, mCurrentTime));
+        assertEquals(CommandPriorityClass.NORMAL.ordinal(),
+                mPolicy.getEffectivePriority(low, mCurrentTime + 500 * MIN));
+        FakeCommand normal = new FakeCommand(CommandPriorityClass.NORMAL, mCurrentTime, 10 * MIN);
+        assertTrue(mPolicy.compare(low, normal) < 0);
+
+        low.mOptions.setPriorityAgingInterval(0);
+        assertEquals(CommandPriorityClass.LOW.ordinal(),
+                mPolicy.getEffectivePriority(low, mCurrentTime));
+        assertTrue(mPolicy.compare(low, normal) > 0);
+    }
+
+    /**
+     * Test that commands of NORMAL or higher priority never age, so a long waiting command does
+     * not outrank a command with less execution time.
+     */
+    public void testGetEffectivePriority_noAgingAboveLow() {
+        FakeCommand waiting = new FakeCommand(CommandPriorityClass.NORMAL, mCurrentTime - 500 * MIN,
+                100 * MIN);
+        waiting.mOptions.setPriorityAgingInterval(30 * MIN);
+        FakeCommand fresh = new FakeCommand(CommandPriorityClass.NORMAL, mCurrentTime, 0);
+        assertEquals(CommandPriorityClass.NORMAL.ordinal(),
+                mPolicy.getEffectivePriority(waiting, mCurrentTime));
+        assertTrue(mPolicy.compare(fresh, waiting) < 0);
+
+        FakeCommand high = new FakeCommand(CommandPriorityClass.HIGH, mCurrentTime - 500 * MIN, 0);
+        high.mOptions.setPriorityAgingInterval(30 * MIN);
+        assertEquals(CommandPriorityClass.HIGH.ordinal(),
+                mPolicy.getEffectivePriority(high, mCurrentTime));
+    }
+
+    /**
+     * Test detection of a command starting after its deadline.
+     */
+    public void testIsDeadlineMissed() {
+        FakeCommand cmd = new FakeCommand(CommandPriorityClass.NORMAL, mCurrentTime - 10 * MIN, 0);
+        assertFalse(mPolicy.isDeadlineMissed(cmd));
+        cmd.mOptions.setDeadline(15 * MIN);
+        assertFalse(mPolicy.isDeadlineMissed(cmd));
+        mCurrentTime += 6 * MIN;
+        assertTrue(mPolicy.isDeadlineMissed(cmd));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.util.ConditionPriorityBlockingQueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A discrete-event simulation of the command queue of {@link CommandScheduler}, which measures
+ * the time commands wait for a device under a {@link CommandSchedulingPolicy} and a synthetic
+ * load.
+ * <p/>
+ * Devices are interchangeable, and a command is dequeued as soon as a device is free, as the
+ * scheduler does. A loop mode command is queued again {@link ICommandOptions#getMinLoopTime()}
+ * after each of its invocations starts.
+ */
+public class CommandSchedulingSimulator {
+
+    /**
+     * A simulated command. Loop mode commands are reused for each loop, so their total execution
+     * time accumulates as it does for a command in the scheduler.
+     */
+    public static class SimCommand implements CommandSchedulingPolicy.ISchedulableCommand {
+        private final String mGroup;
+        private final CommandOptions mOptions;
+        private final long mDuration;
+        private long mReadyTime = 0;
+        private long mTotalExecTime = 0;
+
+        /**
+         * Creates a {@link SimCommand}.
+         *
+         * @param group the name of the group to record the command's statistics in
+         * @param options the {@link CommandOptions} of the command
+         * @param duration the duration in ms of each invocation of the command
+         */
+        public SimCommand(String group, CommandOptions options, long duration) {
+            mGroup = group;
+            mOptions = options;
+            mDuration = duration;
+        }
+
+        @Override
+        public ICommandOptions getCommandOptions() {
+            return mOptions;
+        }
+
+        @Override
+        public long getReadyTime() {
+            return mReadyTime;
+        }
+
+        @Override
+        public long getTotalExecTime() {
+            return mTotalExecTime;
+        }
+    }
+
+    /**
+     * The queue wait time statistics of a group of commands.
+     */
+    public static class WaitStats {
+        private final List<Long> mWaitTimes = new ArrayList<Long>();
+        private int mStillWaiting = 0;
+        private long mMaxStillWaiting = 0;
+
+        /**
+         * Gets the number of invocations started.
+         */
+        public int getCount() {
+            return mWaitTimes.size();
+        }
+
+        /**
+         * Gets the given percentile of the wait time in ms of the invocations started.
+         */
+        public long getPercentile(double percentile) {
+            if (mWaitTimes.isEmpty()) {
+                return 0;
+            }
+            List<Long> sorted = new ArrayList<Long>(mWaitTimes);
+            Collections.sort(sorted);
+            int index = (int)Math.ceil(percentile / 100 * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index));
+        }
+
+        /**
+         * Gets the max wait time in ms, including commands still waiting at the end.
+         */
+        public long getMax() {
+            return Math.max(getPercentile(100), mMaxStillWaiting);
+        }
+
+        /**
+         * Gets the number of invocations that waited longer than the given time in ms.
+         */
+        public int getCountAbove(long waitTime) {
+            int count = 0;
+            for (Long time : mWaitTimes) {
+                if (time > waitTime) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Gets the number of commands still waiting at the end of the simulation.
+         */
+        public int getStillWaiting() {
+            return mStillWaiting;
+        }
+    }
+
+    /**
+     * A command becoming ready, or a device becoming free, at a point in time.
+     */
+    private static class Event implements Comparable<Event> {
+        final long mTime;
+        final long mSequence;
+        final SimCommand mCommand;
+        final boolean mDeviceFreed;
+
+        Event(long time, long sequence, SimCommand command, boolean deviceFreed) {
+            mTime = time;
+            mSequence = sequence;
+            mCommand = command;
+            mDeviceFreed = deviceFreed;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+    private final Map<String, WaitStats> mStats = new LinkedHashMap<String, WaitStats>();
+    private final CommandSchedulingPolicy mPolicy;
+    private final ConditionPriorityBlockingQueue<CommandSchedulingPolicy.ISchedulableCommand>
+            mQueue;
+    private int mFreeDevices;
+    private long mCurrentTime = 0;
+    private long mSequence = 0;
+
+    /**
+     * Creates a {@link CommandSchedulingSimulator}.
+     *
+     * @param numDevices the number of devices
+     */
+    public CommandSchedulingSimulator(int numDevices) {
+        mFreeDevices = numDevices;
+        mPolicy = new CommandSchedulingPolicy() {
+            @Override
+            protected long getCurrentTime() {
+                return mCurrentTime;
+            }
+        };
+        mQueue = new ConditionPriorityBlockingQueue<CommandSchedulingPolicy.ISchedulableCommand>(
+                mPolicy);
+    }
+
+    /**
+     * Adds a command, which becomes ready to run at the given time.
+     *
+     * @param command the {@link SimCommand} to add
+     * @param readyTime the time in ms the command becomes ready. Must be greater than 0, as a
+     *            command with a ready time of 0 has never been ready.
+     */
+    public void addCommand(SimCommand command, long readyTime) {
+        mEvents.add(new Event(readyTime, mSequence++, command, false));
+        if (!mStats.containsKey(command.mGroup)) {
+            mStats.put(command.mGroup, new WaitStats());
+        }
+    }
+
+    /**
+     * Runs the simulation until the given time.
+     *
+     * @return the {@link WaitStats} of each group of commands, in the order the groups were
+     *         first added
+     */
+    public Map<String, WaitStats> run(long endTime) {
+        while (!mEvents.isEmpty() && mEvents.peek().mTime <= endTime) {
+            Event event = mEvents.poll();
+            mCurrentTime = event.mTime;
+            if (event.mDeviceFreed) {
+                event.mCommand.mTotalExecTime += event.mCommand.mDuration;
+                mFreeDevices++;
+            } else {
+                event.mCommand.mReadyTime = mCurrentTime;
+                mQueue.add(event.mCommand);
+            }
+            // process all events at the same time before dispatching
+            if (mEvents.isEmpty() || mEvents.peek().mTime != mCurrentTime) {
+                dispatch();
+            }
+        }
+        for (CommandSchedulingPolicy.ISchedulableCommand cmd : mQueue) {
+            WaitStats stats = mStats.get(((SimCommand)cmd).mGroup);
+            stats.mStillWaiting++;
+            stats.mMaxStillWaiting = Math.max(stats.mMaxStillWaiting,
+                    endTime - cmd.getReadyTime());
+        }
+        return mStats;
+    }
+
+    private void dispatch() {
+        while (mFreeDevices > 0) {
+            SimCommand cmd = (SimCommand)mQueue.poll();
+            if (cmd == null) {
+                return;
+            }
+            mFreeDevices--;
+            WaitStats stats = mStats.get(cmd.mGroup);
+            stats.mWaitTimes.add(mCurrentTime - cmd.mReadyTime);
+            mEvents.add(new Event(mCurrentTime + cmd.mDuration, mSequence++, cmd, true));
+            if (cmd.mOptions.isLoopMode()) {
+                mEvents.add(new Event(mCurrentTime + cmd.mOptions.getMinLoopTime(), mSequence++,
+                        cmd, false));
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A fake {@link RemoteManager} for testing {@link RemoteClient}, which serves one connection,
+ * records the requests it receives, and fails chosen command types. It can also behave like a
+ * {@link RemoteManager} that predates request ids, which treats a request with an id as an
+ * unknown command.
+ */
+class FakeRemoteManager extends Thread {
+
+    private final ServerSocket mServerSocket;
+    private final boolean mSupportsRequestIds;
+    private final Set<String> mFailingCommands;
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * @param supportsRequestIds <code>false</code> to behave like a {@link RemoteManager} that
+     *            predates request ids
+     * @param failingCommands the command types to fail
+     */
+    FakeRemoteManager(boolean supportsRequestIds, String... failingCommands) throws IOException {
+        mServerSocket = new ServerSocket(0);
+        mSupportsRequestIds = supportsRequestIds;
+        mFailingCommands = new HashSet<String>(Arrays.asList(failingCommands));
+        setDaemon(true);
+    }
+
+    /**
+     * Gets the port to connect to.
+     */
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the requests received so far, as sent.
+     */
+    List<String> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<String>(mRequests);
+        }
+    }
+
+    /**
+     * Stop accepting connections.
+     */
+    void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        Socket socket = null;
+        try {
+            socket = mServerSocket.accept();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mRequests.add(line);
+                writer.println(processRequest(line));
+            }
+        } catch (IOException e) {
+            // connection closed
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private String processRequest(String line) {
+        List<String> segments = new ArrayList<String>(Arrays.asList(
+                line.split(RemoteManager.DELIM)));
+        String requestId = null;
+        if (mSupportsRequestIds && segments.size() > 1 && segments.get(0).matches("\\d+")) {
+            requestId = segments.remove(0);
+        }
+        String cmdType = segments.get(0);
+        boolean result = !mFailingCommands.contains(cmdType) &&
+                (RemoteManager.FILTER.equals(cmdType) || RemoteManager.UNFILTER.equals(cmdType) ||
+                RemoteManager.ADD_COMMAND.equals(cmdType) || RemoteManager.CLOSE.equals(cmdType));
+        if (requestId == null) {
+            return Boolean.toString(result);
+        }
+        return requestId + RemoteManager.DELIM + result;
+    }
+}
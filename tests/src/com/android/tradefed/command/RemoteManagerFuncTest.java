@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for {@link RemoteManager}, with many concurrent loopback {@link RemoteClient}s.
+ */
+public class RemoteManagerFuncTest extends TestCase {
+
+    private static final int NUM_CLIENTS = 20;
+    private static final int COMMANDS_PER_CLIENT = 500;
+    private static final long WAIT_TIME_MS = 60 * 1000;
+
+    private RemoteManager mRemoteMgr;
+    private final AtomicInteger mAddedCommands = new AtomicInteger(0);
+
+    /**
+     * A client thread that adds commands to the remote manager.
+     */
+    private class ClientThread extends Thread {
+        private final RemoteClient mClient;
+        private final boolean mPipelined;
+        private boolean mSuccess = false;
+
+        ClientThread(RemoteClient client, boolean pipelined) {
+            mClient = client;
+            mPipelined = pipelined;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean success = true;
+                for (int i = 0; i < COMMANDS_PER_CLIENT; i++) {
+                    String[] args = new String[] {"config", "--arg", Integer.toString(i)};
+                    if (mPipelined) {
+                        mClient.queueAddCommand(i, args);
+                    } else {
+                        success &= mClient.sendAddCommand(i, args);
+                    }
+                }
+                if (mPipelined) {
+                    success &= mClient.flush();
+                }
+                mSuccess = success;
+            } catch (Exception e) {
+                CLog.e(e);
+            } finally {
+                mClient.close();
+            }
+        }
+
+        boolean isSuccess() {
+            return mSuccess;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        IDeviceManager mockDeviceManager = EasyMock.createNiceMock(IDeviceManager.class);
+        ICommandScheduler mockScheduler = EasyMock.createMock(ICommandScheduler.class);
+        EasyMock.expect(mockScheduler.addCommand((String[])EasyMock.anyObject(),
+                (ICommandListener)EasyMock.isNull(), EasyMock.anyLong())).andStubAnswer(
+                new IAnswer<Boolean>() {
+                    @Override
+                    public Boolean answer() {
+                        mAddedCommands.incrementAndGet();
+                        return Boolean.TRUE;
+                    }
+                });
+        EasyMock.replay(mockDeviceManager, mockScheduler);
+        mRemoteMgr = new RemoteManager(mockDeviceManager, mockScheduler);
+        mRemoteMgr.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        mRemoteMgr.cancel();
+        mRemoteMgr.join(WAIT_TIME_MS);
+        super.tearDown();
+    }
+
+    /**
+     * Measure the time for many concurrent clients to each add commands one at a time.
+     */
+    public void testAddCommands_concurrent() throws Exception {
+        long elapsedMs = runClients(false);
+        CLog.logAndDisplay(LogLevel.INFO, "%d clients added %d commands one at a time in %d ms",
+                NUM_CLIENTS, mAddedCommands.get(), elapsedMs);
+    }
+
+    /**
+     * Measure the time for many concurrent clients to each add a pipelined batch of commands.
+     */
+    public void testAddCommands_pipelined() throws Exception {
+        long elapsedMs = runClients(true);
+        CLog.logAndDisplay(LogLevel.INFO, "%d clients added %d pipelined commands in %d ms",
+                NUM_CLIENTS, mAddedCommands.get(), elapsedMs);
+    }
+
+    private long runClients(boolean pipelined) throws Exception {
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        // connect all clients before starting, so they are all served concurrently
+        List<ClientThread> threads = new ArrayList<ClientThread>(NUM_CLIENTS);
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            threads.add(new ClientThread(RemoteClient.connect(port), pipelined));
+        }
+        long start = System.currentTimeMillis();
+        for (ClientThread thread : threads) {
+            thread.start();
+        }
+        List<ClientThread> failedThreads = new ArrayList<ClientThread>();
+        for (ClientThread thread : threads) {
+            thread.join(WAIT_TIME_MS);
+            if (thread.isAlive() || !thread.isSuccess()) {
+                failedThreads.add(thread);
+            }
+        }
+        long elapsedMs = System.currentTimeMillis() - start;
+        assertEquals(Collections.emptyList(), failedThreads);
+        assertEquals(NUM_CLIENTS * COMMANDS_PER_CLIENT, mAddedCommands.get());
+        return elapsedMs;
+    }
+}
@@ -23,6 +23,15 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Unit tests for {@link RemoteManager}.
  */
@@ -70,4 +79,143 @@ public class RemoteManagerTest extends TestCase {
         assertTrue(mRemoteClient.sendUnfilterDevice("serial"));
         EasyMock.verify(mMockDeviceManager);
     }
+
+    /**
+     * Test that queued commands are pipelined, and that a single failed command is reported.
+     */
+    public void testFlush() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial")).andReturn(device);
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial2")).andReturn(null);
+        EasyMock.expect(mMockScheduler.addCommand(EasyMock.aryEq(new String[] {"foo", "bar"}),
+                (ICommandListener)EasyMock.isNull(), EasyMock.eq(5L))).andReturn(Boolean.TRUE);
+        mMockDeviceManager.freeDevice(EasyMock.eq(device),
+                EasyMock.eq(FreeDeviceState.AVAILABLE));
+
+        EasyMock.replay(mMockDeviceManager, mMockScheduler, device);
+        mRemoteMgr.start();
+        mRemoteClient = RemoteClient.connect(mRemoteMgr.getPort());
+        // nothing queued
+        assertTrue(mRemoteClient.flush());
+        mRemoteClient.queueFilterDevice("serial");
+        mRemoteClient.queueAddCommand(5, "foo", "bar");
+        assertTrue(mRemoteClient.flush());
+        mRemoteClient.queueFilterDevice("serial2");
+        mRemoteClient.queueAddCommand(5, "foo", "bar");
+        EasyMock.reset(mMockScheduler);
+        EasyMock.expect(mMockScheduler.addCommand(EasyMock.aryEq(new String[] {"foo", "bar"}),
+                (ICommandListener)EasyMock.isNull(), EasyMock.eq(5L))).andReturn(Boolean.TRUE);
+        EasyMock.replay(mMockScheduler);
+        assertFalse(mRemoteClient.flush());
+        assertTrue(mRemoteClient.sendUnfilterAll());
+        EasyMock.verify(mMockDeviceManager, mMockScheduler);
+    }
+
+    /**
+     * Test that commands sent one at a time do not carry a request id, so they are understood by
+     * a remote manager that predates request ids.
+     */
+    public void testSendCommand_noRequestId() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final AtomicReference<String> request = new AtomicReference<String>();
+        Thread legacyServer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            socket.getInputStream()));
+                    request.set(reader.readLine());
+                    PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                    writer.println("true");
+                    socket.close();
+                } catch (IOException e) {
+                    // leave request unset
+                }
+            }
+        };
+        legacyServer.start();
+        try {
+            mRemoteClient = RemoteClient.connect(serverSocket.getLocalPort());
+            assertTrue(mRemoteClient.sendFilterDevice("serial"));
+            legacyServer.join(5 * 1000);
+            assertEquals("filter;serial", request.get());
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Test that queued commands are sent one at a time without request ids to a remote manager
+     * that predates them.
+     */
+    public void testFlush_legacyManager() throws Exception {
+        FakeRemoteManager legacyManager = new FakeRemoteManager(false);
+        legacyManager.start();
+        try {
+            mRemoteClient = RemoteClient.connect(legacyManager.getPort());
+            mRemoteClient.queueFilterDevice("serial");
+            mRemoteClient.queueAddCommand(5, "foo");
+            assertTrue(mRemoteClient.flush());
+            mRemoteClient.queueFilterDevice("serial2");
+            assertTrue(mRemoteClient.flush());
+            assertEquals(Arrays.asList("0;filter;serial", "1;add_command;5;foo",
+                    "filter;serial", "add_command;5;foo", "filter;serial2"),
+                    legacyManager.getRequests());
+        } finally {
+            legacyManager.close();
+        }
+    }
+
+    /**
+     * Test that several clients can be connected at once.
+     */
+    public void testMultipleClients() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial")).andReturn(device);
+        mMockDeviceManager.freeDevice(EasyMock.eq(device),
+                EasyMock.eq(FreeDeviceState.AVAILABLE));
+
+        EasyMock.replay(mMockDeviceManager, device);
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        mRemoteClient = RemoteClient.connect(port);
+        RemoteClient otherClient = RemoteClient.connect(port);
+        try {
+            assertTrue(otherClient.sendFilterDevice("serial"));
+            assertTrue(mRemoteClient.sendUnfilterDevice("serial"));
+        } finally {
+            otherClient.close();
+        }
+        EasyMock.verify(mMockDeviceManager);
+    }
+
+    /**
+     * Test that requests without a request id are still accepted, and answered without one.
+     */
+    public void testRequestWithoutId() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial")).andReturn(device);
+        mMockDeviceManager.freeDevice(EasyMock.eq(device),
+                EasyMock.eq(FreeDeviceState.AVAILABLE));
+
+        EasyMock.replay(mMockDeviceManager, device);
+        mRemoteMgr.start();
+        Socket socket = new Socket("localhost", mRemoteMgr.getPort());
+        try {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream()));
+            writer.println("filter;serial");
+            assertEquals("true", reader.readLine());
+            writer.println("unfilter;serial");
+            assertEquals("true", reader.readLine());
+            writer.println("unknown");
+            assertEquals("false", reader.readLine());
+        } finally {
+            socket.close();
+        }
+        EasyMock.verify(mMockDeviceManager);
+    }
 }
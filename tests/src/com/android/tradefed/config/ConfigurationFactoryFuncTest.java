@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.config;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.testtype.InstrumentationTest;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Throughput benchmark for {@link ConfigurationFactory#createConfigurationFromArgs(String[])}
+ * and {@link IConfiguration#createCopy()} with a large composite configuration, as performed by
+ * the command scheduler for every loop of every command.
+ */
+public class ConfigurationFactoryFuncTest extends TestCase {
+
+    private static final int NUM_TESTS = 30;
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 200;
+
+    private File mConfigFile;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        StringBuilder config = new StringBuilder();
+        config.append("<configuration description=\"benchmark\">\n");
+        config.append("<build_provider class=\"com.android.tradefed.build.StubBuildProvider\" />\n");
+        config.append("<target_preparer class=\"com.android.tradefed.targetprep.DeviceSetup\" />\n");
+        config.append("<option name=\"wifi-attempts\" value=\"3\" />\n");
+        for (int i = 1; i <= NUM_TESTS; i++) {
+            config.append("<test class=\"com.android.tradefed.testtype.InstrumentationTest\" />\n");
+            config.append(String.format("<option name=\"%s:%d:class\" value=\"com.foo.Test%d\" />\n",
+                    InstrumentationTest.class.getName(), i, i));
+        }
+        config.append("<option name=\"package\" value=\"com.foo\" />\n");
+        config.append("<logger class=\"com.android.tradefed.log.FileLogger\" />\n");
+        config.append("<result_reporter class=\"com.android.tradefed.result.XmlResultReporter\" />\n");
+        config.append("<result_reporter class=\"com.android.tradefed.result.TextResultReporter\" />\n");
+        config.append("</configuration>\n");
+        mConfigFile = FileUtil.createTempFile("benchmark-config", ".xml");
+        FileUtil.writeToFile(config.toString(), mConfigFile);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.deleteFile(mConfigFile);
+        super.tearDown();
+    }
+
+    /**
+     * Measure the number of configurations that can be created per second.
+     */
+    public void testCreateConfigurationFromArgsThroughput() throws ConfigurationException {
+        ConfigurationFactory factory = new ConfigurationFactory();
+        String[] args = getArgs();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            factory.createConfigurationFromArgs(args);
+        }
+        long start = System.nanoTime();
+        IConfiguration config = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            config = factory.createConfigurationFromArgs(args);
+        }
+        long elapsedNs = System.nanoTime() - start;
+        assertEquals(NUM_TESTS, config.getTests().size());
+        InstrumentationTest test = (InstrumentationTest)config.getTests().get(NUM_TESTS - 1);
+        assertEquals("com.foo", test.getPackageName());
+        assertEquals("com.foo.Runner", test.getRunnerName());
+        CLog.logAndDisplay(LogLevel.INFO, "Created %d configurations in %d ms (%.1f us each)",
+                ITERATIONS, elapsedNs / 1000000, elapsedNs / 1000.0 / ITERATIONS);
+    }
+
+    /**
+     * Measure the number of configurations that can be copied from a template per second.
+     */
+    public void testCreateCopyThroughput() throws ConfigurationException {
+        IConfiguration template = new ConfigurationFactory().createConfigurationFromArgs(
+                getArgs());
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            template.createCopy();
+        }
+        long start = System.nanoTime();
+        IConfiguration config = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            config = template.createCopy();
+        }
+        long elapsedNs = System.nanoTime() - start;
+        assertEquals(NUM_TESTS, config.getTests().size());
+        InstrumentationTest test = (InstrumentationTest)config.getTests().get(NUM_TESTS - 1);
+        assertEquals("com.foo", test.getPackageName());
+        assertEquals("com.foo.Runner", test.getRunnerName());
+        CLog.logAndDisplay(LogLevel.INFO, "Copied %d configurations in %d ms (%.1f us each)",
+                ITERATIONS, elapsedNs / 1000000, elapsedNs / 1000.0 / ITERATIONS);
+    }
+
+    private String[] getArgs() {
+        return new String[] {mConfigFile.getAbsolutePath(), "--serial", "abc",
+                "--runner", "com.foo.Runner", "--instrumentation-arg", "key", "value",
+                "--no-disable-keyguard", "--loop"};
+    }
+}
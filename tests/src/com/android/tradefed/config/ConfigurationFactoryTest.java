@@ -27,6 +27,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.Map;
 
 /**
  * Unit tests for {@link ConfigurationFactory}
@@ -155,6 +156,15 @@ public class ConfigurationFactoryTest extends TestCase {
         assertTrue(usageString.contains("instrument"));
     }
 
+    /**
+     * Test {@link ConfigurationFactory#getConfigDescriptions()}.
+     */
+    public void testGetConfigDescriptions() {
+        Map<String, String> descriptions = new ConfigurationFactory().getConfigDescriptions();
+        assertEquals("Runs a single Android instrumentation test on an existing device",
+                descriptions.get("instrument"));
+    }
+
     /**
      * Test {@link ConfigurationFactory#printHelpForConfig(String[], boolean, PrintStream))} when
      * config referenced by args exists
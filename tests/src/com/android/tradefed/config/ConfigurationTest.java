@@ -78,6 +78,12 @@ public class ConfigurationTest extends TestCase {
         }
     }
 
+    /**
+     * Test object for {@link Configuration#createCopy()}, which must be instantiable.
+     */
+    public static class CopyableConfigObject extends TestConfigObject {
+    }
+
     private Configuration mConfig;
 
     /**
@@ -352,4 +358,32 @@ public class ConfigurationTest extends TestCase {
                 usageString.contains("serial"));
 
     }
+
+    /**
+     * Test {@link Configuration#createCopy()} creates new config objects with the same option
+     * values, preserving objects shared between types.
+     */
+    public void testCreateCopy() throws ConfigurationException {
+        CopyableConfigObject testConfigObject = new CopyableConfigObject();
+        mConfig.setConfigurationObject(CONFIG_OBJECT_TYPE_NAME, testConfigObject);
+        mConfig.injectOptionValue(OPTION_NAME, Boolean.TRUE.toString());
+        mConfig.injectOptionValue(ALT_OPTION_NAME, "foo", Boolean.TRUE.toString());
+        mConfig.injectOptionValue("serial", "abc");
+        mConfig.setConfigurationObject("other_name", testConfigObject);
+
+        IConfiguration copy = mConfig.createCopy();
+        CopyableConfigObject copyObject = (CopyableConfigObject)copy.getConfigurationObject(
+                CONFIG_OBJECT_TYPE_NAME);
+        assertNotSame(testConfigObject, copyObject);
+        assertTrue(copyObject.getBool());
+        assertEquals(Boolean.TRUE, copyObject.getMap().get("foo"));
+        assertSame(copyObject, copy.getConfigurationObject("other_name"));
+        assertNotSame(mConfig.getDeviceRequirements(), copy.getDeviceRequirements());
+        assertEquals(1, copy.getDeviceRequirements().getSerials().size());
+        assertEquals(mConfig.getTests().size(), copy.getTests().size());
+
+        // changes to the copy must not affect the original
+        copy.getDeviceRequirements().getSerials().clear();
+        assertEquals(1, mConfig.getDeviceRequirements().getSerials().size());
+    }
 }
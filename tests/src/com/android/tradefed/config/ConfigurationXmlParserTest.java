@@ -186,6 +186,29 @@ public class ConfigurationXmlParserTest extends TestCase {
         }
     }
 
+    /**
+     * Test {@link ConfigurationXmlParser#parseDescription(String, InputStream)} does not load
+     * included configs.
+     */
+    public void testParseDescription() throws ConfigurationException {
+        EasyMock.replay(mMockLoader);
+        final String config =
+            "<configuration description=\"desc\" >\n" +
+            "  <include name=\"includeme\" />\n" +
+            "</configuration>";
+        assertEquals("desc", xmlParser.parseDescription("name", getStringAsStream(config)));
+        EasyMock.verify(mMockLoader);
+    }
+
+    /**
+     * Test {@link ConfigurationXmlParser#parseDescription(String, InputStream)} when config has
+     * no description.
+     */
+    public void testParseDescription_none() throws ConfigurationException {
+        final String config = "<object type=\"foo\" class=\"junit.framework.TestCase\" />";
+        assertEquals("", xmlParser.parseDescription("name", getStringAsStream(config)));
+    }
+
     private InputStream getStringAsStream(String input) {
         return new ByteArrayInputStream(input.getBytes());
     }
@@ -186,4 +186,40 @@ public class OptionCopierTest extends TestCase {
             // expected
         }
     }
+
+    /**
+     * Test {@link OptionCopier#copyOptionState(Object, Object)} replaces the destination values.
+     */
+    public void testCopyOptionState() throws ConfigurationException {
+        OptionSource source = new OptionSource();
+        source.mMyOption = null;
+        source.mMyIntOption = 7;
+        source.mStringCollection.add("foo");
+        source.mEnumMap.put(DefaultEnumClass.VAL1, DefaultEnumClass.VAL2);
+        OptionSource dest = new OptionSource();
+        dest.mStringCollection.add("bar");
+        dest.mEnumMap.put(DefaultEnumClass.VAL2, DefaultEnumClass.VAL3);
+        OptionCopier.copyOptionState(source, dest);
+        assertNull(dest.mMyOption);
+        assertEquals(7, dest.mMyIntOption);
+        assertEquals(1, dest.mStringCollection.size());
+        assertTrue(dest.mStringCollection.contains("foo"));
+        assertEquals(1, dest.mEnumMap.size());
+        assertEquals(DefaultEnumClass.VAL2, dest.mEnumMap.get(DefaultEnumClass.VAL1));
+        // containers must not be shared
+        assertNotSame(source.mStringCollection, dest.mStringCollection);
+    }
+
+    /**
+     * Test {@link OptionCopier#copyOptionState(Object, Object)} rejects objects of different
+     * classes.
+     */
+    public void testCopyOptionState_differentClass() {
+        try {
+            OptionCopier.copyOptionState(new OptionSource(), new OptionDest());
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+    }
 }
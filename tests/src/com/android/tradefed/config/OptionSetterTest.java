@@ -328,6 +328,44 @@ public class OptionSetterTest extends TestCase {
         assertEquals("sharedtest", object2.mMyOption);
     }
 
+    /**
+     * Test namespaced options using instance indexes, with multiple instances of the same class
+     * sharing its cached option bindings.
+     */
+    public void testOptionSetter_namespacedIndex() throws ConfigurationException {
+        AllTypesOptionSource object1 = new AllTypesOptionSource();
+        AllTypesOptionSource object2 = new AllTypesOptionSource();
+        OptionSetter setter = new OptionSetter(object1, object2);
+        setter.setOptionValue("string", "test");
+        setter.setOptionValue(AllTypesOptionSource.class.getName() + ":2:int", "2");
+        setter.setOptionValue(AllTypesOptionSource.class.getName() + ":1:int", "1");
+        assertEquals("test", object1.mString);
+        assertEquals("test", object2.mString);
+        assertEquals(1, object1.mInt);
+        assertEquals(2, object2.mInt);
+
+        // a new setter for the same class must bind to the new instances
+        AllTypesOptionSource object3 = new AllTypesOptionSource();
+        new OptionSetter(object3).setOptionValue("int", "3");
+        assertEquals(3, object3.mInt);
+        assertEquals(2, object2.mInt);
+    }
+
+    /**
+     * Test that an invalid option source is rejected every time, not just the first time its
+     * options are bound.
+     */
+    public void testOptionSetter_duplicateOptionsRepeated() {
+        for (int i = 0; i < 2; i++) {
+            try {
+                new OptionSetter(new DuplicateOptionSource());
+                fail("ConfigurationException not thrown");
+            } catch (ConfigurationException e) {
+                // expected
+            }
+        }
+    }
+
     /**
      * Test namespaced options using OptionClass aliases
      */
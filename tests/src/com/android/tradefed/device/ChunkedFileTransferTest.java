@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.metrics.Counter;
+import com.android.tradefed.util.metrics.MetricsRegistry;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link ChunkedFileTransfer}.
+ */
+public class ChunkedFileTransferTest extends TestCase {
+
+    private static final int CHUNK_SIZE = 16;
+    private static final String REMOTE_PATH = "/sdcard/file";
+
+    /**
+     * An in-memory {@link IFileChunkTransport}, which can fail, corrupt or truncate chosen chunk
+     * attempts.
+     */
+    private static class FakeTransport implements IFileChunkTransport {
+        final Map<String, byte[]> mFiles = new HashMap<String, byte[]>();
+        /** chunk indexes whose next transfer throws */
+        final Set<Long> mFailingChunks = new HashSet<Long>();
+        /** chunk indexes whose next transfer is corrupted */
+        final Set<Long> mCorruptChunks = new HashSet<Long>();
+        /** chunk indexes whose next push writes one byte short */
+        final Set<Long> mShortChunks = new HashSet<Long>();
+        final List<Long> mTransferredChunks = new ArrayList<Long>();
+
+        @Override
+        public long getRemoteFileSize(String remoteFilePath) {
+            byte[] data = mFiles.get(remoteFilePath);
+            return data == null ? -1 : data.length;
+        }
+
+        @Override
+        public String getRemoteChecksum(String remoteFilePath, int chunkSize, long chunkIndex)
+                throws IOException {
+            return getChecksum(getChunk(remoteFilePath, chunkSize, chunkIndex));
+        }
+
+        @Override
+        public String pullChunk(String remoteFilePath, int chunkSize, long chunkIndex,
+                OutputStream out) throws IOException {
+            mTransferredChunks.add(chunkIndex);
+            if (mFailingChunks.remove(chunkIndex)) {
+                throw new IOException("failed");
+            }
+            byte[] chunk = getChunk(remoteFilePath, chunkSize, chunkIndex);
+            String checksum = getChecksum(chunk);
+            if (mCorruptChunks.remove(chunkIndex)) {
+                chunk[0]++;
+            }
+            out.write(chunk);
+            return checksum;
+        }
+
+        @Override
+        public String pushChunk(String remoteFilePath, int chunkSize, long chunkIndex,
+                byte[] data) throws IOException {
+            mTransferredChunks.add(chunkIndex);
+            if (mFailingChunks.remove(chunkIndex)) {
+                throw new IOException("failed");
+            }
+            byte[] file = mFiles.get(remoteFilePath);
+            int offset = (int)(chunkIndex * chunkSize);
+            int length = mShortChunks.remove(chunkIndex) ? data.length - 1 : data.length;
+            byte[] newFile = new byte[offset + length];
+            if (file != null) {
+                System.arraycopy(file, 0, newFile, 0, Math.min(offset, file.length));
+            }
+            System.arraycopy(data, 0, newFile, offset, length);
+            if (mCorruptChunks.remove(chunkIndex)) {
+                newFile[offset]++;
+            }
+            mFiles.put(remoteFilePath, newFile);
+            return getChecksum(Arrays.copyOfRange(newFile, offset, newFile.length));
+        }
+
+        @Override
+        public void renameRemoteFile(String fromPath, String toPath) throws IOException {
+            byte[] data = mFiles.remove(fromPath);
+            if (data == null) {
+                throw new IOException("missing");
+            }
+            mFiles.put(toPath, data);
+        }
+
+        private byte[] getChunk(String remoteFilePath, int chunkSize, long chunkIndex)
+                throws IOException {
+            byte[] data = mFiles.get(remoteFilePath);
+            int offset = (int)(chunkIndex * chunkSize);
+            if (data == null || offset > data.length) {
+                throw new IOException("missing");
+            }
+            return Arrays.copyOfRange(data, offset, Math.min(offset + chunkSize, data.length));
+        }
+    }
+
+    private FakeTransport mTransport;
+    private ChunkedFileTransfer mTransfer;
+    private File mTmpDir;
+    private File mLocalFile;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTransport = new FakeTransport();
+        mTransfer = new ChunkedFileTransfer(mTransport, "serial");
+        mTransfer.setChunkSize(CHUNK_SIZE);
+        mTmpDir = FileUtil.createTempDir("chunked-transfer");
+        mLocalFile = new File(mTmpDir, "file");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test pulling a file that is not a multiple of the chunk size.
+     */
+    public void testPullFile() throws Exception {
+        byte[] data = createData(CHUNK_SIZE * 3 + 5);
+        mTransport.mFiles.put(REMOTE_PATH, data);
+        assertTrue(mTransfer.pullFile(REMOTE_PATH, mLocalFile));
+        assertTrue(Arrays.equals(data, readFile(mLocalFile)));
+        assertFalse(getPartialFile().exists());
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), mTransport.mTransferredChunks);
+        Map<String, String> metrics = mTransfer.getMetrics();
+        assertEquals(Integer.toString(data.length), metrics.get("bytes"));
+        assertEquals("4", metrics.get("chunks"));
+        assertEquals("0", metrics.get("chunk_retries"));
+        assertEquals("0", metrics.get("resumed_bytes"));
+    }
+
+    /**
+     * Test that a chunk that fails or is corrupted is retried on its own.
+     */
+    public void testPullFile_retryChunk() throws Exception {
+        byte[] data = createData(CHUNK_SIZE * 3);
+        mTransport.mFiles.put(REMOTE_PATH, data);
+        mTransport.mFailingChunks.add(1L);
+        mTransport.mCorruptChunks.add(2L);
+        assertTrue(mTransfer.pullFile(REMOTE_PATH, mLocalFile));
+        assertTrue(Arrays.equals(data, readFile(mLocalFile)));
+        assertEquals(Arrays.asList(0L, 1L, 1L, 2L, 2L), mTransport.mTransferredChunks);
+        assertEquals("2", mTransfer.getMetrics().get("chunk_retries"));
+        assertEquals(Integer.toString(data.length), mTransfer.getMetrics().get("bytes"));
+    }
+
+    /**
+     * Test that a failed pull keeps the completed chunks, and is resumed by the next pull.
+     */
+    public void testPullFile_resume() throws Exception {
+        byte[] data = createData(CHUNK_SIZE * 4);
+        mTransport.mFiles.put(REMOTE_PATH, data);
+        mTransfer.setMaxChunkAttempts(1);
+        mTransport.mFailingChunks.add(2L);
+        assertFalse(mTransfer.pullFile(REMOTE_PATH, mLocalFile));
+        assertFalse(mLocalFile.exists());
+        assertEquals(CHUNK_SIZE * 2, getPartialFile().length());
+
+        mTransport.mTransferredChunks.clear();
+        assertTrue(mTransfer.pullFile(REMOTE_PATH, mLocalFile));
+        assertTrue(Arrays.equals(data, readFile(mLocalFile)));
+        assertEquals(Arrays.asList(2L, 3L), mTransport.mTransferredChunks);
+        assertEquals(Integer.toString(CHUNK_SIZE * 2), mTransfer.getMetrics().get("resumed_bytes"));
+        assertEquals(Integer.toString(CHUNK_SIZE * 2), mTransfer.getMetrics().get("bytes"));
+    }
+
+    /**
+     * Test that a partial file that does not match the remote file is discarded.
+     */
+    public void testPullFile_resumeMismatch() throws Exception {
+        byte[] data = createData(CHUNK_SIZE * 2);
+        mTransport.mFiles.put(REMOTE_PATH, data);
+        FileUtil.writeToFile(new ByteArrayInputStream(new byte[CHUNK_SIZE + 3]),
+                getPartialFile());
+        assertTrue(mTransfer.pullFile(REMOTE_PATH, mLocalFile));
+        assertTrue(Arrays.equals(data, readFile(mLocalFile)));
+        assertEquals(Arrays.asList(0L, 1L), mTransport.mTransferredChunks);
+        assertEquals("0", mTransfer.getMetrics().get("resumed_bytes"));
+    }
+
+    /**
+     * Test that pulling a file that does not exist fails.
+     */
+    public void testPullFile_missing() throws Exception {
+        assertFalse(mTransfer.pullFile(REMOTE_PATH, mLocalFile));
+        assertFalse(mLocalFile.exists());
+    }
+
+    /**
+     * Test pushing a file, with a chunk that is retried, and progress reported for each chunk.
+     */
+    public void testPushFile() throws Exception {
+        byte[] data = createData(CHUNK_SIZE * 2 + 1);
+        FileUtil.writeToFile(new ByteArrayInputStream(data), mLocalFile);
+        mTransport.mCorruptChunks.add(1L);
+        final List<Long> progress = new ArrayList<Long>();
+        mTransfer.setProgressListener(new ChunkedFileTransfer.IProgressListener() {
+            @Override
+            public void transferProgress(long bytesTransferred, long totalBytes,
+                    double bytesPerSecond) {
+                assertEquals(CHUNK_SIZE * 2 + 1, totalBytes);
+                assertTrue(bytesPerSecond > 0);
+                progress.add(bytesTransferred);
+            }
+        });
+        assertTrue(mTransfer.pushFile(mLocalFile, REMOTE_PATH));
+        assertTrue(Arrays.equals(data, mTransport.mFiles.get(REMOTE_PATH)));
+        assertFalse(mTransport.mFiles.containsKey(
+                REMOTE_PATH + ChunkedFileTransfer.PARTIAL_SUFFIX));
+        assertEquals(Arrays.asList(0L, 1L, 1L, 2L), mTransport.mTransferredChunks);
+        assertEquals(Arrays.asList((long)CHUNK_SIZE, CHUNK_SIZE * 2L, CHUNK_SIZE * 2L + 1),
+                progress);
+        assertEquals("1", mTransfer.getMetrics().get("chunk_retries"));
+    }
+
+    /**
+     * Test that a chunk written short is detected and retried, and that the bytes pushed are
+     * recorded for the device.
+     */
+    public void testPushFile_shortWrite() throws Exception {
+        byte[] data = createData(CHUNK_SIZE * 2);
+        FileUtil.writeToFile(new ByteArrayInputStream(data), mLocalFile);
+        mTransport.mShortChunks.add(1L);
+        Counter bytes = MetricsRegistry.getRegistry().getCounter(ChunkedFileTransfer.BYTES_METRIC,
+                ChunkedFileTransfer.BYTES_HELP, "device", "serial", "direction", "push");
+        long initialBytes = bytes.getValue();
+        assertTrue(mTransfer.pushFile(mLocalFile, REMOTE_PATH));
+        assertTrue(Arrays.equals(data, mTransport.mFiles.get(REMOTE_PATH)));
+        assertEquals(Arrays.asList(0L, 1L, 1L), mTransport.mTransferredChunks);
+        assertEquals("1", mTransfer.getMetrics().get("chunk_retries"));
+        assertEquals(data.length, bytes.getValue() - initialBytes);
+    }
+
+    /**
+     * Test that a failed push is resumed by the next push.
+     */
+    public void testPushFile_resume() throws Exception {
+        byte[] data = createData(CHUNK_SIZE * 3);
+        FileUtil.writeToFile(new ByteArrayInputStream(data), mLocalFile);
+        mTransfer.setMaxChunkAttempts(1);
+        mTransport.mFailingChunks.add(2L);
+        assertFalse(mTransfer.pushFile(mLocalFile, REMOTE_PATH));
+        assertFalse(mTransport.mFiles.containsKey(REMOTE_PATH));
+
+        mTransport.mTransferredChunks.clear();
+        assertTrue(mTransfer.pushFile(mLocalFile, REMOTE_PATH));
+        assertTrue(Arrays.equals(data, mTransport.mFiles.get(REMOTE_PATH)));
+        assertEquals(Arrays.asList(2L), mTransport.mTransferredChunks);
+        assertEquals(Integer.toString(CHUNK_SIZE * 2), mTransfer.getMetrics().get("resumed_bytes"));
+    }
+
+    private File getPartialFile() {
+        return new File(mLocalFile.getPath() + ChunkedFileTransfer.PARTIAL_SUFFIX);
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte)(i * 7 + 1);
+        }
+        return data;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int)file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                offset += input.read(data, offset, data.length - offset);
+            }
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static String getChecksum(byte[] data) throws IOException {
+        return StreamUtil.calculateMd5(new ByteArrayInputStream(data));
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.device.ITestDevice.CommandPriority;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link DeviceCommandDispatcher}.
+ */
+public class DeviceCommandDispatcherTest extends TestCase {
+
+    private static final long WAIT_TIME_MS = 5 * 1000;
+    /** time to wait for a thread that is expected to stay blocked */
+    private static final long BLOCKED_TIME_MS = 200;
+
+    private DeviceCommandDispatcher mDispatcher;
+
+    /**
+     * A thread that holds an adb session until released.
+     */
+    private class SessionThread extends Thread {
+        private final CommandPriority mPriority;
+        final CountDownLatch mAcquired = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        SessionThread(CommandPriority priority) {
+            mPriority = priority;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            mDispatcher.acquireSession(mPriority);
+            mAcquired.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                // ignore
+            } finally {
+                mDispatcher.releaseSession();
+            }
+        }
+
+        boolean waitForAcquired(long timeMs) throws InterruptedException {
+            return mAcquired.await(timeMs, TimeUnit.MILLISECONDS);
+        }
+
+        void releaseAndJoin() throws InterruptedException {
+            mRelease.countDown();
+            join(WAIT_TIME_MS);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDispatcher = new DeviceCommandDispatcher(2, 1);
+    }
+
+    /**
+     * Test that no more than the maximum number of sessions are granted at once.
+     */
+    public void testAcquireSession_limit() throws Exception {
+        SessionThread first = startSessionThread(CommandPriority.FOREGROUND);
+        SessionThread second = startSessionThread(CommandPriority.FOREGROUND);
+        assertTrue(first.waitForAcquired(WAIT_TIME_MS));
+        assertTrue(second.waitForAcquired(WAIT_TIME_MS));
+        SessionThread third = startSessionThread(CommandPriority.FOREGROUND);
+        assertFalse(third.waitForAcquired(BLOCKED_TIME_MS));
+        assertEquals(2, mDispatcher.getActiveSessions());
+
+        first.releaseAndJoin();
+        assertTrue(third.waitForAcquired(WAIT_TIME_MS));
+        second.releaseAndJoin();
+        third.releaseAndJoin();
+        assertEquals(0, mDispatcher.getActiveSessions());
+    }
+
+    /**
+     * Test that a thread that already holds a session can perform nested commands.
+     */
+    public void testAcquireSession_reentrant() {
+        mDispatcher.setSessionLimits(1, 1);
+        mDispatcher.acquireSession(CommandPriority.FOREGROUND);
+        mDispatcher.acquireSession(CommandPriority.BACKGROUND);
+        assertEquals(1, mDispatcher.getActiveSessions());
+        mDispatcher.releaseSession();
+        assertEquals(1, mDispatcher.getActiveSessions());
+        mDispatcher.releaseSession();
+        assertEquals(0, mDispatcher.getActiveSessions());
+    }
+
+    /**
+     * Test that background commands can only use a limited number of sessions, while foreground
+     * commands can still use the rest.
+     */
+    public void testAcquireSession_backgroundLimit() throws Exception {
+        SessionThread background = startSessionThread(CommandPriority.BACKGROUND);
+        assertTrue(background.waitForAcquired(WAIT_TIME_MS));
+        SessionThread otherBackground = startSessionThread(CommandPriority.BACKGROUND);
+        assertFalse(otherBackground.waitForAcquired(BLOCKED_TIME_MS));
+        SessionThread foreground = startSessionThread(CommandPriority.FOREGROUND);
+        assertTrue(foreground.waitForAcquired(WAIT_TIME_MS));
+
+        background.releaseAndJoin();
+        assertTrue(otherBackground.waitForAcquired(WAIT_TIME_MS));
+        otherBackground.releaseAndJoin();
+        foreground.releaseAndJoin();
+    }
+
+    /**
+     * Test that long-lived streaming sessions do not use up the background session limit.
+     */
+    public void testAcquireSession_streaming() throws Exception {
+        mDispatcher.setSessionLimits(4, 1);
+        SessionThread firstStream = startSessionThread(CommandPriority.STREAMING);
+        SessionThread secondStream = startSessionThread(CommandPriority.STREAMING);
+        assertTrue(firstStream.waitForAcquired(WAIT_TIME_MS));
+        assertTrue(secondStream.waitForAcquired(WAIT_TIME_MS));
+        SessionThread background = startSessionThread(CommandPriority.BACKGROUND);
+        assertTrue(background.waitForAcquired(WAIT_TIME_MS));
+        assertEquals(3, mDispatcher.getActiveSessions());
+
+        background.releaseAndJoin();
+        firstStream.releaseAndJoin();
+        secondStream.releaseAndJoin();
+        assertEquals(0, mDispatcher.getActiveSessions());
+    }
+
+    /**
+     * Test that a released session is granted to a waiting foreground command before a
+     * background command that has been waiting longer.
+     */
+    public void testAcquireSession_priority() throws Exception {
+        mDispatcher.setSessionLimits(1, 1);
+        SessionThread holder = startSessionThread(CommandPriority.FOREGROUND);
+        assertTrue(holder.waitForAcquired(WAIT_TIME_MS));
+        SessionThread background = startSessionThread(CommandPriority.BACKGROUND);
+        assertFalse(background.waitForAcquired(BLOCKED_TIME_MS));
+        SessionThread foreground = startSessionThread(CommandPriority.FOREGROUND);
+        assertFalse(foreground.waitForAcquired(BLOCKED_TIME_MS));
+
+        holder.releaseAndJoin();
+        assertTrue(foreground.waitForAcquired(WAIT_TIME_MS));
+        assertFalse(background.waitForAcquired(BLOCKED_TIME_MS));
+        foreground.releaseAndJoin();
+        assertTrue(background.waitForAcquired(WAIT_TIME_MS));
+        background.releaseAndJoin();
+    }
+
+    /**
+     * Test that when several threads fail at once, the device is only recovered once.
+     */
+    public void testRecover_coordinated() throws Exception {
+        final AtomicInteger recoveryCount = new AtomicInteger(0);
+        final CountDownLatch recoveryStarted = new CountDownLatch(1);
+        final CountDownLatch finishRecovery = new CountDownLatch(1);
+        final DeviceCommandDispatcher.RecoveryAction recovery =
+                new DeviceCommandDispatcher.RecoveryAction() {
+            @Override
+            public void recover() {
+                recoveryCount.incrementAndGet();
+                recoveryStarted.countDown();
+                try {
+                    finishRecovery.await();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        };
+        final long generation = mDispatcher.getRecoveryGeneration();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 5; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        mDispatcher.recover(generation, recovery);
+                    } catch (DeviceNotAvailableException e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        assertTrue(recoveryStarted.await(WAIT_TIME_MS, TimeUnit.MILLISECONDS));
+        // other commands must wait for recovery to finish
+        SessionThread command = startSessionThread(CommandPriority.FOREGROUND);
+        assertFalse(command.waitForAcquired(BLOCKED_TIME_MS));
+
+        finishRecovery.countDown();
+        for (Thread thread : threads) {
+            thread.join(WAIT_TIME_MS);
+            assertFalse(thread.isAlive());
+        }
+        assertTrue(command.waitForAcquired(WAIT_TIME_MS));
+        command.releaseAndJoin();
+        assertEquals(1, recoveryCount.get());
+        assertTrue(failures.isEmpty());
+        assertEquals(generation + 1, mDispatcher.getRecoveryGeneration());
+    }
+
+    /**
+     * Test that a failed recovery is reported to threads that were waiting for it.
+     */
+    public void testRecover_failed() throws Exception {
+        final long generation = mDispatcher.getRecoveryGeneration();
+        try {
+            mDispatcher.recover(generation, new DeviceCommandDispatcher.RecoveryAction() {
+                @Override
+                public void recover() throws DeviceNotAvailableException {
+                    throw new DeviceNotAvailableException("gone");
+                }
+            });
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+        // a thread whose command failed before the recovery gets the same outcome
+        try {
+            mDispatcher.recover(generation, new DeviceCommandDispatcher.RecoveryAction() {
+                @Override
+                public void recover() {
+                    fail("recovery should not be attempted again");
+                }
+            });
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            assertEquals("gone", e.getMessage());
+        }
+    }
+
+    /**
+     * Test that recovery performed from within recovery is run directly, and that the recovering
+     * thread can run commands even when all sessions are in use.
+     */
+    public void testRecover_nested() throws Exception {
+        mDispatcher.setSessionLimits(1, 1);
+        SessionThread holder = startSessionThread(CommandPriority.FOREGROUND);
+        assertTrue(holder.waitForAcquired(WAIT_TIME_MS));
+        final AtomicInteger recoveryCount = new AtomicInteger(0);
+        mDispatcher.recover(mDispatcher.getRecoveryGeneration(),
+                new DeviceCommandDispatcher.RecoveryAction() {
+            @Override
+            public void recover() throws DeviceNotAvailableException {
+                recoveryCount.incrementAndGet();
+                mDispatcher.acquireSession(CommandPriority.FOREGROUND);
+                mDispatcher.releaseSession();
+                mDispatcher.recover(mDispatcher.getRecoveryGeneration(),
+                        new DeviceCommandDispatcher.RecoveryAction() {
+                    @Override
+                    public void recover() {
+                        recoveryCount.incrementAndGet();
+                    }
+                });
+            }
+        });
+        assertEquals(2, recoveryCount.get());
+        holder.releaseAndJoin();
+    }
+
+    private SessionThread startSessionThread(CommandPriority priority) {
+        SessionThread thread = new SessionThread(priority);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import junit.framework.TestCase;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link DeviceFileChunkTransport}.
+ */
+public class DeviceFileChunkTransportTest extends TestCase {
+
+    /**
+     * Test parsing the file size from toolbox and toybox ls output.
+     */
+    public void testParseFileSize() throws IOException {
+        assertEquals(1234567, DeviceFileChunkTransport.parseFileSize(
+                "-rw-rw-r-- root     sdcard_rw  1234567 2012-05-01 12:01 file\r\n"));
+        assertEquals(0, DeviceFileChunkTransport.parseFileSize(
+                "-rw-rw---- 1 root sdcard_rw 0 2012-05-01 12:01 /sdcard/file\n"));
+        assertEquals(-1, DeviceFileChunkTransport.parseFileSize(
+                "/sdcard/file: No such file or directory\n"));
+    }
+
+    /**
+     * Test that unexpected ls output is reported as an error.
+     */
+    public void testParseFileSize_invalid() {
+        try {
+            DeviceFileChunkTransport.parseFileSize("ls: permission denied\n");
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test parsing the checksum from md5 output, ignoring preceding dd output.
+     */
+    public void testParseChecksum() throws IOException {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", DeviceFileChunkTransport.parseChecksum(
+                "1+0 records in\n1+0 records out\n" +
+                "d41d8cd98f00b204e9800998ecf8427e  /data/local/tmp/chunk\n"));
+        try {
+            DeviceFileChunkTransport.parseChecksum("md5: not found\n");
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a pushed chunk is checksummed as read back from the destination file, and that
+     * the destination path is quoted.
+     */
+    public void testPushChunk() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        Capture<String> chunkPath = new Capture<String>();
+        EasyMock.expect(device.pushFile((File)EasyMock.anyObject(), EasyMock.capture(chunkPath)))
+                .andReturn(Boolean.TRUE);
+        Capture<String> command = new Capture<String>();
+        EasyMock.expect(device.executeShellCommand(EasyMock.capture(command))).andReturn(
+                "d41d8cd98f00b204e9800998ecf8427e  chunk\n");
+        EasyMock.replay(device);
+        DeviceFileChunkTransport transport = new DeviceFileChunkTransport(device);
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e",
+                transport.pushChunk("/sdcard/my file", 16, 2, new byte[16]));
+        EasyMock.verify(device);
+        String chunk = DeviceFileChunkTransport.quote(chunkPath.getValue());
+        assertEquals(String.format("dd if=%1$s of='/sdcard/my file' bs=16 seek=2 && " +
+                "dd if='/sdcard/my file' of=%1$s bs=16 skip=2 count=1 && md5 %1$s; rm %1$s",
+                chunk), command.getValue());
+    }
+
+    /**
+     * Test that each transport uses its own chunk file.
+     */
+    public void testChunkPath_unique() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        Capture<String> firstPath = new Capture<String>();
+        Capture<String> secondPath = new Capture<String>();
+        EasyMock.expect(device.pushFile((File)EasyMock.anyObject(), EasyMock.capture(firstPath)))
+                .andReturn(Boolean.FALSE);
+        EasyMock.expect(device.pushFile((File)EasyMock.anyObject(), EasyMock.capture(secondPath)))
+                .andReturn(Boolean.FALSE);
+        EasyMock.replay(device);
+        for (int i = 0; i < 2; i++) {
+            try {
+                new DeviceFileChunkTransport(device).pushChunk("/sdcard/file", 16, 0,
+                        new byte[16]);
+                fail("IOException not thrown");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        EasyMock.verify(device);
+        assertFalse(firstPath.getValue().equals(secondPath.getValue()));
+    }
+
+    /**
+     * Test quoting paths that contain spaces and quotes.
+     */
+    public void testQuote() {
+        assertEquals("'/sdcard/a b'", DeviceFileChunkTransport.quote("/sdcard/a b"));
+        assertEquals("'/sdcard/it'\\''s'", DeviceFileChunkTransport.quote("/sdcard/it's"));
+    }
+}
@@ -17,11 +17,19 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.DeviceStateMonitor.ReadinessCheck;
+import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.EnumSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Unit tests for {@link DeviceStateMonitorTest}.
@@ -82,11 +90,129 @@ public class DeviceStateMonitorTest extends TestCase {
     }
 
     /**
-     * Normal case test for {@link DeviceStateMonitor#waitForDeviceOnline()}
+     * A fake device shell, that answers the availability probe according to how many times it
+     * has been probed.
+     */
+    private static class FakeProbeAnswer implements IAnswer<Object> {
+        private static final Pattern TEST_STRING = Pattern.compile("echo '(number \\d+ one)'");
+        private final int mBootCompleteProbes;
+        private final int mPmReadyProbes;
+        private final int mStorageReadyProbes;
+        int mProbeCount = 0;
+
+        /**
+         * @param bootCompleteProbes the number of probes before boot is complete
+         * @param pmReadyProbes the number of probes before the package manager is responsive
+         * @param storageReadyProbes the number of probes before external storage is writable
+         */
+        FakeProbeAnswer(int bootCompleteProbes, int pmReadyProbes, int storageReadyProbes) {
+            mBootCompleteProbes = bootCompleteProbes;
+            mPmReadyProbes = pmReadyProbes;
+            mStorageReadyProbes = storageReadyProbes;
+        }
+
+        @Override
+        public Object answer() throws Throwable {
+            String cmd = (String)EasyMock.getCurrentArguments()[0];
+            IShellOutputReceiver receiver = (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+            StringBuilder output = new StringBuilder();
+            if (mProbeCount >= mBootCompleteProbes) {
+                output.append(DeviceStateMonitor.BOOT_COMPLETE_MARKER).append("\n");
+                if (mProbeCount >= mPmReadyProbes) {
+                    output.append("package:/system/framework/framework-res.apk\n");
+                } else {
+                    output.append("Error: Could not access the Package Manager.\n");
+                }
+            }
+            Matcher matcher = TEST_STRING.matcher(cmd);
+            assertTrue(matcher.find());
+            if (mProbeCount >= mStorageReadyProbes) {
+                output.append(matcher.group(1)).append("\n");
+            } else {
+                output.append("cannot create /sdcard/1: read-only file system\n");
+            }
+            mProbeCount++;
+            byte[] data = output.toString().getBytes();
+            receiver.addOutput(data, 0, data.length);
+            receiver.flush();
+            return null;
+        }
+    }
+
+    /**
+     * Creates a {@link DeviceStateMonitor} for an online device with the given shell, that does
+     * not sleep between polls.
+     */
+    private DeviceStateMonitor createProbeMonitor(FakeProbeAnswer shell) throws Exception {
+        IDevice mockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mockDevice.getState()).andReturn(DeviceState.ONLINE);
+        EasyMock.expect(mockDevice.getSerialNumber()).andStubReturn(SERIAL_NUMBER);
+        EasyMock.expect(mockDevice.getMountPoint(IDevice.MNT_EXTERNAL_STORAGE)).andStubReturn(
+                "/sdcard");
+        mockDevice.executeShellCommand((String)EasyMock.anyObject(),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andStubAnswer(shell);
+        EasyMock.replay(mockDevice);
+        final IRunUtil mockRunUtil = EasyMock.createNiceMock(IRunUtil.class);
+        EasyMock.replay(mockRunUtil);
+        return new DeviceStateMonitor(mMockMgr, mockDevice, true) {
+            @Override
+            IRunUtil getRunUtil() {
+                return mockRunUtil;
+            }
+        };
+    }
+
+    /**
+     * Normal case test for {@link DeviceStateMonitor#waitForDeviceAvailable()}, where the checks
+     * pass one after another.
+     */
+    public void testWaitForDeviceAvailable() throws Exception {
+        FakeProbeAnswer shell = new FakeProbeAnswer(2, 3, 1);
+        DeviceStateMonitor monitor = createProbeMonitor(shell);
+        assertNotNull(monitor.waitForDeviceAvailable(10 * 1000));
+        // one probe per poll, stopping as soon as all checks pass
+        assertEquals(4, shell.mProbeCount);
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable()} when the device is already
+     * available.
+     */
+    public void testWaitForDeviceAvailable_alreadyAvailable() throws Exception {
+        FakeProbeAnswer shell = new FakeProbeAnswer(0, 0, 0);
+        DeviceStateMonitor monitor = createProbeMonitor(shell);
+        assertNotNull(monitor.waitForDeviceAvailable(10 * 1000));
+        assertEquals(1, shell.mProbeCount);
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable()} when external storage never
+     * becomes writable.
+     */
+    public void testWaitForDeviceAvailable_timeout() throws Exception {
+        FakeProbeAnswer shell = new FakeProbeAnswer(0, 0, Integer.MAX_VALUE);
+        DeviceStateMonitor monitor = createProbeMonitor(shell);
+        assertNull(monitor.waitForDeviceAvailable(200));
+        assertTrue(shell.mProbeCount > 1);
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#parseReadiness(String, String)}.
      */
-    public void testWaitForDeviceAvailable() {
-        // TODO: implement this when IDevice.executeShellCommand can be mocked more easily
-        //assertEquals(mMockDevice, mMonitor.waitForDeviceAvailable());
+    public void testParseReadiness() {
+        String testString = "number 1 one";
+        assertEquals(EnumSet.noneOf(ReadinessCheck.class),
+                DeviceStateMonitor.parseReadiness("", testString));
+        // package manager output is ignored if boot is not complete
+        assertEquals(EnumSet.of(ReadinessCheck.EXTERNAL_STORAGE),
+                DeviceStateMonitor.parseReadiness("package:foo\nnumber 1 one\n", testString));
+        assertEquals(EnumSet.of(ReadinessCheck.BOOT_COMPLETE),
+                DeviceStateMonitor.parseReadiness(DeviceStateMonitor.BOOT_COMPLETE_MARKER + "\n",
+                testString));
+        assertEquals(EnumSet.allOf(ReadinessCheck.class), DeviceStateMonitor.parseReadiness(
+                DeviceStateMonitor.BOOT_COMPLETE_MARKER + "\npackage:foo\nnumber 1 one\n",
+                testString));
     }
 
     /**
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.TimeSeries;
+
+import junit.framework.TestCase;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.Map;
+
+/**
+ * Unit tests for {@link DeviceTelemetrySampler}
+ */
+public class DeviceTelemetrySamplerTest extends TestCase {
+    private static final String TOP_OUTPUT =
+            "User 7%, System 5%, IOW 3%, IRQ 2%\r\n" +
+            "User 3 + Nice 0 + Sys 6 + Idle 100 + IOW 0 + IRQ 0 + SIRQ 0 = 109\r\n" +
+            "\r\n" +
+            "  PID   TID PR CPU% S     VSS     RSS PCY UID      Thread          Proc\r\n" +
+            " 1388  1388  0  11% R   1160K    576K  fg shell    top             top\r\n";
+    private static final String CPUSTATS_OUTPUT =
+            "Total,2,3,5,7,11,13,17,350000,19,700000,23,920000,29,1200000,31\r\n" +
+            "cpu0,37,41,43,47,53,59,61\r\n";
+    private static final String MEMINFO_OUTPUT =
+            "MemTotal:         353332 kB\r\n" +
+            "MemFree:           65420 kB\r\n";
+    private static final String PROCRANK_OUTPUT =
+            "  PID      Vss      Rss      Pss      Uss  cmdline\r\n" +
+            "  178   87136K   81684K   52829K   50012K  system_server\r\n" +
+            " 1313   78128K   77996K   48603K   45812K  com.google.android.apps.maps\r\n" +
+            "                          ------   ------  ------\r\n" +
+            "                          203624K  163604K  TOTAL\r\n";
+
+    private ITestDevice mMockDevice;
+    private DeviceTelemetrySampler mSampler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        mSampler = new DeviceTelemetrySampler(mMockDevice, 2, 3);
+    }
+
+    /**
+     * Test that all probes are run in turn by a single command, which only sleeps if no probe
+     * measures over the interval.
+     */
+    public void testGetCommand() {
+        mSampler.addProbe(new DeviceTelemetrySampler.MemInfoProbe());
+        assertEquals("while true; do echo '#telemetry probe 0'; cat /proc/meminfo; " +
+                "echo '#telemetry end'; sleep 2; done", mSampler.getCommand());
+        mSampler.addProbe(new DeviceTelemetrySampler.TopProbe());
+        assertEquals("while true; do echo '#telemetry probe 0'; cat /proc/meminfo; " +
+                "echo '#telemetry probe 1'; top -n 1 -d 2 -m 10 -t; echo '#telemetry end'; done",
+                mSampler.getCommand());
+    }
+
+    /**
+     * Test that the output of each probe is parsed into its own series.
+     */
+    public void testParse() {
+        mSampler.addProbe(new DeviceTelemetrySampler.TopProbe());
+        mSampler.addProbe(new DeviceTelemetrySampler.CpuStatsProbe());
+        mSampler.addProbe(new DeviceTelemetrySampler.MemInfoProbe());
+        mSampler.addProbe(new DeviceTelemetrySampler.ProcrankProbe("system_server"));
+        processOutput("#telemetry probe 0\r\n" + TOP_OUTPUT +
+                "#telemetry probe 1\r\n" + CPUSTATS_OUTPUT +
+                "#telemetry probe 2\r\n" + MEMINFO_OUTPUT +
+                "#telemetry probe 3\r\n" + PROCRANK_OUTPUT +
+                "#telemetry end\r\n");
+
+        assertEquals(17.0, getOnlyValue("top.total"), 0.0001);
+        assertEquals(7.0, getOnlyValue("top.user"), 0.0001);
+        assertEquals(2.0, getOnlyValue("top.irq"), 0.0001);
+        // idle time is 7 of a total of 58
+        assertEquals(100.0 * 51 / 58, getOnlyValue("cpustats.Total.total"), 0.0001);
+        assertEquals(100.0 * 5 / 58, getOnlyValue("cpustats.Total.user"), 0.0001);
+        assertEquals(100.0 * 30 / 58, getOnlyValue("cpustats.Total.irq"), 0.0001);
+        assertNotNull(mSampler.getSeries("cpustats.Total.estimated_mhz"));
+        assertNotNull(mSampler.getSeries("cpustats.cpu0.total"));
+        assertNull(mSampler.getSeries("cpustats.cpu0.estimated_mhz"));
+        assertEquals(65420.0, getOnlyValue("meminfo.MemFree"));
+        assertEquals(52829.0, getOnlyValue("procrank.system_server.pss"));
+        assertEquals(50012.0, getOnlyValue("procrank.system_server.uss"));
+        assertNull(mSampler.getSeries("procrank.com.google.android.apps.maps.pss"));
+    }
+
+    /**
+     * Test that samples of new series are dropped once the series limit is reached, while
+     * existing series are still recorded.
+     */
+    public void testParse_maxSeries() {
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.replay(mMockDevice);
+        mSampler.setMaxSeries(3);
+        mSampler.addProbe(new DeviceTelemetrySampler.ProcrankProbe());
+        processOutput("#telemetry probe 0\r\n" + PROCRANK_OUTPUT + "#telemetry end\r\n");
+        processOutput("#telemetry probe 0\r\n" + PROCRANK_OUTPUT + "#telemetry end\r\n");
+
+        // each sample has 4 values, of which the last is dropped
+        assertEquals(3, mSampler.getSeriesNames().size());
+        for (String name : mSampler.getSeriesNames()) {
+            assertEquals(2, mSampler.getSeries(name).size());
+        }
+        assertEquals(2, mSampler.getDroppedSampleCount());
+    }
+
+    /**
+     * Test that only the configured number of samples are retained per series.
+     */
+    public void testParse_capacity() {
+        mSampler.addProbe(new DeviceTelemetrySampler.MemInfoProbe());
+        for (int i = 1; i <= 5; i++) {
+            processOutput(String.format("#telemetry probe 0\r\nMemFree: %d kB\r\n" +
+                    "#telemetry end\r\n", i * 100));
+        }
+        TimeSeries series = mSampler.getSeries("meminfo.MemFree");
+        assertEquals(3, series.size());
+        assertEquals(5, series.getCount());
+        assertEquals(300.0, series.getValue(0));
+        assertEquals(300.0, series.getMean());
+
+        Map<String, String> metrics = mSampler.getMetrics();
+        assertEquals("300.0", metrics.get("meminfo.MemFree_mean"));
+        assertEquals("100.0", metrics.get("meminfo.MemFree_min"));
+        assertEquals("500.0", metrics.get("meminfo.MemFree_max"));
+        assertEquals("400.0", metrics.get("meminfo.MemFree_p50"));
+    }
+
+    /**
+     * Test that the retained samples are sent to testLog.
+     */
+    public void testLogSamples() throws Exception {
+        mSampler.addProbe(new DeviceTelemetrySampler.MemInfoProbe());
+        processOutput("#telemetry probe 0\r\n" + MEMINFO_OUTPUT + "#telemetry end\r\n");
+        long timestamp = mSampler.getSeries("meminfo.MemTotal").getTimestamp(0);
+
+        ITestInvocationListener listener = EasyMock.createMock(ITestInvocationListener.class);
+        final Capture<String> samples = new Capture<String>();
+        listener.testLog(EasyMock.eq("stats"), EasyMock.eq(LogDataType.TEXT),
+                (InputStreamSource)EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                InputStreamSource source = (InputStreamSource)EasyMock.getCurrentArguments()[2];
+                samples.setValue(StreamUtil.getStringFromStream(source.createInputStream()));
+                return null;
+            }
+        });
+        EasyMock.replay(listener);
+        mSampler.logSamples(listener, "stats");
+        EasyMock.verify(listener);
+        assertEquals(String.format("meminfo.MemTotal,%d,353332.0\nmeminfo.MemFree,%d,65420.0\n",
+                timestamp, timestamp), samples.getValue());
+    }
+
+    private void processOutput(String output) {
+        mSampler.getReceiver().processNewLines(output.split("\r\n"));
+    }
+
+    private double getOnlyValue(String seriesName) {
+        TimeSeries series = mSampler.getSeries(seriesName);
+        assertNotNull(seriesName, series);
+        assertEquals(1, series.size());
+        return series.getValue(0);
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.RawImage;
+import com.android.tradefed.device.ITestDevice.CommandPriority;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Unit tests for {@link ScreenRecorder}.
+ */
+public class ScreenRecorderTest extends TestCase {
+
+    private static final int WIDTH = 31;
+    private static final int HEIGHT = 17;
+
+    private ITestDevice mMockDevice;
+    private Random mRandom;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createNiceMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.replay(mMockDevice);
+        mRandom = new Random(0);
+    }
+
+    /**
+     * Test that a frame identical to the previous frame is dropped.
+     */
+    public void testAddFrame_duplicate() {
+        ScreenRecorder recorder = new ScreenRecorder(mMockDevice, 1000);
+        RawImage rawImage = createImage(WIDTH, HEIGHT);
+        recorder.addFrame(rawImage, 0);
+        recorder.addFrame(copyImage(rawImage), 1000);
+        assertEquals(1, recorder.getFrameCount());
+        assertEquals(1, recorder.getDroppedFrameCount());
+        recorder.addFrame(changeImage(rawImage), 2000);
+        assertEquals(2, recorder.getFrameCount());
+    }
+
+    /**
+     * Test that only the most recent frames are retained, and are reported correctly after the
+     * oldest frames are discarded.
+     */
+    public void testGetRecording_maxFrames() throws IOException {
+        ScreenRecorder recorder = new ScreenRecorder(mMockDevice, 1000, 3,
+                ScreenRecorder.DEFAULT_MAX_BYTES);
+        List<RawImage> images = new ArrayList<RawImage>();
+        RawImage rawImage = createImage(WIDTH, HEIGHT);
+        for (int i = 0; i < 6; i++) {
+            images.add(rawImage);
+            recorder.addFrame(rawImage, i * 1000);
+            rawImage = changeImage(rawImage);
+        }
+        assertEquals(3, recorder.getFrameCount());
+        assertRecording(images.subList(3, 6), recorder.getRecording(10 * 1000));
+    }
+
+    /**
+     * Test that the most recent frame is retained even if it exceeds the maximum size.
+     */
+    public void testAddFrame_maxBytes() throws IOException {
+        ScreenRecorder recorder = new ScreenRecorder(mMockDevice, 1000, 10, 1);
+        RawImage rawImage = createImage(WIDTH, HEIGHT);
+        recorder.addFrame(rawImage, 0);
+        rawImage = changeImage(rawImage);
+        recorder.addFrame(rawImage, 1000);
+        assertEquals(1, recorder.getFrameCount());
+        List<RawImage> images = new ArrayList<RawImage>();
+        images.add(rawImage);
+        assertRecording(images, recorder.getRecording(10 * 1000));
+    }
+
+    /**
+     * Test that frames of different sizes are recorded correctly.
+     */
+    public void testGetRecording_sizeChange() throws IOException {
+        ScreenRecorder recorder = new ScreenRecorder(mMockDevice, 1000);
+        List<RawImage> images = new ArrayList<RawImage>();
+        images.add(createImage(WIDTH, HEIGHT));
+        images.add(changeImage(images.get(0)));
+        images.add(createImage(HEIGHT, WIDTH));
+        images.add(changeImage(images.get(2)));
+        for (int i = 0; i < images.size(); i++) {
+            recorder.addFrame(images.get(i), i * 1000);
+        }
+        assertRecording(images, recorder.getRecording(10 * 1000));
+    }
+
+    /**
+     * Test that only the frames in the requested period are reported.
+     */
+    public void testGetRecording_duration() throws IOException {
+        ScreenRecorder recorder = new ScreenRecorder(mMockDevice, 1000);
+        List<RawImage> images = new ArrayList<RawImage>();
+        RawImage rawImage = createImage(WIDTH, HEIGHT);
+        for (int i = 0; i < 5; i++) {
+            images.add(rawImage);
+            recorder.addFrame(rawImage, i * 1000);
+            rawImage = changeImage(rawImage);
+        }
+        List<String> names = assertRecording(images.subList(3, 5), recorder.getRecording(1000));
+        assertEquals("frame_000_000000ms.png", names.get(0));
+        assertEquals("frame_001_001000ms.png", names.get(1));
+    }
+
+    /**
+     * Test that nothing is reported when no frames were recorded.
+     */
+    public void testLogRecording_empty() {
+        ScreenRecorder recorder = new ScreenRecorder(mMockDevice, 1000);
+        ITestInvocationListener mockListener = EasyMock.createMock(ITestInvocationListener.class);
+        EasyMock.replay(mockListener);
+        assertNull(recorder.getRecording(1000));
+        recorder.logRecording(mockListener, "screen", 1000);
+        EasyMock.verify(mockListener);
+    }
+
+    /**
+     * Test that the recording is reported as a zip.
+     */
+    public void testLogRecording() {
+        ScreenRecorder recorder = new ScreenRecorder(mMockDevice, 1000);
+        recorder.addFrame(createImage(WIDTH, HEIGHT), 0);
+        ITestInvocationListener mockListener = EasyMock.createMock(ITestInvocationListener.class);
+        mockListener.testLog(EasyMock.eq("screen"), EasyMock.eq(LogDataType.ZIP),
+                (InputStreamSource)EasyMock.anyObject());
+        EasyMock.replay(mockListener);
+        recorder.logRecording(mockListener, "screen", 1000);
+        EasyMock.verify(mockListener);
+    }
+
+    /**
+     * Test that recording captures screenshots through the device as background work, and stops
+     * if the device becomes unavailable.
+     */
+    public void testStart() throws Exception {
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mockDevice.getSerialNumber()).andStubReturn("serial");
+        final CountDownLatch captured = new CountDownLatch(1);
+        EasyMock.expect(mockDevice.getRawScreenshot(CommandPriority.BACKGROUND)).andAnswer(
+                new IAnswer<RawImage>() {
+                    @Override
+                    public RawImage answer() throws Throwable {
+                        captured.countDown();
+                        throw new DeviceNotAvailableException();
+                    }
+                });
+        EasyMock.replay(mockDevice);
+        ScreenRecorder recorder = new ScreenRecorder(mockDevice, 10);
+        recorder.start();
+        try {
+            assertTrue(captured.await(5, TimeUnit.SECONDS));
+        } finally {
+            recorder.stop();
+        }
+        EasyMock.verify(mockDevice);
+        assertEquals(0, recorder.getFrameCount());
+    }
+
+    /**
+     * Assert that a recording contains PNG images of the expected frames.
+     *
+     * @return the names of the images in the recording
+     */
+    private List<String> assertRecording(List<RawImage> images, InputStreamSource recording)
+            throws IOException {
+        assertNotNull(recording);
+        List<String> names = new ArrayList<String>();
+        ZipInputStream zip = new ZipInputStream(recording.createInputStream());
+        try {
+            for (RawImage rawImage : images) {
+                ZipEntry entry = zip.getNextEntry();
+                assertNotNull(entry);
+                names.add(entry.getName());
+                BufferedImage image = ImageIO.read(zip);
+                assertEquals(rawImage.width, image.getWidth());
+                assertEquals(rawImage.height, image.getHeight());
+                for (int y = 0; y < rawImage.height; y++) {
+                    for (int x = 0; x < rawImage.width; x++) {
+                        int index = (y * rawImage.width + x) * 4;
+                        assertEquals(rawImage.getARGB(index), image.getRGB(x, y));
+                    }
+                }
+            }
+            assertNull(zip.getNextEntry());
+        } finally {
+            zip.close();
+            recording.cancel();
+        }
+        return names;
+    }
+
+    /**
+     * Create a {@link RawImage} of random opaque pixels, in RGBX format.
+     */
+    private RawImage createImage(int width, int height) {
+        RawImage rawImage = new RawImage();
+        rawImage.bpp = 32;
+        rawImage.width = width;
+        rawImage.height = height;
+        rawImage.size = width * height * 4;
+        rawImage.red_offset = 0;
+        rawImage.red_length = 8;
+        rawImage.green_offset = 8;
+        rawImage.green_length = 8;
+        rawImage.blue_offset = 16;
+        rawImage.blue_length = 8;
+        rawImage.alpha_offset = 24;
+        rawImage.alpha_length = 0;
+        rawImage.data = new byte[rawImage.size];
+        mRandom.nextBytes(rawImage.data);
+        return rawImage;
+    }
+
+    /**
+     * Create a copy of a {@link RawImage}.
+     */
+    private RawImage copyImage(RawImage rawImage) {
+        RawImage copy = createImage(rawImage.width, rawImage.height);
+        System.arraycopy(rawImage.data, 0, copy.data, 0, rawImage.size);
+        return copy;
+    }
+
+    /**
+     * Create a copy of a {@link RawImage} with a few pixels changed.
+     */
+    private RawImage changeImage(RawImage rawImage) {
+        RawImage copy = copyImage(rawImage);
+        for (int i = 0; i < 5; i++) {
+            copy.data[mRandom.nextInt(copy.size / 4) * 4] ^= 0x55;
+        }
+        return copy;
+    }
+}
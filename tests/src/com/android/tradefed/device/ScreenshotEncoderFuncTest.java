@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.RawImage;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmark for {@link ScreenshotEncoder}, on synthetic 1080p and 1440p framebuffers, compared to
+ * converting a pixel at a time and encoding with {@link ImageIO}.
+ */
+public class ScreenshotEncoderFuncTest extends TestCase {
+
+    private static final int ITERATIONS = 5;
+
+    /**
+     * Measure screenshot encoding for a 1080p display.
+     */
+    public void testEncode_1080p() throws Exception {
+        runBenchmark(createFrame(1080, 1920));
+    }
+
+    /**
+     * Measure screenshot encoding for a 1440p display.
+     */
+    public void testEncode_1440p() throws Exception {
+        runBenchmark(createFrame(1440, 2560));
+    }
+
+    private void runBenchmark(RawImage frame) throws Exception {
+        String resolution = String.format("%dx%d", frame.width, frame.height);
+        // warm up
+        encodeWithImageIO(frame);
+        ScreenshotEncoder.encodePng(frame, Deflater.DEFAULT_COMPRESSION);
+        ScreenshotEncoder.encodePng(frame, Deflater.BEST_SPEED);
+
+        long start = System.nanoTime();
+        int size = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            size = encodeWithImageIO(frame).length;
+        }
+        report(resolution, "per-pixel + ImageIO", start, size);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            int[] argb = new int[frame.width * frame.height];
+            ScreenshotEncoder.convertToArgb(frame, argb);
+        }
+        report(resolution, "bulk conversion only", start, 0);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            size = ScreenshotEncoder.encodePng(frame, Deflater.DEFAULT_COMPRESSION).length;
+        }
+        report(resolution, "bulk + deflate level 6", start, size);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            size = ScreenshotEncoder.encodePng(frame, Deflater.BEST_SPEED).length;
+        }
+        report(resolution, "bulk + deflate level 1", start, size);
+
+        // time for the caller to hand off each frame, and to drain the pool
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(ITERATIONS);
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            results.add(ScreenshotEncoder.encodePngAsync(frame, Deflater.BEST_SPEED));
+        }
+        long submitNs = System.nanoTime() - start;
+        for (Future<byte[]> result : results) {
+            size = result.get().length;
+        }
+        CLog.logAndDisplay(LogLevel.INFO, "%s async level 1: %.1f ms per frame on caller, " +
+                "%.1f ms per frame throughput", resolution, submitNs / 1e6 / ITERATIONS,
+                (System.nanoTime() - start) / 1e6 / ITERATIONS);
+    }
+
+    private void report(String resolution, String method, long startNs, int size) {
+        CLog.logAndDisplay(LogLevel.INFO, "%s %s: %.1f ms per frame, %d KB", resolution, method,
+                (System.nanoTime() - startNs) / 1e6 / ITERATIONS, size / 1024);
+    }
+
+    /**
+     * The conversion previously performed by {@link TestDevice#getScreenshot()}.
+     */
+    private byte[] encodeWithImageIO(RawImage rawImage) throws IOException {
+        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height,
+                BufferedImage.TYPE_INT_ARGB);
+        int index = 0;
+        int indexInc = rawImage.bpp >> 3;
+        for (int y = 0; y < rawImage.height; y++) {
+            for (int x = 0; x < rawImage.width; x++) {
+                image.setRGB(x, y, rawImage.getARGB(index));
+                index += indexInc;
+            }
+        }
+        ByteArrayOutputStream imageOut = new ByteArrayOutputStream(128 * 1024);
+        assertTrue(ImageIO.write(image, "png", imageOut));
+        return imageOut.toByteArray();
+    }
+
+    /**
+     * Create an RGBA frame that looks roughly like a UI: flat colored bars, a gradient, and some
+     * noisy "text" rows.
+     */
+    private RawImage createFrame(int width, int height) {
+        RawImage rawImage = new RawImage();
+        rawImage.bpp = 32;
+        rawImage.width = width;
+        rawImage.height = height;
+        rawImage.size = width * height * 4;
+        rawImage.red_offset = 0;
+        rawImage.red_length = 8;
+        rawImage.green_offset = 8;
+        rawImage.green_length = 8;
+        rawImage.blue_offset = 16;
+        rawImage.blue_length = 8;
+        rawImage.alpha_offset = 24;
+        rawImage.alpha_length = 8;
+        rawImage.data = new byte[rawImage.size];
+        Random random = new Random(0);
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            int band = (y / 96) % 4;
+            for (int x = 0; x < width; x++) {
+                int r, g, b;
+                if (band == 0) {
+                    r = 0x21; g = 0x96; b = 0xf3;
+                } else if (band == 1) {
+                    r = g = b = (x * 255) / width;
+                } else if (band == 2 && (y % 24) < 16 && random.nextInt(4) == 0) {
+                    r = g = b = random.nextInt(256);
+                } else {
+                    r = g = b = 0xfa;
+                }
+                rawImage.data[i++] = (byte)r;
+                rawImage.data[i++] = (byte)g;
+                rawImage.data[i++] = (byte)b;
+                rawImage.data[i++] = (byte)0xff;
+            }
+        }
+        return rawImage;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.RawImage;
+import com.android.tradefed.result.FutureInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Unit tests for {@link ScreenshotEncoder}.
+ */
+public class ScreenshotEncoderTest extends TestCase {
+    private static final int WIDTH = 31;
+    private static final int HEIGHT = 17;
+
+    /**
+     * Test conversion of the common 32 bit RGBA format.
+     */
+    public void testConvertToArgb_rgba() {
+        assertConversion(createImage(32, 0, 8, 16, 24, 8));
+    }
+
+    /**
+     * Test conversion of a 32 bit format with the channels in a different order, and no alpha.
+     */
+    public void testConvertToArgb_bgrx() {
+        assertConversion(createImage(32, 16, 8, 0, 24, 0));
+    }
+
+    /**
+     * Test conversion of the 16 bit RGB565 format.
+     */
+    public void testConvertToArgb_rgb565() {
+        RawImage rawImage = createImage(16, 11, 5, 0, 0, 0);
+        rawImage.red_length = 5;
+        rawImage.green_length = 6;
+        rawImage.blue_length = 5;
+        assertConversion(rawImage);
+    }
+
+    /**
+     * Test that an unsupported pixel format is rejected.
+     */
+    public void testConvertToArgb_unsupported() {
+        RawImage rawImage = createImage(24, 0, 8, 16, 0, 0);
+        assertFalse(ScreenshotEncoder.isSupported(rawImage));
+        try {
+            ScreenshotEncoder.convertToArgb(rawImage, new int[WIDTH * HEIGHT]);
+            fail("UnsupportedOperationException not thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that the encoded PNG decodes to the original pixels, with and without alpha, at
+     * different compression levels.
+     */
+    public void testEncodePng() throws IOException {
+        RawImage rawImage = createImage(32, 0, 8, 16, 24, 8);
+        assertPng(rawImage, ScreenshotEncoder.encodePng(rawImage, Deflater.BEST_SPEED));
+        rawImage = createImage(32, 0, 8, 16, 24, 0);
+        assertPng(rawImage, ScreenshotEncoder.encodePng(rawImage,
+                Deflater.DEFAULT_COMPRESSION));
+    }
+
+    /**
+     * Test that a screenshot encoded in the background can be read from a
+     * {@link FutureInputStreamSource}.
+     */
+    public void testEncodePngAsync() throws IOException {
+        RawImage rawImage = createImage(32, 0, 8, 16, 24, 8);
+        InputStreamSource source = new FutureInputStreamSource(
+                ScreenshotEncoder.encodePngAsync(rawImage, Deflater.BEST_SPEED));
+        try {
+            BufferedImage image = ImageIO.read(source.createInputStream());
+            assertPixels(rawImage, image);
+            assertTrue(source.size() > 0);
+        } finally {
+            source.cancel();
+        }
+        assertNull(source.createInputStream());
+    }
+
+    /**
+     * Test that a {@link FutureInputStreamSource} returns no data if the computation fails.
+     */
+    public void testFutureInputStreamSource_failed() {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                throw new UnsupportedOperationException();
+            }
+        });
+        task.run();
+        InputStreamSource source = new FutureInputStreamSource(task);
+        assertNull(source.createInputStream());
+        assertEquals(0, source.size());
+    }
+
+    private void assertConversion(RawImage rawImage) {
+        assertTrue(ScreenshotEncoder.isSupported(rawImage));
+        int[] argb = new int[WIDTH * HEIGHT];
+        ScreenshotEncoder.convertToArgb(rawImage, argb);
+        int bytesPerPixel = rawImage.bpp / 8;
+        for (int i = 0; i < argb.length; i++) {
+            assertEquals(rawImage.getARGB(i * bytesPerPixel), argb[i]);
+        }
+        assertPixels(rawImage, ScreenshotEncoder.toBufferedImage(rawImage));
+    }
+
+    private void assertPng(RawImage rawImage, byte[] pngData) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(pngData));
+        assertNotNull(image);
+        assertEquals(rawImage.alpha_length != 0, image.getColorModel().hasAlpha());
+        assertPixels(rawImage, image);
+    }
+
+    private void assertPixels(RawImage rawImage, BufferedImage image) {
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        int bytesPerPixel = rawImage.bpp / 8;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(rawImage.getARGB((y * WIDTH + x) * bytesPerPixel),
+                        image.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Create a {@link RawImage} of random pixels, with 8 bit channels.
+     */
+    private RawImage createImage(int bpp, int redOffset, int greenOffset, int blueOffset,
+            int alphaOffset, int alphaLength) {
+        RawImage rawImage = new RawImage();
+        rawImage.bpp = bpp;
+        rawImage.width = WIDTH;
+        rawImage.height = HEIGHT;
+        rawImage.size = WIDTH * HEIGHT * bpp / 8;
+        rawImage.red_offset = redOffset;
+        rawImage.red_length = 8;
+        rawImage.green_offset = greenOffset;
+        rawImage.green_length = 8;
+        rawImage.blue_offset = blueOffset;
+        rawImage.blue_length = 8;
+        rawImage.alpha_offset = alphaOffset;
+        rawImage.alpha_length = alphaLength;
+        rawImage.data = new byte[rawImage.size];
+        new Random(0).nextBytes(rawImage.data);
+        return rawImage;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.MultiLineReceiver;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link StreamingLineReceiver}.
+ */
+public class StreamingLineReceiverTest extends TestCase {
+
+    /**
+     * A {@link StreamingLineReceiver} that collects decoded lines.
+     */
+    private static class CollectingLineReceiver extends StreamingLineReceiver {
+        final List<String> mLines = new ArrayList<String>();
+        boolean mDone = false;
+
+        @Override
+        protected void processLine(byte[] data, int start, int end) {
+            mLines.add(decode(data, start, end));
+        }
+
+        @Override
+        public void done() {
+            mDone = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * A {@link MultiLineReceiver} that collects lines, used as the reference implementation.
+     */
+    private static class ReferenceReceiver extends MultiLineReceiver {
+        final List<String> mLines = new ArrayList<String>();
+
+        @Override
+        public void processNewLines(String[] lines) {
+            mLines.addAll(Arrays.asList(lines));
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * Test that lines are split and trimmed the same way as {@link MultiLineReceiver}, regardless
+     * of how the output is chunked.
+     */
+    public void testAddOutput_matchesMultiLineReceiver() throws Exception {
+        String[] outputs = new String[] {
+                "",
+                "foo",
+                "foo\r\n",
+                "  foo  \r\nbar\r\n\r\n baz ",
+                "foo\nbar\rbaz\r\n\n\r\r\n",
+                "\u00e9t\u00e9 \u2603\r\n\t[ RUN      ] Foo.bar\t\r\nend  ",
+        };
+        for (String output : outputs) {
+            byte[] data = output.getBytes("UTF-8");
+            for (int chunkSize = 1; chunkSize <= Math.max(1, data.length); chunkSize++) {
+                ReferenceReceiver reference = new ReferenceReceiver();
+                CollectingLineReceiver receiver = new CollectingLineReceiver();
+                for (int offset = 0; offset < data.length; offset += chunkSize) {
+                    int length = Math.min(chunkSize, data.length - offset);
+                    receiver.addOutput(data, offset, length);
+                    // ddmlib decodes each chunk separately, so only feed it whole characters
+                    if (chunkSize == data.length) {
+                        reference.addOutput(data, offset, length);
+                    }
+                }
+                if (chunkSize != data.length) {
+                    feedByCharacter(reference, output);
+                }
+                reference.flush();
+                receiver.flush();
+                assertEquals(String.format("output '%s' chunk size %d", output, chunkSize),
+                        reference.mLines, receiver.mLines);
+                assertTrue(receiver.mDone);
+            }
+        }
+    }
+
+    /**
+     * Test that output is ignored once cancelled.
+     */
+    public void testAddOutput_cancelled() {
+        CollectingLineReceiver receiver = new CollectingLineReceiver() {
+            @Override
+            public boolean isCancelled() {
+                return true;
+            }
+        };
+        byte[] data = "foo\r\nbar".getBytes();
+        receiver.addOutput(data, 0, data.length);
+        receiver.flush();
+        assertTrue(receiver.mLines.isEmpty());
+        assertTrue(receiver.mDone);
+    }
+
+    /**
+     * Feed the reference receiver one character at a time, so chunk boundaries fall in the same
+     * places relative to line separators without splitting multi-byte characters.
+     */
+    private void feedByCharacter(ReferenceReceiver reference, String output) throws Exception {
+        for (int i = 0; i < output.length(); i++) {
+            byte[] data = output.substring(i, i + 1).getBytes("UTF-8");
+            reference.addOutput(data, 0, data.length);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.RawImage;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.tradefed.build.IBuildInfo;
@@ -508,6 +509,15 @@ public class StubTestDevice implements IManagedTestDevice {
         // ignore
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void executeShellCommand(String command, IShellOutputReceiver receiver,
+            CommandPriority priority) throws DeviceNotAvailableException {
+        // ignore
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -581,6 +591,15 @@ public class StubTestDevice implements IManagedTestDevice {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RawImage getRawScreenshot(CommandPriority priority)
+            throws DeviceNotAvailableException {
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      */
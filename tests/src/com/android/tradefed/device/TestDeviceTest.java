@@ -22,6 +22,7 @@ import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.tradefed.device.ITestDevice.CommandPriority;
 import com.android.tradefed.device.ITestDevice.MountPointInfo;
 import com.android.tradefed.device.ITestDevice.RecoveryMode;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -476,6 +477,19 @@ public class TestDeviceTest extends TestCase {
         }
     }
 
+    /**
+     * Test {@link TestDevice#executeShellCommand(String, IShellOutputReceiver, CommandPriority)}
+     * routes the shell command to the IDevice.
+     */
+    public void testExecuteShellCommand_priority() throws Exception {
+        final String testCommand = "simple command";
+        mMockIDevice.executeShellCommand(EasyMock.eq(testCommand), EasyMock.eq(mMockReceiver),
+                EasyMock.anyInt());
+        EasyMock.replay(mMockIDevice);
+        mTestDevice.executeShellCommand(testCommand, mMockReceiver, CommandPriority.BACKGROUND);
+        EasyMock.verify(mMockIDevice);
+    }
+
     /**
      * Test {@link TestDevice#executeShellCommand(String, IShellOutputReceiver)} behavior when
      * {@link IDevice} throws IOException and device is in recovery until online mode.
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link InvocationTrace}.
+ */
+public class InvocationTraceTest extends TestCase {
+
+    /**
+     * Test that spans are only recorded while a trace is registered for the thread group.
+     */
+    public void testStartSpan_registered() {
+        assertNull(InvocationTrace.getTrace());
+        // spans without a trace are ignored
+        InvocationTrace.startSpan(InvocationTrace.INVOCATION, "ignored").end();
+
+        InvocationTrace trace = InvocationTrace.startTrace("trace");
+        try {
+            assertSame(trace, InvocationTrace.getTrace());
+            InvocationTrace.startSpan(InvocationTrace.INVOCATION, "phase").end();
+        } finally {
+            trace.finish();
+        }
+        assertNull(InvocationTrace.getTrace());
+        String summary = trace.getSummary();
+        assertTrue(summary.contains("invocation:phase"));
+        assertFalse(summary.contains("ignored"));
+    }
+
+    /**
+     * Test that time spent in nested spans is not charged to the enclosing span.
+     */
+    public void testGetSummary_nested() throws Exception {
+        InvocationTrace trace = new InvocationTrace("trace");
+        InvocationTrace.Span outer = trace.start(InvocationTrace.INVOCATION, "outer");
+        InvocationTrace.Span inner = trace.start(InvocationTrace.DEVICE, "inner");
+        Thread.sleep(200);
+        assertTrue(inner.end() >= 200);
+        assertTrue(outer.end() >= 200);
+        trace.finish();
+
+        String[] lines = trace.getSummary().split("\n");
+        assertEquals(3, lines.length);
+        // slowest span first
+        assertTrue(lines[1].endsWith("device:inner"));
+        assertTrue(lines[2].endsWith("invocation:outer"));
+        long outerSelfMs = Long.parseLong(lines[2].trim().split(" ")[0]);
+        assertTrue(outerSelfMs < 100);
+    }
+
+    /**
+     * Test that {@link InvocationTrace#finish()} ends spans that are still open.
+     */
+    public void testFinish_openSpans() throws Exception {
+        InvocationTrace trace = new InvocationTrace("trace");
+        InvocationTrace.Span span = trace.start(InvocationTrace.TEST, "test");
+        trace.finish();
+        assertTrue(trace.getSummary().contains("test:test"));
+        // ending the span again has no effect
+        span.end();
+        assertEquals(1, countOccurrences(getTraceData(trace), "\"ph\":\"X\""));
+    }
+
+    /**
+     * Test the output in the Chrome trace event format.
+     */
+    public void testGetTraceData() throws Exception {
+        InvocationTrace trace = InvocationTrace.startTrace("invocation on \"serial\"");
+        try {
+            trace.start(InvocationTrace.TARGET_PREPARER, "Preparer").end();
+            Thread thread = new Thread("other") {
+                @Override
+                public void run() {
+                    // threads in the same thread group share the trace
+                    InvocationTrace.startSpan(InvocationTrace.DEVICE, "background").end();
+                }
+            };
+            thread.start();
+            thread.join();
+        } finally {
+            trace.finish();
+        }
+
+        String data = getTraceData(trace);
+        assertTrue(data.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(data.contains("\"name\":\"process_name\""));
+        assertTrue(data.contains("\"args\":{\"name\":\"invocation on \\\"serial\\\"\"}"));
+        assertTrue(data.contains("{\"ph\":\"X\",\"name\":\"Preparer\",\"cat\":\"target_preparer\"," +
+                "\"pid\":0,\"tid\":0,\"ts\":"));
+        assertTrue(data.contains("{\"ph\":\"X\",\"name\":\"background\",\"cat\":\"device\"," +
+                "\"pid\":0,\"tid\":1,\"ts\":"));
+        assertEquals(2, countOccurrences(data, "\"name\":\"thread_name\""));
+        assertTrue(data.endsWith("]}\n"));
+    }
+
+    private String getTraceData(InvocationTrace trace) throws Exception {
+        InputStreamSource source = trace.getTraceData();
+        try {
+            return StreamUtil.getStringFromSource(source);
+        } finally {
+            source.cancel();
+        }
+    }
+
+    private int countOccurrences(String string, String substring) {
+        int count = 0;
+        int index = string.indexOf(substring);
+        while (index >= 0) {
+            count++;
+            index = string.indexOf(substring, index + 1);
+        }
+        return count;
+    }
+}
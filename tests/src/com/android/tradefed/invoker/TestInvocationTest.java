@@ -41,17 +41,23 @@ import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
+import com.android.tradefed.testtype.IShardableTest;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 
 import org.easymock.Capture;
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link TestInvocation}.
@@ -60,6 +66,7 @@ public class TestInvocationTest extends TestCase {
 
     private static final String SERIAL = "serial";
     private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+    private static final long WAIT_TIME_MS = 5 * 1000;
     private static final TestSummary mSummary = new TestSummary("http://www.url.com/report.txt");
 
     /** The {@link TestInvocation} under test, with all dependencies mocked out */
@@ -350,6 +357,8 @@ public class TestInvocationTest extends TestCase {
                 .andReturn(new ByteArrayInputStreamSource(new byte[0]));
         resumeListener.testLog(EasyMock.eq(TestInvocation.DEVICE_LOG_NAME),
                 EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
+        resumeListener.testLog(EasyMock.eq(TestInvocation.TRACE_NAME),
+                EasyMock.eq(LogDataType.JSON), (InputStreamSource)EasyMock.anyObject());
         resumeListener.testLog(EasyMock.eq(TestInvocation.TRADEFED_LOG_NAME),
                 EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
 
@@ -375,6 +384,8 @@ public class TestInvocationTest extends TestCase {
                 .andReturn(new ByteArrayInputStreamSource(new byte[0]));
         resumeListener.testLog(EasyMock.eq(TestInvocation.DEVICE_LOG_NAME),
                 EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
+        resumeListener.testLog(EasyMock.eq(TestInvocation.TRACE_NAME),
+                EasyMock.eq(LogDataType.JSON), (InputStreamSource)EasyMock.anyObject());
         resumeListener.testLog(EasyMock.eq(TestInvocation.TRADEFED_LOG_NAME),
                 EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
         resumeListener.invocationEnded(EasyMock.anyLong());
@@ -398,6 +409,83 @@ public class TestInvocationTest extends TestCase {
                 mMockPreparer, mMockBuildProvider, mMockLogger, mMockDevice, mMockBuildInfo);
     }
 
+    /**
+     * Test the invoke scenario where the test is sharded.
+     * <p/>
+     * Verifies that a config is rescheduled for each shard, and that the original build is
+     * cleaned up and the invocation log closed once all shards have been created.
+     */
+    public void testInvoke_shard() throws Exception {
+        final int numShards = 3;
+        IShardableTest test = EasyMock.createMock(IShardableTest.class);
+        List<IRemoteTest> shards = new ArrayList<IRemoteTest>(numShards);
+        for (int i = 0; i < numShards; i++) {
+            shards.add(EasyMock.createMock(IRemoteTest.class));
+        }
+        EasyMock.expect(test.split()).andReturn(shards);
+        mStubConfiguration.setTest(test);
+        EasyMock.expect(mMockBuildProvider.getBuild()).andReturn(mMockBuildInfo);
+        EasyMock.expect(mMockBuildInfo.clone()).andReturn(mMockBuildInfo).times(numShards);
+        // the invocation log is closed by the last shard thread
+        EasyMock.reset(mMockLogger);
+        mMockLogger.init();
+        EasyMock.expect(mMockLogger.clone()).andReturn(mMockLogger).times(numShards);
+        final CountDownLatch logClosed = new CountDownLatch(1);
+        mMockLogger.closeLog();
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                logClosed.countDown();
+                return null;
+            }
+        });
+        // each shard thread logs to the invocation log while creating its shard
+        mMockLogRegistry.registerLogger(mMockLogger);
+        EasyMock.expectLastCall().times(numShards);
+        mMockLogRegistry.unregisterLogger();
+        EasyMock.expectLastCall().times(numShards);
+        mMockLogRegistry.dumpToGlobalLog(mMockLogger);
+        mMockTestListener.invocationStarted(mMockBuildInfo);
+        mMockSummaryListener.invocationStarted(mMockBuildInfo);
+        mMockBuildProvider.cleanUp(mMockBuildInfo);
+        final List<IConfiguration> shardConfigs = Collections.synchronizedList(
+                new ArrayList<IConfiguration>());
+        IRescheduler rescheduler = new IRescheduler() {
+            @Override
+            public boolean scheduleConfig(IConfiguration config) {
+                shardConfigs.add(config);
+                return true;
+            }
+        };
+        replayMocks(test);
+        mTestInvocation.invoke(mMockDevice, mStubConfiguration, rescheduler);
+        assertTrue(logClosed.await(WAIT_TIME_MS, TimeUnit.MILLISECONDS));
+        verifyMocks(test);
+        assertEquals(numShards, shardConfigs.size());
+        Set<IRemoteTest> scheduledShards = new HashSet<IRemoteTest>();
+        for (IConfiguration shardConfig : shardConfigs) {
+            assertEquals(1, shardConfig.getTests().size());
+            scheduledShards.add(shardConfig.getTests().get(0));
+        }
+        assertEquals(new HashSet<IRemoteTest>(shards), scheduledShards);
+    }
+
+    /**
+     * Test the invoke scenario where a shardable test splits into no shards.
+     * <p/>
+     * Verifies that the test is run without sharding.
+     */
+    public void testInvoke_shardEmpty() throws Exception {
+        IShardableTest test = EasyMock.createMock(IShardableTest.class);
+        EasyMock.expect(test.split()).andReturn(new ArrayList<IRemoteTest>());
+        test.run((ITestInvocationListener)EasyMock.anyObject());
+        setupMockSuccessListeners();
+        setupNormalInvoke(test);
+        mTestInvocation.invoke(mMockDevice, mStubConfiguration, new StubRescheduler());
+        verifyMocks(test);
+        verifySummaryListener();
+    }
+
     /**
      * Set up expected conditions for normal run up to the part where tests are run.
      *
@@ -429,6 +517,7 @@ public class TestInvocationTest extends TestCase {
      *   <li>invocationStarted</li>
      *   <li>invocationFailed (if run failed)</li>
      *   <li>testLog(DEVICE_LOG_NAME, ...)</li>
+     *   <li>testLog(TRACE_NAME, ...)</li>
      *   <li>testLog(TRADEFED_LOG_NAME, ...)</li>
      *   <li>putSummary (for an ITestSummaryListener)</li>
      *   <li>invocationEnded</li>
@@ -458,12 +547,16 @@ public class TestInvocationTest extends TestCase {
         // testLog (mMockTestListener)
         mMockTestListener.testLog(EasyMock.eq(TestInvocation.DEVICE_LOG_NAME),
                 EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
+        mMockTestListener.testLog(EasyMock.eq(TestInvocation.TRACE_NAME),
+                EasyMock.eq(LogDataType.JSON), (InputStreamSource)EasyMock.anyObject());
         mMockTestListener.testLog(EasyMock.eq(TestInvocation.TRADEFED_LOG_NAME),
                 EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
 
         // testLog (mMockSummaryListener)
         mMockSummaryListener.testLog(EasyMock.eq(TestInvocation.DEVICE_LOG_NAME),
                 EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
+        mMockSummaryListener.testLog(EasyMock.eq(TestInvocation.TRACE_NAME),
+                EasyMock.eq(LogDataType.JSON), (InputStreamSource)EasyMock.anyObject());
         mMockSummaryListener.testLog(EasyMock.eq(TestInvocation.TRADEFED_LOG_NAME),
                 EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
 
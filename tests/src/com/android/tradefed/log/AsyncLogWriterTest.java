@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link AsyncLogWriter}.
+ */
+public class AsyncLogWriterTest extends TestCase {
+
+    private static final String THREAD_NAME = "AsyncLogWriterTest";
+
+    /**
+     * A {@link StringWriter} that blocks writes until released, and records flush and close.
+     */
+    private static class BlockingWriter extends StringWriter {
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        int mFlushCount = 0;
+        boolean mClosed = false;
+
+        @Override
+        public void write(String str) {
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            super.write(str);
+        }
+
+        @Override
+        public synchronized void flush() {
+            mFlushCount++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+        }
+    }
+
+    /**
+     * Test that {@link AsyncLogWriter#flush()} waits until all entries are written, in order.
+     */
+    public void testFlush() throws IOException {
+        StringWriter output = new StringWriter();
+        AsyncLogWriter writer = new AsyncLogWriter(output, 4, THREAD_NAME);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String entry = String.format("entry %d\n", i);
+            writer.write(entry);
+            expected.append(entry);
+        }
+        writer.flush();
+        assertEquals(expected.toString(), output.toString());
+        writer.close();
+    }
+
+    /**
+     * Test that writes block while the buffer is full, rather than dropping entries.
+     */
+    public void testWrite_full() throws Exception {
+        final BlockingWriter output = new BlockingWriter();
+        final AsyncLogWriter writer = new AsyncLogWriter(output, 2, THREAD_NAME);
+        final CountDownLatch written = new CountDownLatch(1);
+        Thread logThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // at most two entries are taken by the blocked background thread, and two
+                    // fill the buffer
+                    for (int i = 0; i < 5; i++) {
+                        writer.write(Integer.toString(i));
+                    }
+                    written.countDown();
+                } catch (IOException e) {
+                    // ignore, test will fail
+                }
+            }
+        };
+        logThread.start();
+        assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+        output.mRelease.countDown();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        writer.close();
+        assertEquals("01234", output.toString());
+        assertTrue(output.mClosed);
+    }
+
+    /**
+     * Test that the underlying writer is flushed once the background thread is idle.
+     */
+    public void testWrite_flushWhenIdle() throws Exception {
+        BlockingWriter output = new BlockingWriter();
+        output.mRelease.countDown();
+        AsyncLogWriter writer = new AsyncLogWriter(output, 4, THREAD_NAME);
+        writer.write("entry");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getFlushCount(output) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(AsyncLogWriter.FLUSH_DELAY_MS / 2);
+        }
+        assertEquals(1, getFlushCount(output));
+        writer.close();
+    }
+
+    /**
+     * Test that a write after close fails.
+     */
+    public void testWrite_closed() throws IOException {
+        AsyncLogWriter writer = new AsyncLogWriter(new StringWriter(), 4, THREAD_NAME);
+        writer.close();
+        try {
+            writer.write("entry");
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that an error from the underlying writer is reported to the next caller.
+     */
+    public void testFlush_error() throws IOException {
+        Writer output = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        AsyncLogWriter writer = new AsyncLogWriter(output, 4, THREAD_NAME);
+        writer.write("entry");
+        try {
+            writer.flush();
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        // error is only reported once
+        writer.flush();
+        writer.close();
+    }
+
+    private int getFlushCount(BlockingWriter output) {
+        synchronized (output) {
+            return output.mFlushCount;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.DdmPreferences;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import junit.framework.TestCase;
+
+/**
+ * Logging throughput benchmark for {@link CLog} calls directed through the {@link LogRegistry}
+ * to a {@link FileLogger}, as performed by every invocation.
+ */
+public class FileLoggerFuncTest extends TestCase {
+
+    private static final int NUM_THREADS = 4;
+    private static final int ITERATIONS = 200000;
+
+    private ILogRegistry mLogRegistry;
+    private FileLogger mLogger;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLogRegistry = LogRegistry.getLogRegistry();
+        mLogger = new FileLogger();
+        mLogger.setLogLevel(LogLevel.INFO);
+        mLogger.setLogLevelDisplay(LogLevel.ASSERT);
+        mLogger.init();
+        mLogRegistry.registerLogger(mLogger);
+        // same ddmlib setup as the command scheduler
+        DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
+        Log.setLogOutput(mLogRegistry);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        Log.setLogOutput(null);
+        DdmPreferences.setLogLevel(DdmPreferences.DEFAULT_LOG_LEVEL.getStringValue());
+        mLogRegistry.unregisterLogger();
+        mLogger.closeLog();
+        super.tearDown();
+    }
+
+    /**
+     * Measure the cost of a log call below the logger's log level.
+     */
+    public void testFilteredLogThroughput() throws Exception {
+        Runnable logger = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    CLog.d("Filtered message %d from %s", i, "benchmark");
+                }
+            }
+        };
+        measure("filtered CLog.d", logger);
+    }
+
+    /**
+     * Measure the cost of a log call that is written to the log file.
+     */
+    public void testLogThroughput() throws Exception {
+        Runnable logger = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    CLog.i("Logged message %d from %s", i, "benchmark");
+                }
+            }
+        };
+        measure("logged CLog.i", logger);
+    }
+
+    /**
+     * Run the logger once to warm up, then once on this thread, then on {@link #NUM_THREADS}
+     * threads at once, and display the cost per call.
+     */
+    private void measure(String name, Runnable logger) throws InterruptedException {
+        logger.run();
+        long start = System.nanoTime();
+        logger.run();
+        long singleNs = System.nanoTime() - start;
+
+        // threads inherit the thread group, so log to the same logger
+        Thread[] threads = new Thread[NUM_THREADS];
+        for (int i = 0; i < NUM_THREADS; i++) {
+            threads[i] = new Thread(logger);
+        }
+        start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long multiNs = System.nanoTime() - start;
+        CLog.logAndDisplay(LogLevel.INFO, "%s: %.1f ns/call on 1 thread, %.1f ns/call on %d "
+                + "threads", name, (double)singleNs / ITERATIONS,
+                (double)multiNs / ITERATIONS / NUM_THREADS, NUM_THREADS);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Functional test for {@link BatchUploadResultReporter}, uploading the results of many
+ * invocations to a slow in-process HTTP server.
+ */
+public class BatchUploadResultReporterFuncTest extends TestCase {
+
+    private static final int NUM_INVOCATIONS = 200;
+    private static final int TESTS_PER_RUN = 5;
+    /** number of records reported by each invocation: each test, the run and the invocation */
+    private static final int RECORDS_PER_INVOCATION = TESTS_PER_RUN + 2;
+    private static final long SERVER_DELAY_MS = 100;
+    private static final long TIMEOUT_MS = 60 * 1000;
+
+    private HttpServer mServer;
+    private String mUploadUrl;
+    private File mSpoolDir;
+    private final AtomicInteger mRequestCount = new AtomicInteger(0);
+    private final AtomicInteger mRecordCount = new AtomicInteger(0);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                0);
+        mServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream requestBody = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    requestBody = new GZIPInputStream(requestBody);
+                }
+                String records = StreamUtil.getStringFromStream(requestBody);
+                try {
+                    Thread.sleep(SERVER_DELAY_MS);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                mRequestCount.incrementAndGet();
+                mRecordCount.addAndGet(records.split("\n").length);
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUploadUrl = String.format("http://127.0.0.1:%d/upload", mServer.getAddress().getPort());
+        mSpoolDir = FileUtil.createTempDir("spool");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop(0);
+        FileUtil.recursiveDelete(mSpoolDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the results of many invocations are all uploaded in few requests, without the
+     * invocations waiting on the server.
+     */
+    public void testUpload() throws Exception {
+        Map<String, String> metrics = new HashMap<String, String>();
+        for (int i = 0; i < 20; i++) {
+            metrics.put(String.format("metric%d", i), Double.toString(i * 1.5));
+        }
+        long reportingNs = 0;
+        for (int i = 0; i < NUM_INVOCATIONS; i++) {
+            BatchUploadResultReporter reporter = new BatchUploadResultReporter();
+            OptionSetter setter = new OptionSetter(reporter);
+            setter.setOptionValue("upload-url", mUploadUrl);
+            setter.setOptionValue("spool-dir", mSpoolDir.getAbsolutePath());
+            setter.setOptionValue("batch-size", Integer.toString(64 * 1024));
+            setter.setOptionValue("batch-interval", "1000");
+            setter.setOptionValue("compress-upload", "true");
+
+            long start = System.nanoTime();
+            reporter.invocationStarted(new BuildInfo(Integer.toString(i), "tag", "target"));
+            reporter.testRunStarted("run", TESTS_PER_RUN);
+            for (int j = 0; j < TESTS_PER_RUN; j++) {
+                TestIdentifier test = new TestIdentifier("com.foo.Test", "test" + j);
+                reporter.testStarted(test);
+                reporter.testEnded(test, metrics);
+            }
+            reporter.testRunEnded(100, metrics);
+            reporter.invocationEnded(200);
+            reportingNs += System.nanoTime() - start;
+        }
+        ResultUploader uploader = ResultUploader.getUploader(mSpoolDir, mUploadUrl, 0, 0, 0,
+                false);
+        long flushStart = System.currentTimeMillis();
+        assertTrue(uploader.flush(TIMEOUT_MS));
+        long flushMs = System.currentTimeMillis() - flushStart;
+        CLog.logAndDisplay(LogLevel.INFO, "%d invocations reported in %d ms, uploaded %d " +
+                "records in %d requests, %d ms after the last invocation. Posting each " +
+                "invocation would have taken at least %d ms", NUM_INVOCATIONS,
+                reportingNs / 1000000, mRecordCount.get(), mRequestCount.get(), flushMs,
+                NUM_INVOCATIONS * SERVER_DELAY_MS);
+        assertEquals(NUM_INVOCATIONS * RECORDS_PER_INVOCATION, mRecordCount.get());
+        assertEquals(NUM_INVOCATIONS * RECORDS_PER_INVOCATION, uploader.getUploadedCount());
+        assertTrue(mRequestCount.get() < NUM_INVOCATIONS / 10);
+    }
+}
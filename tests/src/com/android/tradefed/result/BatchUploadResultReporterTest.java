@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.net.HttpHelper;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link BatchUploadResultReporter}.
+ */
+public class BatchUploadResultReporterTest extends TestCase {
+
+    private static final String URL = "http://foo/upload";
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    private File mSpoolDir;
+    private List<String> mPosts;
+    private ResultUploader mUploader;
+    private BatchUploadResultReporter mReporter;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSpoolDir = FileUtil.createTempDir("spool");
+        mPosts = Collections.synchronizedList(new ArrayList<String>());
+        mUploader = new ResultUploader(mSpoolDir, URL, 1024 * 1024, TIMEOUT_MS, 1024 * 1024,
+                new HttpHelper() {
+                    @Override
+                    public String doPostWithRetry(String url, String postData) {
+                        mPosts.add(postData);
+                        return "";
+                    }
+                });
+        mUploader.start();
+        mReporter = new BatchUploadResultReporter() {
+            @Override
+            ResultUploader getUploader() {
+                return mUploader;
+            }
+        };
+        new OptionSetter(mReporter).setOptionValue("upload-url", URL);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mSpoolDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that tests, runs and the invocation are uploaded as JSON records.
+     */
+    public void testUpload() {
+        BuildInfo buildInfo = new BuildInfo("123", "tag", "target");
+        TestIdentifier test1 = new TestIdentifier("com.foo.Test", "test1");
+        TestIdentifier test2 = new TestIdentifier("com.foo.Test", "test2");
+        Map<String, String> metrics = new LinkedHashMap<String, String>();
+        metrics.put("speed", "1.5");
+        metrics.put("name", "a \"quoted\"\nvalue");
+
+        mReporter.invocationStarted(buildInfo);
+        mReporter.testRunStarted("run", 2);
+        mReporter.testStarted(test1);
+        mReporter.testEnded(test1, metrics);
+        mReporter.testStarted(test2);
+        mReporter.testFailed(TestFailure.FAILURE, test2, "trace");
+        mReporter.testEnded(test2, Collections.<String, String>emptyMap());
+        mReporter.testRunEnded(100, metrics);
+        mReporter.invocationEnded(200);
+        assertTrue(mUploader.flush(TIMEOUT_MS));
+
+        assertEquals(1, mPosts.size());
+        String[] records = mPosts.get(0).split("\n");
+        assertEquals(4, records.length);
+        assertEquals("{\"type\":\"test\",\"build_id\":\"123\",\"target\":\"target\"," +
+                "\"tag\":\"tag\",\"run\":\"run\",\"class\":\"com.foo.Test\",\"test\":\"test1\"," +
+                "\"status\":\"PASSED\",\"metrics\":{\"speed\":\"1.5\"," +
+                "\"name\":\"a \\\"quoted\\\"\\u000avalue\"}}", records[0]);
+        assertEquals("{\"type\":\"test\",\"build_id\":\"123\",\"target\":\"target\"," +
+                "\"tag\":\"tag\",\"run\":\"run\",\"class\":\"com.foo.Test\",\"test\":\"test2\"," +
+                "\"status\":\"FAILURE\",\"trace\":\"trace\"}", records[1]);
+        assertTrue(records[2].startsWith("{\"type\":\"run\",\"build_id\":\"123\""));
+        assertTrue(records[2].contains("\"elapsed_ms\":100,\"metrics\":{"));
+        assertTrue(records[3].startsWith("{\"type\":\"invocation\","));
+    }
+
+    /**
+     * Test that nothing is uploaded without an upload URL.
+     */
+    public void testUpload_noUrl() {
+        mReporter = new BatchUploadResultReporter() {
+            @Override
+            ResultUploader getUploader() {
+                return mUploader;
+            }
+        };
+        mReporter.invocationStarted(new BuildInfo());
+        mReporter.testRunStarted("run", 0);
+        mReporter.testRunEnded(100, Collections.<String, String>emptyMap());
+        mReporter.invocationEnded(200);
+        assertTrue(mUploader.flush(TIMEOUT_MS));
+        assertTrue(mPosts.isEmpty());
+    }
+}
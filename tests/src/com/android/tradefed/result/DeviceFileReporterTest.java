@@ -15,14 +15,21 @@
  */
 package com.android.tradefed.result;
 
+import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Unit tests for {@link DeviceFileReporter}
@@ -35,9 +42,13 @@ public class DeviceFileReporterTest extends TestCase {
     // Used to control what ISS is returned
     InputStreamSource mDfrIss = null;
 
+    /** local files returned by pullFile */
+    private List<File> mPulledFiles = new ArrayList<File>();
+
     @Override
     public void setUp() throws Exception {
         mDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mDevice.getSerialNumber()).andStubReturn("serial");
         mListener = EasyMock.createMock(ITestInvocationListener.class);
         dfr = new DeviceFileReporter(mDevice, mListener) {
             @Override
@@ -47,15 +58,23 @@ public class DeviceFileReporterTest extends TestCase {
         };
     }
 
+    @Override
+    public void tearDown() throws Exception {
+        for (File file : mPulledFiles) {
+            FileUtil.deleteFile(file);
+        }
+        super.tearDown();
+    }
+
     public void testSimple() throws Exception {
-        final String result = "/data/tombstones/tombstone_00\r\n";
+        final String result = getMarker(0) + "/data/tombstones/tombstone_00\r\n";
         final String filename = "/data/tombstones/tombstone_00";
         dfr.addPatterns("/data/tombstones/*");
 
         EasyMock.expect(mDevice.executeShellCommand((String)EasyMock.anyObject()))
                 .andReturn(result);
         // This gets passed verbatim to createIssForFile above
-        EasyMock.expect(mDevice.pullFile(EasyMock.eq(filename))).andReturn(null);
+        expectPullFile(filename);
 
         final String tombstone = "What do you want on your tombstone?";
         mDfrIss = new ByteArrayInputStreamSource(tombstone.getBytes());
@@ -66,6 +85,7 @@ public class DeviceFileReporterTest extends TestCase {
         replayMocks();
         dfr.run();
         verifyMocks();
+        assertPulledFilesDeleted();
     }
 
     /**
@@ -78,7 +98,7 @@ public class DeviceFileReporterTest extends TestCase {
      */
     public void testNoExist() throws Exception {
         final String file = "/data/traces.txt";
-        final String result = file + ": No such file or directory\r\n";
+        final String result = getMarker(0) + file + ": No such file or directory\r\n";
         dfr.addPatterns(file);
 
         EasyMock.expect(mDevice.executeShellCommand((String)EasyMock.anyObject()))
@@ -91,7 +111,8 @@ public class DeviceFileReporterTest extends TestCase {
     }
 
     public void testTwoFiles() throws Exception {
-        final String result = "/data/tombstones/tombstone_00\r\n/data/tombstones/tombstone_01\r\n";
+        final String result = getMarker(0) +
+                "/data/tombstones/tombstone_00\r\n/data/tombstones/tombstone_01\r\n";
         final String filename1 = "/data/tombstones/tombstone_00";
         final String filename2 = "/data/tombstones/tombstone_01";
         dfr.addPatterns("/data/tombstones/*");
@@ -102,7 +123,7 @@ public class DeviceFileReporterTest extends TestCase {
 
         // Log the first file
         // This gets passed verbatim to createIssForFile above
-        EasyMock.expect(mDevice.pullFile(EasyMock.eq(filename1))).andReturn(null);
+        expectPullFile(filename1);
         final String tombstone = "What do you want on your tombstone?";
         mDfrIss = new ByteArrayInputStreamSource(tombstone.getBytes());
         // FIXME: use captures here to make sure we get the string back out
@@ -111,7 +132,7 @@ public class DeviceFileReporterTest extends TestCase {
 
         // Log the second file
         // This gets passed verbatim to createIssForFile above
-        EasyMock.expect(mDevice.pullFile(EasyMock.eq(filename2))).andReturn(null);
+        expectPullFile(filename2);
         // FIXME: use captures here to make sure we get the string back out
         mListener.testLog(EasyMock.eq(filename2), EasyMock.eq(LogDataType.UNKNOWN),
                 EasyMock.eq(mDfrIss));
@@ -119,6 +140,103 @@ public class DeviceFileReporterTest extends TestCase {
         replayMocks();
         dfr.run();
         verifyMocks();
+        assertPulledFilesDeleted();
+    }
+
+    /**
+     * Test that all patterns are searched with a single shell command, and that many files are
+     * reported in order, with the type of the pattern they matched, when pulled concurrently.
+     */
+    public void testManyFiles() throws Exception {
+        Map<String, LogDataType> patterns = new HashMap<String, LogDataType>();
+        patterns.put("/data/anr/traces.txt", LogDataType.TEXT);
+        patterns.put("/data/tombstones/*", LogDataType.UNKNOWN);
+        dfr.addPatterns(patterns);
+        dfr.setPullThreads(4);
+
+        StringBuilder result = new StringBuilder();
+        List<String> expectedFilenames = new ArrayList<String>();
+        int patternIndex = 0;
+        for (Map.Entry<String, LogDataType> pattern : patterns.entrySet()) {
+            result.append(getMarker(patternIndex++));
+            if (pattern.getValue() == LogDataType.TEXT) {
+                expectLoggedFile(result, expectedFilenames, "/data/anr/traces.txt",
+                        LogDataType.TEXT);
+            } else {
+                for (int i = 0; i < 20; i++) {
+                    expectLoggedFile(result, expectedFilenames,
+                            String.format("/data/tombstones/tombstone_%02d", i),
+                            LogDataType.UNKNOWN);
+                }
+            }
+        }
+        EasyMock.expect(mDevice.executeShellCommand((String)EasyMock.anyObject()))
+                .andReturn(result.toString());
+        mDfrIss = new ByteArrayInputStreamSource(new byte[0]);
+
+        replayMocks();
+        assertEquals(expectedFilenames, dfr.run());
+        verifyMocks();
+        assertPulledFilesDeleted();
+    }
+
+    /**
+     * Test that {@link DeviceNotAvailableException} from a pull is rethrown, and files already
+     * pulled are cleaned up.
+     */
+    public void testPullFile_deviceNotAvailable() throws Exception {
+        dfr.addPatterns("/data/tombstones/*");
+        EasyMock.expect(mDevice.executeShellCommand((String)EasyMock.anyObject())).andReturn(
+                getMarker(0) + "/data/tombstones/tombstone_00\r\n" +
+                "/data/tombstones/tombstone_01\r\n");
+        EasyMock.expect(mDevice.pullFile("/data/tombstones/tombstone_00")).andThrow(
+                new DeviceNotAvailableException());
+        expectPullFile("/data/tombstones/tombstone_01");
+
+        replayMocks();
+        try {
+            dfr.run();
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+        verifyMocks();
+        assertPulledFilesDeleted();
+    }
+
+    private String getMarker(int patternIndex) {
+        return DeviceFileReporter.PATTERN_MARKER + patternIndex + "\r\n";
+    }
+
+    private void expectLoggedFile(StringBuilder result, List<String> expectedFilenames,
+            String filename, LogDataType type) throws Exception {
+        result.append(filename).append("\r\n");
+        expectedFilenames.add(filename);
+        expectPullFile(filename);
+        mListener.testLog(EasyMock.eq(filename), EasyMock.eq(type),
+                (InputStreamSource)EasyMock.anyObject());
+    }
+
+    /**
+     * Expect a file to be pulled, returning a new temporary file.
+     */
+    private void expectPullFile(String filename) throws Exception {
+        EasyMock.expect(mDevice.pullFile(EasyMock.eq(filename))).andAnswer(new IAnswer<File>() {
+            @Override
+            public File answer() throws Throwable {
+                File file = FileUtil.createTempFile("pulled", ".txt");
+                synchronized (mPulledFiles) {
+                    mPulledFiles.add(file);
+                }
+                return file;
+            }
+        });
+    }
+
+    private void assertPulledFilesDeleted() {
+        for (File file : mPulledFiles) {
+            assertFalse(file.exists());
+        }
     }
 
     private void replayMocks() {
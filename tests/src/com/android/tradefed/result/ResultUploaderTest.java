@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.net.HttpHelper;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link ResultUploader}.
+ */
+public class ResultUploaderTest extends TestCase {
+
+    private static final String URL = "http://foo/upload";
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    private File mSpoolDir;
+    private StubHttpHelper mHttpHelper;
+
+    /**
+     * A {@link HttpHelper} which records posts instead of using the network.
+     */
+    private static class StubHttpHelper extends HttpHelper {
+        final List<String> mPosts = Collections.synchronizedList(new ArrayList<String>());
+        int mFailures = 0;
+
+        @Override
+        public String doPostWithRetry(String url, String postData) throws IOException {
+            assertEquals(URL, url);
+            synchronized (this) {
+                if (mFailures > 0) {
+                    mFailures--;
+                    throw new IOException();
+                }
+            }
+            mPosts.add(postData);
+            return "";
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSpoolDir = FileUtil.createTempDir("spool");
+        mHttpHelper = new StubHttpHelper();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mSpoolDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that records are uploaded in order, in batches of the batch size.
+     */
+    public void testFlush() throws IOException {
+        ResultUploader uploader = createUploader(20, TIMEOUT_MS, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            uploader.addRecord(String.format("record%d", i));
+        }
+        assertTrue(uploader.flush(TIMEOUT_MS));
+        assertEquals(10, uploader.getUploadedCount());
+        StringBuilder uploaded = new StringBuilder();
+        for (String post : mHttpHelper.mPosts) {
+            uploaded.append(post);
+        }
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            expected.append(String.format("record%d\n", i));
+        }
+        assertEquals(expected.toString(), uploaded.toString());
+        assertTrue(mHttpHelper.mPosts.size() > 1);
+        assertTrue(mHttpHelper.mPosts.size() < 10);
+        assertEquals(0, mSpoolDir.listFiles().length);
+    }
+
+    /**
+     * Test that a batch is uploaded once the batch interval has passed, without a flush.
+     */
+    public void testAddRecord_interval() throws Exception {
+        ResultUploader uploader = createUploader(1024 * 1024, 50, 1024 * 1024);
+        uploader.addRecord("record");
+        long endTime = System.currentTimeMillis() + TIMEOUT_MS;
+        while (uploader.getUploadedCount() == 0 && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, uploader.getUploadedCount());
+    }
+
+    /**
+     * Test that a failed upload is retried.
+     */
+    public void testFlush_retry() throws IOException {
+        mHttpHelper.mFailures = 2;
+        ResultUploader uploader = createUploader(1024 * 1024, TIMEOUT_MS, 1024 * 1024);
+        uploader.addRecord("record");
+        assertTrue(uploader.flush(TIMEOUT_MS));
+        assertEquals(1, mHttpHelper.mPosts.size());
+        assertEquals("record\n", mHttpHelper.mPosts.get(0));
+    }
+
+    /**
+     * Test that records spooled by a previous process are uploaded, ignoring a partially written
+     * record.
+     */
+    public void testStart_resume() throws IOException {
+        FileUtil.writeToFile("old1\nold2\npart",
+                new File(mSpoolDir, "batch-0000000000001-0000.open"));
+        FileUtil.writeToFile("older\n", new File(mSpoolDir, "batch-0000000000000-0000.batch"));
+        ResultUploader uploader = createUploader(1024 * 1024, TIMEOUT_MS, 1024 * 1024);
+        uploader.addRecord("new");
+        assertTrue(uploader.flush(TIMEOUT_MS));
+        assertEquals(3, mHttpHelper.mPosts.size());
+        assertEquals("older\n", mHttpHelper.mPosts.get(0));
+        assertEquals("old1\nold2\n", mHttpHelper.mPosts.get(1));
+        assertEquals("new\n", mHttpHelper.mPosts.get(2));
+    }
+
+    /**
+     * Test that a batch which can be neither read nor deleted is moved out of the spool, rather
+     * than retried.
+     */
+    public void testStart_unreadableBatch() throws IOException {
+        // a non-empty directory can't be read as a file or deleted
+        File badBatch = new File(mSpoolDir, "batch-0000000000000-0000-1.batch");
+        assertTrue(badBatch.mkdir());
+        FileUtil.writeToFile("record\n", new File(badBatch, "file"));
+        ResultUploader uploader = createUploader(1024 * 1024, TIMEOUT_MS, 1024 * 1024);
+        uploader.addRecord("new");
+        assertTrue(uploader.flush(TIMEOUT_MS));
+        assertEquals(1, mHttpHelper.mPosts.size());
+        assertEquals("new\n", mHttpHelper.mPosts.get(0));
+        assertFalse(badBatch.exists());
+        assertTrue(new File(mSpoolDir, badBatch.getName() + ".failed").isDirectory());
+    }
+
+    /**
+     * Test that the oldest batches are discarded when the spool exceeds its max size, and that
+     * records are still accepted while uploads are blocked.
+     */
+    public void testAddRecord_spoolFull() throws Exception {
+        final CountDownLatch uploadStarted = new CountDownLatch(1);
+        final CountDownLatch uploadAllowed = new CountDownLatch(1);
+        mHttpHelper = new StubHttpHelper() {
+            @Override
+            public String doPostWithRetry(String url, String postData) throws IOException {
+                uploadStarted.countDown();
+                try {
+                    uploadAllowed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException();
+                }
+                return super.doPostWithRetry(url, postData);
+            }
+        };
+        ResultUploader uploader = createUploader(1, TIMEOUT_MS, 30);
+        uploader.addRecord("first");
+        assertTrue(uploadStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // the upload is blocked, but records are still accepted and spooled
+        for (int i = 0; i < 10; i++) {
+            uploader.addRecord(String.format("record%d", i));
+        }
+        uploadAllowed.countDown();
+        assertTrue(uploader.flush(TIMEOUT_MS));
+        assertTrue(uploader.getDiscardedCount() > 0);
+        assertEquals(11, uploader.getUploadedCount() + uploader.getDiscardedCount());
+        // the most recent records are kept
+        assertEquals("record9\n", mHttpHelper.mPosts.get(mHttpHelper.mPosts.size() - 1));
+    }
+
+    private ResultUploader createUploader(long batchSize, long batchIntervalMs,
+            long maxSpoolSize) throws IOException {
+        ResultUploader uploader = new ResultUploader(mSpoolDir, URL, batchSize, batchIntervalMs,
+                maxSpoolSize, mHttpHelper);
+        uploader.setInitialRetryInterval(10);
+        uploader.start();
+        return uploader;
+    }
+}
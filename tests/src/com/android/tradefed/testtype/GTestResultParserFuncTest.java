@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.CollectingTestListener;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Throughput benchmark for {@link GTestResultParser} and {@link NativeBenchmarkTestParser} on
+ * large synthetic outputs.
+ * <p/>
+ * Compares each parser against a {@link MultiLineReceiver} that just splits the same output into
+ * {@link String} lines, which is a lower bound on the cost of any line based parser.
+ */
+public class GTestResultParserFuncTest extends TestCase {
+
+    private static final int NUM_TESTS = 2000;
+    private static final int OUTPUT_LINES_PER_TEST = 200;
+    /** typical size of a chunk of shell output received from adb */
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int ITERATIONS = 5;
+
+    /**
+     * A {@link MultiLineReceiver} that discards all lines.
+     */
+    private static class NullLineReceiver extends MultiLineReceiver {
+        @Override
+        public void processNewLines(String[] lines) {
+            // ignore
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * Measure the throughput of {@link GTestResultParser} on chatty gtest output.
+     */
+    public void testGTestThroughput() throws IOException {
+        byte[] output = createGTestOutput();
+        CollectingTestListener listener = null;
+        long streamingTime = Long.MAX_VALUE;
+        long lineTime = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            listener = new CollectingTestListener();
+            GTestResultParser parser = new GTestResultParser("benchmark", listener);
+            streamingTime = Math.min(streamingTime, feed(parser, output));
+            lineTime = Math.min(lineTime, feed(new NullLineReceiver(), output));
+        }
+        assertEquals(NUM_TESTS, listener.getCurrentRunResults().getNumTests());
+        assertEquals(NUM_TESTS / 10, listener.getCurrentRunResults().getNumFailedTests());
+        report("GTestResultParser", output.length, streamingTime, lineTime);
+    }
+
+    /**
+     * Measure the throughput of {@link NativeBenchmarkTestParser} on chatty benchmark output.
+     */
+    public void testNativeBenchmarkThroughput() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < NUM_TESTS * OUTPUT_LINES_PER_TEST; i++) {
+            writeLine(out, String.format("iteration %d of benchmark: 0.00%d elapsed", i, i % 97));
+        }
+        writeLine(out, "Time per iteration min: 5.9e-05 avg: 0.000272995 max: 0.000435");
+        byte[] output = out.toByteArray();
+        NativeBenchmarkTestParser parser = null;
+        long streamingTime = Long.MAX_VALUE;
+        long lineTime = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            parser = new NativeBenchmarkTestParser("benchmark");
+            streamingTime = Math.min(streamingTime, feed(parser, output));
+            lineTime = Math.min(lineTime, feed(new NullLineReceiver(), output));
+        }
+        assertEquals(0.000272995, parser.getAvgOperationTime());
+        report("NativeBenchmarkTestParser", output.length, streamingTime, lineTime);
+    }
+
+    /**
+     * Create gtest output where every test prints many lines, and every tenth test fails.
+     */
+    private byte[] createGTestOutput() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeLine(out, String.format("[==========] Running %d tests from 1 test case.",
+                NUM_TESTS));
+        writeLine(out, String.format("[----------] %d tests from BenchmarkTest", NUM_TESTS));
+        for (int i = 0; i < NUM_TESTS; i++) {
+            writeLine(out, String.format("[ RUN      ] BenchmarkTest.test%d", i));
+            for (int j = 0; j < OUTPUT_LINES_PER_TEST; j++) {
+                writeLine(out, String.format("I/benchmark( 1234): test %d step %d: value=%d ok",
+                        i, j, i * j));
+            }
+            if (i % 10 == 0) {
+                writeLine(out, "external/benchmark/benchmark_test.cc:42: Failure");
+                writeLine(out, String.format("[  FAILED  ] BenchmarkTest.test%d (1 ms)", i));
+            } else {
+                writeLine(out, String.format("[       OK ] BenchmarkTest.test%d (1 ms)", i));
+            }
+        }
+        writeLine(out, String.format("[==========] %d tests from 1 test case ran. (%d ms total)",
+                NUM_TESTS, NUM_TESTS));
+        return out.toByteArray();
+    }
+
+    private void writeLine(ByteArrayOutputStream out, String line) throws IOException {
+        out.write(line.getBytes());
+        out.write('\r');
+        out.write('\n');
+    }
+
+    /**
+     * Feed given output to the receiver in adb sized chunks.
+     *
+     * @return the elapsed time in ns
+     */
+    private long feed(IShellOutputReceiver receiver, byte[] output) {
+        long start = System.nanoTime();
+        for (int offset = 0; offset < output.length; offset += CHUNK_SIZE) {
+            receiver.addOutput(output, offset, Math.min(CHUNK_SIZE, output.length - offset));
+        }
+        receiver.flush();
+        return System.nanoTime() - start;
+    }
+
+    private void report(String name, int bytes, long streamingTime, long lineTime) {
+        CLog.logAndDisplay(LogLevel.INFO, "%s parsed %d MB in %d ms (%.1f MB/s). Splitting " +
+                "into String lines took %d ms (%.1f MB/s)", name, bytes >> 20, streamingTime / 1000000,
+                getThroughput(bytes, streamingTime), lineTime / 1000000,
+                getThroughput(bytes, lineTime));
+    }
+
+    private double getThroughput(int bytes, long timeNs) {
+        return (bytes / (1024.0 * 1024.0)) / (timeNs / 1000000000.0);
+    }
+}
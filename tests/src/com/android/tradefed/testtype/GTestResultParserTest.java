@@ -16,6 +16,7 @@
 package com.android.tradefed.testtype;
 
 import com.android.ddmlib.Log;
+import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
 
@@ -28,7 +29,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
@@ -244,4 +247,123 @@ public class GTestResultParserTest extends TestCase {
         EasyMock.verify(mockRunListener);
     }
 
+    /**
+     * Tests that parsing raw shell output reports exactly the same results as parsing the lines
+     * split by {@link MultiLineReceiver}, regardless of how the output is chunked.
+     */
+    public void testParse_streamed() throws Exception {
+        String[] files = new String[] {GTEST_OUTPUT_FILE_1, GTEST_OUTPUT_FILE_2,
+                GTEST_OUTPUT_FILE_3, GTEST_OUTPUT_FILE_4, GTEST_OUTPUT_FILE_5,
+                GTEST_OUTPUT_FILE_6};
+        int[] chunkSizes = new int[] {1, 2, 7, 64, 4096};
+        for (String file : files) {
+            StringBuilder output = new StringBuilder();
+            for (String line : readInFile(file)) {
+                output.append(line);
+                output.append("\r\n");
+            }
+            byte[] data = output.toString().getBytes("UTF-8");
+
+            RecordingRunListener expectedListener = new RecordingRunListener();
+            final GTestResultParser lineParser = new GTestResultParser(TEST_MODULE_NAME,
+                    expectedListener);
+            MultiLineReceiver lineReceiver = new MultiLineReceiver() {
+                @Override
+                public void processNewLines(String[] lines) {
+                    lineParser.processNewLines(lines);
+                }
+
+                @Override
+                public void done() {
+                    lineParser.done();
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            };
+            lineReceiver.addOutput(data, 0, data.length);
+            lineReceiver.flush();
+            assertFalse(expectedListener.mEvents.isEmpty());
+
+            for (int chunkSize : chunkSizes) {
+                RecordingRunListener listener = new RecordingRunListener();
+                GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME,
+                        listener);
+                for (int offset = 0; offset < data.length; offset += chunkSize) {
+                    resultParser.addOutput(data, offset, Math.min(chunkSize,
+                            data.length - offset));
+                }
+                resultParser.flush();
+                assertEquals(String.format("%s chunk size %d", file, chunkSize),
+                        expectedListener.mEvents, listener.mEvents);
+            }
+        }
+    }
+
+    /**
+     * Tests that the output of a failed test is reported as its stack trace.
+     */
+    public void testParse_streamedFailure() throws Exception {
+        byte[] data = ("[==========] Running 2 tests from 1 test case.\r\n" +
+                "[ RUN      ] Foo.pass\r\n" +
+                "passing output\r\n" +
+                "[       OK ] Foo.pass (1 ms)\r\n" +
+                "[ RUN      ] Foo.fail\r\n" +
+                "  foo.cc:12: Failure  \r\n" +
+                "Value of: 5\r\n" +
+                "[  FAILED  ] Foo.fail (2 ms)\r\n" +
+                "[==========] 2 tests from 1 test case ran. (3 ms total)\r\n").getBytes();
+        RecordingRunListener listener = new RecordingRunListener();
+        GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME, listener);
+        resultParser.addOutput(data, 0, data.length);
+        resultParser.flush();
+        assertTrue(listener.mEvents.contains(
+                "testFailed FAILURE Foo#fail foo.cc:12: Failure\r\nValue of: 5"));
+        assertEquals("testRunEnded 3", listener.mEvents.get(listener.mEvents.size() - 1));
+    }
+
+    /**
+     * A {@link ITestRunListener} that records all events as strings, so results of different
+     * parsers can be compared.
+     */
+    private static class RecordingRunListener implements ITestRunListener {
+        final List<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            mEvents.add(String.format("testRunStarted %s %d", runName, testCount));
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mEvents.add(String.format("testStarted %s", test));
+        }
+
+        @Override
+        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+            mEvents.add(String.format("testFailed %s %s %s", status, test, trace));
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            mEvents.add(String.format("testEnded %s", test));
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            mEvents.add(String.format("testRunFailed %s", errorMessage));
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+            mEvents.add(String.format("testRunStopped %d", elapsedTime));
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mEvents.add(String.format("testRunEnded %d", elapsedTime));
+        }
+    }
 }
@@ -27,6 +27,12 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
 
 /**
  * Unit tests for {@link GTestTest}.
@@ -192,4 +198,145 @@ public class GTestTest extends TestCase {
         String filter = String.format("%s-*.%s", posFilter, negFilter);
         doTestFilter(filter);
     }
+
+    /**
+     * Test the run method when running binaries in parallel.
+     */
+    public void testRun_parallel() throws DeviceNotAvailableException {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final String test1 = nativeTestPath + "/test1";
+        final String test2 = nativeTestPath + "/sub/test2";
+        mGTest.setNumParallelBinaries(2);
+
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                String.format("find %s -type f", nativeTestPath)))
+                .andReturn(String.format("%s\r\n%s\r\n", test1, test2));
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                String.format("chmod 755 %s %s", test1, test2))).andReturn("");
+        mMockITestDevice.executeShellCommand(EasyMock.contains(test1),
+                EasyMock.same(mMockReceiver), EasyMock.anyInt(), EasyMock.anyInt());
+        mMockITestDevice.executeShellCommand(EasyMock.contains(test2),
+                EasyMock.same(mMockReceiver), EasyMock.anyInt(), EasyMock.anyInt());
+
+        replayMocks();
+
+        mGTest.run(mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /**
+     * Test the run method when running binaries in parallel, on a device without find.
+     */
+    public void testRun_parallelNoFind() throws DeviceNotAvailableException {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        mGTest.setNumParallelBinaries(2);
+
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                String.format("find %s -type f", nativeTestPath)))
+                .andReturn("find: not found");
+        MockFileUtil.setMockDirContents(mMockITestDevice, nativeTestPath, "test1");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("");
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test1"),
+                EasyMock.same(mMockReceiver), EasyMock.anyInt(), EasyMock.anyInt());
+
+        replayMocks();
+
+        mGTest.run(mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /**
+     * Test that paths found when running binaries in parallel are escaped for the shell.
+     */
+    public void testRun_parallelEscapedPath() throws DeviceNotAvailableException {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        mGTest.setNumParallelBinaries(2);
+
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                String.format("find %s -type f", nativeTestPath)))
+                .andReturn(nativeTestPath + "/my test(1)\r\n");
+        String escapedPath = nativeTestPath + "/my\\ test\\(1\\)";
+        EasyMock.expect(mMockITestDevice.executeShellCommand("chmod 755 " + escapedPath))
+                .andReturn("");
+        mMockITestDevice.executeShellCommand(EasyMock.startsWith(escapedPath + " "),
+                EasyMock.same(mMockReceiver), EasyMock.anyInt(), EasyMock.anyInt());
+
+        replayMocks();
+
+        mGTest.run(mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /**
+     * Test that a parallel run rethrows {@link DeviceNotAvailableException}.
+     */
+    public void testRun_parallelDeviceNotAvailable() throws DeviceNotAvailableException {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        mGTest.setNumParallelBinaries(2);
+
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                String.format("find %s -type f", nativeTestPath)))
+                .andReturn(nativeTestPath + "/test1");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("");
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test1"),
+                EasyMock.same(mMockReceiver), EasyMock.anyInt(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andThrow(new DeviceNotAvailableException());
+        mMockReceiver.flush();
+
+        replayMocks();
+        try {
+            mGTest.run(mMockInvocationListener);
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+        verifyMocks();
+    }
+
+    /**
+     * Test {@link GTest#split()} and the run of a resulting shard.
+     */
+    public void testSplit() throws DeviceNotAvailableException {
+        assertNull(mGTest.split());
+        mGTest.setNumShards(3);
+        mGTest.setTestNamePositiveFilter("runMe");
+        Collection<IRemoteTest> shards = mGTest.split();
+        assertEquals(3, shards.size());
+        Iterator<IRemoteTest> iter = shards.iterator();
+        iter.next();
+        GTest shard = (GTest)iter.next();
+        assertEquals("runMe", shard.getTestNamePositiveFilter());
+        // shard's own result parser can't be mocked, so just verify command
+        shard.setDevice(mMockITestDevice);
+        MockFileUtil.setMockDirContents(mMockITestDevice, GTest.DEFAULT_NATIVETEST_PATH,
+                "test1");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("");
+        mMockITestDevice.executeShellCommand(
+                EasyMock.startsWith("GTEST_TOTAL_SHARDS=3 GTEST_SHARD_INDEX=1 "),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt(),
+                EasyMock.anyInt());
+        replayMocks();
+        shard.run(mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /**
+     * Test {@link GTest#batchCommands(String, Collection)}.
+     */
+    public void testBatchCommands() {
+        assertTrue(GTest.batchCommands("chmod 755", new ArrayList<String>()).isEmpty());
+        List<String> args = new ArrayList<String>();
+        StringBuilder longArg = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            longArg.append('a');
+        }
+        args.addAll(Arrays.asList("b", longArg.toString(), "c", longArg.toString()));
+        List<String> commands = GTest.batchCommands("chmod 755", args);
+        assertEquals(2, commands.size());
+        assertEquals("chmod 755 b " + longArg + " c", commands.get(0));
+        assertEquals("chmod 755 " + longArg, commands.get(1));
+    }
 }
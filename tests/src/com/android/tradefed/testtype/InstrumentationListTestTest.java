@@ -19,6 +19,7 @@ import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
 
 import junit.framework.TestCase;
@@ -29,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit tests for {@link InstrumentationListTest}.
@@ -139,6 +141,92 @@ public class InstrumentationListTestTest extends TestCase {
         EasyMock.verify(mMockListener, mMockTestDevice);
     }
 
+    /**
+     * Test that multiple tests are run with a single instrumentation command.
+     */
+    public void testRun_batch() throws DeviceNotAvailableException {
+        final List<TestIdentifier> testList = createTests(3);
+        final List<InstrumentationTest> runners = new ArrayList<InstrumentationTest>();
+        mInstrumentationListTest = new InstrumentationListTest("com.foo", "foo", testList) {
+            @Override
+            InstrumentationTest createInstrumentationTest() {
+                InstrumentationTest runner = new FakeInstrumentationTest(null, null);
+                runners.add(runner);
+                return runner;
+            }
+        };
+        CollectingTestListener listener = new CollectingTestListener();
+        mInstrumentationListTest.setDevice(mMockTestDevice);
+        mInstrumentationListTest.run(listener);
+        assertEquals(1, runners.size());
+        assertEquals(testList, runners.get(0).getTestMethods());
+        assertEquals(3, listener.getNumPassedTests());
+    }
+
+    /**
+     * Test that a test that prevents any test in its batch from running is isolated with a
+     * logarithmic number of runs, and that all other tests are run.
+     */
+    public void testRun_bisect() throws DeviceNotAvailableException {
+        final List<TestIdentifier> testList = createTests(16);
+        final TestIdentifier crashingTest = testList.get(5);
+        final AtomicInteger runCount = new AtomicInteger(0);
+        mInstrumentationListTest = new InstrumentationListTest("com.foo", "foo", testList) {
+            @Override
+            InstrumentationTest createInstrumentationTest() {
+                return new FakeInstrumentationTest(crashingTest, runCount);
+            }
+        };
+        CollectingTestListener listener = new CollectingTestListener();
+        mInstrumentationListTest.setDevice(mMockTestDevice);
+        mInstrumentationListTest.run(listener);
+        assertEquals(15, listener.getNumPassedTests());
+        assertEquals(1, listener.getNumErrorTests());
+        // 16 -> 8 -> 4 (passes) -> 2 -> 1 (passes) -> crashing test attempts -> remaining 10
+        assertEquals(6 + InstrumentationListTest.FAILED_RUN_TEST_ATTEMPTS, runCount.get());
+        // the caller's collection must not be modified
+        assertEquals(16, testList.size());
+    }
+
+    /**
+     * Test that a batch is not bisected when the run fails after reporting some of its tests.
+     */
+    public void testRun_batchPartial() throws DeviceNotAvailableException {
+        final List<TestIdentifier> testList = createTests(10);
+        final AtomicInteger runCount = new AtomicInteger(0);
+        mInstrumentationListTest = new InstrumentationListTest("com.foo", "foo", testList) {
+            @Override
+            InstrumentationTest createInstrumentationTest() {
+                runCount.incrementAndGet();
+                return new InstrumentationTest() {
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public void run(ITestInvocationListener listener) {
+                        // run the first three tests, then crash
+                        Collection<TestIdentifier> tests = getTestsToRun(this);
+                        listener.testRunStarted("com.foo", tests.size());
+                        int numRun = 0;
+                        for (TestIdentifier test : tests) {
+                            if (numRun++ == 3) {
+                                break;
+                            }
+                            listener.testStarted(test);
+                            listener.testEnded(test, Collections.EMPTY_MAP);
+                        }
+                        listener.testRunFailed("crash");
+                        listener.testRunEnded(0, Collections.EMPTY_MAP);
+                    }
+                };
+            }
+        };
+        CollectingTestListener listener = new CollectingTestListener();
+        mInstrumentationListTest.setDevice(mMockTestDevice);
+        mInstrumentationListTest.run(listener);
+        assertEquals(10, listener.getNumPassedTests());
+        // 10 -> 7 -> 4 -> 1
+        assertEquals(4, runCount.get());
+    }
+
     /**
      * Test that IllegalArgumentException is thrown when attempting run without setting device.
      */
@@ -154,4 +242,57 @@ public class InstrumentationListTestTest extends TestCase {
             // expected
         }
     }
+
+    /**
+     * A fake {@link InstrumentationTest} that passes every test, but fails the whole run without
+     * running any test if the run includes a crashing test.
+     */
+    private static class FakeInstrumentationTest extends InstrumentationTest {
+        private final TestIdentifier mCrashingTest;
+        private final AtomicInteger mRunCount;
+
+        FakeInstrumentationTest(TestIdentifier crashingTest, AtomicInteger runCount) {
+            mCrashingTest = crashingTest;
+            mRunCount = runCount;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void run(ITestInvocationListener listener) {
+            if (mRunCount != null) {
+                mRunCount.incrementAndGet();
+            }
+            Collection<TestIdentifier> tests = getTestsToRun(this);
+            listener.testRunStarted("com.foo", tests.size());
+            if (tests.contains(mCrashingTest)) {
+                listener.testRunFailed("crash");
+            } else {
+                for (TestIdentifier test : tests) {
+                    listener.testStarted(test);
+                    listener.testEnded(test, Collections.EMPTY_MAP);
+                }
+            }
+            listener.testRunEnded(0, Collections.EMPTY_MAP);
+        }
+    }
+
+    /**
+     * Get the tests a {@link InstrumentationTest} has been configured to run.
+     */
+    private static Collection<TestIdentifier> getTestsToRun(InstrumentationTest runner) {
+        if (runner.getTestMethods() != null) {
+            return runner.getTestMethods();
+        }
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>(1);
+        tests.add(new TestIdentifier(runner.getClassName(), runner.getMethodName()));
+        return tests;
+    }
+
+    private List<TestIdentifier> createTests(int numTests) {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>(numTests);
+        for (int i = 0; i < numTests; i++) {
+            tests.add(new TestIdentifier("FooTest", "test" + i));
+        }
+        return tests;
+    }
 }
@@ -22,12 +22,15 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
+import java.io.File;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
@@ -45,6 +48,7 @@ public class InstrumentationTestTest extends TestCase {
     private static final String RUN_ERROR_MSG = "error";
     private static final Map<String, String> EMPTY_STRING_MAP = Collections.emptyMap();
     private static final int COLLECT_TESTS_SHELL_TIMEOUT = 1;
+    private static final String APK_MD5 = "d41d8cd98f00b204e9800998ecf8427e";
 
     /** The {@link InstrumentationTest} under test, with all dependencies mocked out */
     private InstrumentationTest mInstrumentationTest;
@@ -164,6 +168,20 @@ public class InstrumentationTestTest extends TestCase {
         EasyMock.verify(mMockRemoteRunner, mMockTestDevice);
     }
 
+    /**
+     * Test that specific test methods are passed to the runner with a single command.
+     */
+    public void testRun_testMethods() throws Exception {
+        mMockRemoteRunner.setClassNames(EasyMock.aryEq(new String[] {"Test#test1",
+                "Test#test2"}));
+        setRunTestExpectations();
+        EasyMock.replay(mMockRemoteRunner, mMockTestDevice);
+        mInstrumentationTest.setClassName("FooTest");
+        mInstrumentationTest.setTestMethods(Arrays.asList(TEST1, TEST2));
+        mInstrumentationTest.run(mMockListener);
+        EasyMock.verify(mMockRemoteRunner, mMockTestDevice);
+    }
+
     /**
      * Test normal run scenario with a test package specified.
      */
@@ -308,6 +326,261 @@ public class InstrumentationTestTest extends TestCase {
     }
 
 
+    /**
+     * Test that a test list collected in rerun mode is cached, and used instead of collecting
+     * tests on the next run of the same installed package.
+     */
+    public void testRun_rerunCached() throws Exception {
+        File cacheDir = FileUtil.createTempDir("testlistcache");
+        try {
+            mInstrumentationTest.setTestListCacheDir(cacheDir);
+            setInstalledApkExpectations();
+            setRerunExpectations(new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                    listener.testStarted(TEST1);
+                    listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                    listener.testRunFailed(RUN_ERROR_MSG);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            mInstrumentationTest.run(mMockListener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+
+            // a new run of the same package should not collect tests again
+            EasyMock.reset(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            setUp();
+            mInstrumentationTest.setRerunMode(true);
+            mInstrumentationTest.setTestListCacheDir(cacheDir);
+            setInstalledApkExpectations();
+            setRunTestExpectations(new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                    listener.testStarted(TEST1);
+                    listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                    listener.testStarted(TEST2);
+                    listener.testEnded(TEST2, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            mMockListener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+            mMockListener.testStarted(TEST1);
+            mMockListener.testEnded(TEST1, EMPTY_STRING_MAP);
+            mMockListener.testStarted(TEST2);
+            mMockListener.testEnded(TEST2, EMPTY_STRING_MAP);
+            mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            mInstrumentationTest.run(mMockListener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    /**
+     * Test that a run with a checkpoint journal left by a previous, incomplete run only runs the
+     * tests that were not completed, and deletes the journal once the run completes.
+     */
+    public void testRun_resumeFromCheckpoint() throws Exception {
+        File journalFile = FileUtil.createTempFile("checkpoint", ".bin");
+        try {
+            runUntilDeviceLost(journalFile);
+
+            // a new run of the same tests only runs TEST2
+            EasyMock.reset(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            setUp();
+            setCheckpointRunExpectations(journalFile, APK_MD5);
+            mMockListener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+            mMockListener.testStarted(TEST2);
+            mMockListener.testEnded(TEST2, EMPTY_STRING_MAP);
+            mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
+            setRunTestExpectations(new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+                    listener.testStarted(TEST2);
+                    listener.testEnded(TEST2, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            mInstrumentationTest.run(mMockListener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            assertFalse(journalFile.exists());
+        } finally {
+            FileUtil.deleteFile(journalFile);
+        }
+    }
+
+    /**
+     * Test that a run of a rebuilt test apk does not resume from the checkpoint journal left by
+     * an incomplete run of the previous apk.
+     */
+    public void testRun_checkpointRebuiltApk() throws Exception {
+        File journalFile = FileUtil.createTempFile("checkpoint", ".bin");
+        try {
+            runUntilDeviceLost(journalFile);
+
+            // a run of the rebuilt apk runs all tests
+            EasyMock.reset(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            setUp();
+            setCheckpointRunExpectations(journalFile, "0123456789abcdef0123456789abcdef");
+            mMockListener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+            mMockListener.testStarted(TEST1);
+            mMockListener.testEnded(TEST1, EMPTY_STRING_MAP);
+            mMockListener.testStarted(TEST2);
+            mMockListener.testEnded(TEST2, EMPTY_STRING_MAP);
+            mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
+            setRunTestExpectations(new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    // all tests are run with the original runner, rather than rerun individually
+                    assertSame(mMockRemoteRunner, runner);
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                    listener.testStarted(TEST1);
+                    listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                    listener.testStarted(TEST2);
+                    listener.testEnded(TEST2, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            mInstrumentationTest.run(mMockListener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            assertFalse(journalFile.exists());
+        } finally {
+            FileUtil.deleteFile(journalFile);
+        }
+    }
+
+    /**
+     * Test that the contents of the test apk are only determined once when both the checkpoint
+     * journal and the test list cache are used.
+     */
+    public void testRun_checkpointAndCache() throws Exception {
+        File journalFile = FileUtil.createTempFile("checkpoint", ".bin");
+        File cacheDir = FileUtil.createTempDir("testlistcache");
+        try {
+            mInstrumentationTest.setTestListCacheDir(cacheDir);
+            setCheckpointRunExpectations(journalFile, APK_MD5);
+            mMockListener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+            mMockListener.testStarted(TEST1);
+            mMockListener.testEnded(TEST1, EMPTY_STRING_MAP);
+            mMockListener.testStarted(TEST2);
+            mMockListener.testEnded(TEST2, EMPTY_STRING_MAP);
+            mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
+            setRunTestExpectations(new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                    listener.testStarted(TEST1);
+                    listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                    listener.testStarted(TEST2);
+                    listener.testEnded(TEST2, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            mInstrumentationTest.run(mMockListener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            assertFalse(journalFile.exists());
+        } finally {
+            FileUtil.deleteFile(journalFile);
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    /**
+     * Perform a checkpointed run that completes TEST1, then loses the device.
+     */
+    private void runUntilDeviceLost(File journalFile) throws Exception {
+        setCheckpointRunExpectations(journalFile, APK_MD5);
+        setRunTestExpectations(new RunTestAnswer() {
+            @Override
+            public Boolean answer(IRemoteAndroidTestRunner runner,
+                    ITestRunListener listener) throws DeviceNotAvailableException {
+                listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                listener.testStarted(TEST1);
+                listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                throw new DeviceNotAvailableException();
+            }
+        });
+        mMockListener = EasyMock.createNiceMock(ITestInvocationListener.class);
+        EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+        try {
+            mInstrumentationTest.run(mMockListener);
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+        assertTrue(journalFile.exists());
+    }
+
+    /**
+     * Set EasyMock expectations for a checkpointed rerun mode run of TEST1 and TEST2, up to the
+     * test run itself.
+     *
+     * @param journalFile the checkpoint journal
+     * @param apkMd5 the md5 of the installed test apk
+     */
+    private void setCheckpointRunExpectations(File journalFile, String apkMd5)
+            throws DeviceNotAvailableException {
+        mInstrumentationTest.setRerunMode(true);
+        mInstrumentationTest.setCheckpointJournalFile(journalFile);
+        setInstalledApkExpectations(apkMd5);
+        mMockRemoteRunner.setLogOnly(true);
+        mMockRemoteRunner.addInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG,
+                Long.toString(mInstrumentationTest.getTestDelay()));
+        mMockRemoteRunner.setMaxtimeToOutputResponse(COLLECT_TESTS_SHELL_TIMEOUT);
+        setCollectTestsExpectations(new CollectTestAnswer() {
+            @Override
+            public Boolean answer(IRemoteAndroidTestRunner runner,
+                    ITestRunListener listener) {
+                listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                listener.testStarted(TEST1);
+                listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                listener.testStarted(TEST2);
+                listener.testEnded(TEST2, EMPTY_STRING_MAP);
+                listener.testRunEnded(1, EMPTY_STRING_MAP);
+                return true;
+            }
+        });
+        mMockRemoteRunner.setLogOnly(false);
+        mMockRemoteRunner.removeInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG);
+        mMockRemoteRunner.setMaxtimeToOutputResponse(TEST_TIMEOUT);
+    }
+
+    /**
+     * Set EasyMock expectations for determining the contents of the installed test package.
+     */
+    private void setInstalledApkExpectations() throws DeviceNotAvailableException {
+        setInstalledApkExpectations(APK_MD5);
+    }
+
+    /**
+     * Set EasyMock expectations for determining the contents of the installed test package.
+     *
+     * @param apkMd5 the md5 of the installed test package
+     */
+    private void setInstalledApkExpectations(String apkMd5) throws DeviceNotAvailableException {
+        EasyMock.expect(mMockTestDevice.executeShellCommand("pm path " + TEST_PACKAGE_VALUE))
+                .andReturn("package:/data/app/com.foo-1.apk\r\n");
+        EasyMock.expect(mMockTestDevice.executeShellCommand("md5sum /data/app/com.foo-1.apk"))
+                .andReturn(apkMd5 + "  /data/app/com.foo-1.apk\r\n");
+    }
 
     /**
      * Set EasyMock expectations for a run that fails.
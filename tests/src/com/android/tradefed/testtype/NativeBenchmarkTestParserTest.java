@@ -69,6 +69,23 @@ public class NativeBenchmarkTestParserTest extends TestCase {
         System.out.printf("%s\n", new Double(0.00000059).toString());
     }
 
+    /**
+     * Test parsing raw shell output, where the result line is split across chunks and
+     * surrounded by other output.
+     */
+    public void testParse_streamed() {
+        byte[] data = ("starting benchmark\r\n" +
+                "  Time per iteration min: 5 avg: 55 max: 35  \r\n" +
+                "done").getBytes();
+        for (int offset = 0; offset < data.length; offset += 10) {
+            mParser.addOutput(data, offset, Math.min(10, data.length - offset));
+        }
+        mParser.flush();
+        verifyAvgTime(55);
+        assertEquals(5.0, mParser.getMinOperationTime());
+        assertEquals(35.0, mParser.getMaxOperationTime());
+    }
+
     /**
      * Verify the iteration count collected by the parser
      */
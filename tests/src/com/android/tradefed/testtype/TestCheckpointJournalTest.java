@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TestCheckpointJournal}.
+ */
+public class TestCheckpointJournalTest extends TestCase {
+
+    private static final String RUN_KEY = "key";
+    private static final TestIdentifier TEST1 = new TestIdentifier("com.foo.Test", "test1");
+    private static final TestIdentifier TEST2 = new TestIdentifier("com.foo.Test", "test2");
+    private static final TestIdentifier TEST3 = new TestIdentifier("com.foo.Other", "test1");
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    private File mJournalFile;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJournalFile = FileUtil.createTempFile("journal", ".bin");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.deleteFile(mJournalFile);
+        super.tearDown();
+    }
+
+    /**
+     * Test that completed tests are read back, in order, when the journal is reopened.
+     */
+    public void testOpen_resume() throws IOException {
+        TestCheckpointJournal journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        assertTrue(journal.open().isEmpty());
+        ITestInvocationListener listener = journal.getListener();
+        listener.testStarted(TEST2);
+        listener.testEnded(TEST2, EMPTY_MAP);
+        listener.testStarted(TEST3);
+        listener.testEnded(TEST3, EMPTY_MAP);
+        // a test that did not complete
+        listener.testStarted(TEST1);
+        journal.close();
+
+        journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        List<TestIdentifier> completedTests = new ArrayList<TestIdentifier>(journal.open());
+        assertEquals(2, completedTests.size());
+        assertEquals(TEST2, completedTests.get(0));
+        assertEquals(TEST3, completedTests.get(1));
+        // append to the existing journal
+        journal.testCompleted(TEST1);
+        journal.close();
+
+        journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        assertEquals(3, journal.open().size());
+        journal.close();
+    }
+
+    /**
+     * Test that a journal for a different test run is discarded.
+     */
+    public void testOpen_differentRun() throws IOException {
+        TestCheckpointJournal journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        journal.open();
+        journal.testCompleted(TEST1);
+        journal.close();
+
+        journal = new TestCheckpointJournal(mJournalFile, "otherKey");
+        assertTrue(journal.open().isEmpty());
+        journal.close();
+    }
+
+    /**
+     * Test that a partially written record at the end of the journal is discarded, and does not
+     * prevent further records from being read.
+     */
+    public void testOpen_truncated() throws IOException {
+        TestCheckpointJournal journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        journal.open();
+        journal.testCompleted(TEST1);
+        journal.testCompleted(TEST2);
+        journal.close();
+        RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+        try {
+            file.setLength(file.length() - 2);
+        } finally {
+            file.close();
+        }
+
+        journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        Collection<TestIdentifier> completedTests = journal.open();
+        assertEquals(1, completedTests.size());
+        assertTrue(completedTests.contains(TEST1));
+        journal.testCompleted(TEST3);
+        journal.close();
+
+        journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        completedTests = journal.open();
+        journal.close();
+        assertEquals(2, completedTests.size());
+        assertTrue(completedTests.contains(TEST3));
+    }
+
+    /**
+     * Test that {@link TestCheckpointJournal#delete()} removes the journal.
+     */
+    public void testDelete() throws IOException {
+        TestCheckpointJournal journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        journal.open();
+        journal.testCompleted(TEST1);
+        journal.delete();
+        assertFalse(mJournalFile.exists());
+    }
+
+    /**
+     * Test that a journal can't be opened while another run has it open.
+     */
+    public void testOpen_locked() throws IOException {
+        TestCheckpointJournal journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        journal.open();
+        TestCheckpointJournal otherJournal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        try {
+            otherJournal.open();
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            journal.close();
+        }
+        assertTrue(otherJournal.open().isEmpty());
+        otherJournal.close();
+    }
+
+    /**
+     * Test that a failed write is reported by {@link TestCheckpointJournal#flush()}, and that
+     * nothing after it is recorded.
+     */
+    public void testFlush_writeFailure() throws IOException {
+        TestCheckpointJournal journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        journal.open();
+        journal.testCompleted(TEST1);
+        assertTrue(journal.flush());
+        // a name too long to encode fails the write
+        char[] longName = new char[70 * 1024];
+        Arrays.fill(longName, 'a');
+        journal.testCompleted(new TestIdentifier("com.foo.Test", new String(longName)));
+        assertFalse(journal.flush());
+        journal.testCompleted(TEST2);
+        assertFalse(journal.flush());
+        journal.close();
+
+        journal = new TestCheckpointJournal(mJournalFile, RUN_KEY);
+        Collection<TestIdentifier> completedTests = journal.open();
+        journal.close();
+        assertEquals(1, completedTests.size());
+        assertTrue(completedTests.contains(TEST1));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Unit tests for {@link TestListCache}.
+ */
+public class TestListCacheTest extends TestCase {
+
+    private static final TestIdentifier TEST1 = new TestIdentifier("com.foo.Test", "test1");
+    private static final TestIdentifier TEST2 = new TestIdentifier("com.foo.Test", "test2");
+
+    private File mCacheDir;
+    private TestListCache mCache;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = FileUtil.createTempDir("testlistcache");
+        mCache = new TestListCache(mCacheDir);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that stored tests can be read back, in order, by a different cache instance.
+     */
+    public void testPutTests_getTests() {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(TEST2);
+        tests.add(TEST1);
+        String key = TestListCache.createKey("hash", "com.foo", null);
+        mCache.putTests(key, tests);
+
+        Collection<TestIdentifier> cachedTests = new TestListCache(mCacheDir).getTests(key);
+        assertEquals(tests, new ArrayList<TestIdentifier>(cachedTests));
+        // only the cache entry should remain
+        assertEquals(1, mCacheDir.listFiles().length);
+    }
+
+    /**
+     * Test that <code>null</code> is returned for a key that is not cached.
+     */
+    public void testGetTests_missing() {
+        assertNull(mCache.getTests(TestListCache.createKey("hash")));
+    }
+
+    /**
+     * Test that keys differ when package contents or parameters differ.
+     */
+    public void testCreateKey() {
+        String key = TestListCache.createKey("hash", "com.foo", null);
+        assertEquals(key, TestListCache.createKey("hash", "com.foo", null));
+        assertFalse(key.equals(TestListCache.createKey("otherhash", "com.foo", null)));
+        assertFalse(key.equals(TestListCache.createKey("hash", "com.foo", "com.foo.Test")));
+        assertFalse(TestListCache.createKey("hash", "ab", "c").equals(
+                TestListCache.createKey("hash", "a", "bc")));
+    }
+
+    /**
+     * Test that a corrupt cache entry is ignored.
+     */
+    public void testGetTests_corrupt() throws Exception {
+        String key = TestListCache.createKey("hash");
+        FileUtil.writeToFile("com.foo.Test#test1\ngarbage\n", new File(mCacheDir, key + ".txt"));
+        assertNull(mCache.getTests(key));
+    }
+}
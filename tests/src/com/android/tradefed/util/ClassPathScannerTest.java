@@ -17,16 +17,67 @@ package com.android.tradefed.util;
 
 import com.android.tradefed.util.ClassPathScanner.ClassNameFilter;
 import com.android.tradefed.util.ClassPathScanner.IClassPathFilter;
+import com.android.tradefed.util.ClassPathScanner.IEntryAttributeReader;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
 import java.util.Set;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
 
 /**
  * Unit tests for {@link ClassPathScannerTest}
  */
 public class ClassPathScannerTest extends TestCase {
 
+    private File mTmpDir;
+
+    /**
+     * A {@link IEntryAttributeReader} that reads the entry contents, followed by characters
+     * that must be escaped in an index, and counts the entries read.
+     */
+    private static class ContentsReader implements IEntryAttributeReader {
+        int mReadCount = 0;
+
+        @Override
+        public String getName() {
+            return "contents";
+        }
+
+        @Override
+        public String readAttribute(String entryName, InputStream entryStream) {
+            mReadCount++;
+            try {
+                return StreamUtil.getStringFromStream(entryStream) + "\t\\n\n";
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("classpathscanner");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
     /**
      * Simple test to ensure this class can be found via
      * {@link ClassPathScanner#getClassPathEntries(IClassPathFilter)}
@@ -36,4 +87,121 @@ public class ClassPathScannerTest extends TestCase {
         Set<String> classEntries = cpScanner.getClassPathEntries(new ClassNameFilter());
         assertTrue(classEntries.contains(this.getClass().getName()));
     }
+
+    /**
+     * Test that {@link ClassPathScanner#getEntriesFromJar(File, IClassPathFilter)} stores an
+     * index of the jar, and uses it while the jar is unchanged.
+     */
+    public void testGetEntriesFromJar_index() throws IOException {
+        File jarFile = new File(mTmpDir, "test.jar");
+        createJar(jarFile, "com/foo/Foo.class", "com/foo/Bar.class");
+        Set<String> classNames = new ClassPathScanner().getEntriesFromJar(jarFile,
+                new ClassNameFilter());
+        assertEquals(2, classNames.size());
+        assertTrue(classNames.contains("com.foo.Foo"));
+        File indexFile = ClassPathScanner.getIndexFile(jarFile);
+        assertTrue(indexFile.exists());
+
+        // clear the in-memory index by scanning a copy of the jar at a different path, and
+        // check the index file is used for it
+        File copyDir = FileUtil.createTempDir("copy", mTmpDir);
+        File copyJarFile = new File(copyDir, jarFile.getName());
+        FileUtil.copyFile(jarFile, copyJarFile);
+        copyJarFile.setLastModified(jarFile.lastModified());
+        FileUtil.writeToFile(String.format("%d %d\ncom/foo/Indexed.class\n",
+                copyJarFile.lastModified(), copyJarFile.length()),
+                ClassPathScanner.getIndexFile(copyJarFile));
+        classNames = new ClassPathScanner().getEntriesFromJar(copyJarFile, new ClassNameFilter());
+        assertEquals(1, classNames.size());
+        assertTrue(classNames.contains("com.foo.Indexed"));
+    }
+
+    /**
+     * Test that {@link ClassPathScanner#getEntriesFromJar(File, IClassPathFilter)} rereads a jar
+     * that has changed since it was indexed.
+     */
+    public void testGetEntriesFromJar_changed() throws IOException {
+        File jarFile = new File(mTmpDir, "test.jar");
+        createJar(jarFile, "com/foo/Foo.class");
+        ClassPathScanner scanner = new ClassPathScanner();
+        assertEquals(1, scanner.getEntriesFromJar(jarFile, new ClassNameFilter()).size());
+        createJar(jarFile, "com/foo/Foo.class", "com/foo/Bar.class", "com/foo/Baz.class");
+        Set<String> classNames = scanner.getEntriesFromJar(jarFile, new ClassNameFilter());
+        assertEquals(3, classNames.size());
+        assertTrue(classNames.contains("com.foo.Baz"));
+    }
+
+    /**
+     * Test that
+     * {@link ClassPathScanner#getEntryAttributesFromJar(File, IClassPathFilter,
+     * IEntryAttributeReader)} stores the attributes in the jar index, and uses them while the
+     * jar is unchanged.
+     */
+    public void testGetEntryAttributesFromJar_index() throws IOException {
+        File jarFile = new File(mTmpDir, "test.jar");
+        createJar(jarFile, "com/foo/Foo.class", "com/foo/Bar.class", "foo.txt");
+        ContentsReader reader = new ContentsReader();
+        Map<String, String> attributes = new ClassPathScanner().getEntryAttributesFromJar(
+                jarFile, new ClassNameFilter(), reader);
+        assertEquals(2, attributes.size());
+        assertEquals("com/foo/Foo.class\t\\n\n", attributes.get("com.foo.Foo"));
+        assertEquals(2, reader.mReadCount);
+
+        // clear the in-memory index by scanning a copy of the jar and index at a different path
+        File copyDir = FileUtil.createTempDir("copy", mTmpDir);
+        File copyJarFile = new File(copyDir, jarFile.getName());
+        FileUtil.copyFile(jarFile, copyJarFile);
+        copyJarFile.setLastModified(jarFile.lastModified());
+        FileUtil.copyFile(ClassPathScanner.getIndexFile(jarFile),
+                ClassPathScanner.getIndexFile(copyJarFile));
+        ClassPathScanner scanner = new ClassPathScanner();
+        assertEquals(attributes, scanner.getEntryAttributesFromJar(copyJarFile,
+                new ClassNameFilter(), reader));
+        assertEquals(3, scanner.getEntriesFromJar(copyJarFile, new IClassPathFilter() {
+            @Override
+            public boolean accept(String pathName) {
+                return true;
+            }
+
+            @Override
+            public String transform(String pathName) {
+                return pathName;
+            }
+        }).size());
+        assertEquals(2, reader.mReadCount);
+    }
+
+    /**
+     * Test that
+     * {@link ClassPathScanner#getEntryAttributesFromJar(File, IClassPathFilter,
+     * IEntryAttributeReader)} rereads the attributes of a jar that has changed since it was
+     * indexed.
+     */
+    public void testGetEntryAttributesFromJar_changed() throws IOException {
+        File jarFile = new File(mTmpDir, "test.jar");
+        createJar(jarFile, "com/foo/Foo.class");
+        ContentsReader reader = new ContentsReader();
+        ClassPathScanner scanner = new ClassPathScanner();
+        assertEquals(1, scanner.getEntryAttributesFromJar(jarFile, new ClassNameFilter(),
+                reader).size());
+        createJar(jarFile, "com/foo/Foo.class", "com/foo/Bar.class");
+        Map<String, String> attributes = scanner.getEntryAttributesFromJar(jarFile,
+                new ClassNameFilter(), reader);
+        assertEquals(2, attributes.size());
+        assertTrue(attributes.containsKey("com.foo.Bar"));
+        assertEquals(3, reader.mReadCount);
+    }
+
+    private void createJar(File jarFile, String... entryNames) throws IOException {
+        JarOutputStream jarStream = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            for (String entryName : entryNames) {
+                jarStream.putNextEntry(new ZipEntry(entryName));
+                jarStream.write(entryName.getBytes());
+                jarStream.closeEntry();
+            }
+        } finally {
+            jarStream.close();
+        }
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link TimeSeries}.
+ */
+public class TimeSeriesTest extends TestCase {
+
+    /**
+     * Test that the statistics are {@code null} for an empty series.
+     */
+    public void testEmpty() {
+        TimeSeries series = new TimeSeries(3);
+        assertEquals(0, series.size());
+        assertEquals(0, series.getCount());
+        assertNull(series.getMean());
+        assertNull(series.getMin());
+        assertNull(series.getMax());
+        assertNull(series.getPercentile(50));
+    }
+
+    /**
+     * Test that the oldest samples are replaced once the series is full, while the streaming
+     * statistics still cover every sample added.
+     */
+    public void testAdd_wrap() {
+        TimeSeries series = new TimeSeries(3);
+        for (int i = 1; i <= 5; i++) {
+            series.add(i * 1000, i);
+        }
+        assertEquals(3, series.size());
+        assertEquals(5, series.getCount());
+        assertEquals(3000, series.getTimestamp(0));
+        assertEquals(3.0, series.getValue(0));
+        assertEquals(5.0, series.getValue(2));
+        assertEquals(3.0, series.getMean());
+        assertEquals(1.0, series.getMin());
+        assertEquals(5.0, series.getMax());
+        // percentiles only cover the retained samples
+        assertEquals(3.0, series.getPercentile(0));
+        assertEquals(4.0, series.getPercentile(50));
+        assertEquals(5.0, series.getPercentile(100));
+        try {
+            series.getValue(3);
+            fail("IndexOutOfBoundsException not thrown");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test the nearest-rank percentiles.
+     */
+    public void testGetPercentile() {
+        TimeSeries series = new TimeSeries(10);
+        for (int i = 10; i >= 1; i--) {
+            series.add(i, i);
+        }
+        assertEquals(1.0, series.getPercentile(10));
+        assertEquals(5.0, series.getPercentile(50));
+        assertEquals(9.0, series.getPercentile(90));
+        assertEquals(10.0, series.getPercentile(95));
+    }
+
+    /**
+     * Test that a slice has statistics for only the samples in the range.
+     */
+    public void testSlice() {
+        TimeSeries series = new TimeSeries(4);
+        for (int i = 1; i <= 6; i++) {
+            series.add(i, i * 10);
+        }
+        TimeSeries slice = series.slice(1, 3);
+        assertEquals(2, slice.size());
+        assertEquals(4, slice.getTimestamp(0));
+        assertEquals(45.0, slice.getMean());
+        assertEquals(40.0, slice.getMin());
+        assertEquals(50.0, slice.getMax());
+        try {
+            series.slice(2, 5);
+            fail("IndexOutOfBoundsException not thrown");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+}
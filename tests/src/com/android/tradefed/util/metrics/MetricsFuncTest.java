@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.metrics;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import junit.framework.TestCase;
+
+/**
+ * Benchmark for the cost of recording metrics on the scheduler and device allocation paths.
+ */
+public class MetricsFuncTest extends TestCase {
+
+    private static final int NUM_THREADS = 8;
+    private static final int ITERATIONS = 2000000;
+
+    /**
+     * Measure the cost of incrementing a {@link Counter}, from one and from many threads.
+     */
+    public void testCounterIncrement() throws Exception {
+        final Counter counter = new Counter();
+        Runnable recorder = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    counter.increment();
+                }
+            }
+        };
+        measure("Counter.increment", recorder);
+        assertEquals(ITERATIONS * (2L + NUM_THREADS), counter.getValue());
+    }
+
+    /**
+     * Measure the cost of recording to a {@link Histogram}, from one and from many threads.
+     */
+    public void testHistogramRecord() throws Exception {
+        final Histogram histogram = new Histogram();
+        Runnable recorder = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    histogram.record(i & 0xffff);
+                }
+            }
+        };
+        measure("Histogram.record", recorder);
+        assertEquals(ITERATIONS * (2L + NUM_THREADS), histogram.getCount());
+    }
+
+    /**
+     * Run the recorder once to warm up, then once on this thread, then on {@link #NUM_THREADS}
+     * threads at once, and display the cost per operation.
+     */
+    private void measure(String name, Runnable recorder) throws InterruptedException {
+        recorder.run();
+        long start = System.nanoTime();
+        recorder.run();
+        long singleNs = System.nanoTime() - start;
+
+        Thread[] threads = new Thread[NUM_THREADS];
+        for (int i = 0; i < NUM_THREADS; i++) {
+            threads[i] = new Thread(recorder);
+        }
+        start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long multiNs = System.nanoTime() - start;
+        CLog.logAndDisplay(LogLevel.INFO, "%s: %.1f ns/op on 1 thread, %.1f ns/op on %d threads",
+                name, (double)singleNs / ITERATIONS, (double)multiNs / ITERATIONS / NUM_THREADS,
+                NUM_THREADS);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.metrics;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link MetricsRegistry}.
+ */
+public class MetricsRegistryTest extends TestCase {
+
+    private MetricsRegistry mRegistry;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRegistry = new MetricsRegistry();
+    }
+
+    /**
+     * Test that the same {@link Counter} is returned for the same name and labels.
+     */
+    public void testGetCounter() {
+        Counter counter = mRegistry.getCounter("requests_total", "help", "result", "hit");
+        assertSame(counter, mRegistry.getCounter("requests_total", "help", "result", "hit"));
+        assertNotSame(counter, mRegistry.getCounter("requests_total", "help", "result", "miss"));
+    }
+
+    /**
+     * Test that a name can't be reused for a different type of metric.
+     */
+    public void testGetHistogram_typeMismatch() {
+        mRegistry.getCounter("requests_total", "help");
+        try {
+            mRegistry.getHistogram("requests_total", "help");
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test the output format for counters and gauges, including label escaping.
+     */
+    public void testWriteMetrics() {
+        mRegistry.getCounter("requests_total", "Number of requests", "path", "a\"b").increment(3);
+        mRegistry.getCounter("requests_total", "Number of requests").increment();
+        mRegistry.registerGauge("queue_depth", "Queue depth", new IGauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        mRegistry.registerGauge("broken", "Broken gauge", new IGauge() {
+            @Override
+            public long getValue() {
+                throw new IllegalStateException();
+            }
+        });
+        assertEquals(
+                "# HELP broken Broken gauge\n" +
+                "# TYPE broken gauge\n" +
+                "# HELP queue_depth Queue depth\n" +
+                "# TYPE queue_depth gauge\n" +
+                "queue_depth 7\n" +
+                "# HELP requests_total Number of requests\n" +
+                "# TYPE requests_total counter\n" +
+                "requests_total 1\n" +
+                "requests_total{path=\"a\\\"b\"} 3\n",
+                getMetrics());
+    }
+
+    /**
+     * Test the output format for histograms.
+     */
+    public void testWriteMetrics_histogram() {
+        Histogram histogram = new Histogram(10, 100);
+        histogram.record(5);
+        histogram.record(10);
+        histogram.record(50);
+        histogram.record(1000);
+        assertEquals(4, histogram.getCount());
+        assertEquals(1065, histogram.getSumMs());
+        long[] bucketCounts = histogram.getBucketCounts();
+        assertEquals(2, bucketCounts[0]);
+        assertEquals(1, bucketCounts[1]);
+        assertEquals(1, bucketCounts[2]);
+
+        mRegistry.getHistogram("phase_seconds", "help", "phase", "setup").record(2000);
+        String metrics = getMetrics();
+        assertTrue(metrics.contains("# TYPE phase_seconds histogram\n"));
+        assertTrue(metrics.contains("phase_seconds_bucket{phase=\"setup\",le=\"1.0\"} 0\n"));
+        assertTrue(metrics.contains("phase_seconds_bucket{phase=\"setup\",le=\"5.0\"} 1\n"));
+        assertTrue(metrics.contains("phase_seconds_bucket{phase=\"setup\",le=\"+Inf\"} 1\n"));
+        assertTrue(metrics.contains("phase_seconds_sum{phase=\"setup\"} 2.0\n"));
+        assertTrue(metrics.contains("phase_seconds_count{phase=\"setup\"} 1\n"));
+    }
+
+    /**
+     * Test that {@link MetricsRegistry#writeSnapshot(File)} replaces the snapshot file.
+     */
+    public void testWriteSnapshot() throws Exception {
+        File snapshotDir = FileUtil.createTempDir("metrics");
+        try {
+            File snapshotFile = new File(snapshotDir, "metrics.prom");
+            Counter counter = mRegistry.getCounter("requests_total", "help");
+            counter.increment();
+            mRegistry.writeSnapshot(snapshotFile);
+            counter.increment();
+            mRegistry.writeSnapshot(snapshotFile);
+            FileInputStream snapshotStream = new FileInputStream(snapshotFile);
+            try {
+                assertEquals(getMetrics(), StreamUtil.getStringFromStream(snapshotStream));
+            } finally {
+                StreamUtil.closeStream(snapshotStream);
+            }
+            assertEquals(1, snapshotDir.listFiles().length);
+        } finally {
+            FileUtil.recursiveDelete(snapshotDir);
+        }
+    }
+
+    private String getMetrics() {
+        StringWriter output = new StringWriter();
+        mRegistry.writeMetrics(new PrintWriter(output));
+        return output.toString();
+    }
+}
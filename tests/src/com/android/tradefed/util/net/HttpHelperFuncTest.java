@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.net.IHttpHelper.DataSizeException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Functional tests for {@link HttpHelper}, against an in-process HTTP server.
+ */
+public class HttpHelperFuncTest extends TestCase {
+
+    private static final String TEST_DATA = "this is test data";
+    private static final int NUM_REQUESTS = 200;
+
+    private HttpServer mServer;
+    private String mBaseUrl;
+    private HttpHelper mHelper;
+    /** the client ports of all connections to the server */
+    private final Set<Integer> mClientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private volatile boolean mGzipAccepted = false;
+    private volatile boolean mGzipReceived = false;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                0);
+        mServer.createContext("/data", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, TEST_DATA.getBytes());
+            }
+        });
+        mServer.createContext("/large", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, createLargeData());
+            }
+        });
+        mServer.createContext("/error", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 500, "error details".getBytes());
+            }
+        });
+        mServer.createContext("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream requestBody = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    mGzipReceived = true;
+                    requestBody = new GZIPInputStream(requestBody);
+                }
+                ByteArrayOutputStream request = new ByteArrayOutputStream();
+                StreamUtil.copyStreams(requestBody, request);
+                respond(exchange, 200, request.toByteArray());
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+        mBaseUrl = String.format("http://127.0.0.1:%d", mServer.getAddress().getPort());
+        mHelper = new HttpHelper();
+        mHelper.setOpTimeout(10 * 1000);
+        mHelper.setInitialPollInterval(10);
+        mHelper.setMaxPollInterval(50);
+        mHelper.setMaxTime(100);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop(0);
+        super.tearDown();
+    }
+
+    /**
+     * Test that sequential requests reuse a single connection, and measure their throughput.
+     */
+    public void testDoGet_keepAlive() throws IOException, DataSizeException {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            assertEquals(TEST_DATA, mHelper.doGet(mBaseUrl + "/data"));
+        }
+        long elapsedMs = System.currentTimeMillis() - start;
+        CLog.logAndDisplay(LogLevel.INFO, "%d GET requests over %d connections in %d ms",
+                NUM_REQUESTS, mClientPorts.size(), elapsedMs);
+        assertEquals(1, mClientPorts.size());
+        assertTrue(mGzipAccepted);
+    }
+
+    /**
+     * Test that the connection is reused after an error response.
+     */
+    public void testDoGet_error() throws IOException, DataSizeException {
+        for (int i = 0; i < 3; i++) {
+            try {
+                mHelper.doGet(mBaseUrl + "/error");
+                fail("IOException not thrown");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertEquals(TEST_DATA, mHelper.doGet(mBaseUrl + "/data"));
+        assertEquals(1, mClientPorts.size());
+    }
+
+    /**
+     * Test that ignored responses are read, so the connection is reused.
+     */
+    public void testDoGetIgnore() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            mHelper.doGetIgnore(mBaseUrl + "/large");
+        }
+        assertEquals(1, mClientPorts.size());
+    }
+
+    /**
+     * Test that a response larger than {@link IHttpHelper#MAX_DATA_SIZE} can be streamed.
+     */
+    public void testDoGet_stream() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        mHelper.doGet(mBaseUrl + "/large", outputStream);
+        assertTrue(Arrays.equals(createLargeData(), outputStream.toByteArray()));
+    }
+
+    /**
+     * Test that compressed POST data is received by the server.
+     */
+    public void testDoPostWithRetry_compressed() throws IOException, DataSizeException {
+        mHelper.setCompressRequests(true);
+        assertEquals(TEST_DATA, mHelper.doPostWithRetry(mBaseUrl + "/echo", TEST_DATA));
+        assertTrue(mGzipReceived);
+        assertEquals(TEST_DATA, mHelper.doPostWithRetry(mBaseUrl + "/echo", TEST_DATA));
+        assertEquals(1, mClientPorts.size());
+    }
+
+    /**
+     * Test that many concurrent asynchronous requests complete, and measure their throughput.
+     */
+    public void testDoGetAsync_concurrent() throws Exception {
+        long start = System.currentTimeMillis();
+        List<Future<String>> responses = new ArrayList<Future<String>>(NUM_REQUESTS);
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            responses.add(mHelper.doGetAsync(mBaseUrl + "/data"));
+        }
+        for (Future<String> response : responses) {
+            assertEquals(TEST_DATA, response.get(10, TimeUnit.SECONDS));
+        }
+        long elapsedMs = System.currentTimeMillis() - start;
+        CLog.logAndDisplay(LogLevel.INFO, "%d async GET requests over %d connections in %d ms",
+                NUM_REQUESTS, mClientPorts.size(), elapsedMs);
+        assertTrue(mClientPorts.size() <= 5);
+    }
+
+    /**
+     * Test that the {@link Future} from {@link HttpHelper#doGetAsync(String)} fails after
+     * retrying a request which always fails.
+     */
+    public void testDoGetAsync_error() throws Exception {
+        try {
+            mHelper.doGetAsync(mBaseUrl + "/error").get(10, TimeUnit.SECONDS);
+            fail("ExecutionException not thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    /**
+     * Send a response, gzip compressed if the client accepts it.
+     */
+    private void respond(HttpExchange exchange, int status, byte[] data) throws IOException {
+        mClientPorts.add(exchange.getRemoteAddress().getPort());
+        StreamUtil.closeStream(exchange.getRequestBody());
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            mGzipAccepted = true;
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+            gzipStream.write(data);
+            gzipStream.close();
+            data = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, data.length);
+        OutputStream responseBody = exchange.getResponseBody();
+        try {
+            responseBody.write(data);
+        } finally {
+            responseBody.close();
+        }
+    }
+
+    private static byte[] createLargeData() {
+        byte[] data = new byte[4 * IHttpHelper.MAX_DATA_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i % 251);
+        }
+        return data;
+    }
+}
@@ -29,6 +29,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link HttpHelper}.
@@ -273,6 +276,68 @@ public class HttpHelperTest extends TestCase {
         assertEquals(TEST_POST_DATA, mHelper.getOutputStream().toString());
     }
 
+    /**
+     * Test that {@link HttpHelper#doGet(String, OutputStream)} writes the remote contents.
+     */
+    public void testDoGet_stream() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        mHelper.doGet(TEST_URL_STRING, outputStream);
+        assertEquals(TEST_DATA, outputStream.toString());
+    }
+
+    /**
+     * Normal case test for {@link HttpHelper#doGetAsync(String)}.
+     */
+    public void testDoGetAsync() throws Exception {
+        assertEquals(TEST_DATA, mHelper.doGetAsync(TEST_URL_STRING).get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that the {@link Future} from {@link HttpHelper#doGetAsync(String)} fails with the
+     * {@link IOException} thrown on each attempt.
+     */
+    public void testDoGetAsync_ioexception() throws Exception {
+        mHelper.close();
+        mHelper = new TestHttpHelper() {
+            @Override
+            public String doGet(String url) throws IOException {
+                throw new IOException();
+            }
+        };
+
+        try {
+            mHelper.doGetAsync(TEST_URL_STRING).get(1, TimeUnit.SECONDS);
+            fail("ExecutionException not thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    /**
+     * Test that {@link HttpHelper#doPostAsync(String, String)} returns data if an
+     * {@link IOException} is thrown on the first attempt, but is fine on the second attempt.
+     */
+    public void testDoPostAsync_retry() throws Exception {
+        mHelper.close();
+        mHelper = new TestHttpHelper() {
+            boolean mExceptionThrown = false;
+
+            @Override
+            public HttpURLConnection createConnection(URL url, String method, String contentType)
+                    throws IOException {
+                if (!mExceptionThrown) {
+                    mExceptionThrown = true;
+                    throw new IOException();
+                }
+                return super.createConnection(url, method, contentType);
+            }
+        };
+
+        Future<String> response = mHelper.doPostAsync(TEST_URL_STRING, TEST_POST_DATA);
+        assertEquals(TEST_DATA, response.get(1, TimeUnit.SECONDS));
+        assertEquals(TEST_POST_DATA, mHelper.getOutputStream().toString());
+    }
+
     /**
      * A class which extends {@link HttpHelper} for testing without using the network.
      */